@@ -15,7 +15,15 @@
  */
 package com.edmunds.etm.agent;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * Agent utilities.
@@ -24,17 +32,94 @@ import org.apache.commons.codec.digest.DigestUtils;
  */
 public final class AgentUtils {
 
+    // Size of the buffers used to stream data into a digest
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
     private AgentUtils() {
         // This class should never be instantiated.
     }
 
     /**
-     * Creates a message digest for the specified rule set data.
+     * Creates an MD5 message digest for the specified rule set data.
      *
      * @param ruleSetData rule set data
      * @return message digest
      */
     public static String ruleSetDigest(byte[] ruleSetData) {
-        return DigestUtils.md5Hex(ruleSetData);
+        return ruleSetDigest(ruleSetData, DigestAlgorithm.MD5);
+    }
+
+    /**
+     * Creates a message digest for the specified rule set data.
+     *
+     * @param ruleSetData rule set data
+     * @param algorithm   digest algorithm
+     * @return message digest
+     */
+    public static String ruleSetDigest(byte[] ruleSetData, DigestAlgorithm algorithm) {
+        StreamingDigest digest = algorithm.newDigest();
+        digest.update(ruleSetData, 0, ruleSetData.length);
+        return digest.digest();
+    }
+
+    /**
+     * Creates a message digest for the rule set data read from the specified stream.
+     * <p/>
+     * The stream is read to the end but is not closed.
+     *
+     * @param in        rule set data stream
+     * @param algorithm digest algorithm
+     * @return message digest
+     * @throws IOException if the stream cannot be read
+     */
+    public static String ruleSetDigest(InputStream in, DigestAlgorithm algorithm) throws IOException {
+        StreamingDigest digest = algorithm.newDigest();
+        byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            digest.update(buffer, 0, n);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Creates a message digest for the rule set data read from the specified channel.
+     * <p/>
+     * The channel is read to the end but is not closed.
+     *
+     * @param channel   rule set data channel
+     * @param algorithm digest algorithm
+     * @return message digest
+     * @throws IOException if the channel cannot be read
+     */
+    public static String ruleSetDigest(ReadableByteChannel channel, DigestAlgorithm algorithm) throws IOException {
+        StreamingDigest digest = algorithm.newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DIGEST_BUFFER_SIZE);
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Creates a message digest for the contents of the specified rule set file.
+     * <p/>
+     * The file is streamed through a fixed-size buffer rather than read into memory.
+     *
+     * @param file      rule set file
+     * @param algorithm digest algorithm
+     * @return message digest
+     * @throws IOException if the file cannot be read
+     */
+    public static String ruleSetDigest(File file, DigestAlgorithm algorithm) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return ruleSetDigest(channel, algorithm);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
     }
 }
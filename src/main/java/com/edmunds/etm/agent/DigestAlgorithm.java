@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest algorithms available for rule set data.
+ * <p/>
+ * {@link #MD5} is the default and matches the digests computed by the ETM controller. {@link #MURMUR3_128} is a much
+ * faster non-cryptographic 128-bit hash that is suitable for equality checks when the controller is configured to use
+ * the same algorithm.
+ */
+public enum DigestAlgorithm {
+
+    MD5 {
+        @Override
+        public StreamingDigest newDigest() {
+            try {
+                return new MessageDigestAdapter(MessageDigest.getInstance("MD5"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    },
+
+    MURMUR3_128 {
+        @Override
+        public StreamingDigest newDigest() {
+            return new Murmur3Digest();
+        }
+    };
+
+    /**
+     * Creates a new digest computation.
+     *
+     * @return streaming digest
+     */
+    public abstract StreamingDigest newDigest();
+
+    /**
+     * Adapts a JCA {@code MessageDigest}.
+     */
+    private static class MessageDigestAdapter implements StreamingDigest {
+        private final MessageDigest messageDigest;
+
+        public MessageDigestAdapter(MessageDigest messageDigest) {
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            messageDigest.update(data, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            messageDigest.update(buffer);
+        }
+
+        @Override
+        public String digest() {
+            return new String(Hex.encodeHex(messageDigest.digest()));
+        }
+    }
+
+    /**
+     * Streaming implementation of the x64 128-bit variant of MurmurHash3 (seed 0).
+     * <p/>
+     * The hash bytes are formatted in little-endian order, so the result is the same as other common implementations.
+     */
+    private static class Murmur3Digest implements StreamingDigest {
+        private static final int BLOCK_SIZE = 16;
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int blockLength;
+        private long totalLength;
+        private long h1;
+        private long h2;
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            int pos = offset;
+            int end = offset + length;
+            totalLength += length;
+
+            // Complete a partial block left over from the previous update
+            if (blockLength > 0) {
+                int n = Math.min(BLOCK_SIZE - blockLength, end - pos);
+                System.arraycopy(data, pos, block, blockLength, n);
+                blockLength += n;
+                pos += n;
+                if (blockLength < BLOCK_SIZE) {
+                    return;
+                }
+                mixBlock(block, 0);
+                blockLength = 0;
+            }
+
+            // Hash whole blocks in place
+            while (end - pos >= BLOCK_SIZE) {
+                mixBlock(data, pos);
+                pos += BLOCK_SIZE;
+            }
+
+            // Keep the remainder for the next update
+            System.arraycopy(data, pos, block, 0, end - pos);
+            blockLength = end - pos;
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                int length = buffer.remaining();
+                update(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                buffer.position(buffer.limit());
+                return;
+            }
+
+            byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+            while (buffer.hasRemaining()) {
+                int n = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, n);
+                update(chunk, 0, n);
+            }
+        }
+
+        @Override
+        public String digest() {
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = blockLength - 1; i >= 8; i--) {
+                k2 = (k2 << 8) | (block[i] & 0xffL);
+            }
+            for (int i = Math.min(blockLength, 8) - 1; i >= 0; i--) {
+                k1 = (k1 << 8) | (block[i] & 0xffL);
+            }
+            if (blockLength > 8) {
+                h2 ^= mixK2(k2);
+            }
+            if (blockLength > 0) {
+                h1 ^= mixK1(k1);
+            }
+
+            h1 ^= totalLength;
+            h2 ^= totalLength;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            h2 += h1;
+
+            byte[] hash = new byte[BLOCK_SIZE];
+            for (int i = 0; i < 8; i++) {
+                hash[i] = (byte) (h1 >>> (8 * i));
+                hash[i + 8] = (byte) (h2 >>> (8 * i));
+            }
+            return new String(Hex.encodeHex(hash));
+        }
+
+        private void mixBlock(byte[] data, int offset) {
+            long k1 = getLongLittleEndian(data, offset);
+            long k2 = getLongLittleEndian(data, offset + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        private static long mixK1(long k1) {
+            return Long.rotateLeft(k1 * C1, 31) * C2;
+        }
+
+        private static long mixK2(long k2) {
+            return Long.rotateLeft(k2 * C2, 33) * C1;
+        }
+
+        private static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+
+        private static long getLongLittleEndian(byte[] data, int offset) {
+            long value = 0;
+            for (int i = 7; i >= 0; i--) {
+                value = (value << 8) | (data[offset + i] & 0xffL);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message digest that is computed incrementally over a stream of rule set data.
+ * <p/>
+ * Instances are obtained from {@link DigestAlgorithm#newDigest()} and are not thread safe.
+ */
+public interface StreamingDigest {
+
+    /**
+     * Updates the digest with the specified range of bytes.
+     *
+     * @param data   input data
+     * @param offset offset of the first byte
+     * @param length number of bytes
+     */
+    public void update(byte[] data, int offset, int length);
+
+    /**
+     * Updates the digest with the remaining bytes of the specified buffer.
+     * <p/>
+     * On return, the buffer position equals its limit.
+     *
+     * @param buffer input buffer
+     */
+    public void update(ByteBuffer buffer);
+
+    /**
+     * Completes the digest computation.
+     * <p/>
+     * The digest must not be updated after this method is called.
+     *
+     * @return the digest as a lowercase hexadecimal string
+     */
+    public String digest();
+}
@@ -39,11 +39,19 @@ public class ApacheConfig extends AgentConfig {
     // Default command to restart Apache
     private static final String DEFAULT_RESTART_COMMAND = "sudo /sbin/service httpd reload";
 
+    // Signal for an Apache graceful restart
+    private static final String DEFAULT_RELOAD_SIGNAL = "USR1";
+
+    // Pattern matching Listen directives, used to find and rebind listeners
+    private static final String DEFAULT_LISTEN_PATTERN = "(?i)^(\\s*Listen\\s+)\\S+";
+
     public ApacheConfig() {
         this.filePath = DEFAULT_FILE_PATH;
         this.syntaxCheckCommand = DEFAULT_SYNTAX_CHECK_COMMAND;
         this.startCommand = DEFAULT_START_COMMAND;
         this.restartCommand = DEFAULT_RESTART_COMMAND;
+        this.reloadSignal = DEFAULT_RELOAD_SIGNAL;
+        this.listenPattern = DEFAULT_LISTEN_PATTERN;
     }
 
     @Override
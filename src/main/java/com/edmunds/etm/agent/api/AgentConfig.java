@@ -15,9 +15,15 @@
  */
 package com.edmunds.etm.agent.api;
 
+import com.edmunds.etm.agent.DigestAlgorithm;
 import com.edmunds.etm.common.api.ControllerPaths;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
 
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Configuration properties for the agent process. <p/>
  *
@@ -28,9 +34,18 @@ public abstract class AgentConfig {
     // Token to denote the configuration file path (used in the syntax check command)
     private static final String FILE_PATH_TOKEN_REGEX = "\\{FILE_PATH\\}";
 
+    // Token to denote the shadow instance port (used in the smoke test command)
+    private static final String PORT_TOKEN_REGEX = "\\{PORT\\}";
+
+    // Signals accepted for signal reloads
+    private static final String RELOAD_SIGNAL_REGEX = "HUP|USR1|USR2";
+
     // Default encoding of the configuration file
     private static final String DEFAULT_FILE_ENCODING = "UTF-8";
 
+    // Default maximum time for the syntax check, start and restart commands
+    private static final long DEFAULT_COMMAND_TIMEOUT = 60000;
+
     // Default server host name
     private static final String DEFAULT_HOST_NAME = "";
 
@@ -40,9 +55,54 @@ public abstract class AgentConfig {
     // Default polling interval for health check
     private static final long DEFAULT_CHECK_INTERVAL = 1000;
 
+    // Default delay before the second health check, doubled for each further check up to the interval
+    private static final long DEFAULT_CHECK_INITIAL_INTERVAL = 10;
+
     // Default maximum wait time for health check
     private static final long DEFAULT_CHECK_TIMEOUT = 10000;
 
+    // Default interval between liveness probes
+    private static final long DEFAULT_LIVENESS_INTERVAL = 5000;
+
+    // Default directory for agent working files
+    private static final String DEFAULT_WORK_DIRECTORY = "/deployments/etm-agent/work";
+
+    // Name of the subdirectory of the work directory used to spool rule sets
+    private static final String SPOOL_DIRECTORY_NAME = "spool";
+
+    // Name of the subdirectory of the work directory used to store deployed rule sets
+    private static final String HISTORY_DIRECTORY_NAME = "history";
+
+    // Default maximum number of rule sets kept in the history
+    private static final int DEFAULT_HISTORY_SIZE = 10;
+
+    // Default maximum total size of the history in bytes
+    private static final long DEFAULT_HISTORY_MAX_BYTES = 100L * 1024 * 1024;
+
+    // Default maximum age of a history entry in milliseconds
+    private static final long DEFAULT_HISTORY_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    // Default quiet period before a rule set is deployed (disabled)
+    private static final long DEFAULT_DEPLOYMENT_QUIET_PERIOD = 0;
+
+    // Default maximum delay before a rule set is deployed (disabled)
+    private static final long DEFAULT_DEPLOYMENT_MAX_DELAY = 0;
+
+    // Default maximum time to wait for a restart permit (no limit)
+    private static final long DEFAULT_DEPLOYMENT_PERMIT_TIMEOUT = 0;
+
+    // Default maximum time for a health check or the release of a restart permit during deployment
+    private static final long DEFAULT_DEPLOYMENT_PHASE_TIMEOUT = 5L * 60 * 1000;
+
+    // Default number of agents that may restart concurrently
+    private static final int DEFAULT_RESTART_CONCURRENCY = 1;
+
+    // Default number of concurrent restarts per successful restart in rollout mode
+    private static final int DEFAULT_ROLLOUT_WAVE_FACTOR = 2;
+
+    // Default maximum time for a shadow instance to accept connections
+    private static final long DEFAULT_SMOKE_TEST_TIMEOUT = 10000;
+
     // Fully qualified path to the configuration file
     protected String filePath;
 
@@ -58,6 +118,18 @@ public abstract class AgentConfig {
     // Command to restart the external proxy
     protected String restartCommand;
 
+    // Maximum time in milliseconds for the syntax check, start and restart commands
+    protected long commandTimeout;
+
+    // Command to start the privileged helper process
+    protected String privilegedHelperCommand;
+
+    // Path of the pid file of the web server master process
+    protected String pidFile;
+
+    // Signal that makes the web server master process reload its configuration
+    protected String reloadSignal;
+
     // Server host name
     protected String hostName;
 
@@ -67,15 +139,103 @@ public abstract class AgentConfig {
     // Health check interval in milliseconds
     protected long checkInterval;
 
+    // Initial delay between health checks in milliseconds
+    protected long checkInitialInterval;
+
     // Health check timeout in milliseconds
     protected long checkTimeout;
 
+    // HTTP probes performed by the health check
+    protected String[] httpChecks;
+
+    // Whether every listener declared in the rule set is health checked
+    protected boolean listenerCheckEnabled;
+
+    // Pattern matching listen directives in the configuration file
+    protected String listenPattern;
+
+    // Interval between liveness probes in milliseconds, zero to disable the liveness monitor
+    protected long livenessInterval;
+
+    // Directory for agent working files
+    protected String workDirectory;
+
+    // Algorithm used to compute rule set digests
+    protected DigestAlgorithm digestAlgorithm;
+
+    // Whether to write rule sets to a slot file and rename it over the configuration file
+    protected boolean stagedWriteEnabled;
+
+    // Whether to look for rule set deltas before fetching the full rule set
+    protected boolean deltaEnabled;
+
+    // Whether to watch the rule set digest node instead of the rule set node
+    protected boolean digestNodeEnabled;
+
+    // Maximum number of rule sets kept in the history
+    protected int historySize;
+
+    // Maximum total size of the history in bytes
+    protected long historyMaxBytes;
+
+    // Maximum age of a history entry in milliseconds
+    protected long historyMaxAge;
+
+    // Time in milliseconds without further updates before a rule set is deployed
+    protected long deploymentQuietPeriod;
+
+    // Maximum time in milliseconds that a deployment is delayed by further updates
+    protected long deploymentMaxDelay;
+
+    // Maximum time in milliseconds to wait for a restart permit
+    protected long deploymentPermitTimeout;
+
+    // Maximum time in milliseconds for a health check or the release of a restart permit during deployment
+    protected long deploymentPhaseTimeout;
+
+    // Number of agents that may restart concurrently
+    protected int restartConcurrency;
+
+    // Percentage of connected agents that may restart concurrently
+    protected int restartConcurrencyPercent;
+
+    // Number of agents that deploy a new rule set before all others in rollout mode
+    protected int rolloutCanaryCount;
+
+    // Number of concurrent restarts per successful restart in rollout mode
+    protected int rolloutWaveFactor;
+
+    // Maximum number of concurrent restarts in rollout mode
+    protected int rolloutMaxWaveSize;
+
+    // Command to run a shadow instance of the external proxy
+    protected String smokeTestCommand;
+
+    // Maximum time in milliseconds for a shadow instance to accept connections
+    protected long smokeTestTimeout;
+
     public AgentConfig() {
         this.fileEncoding = DEFAULT_FILE_ENCODING;
+        this.commandTimeout = DEFAULT_COMMAND_TIMEOUT;
         this.hostName = DEFAULT_HOST_NAME;
         this.port = DEFAULT_PORT;
         this.checkInterval = DEFAULT_CHECK_INTERVAL;
+        this.checkInitialInterval = DEFAULT_CHECK_INITIAL_INTERVAL;
         this.checkTimeout = DEFAULT_CHECK_TIMEOUT;
+        this.httpChecks = new String[0];
+        this.livenessInterval = DEFAULT_LIVENESS_INTERVAL;
+        this.workDirectory = DEFAULT_WORK_DIRECTORY;
+        this.digestAlgorithm = DigestAlgorithm.MD5;
+        this.historySize = DEFAULT_HISTORY_SIZE;
+        this.historyMaxBytes = DEFAULT_HISTORY_MAX_BYTES;
+        this.historyMaxAge = DEFAULT_HISTORY_MAX_AGE;
+        this.deploymentQuietPeriod = DEFAULT_DEPLOYMENT_QUIET_PERIOD;
+        this.deploymentMaxDelay = DEFAULT_DEPLOYMENT_MAX_DELAY;
+        this.smokeTestTimeout = DEFAULT_SMOKE_TEST_TIMEOUT;
+        this.deploymentPermitTimeout = DEFAULT_DEPLOYMENT_PERMIT_TIMEOUT;
+        this.deploymentPhaseTimeout = DEFAULT_DEPLOYMENT_PHASE_TIMEOUT;
+        this.restartConcurrency = DEFAULT_RESTART_CONCURRENCY;
+        this.rolloutWaveFactor = DEFAULT_ROLLOUT_WAVE_FACTOR;
     }
 
     /**
@@ -123,6 +283,27 @@ public abstract class AgentConfig {
         return replaceFilePathToken(syntaxCheckCommand);
     }
 
+    /**
+     * Gets the command to check the syntax of the specified file instead of the configuration file.
+     *
+     * @param path path of the file to check
+     * @return the external proxy syntax check command
+     */
+    public String getSyntaxCheckCommand(String path) {
+        return syntaxCheckCommand.replaceAll(FILE_PATH_TOKEN_REGEX, Matcher.quoteReplacement(path));
+    }
+
+    /**
+     * Indicates whether the syntax check command refers to the configuration file by the {@code {FILE_PATH}} token.
+     * <p/>
+     * Only then can the syntax of a staged rule set be checked before it is activated.
+     *
+     * @return true if the syntax check command contains the file path token
+     */
+    public boolean isSyntaxCheckFilePathTokenPresent() {
+        return Pattern.compile(FILE_PATH_TOKEN_REGEX).matcher(syntaxCheckCommand).find();
+    }
+
     /**
      * Sets the command to check the syntax of the configuration file.
      *
@@ -171,6 +352,120 @@ public abstract class AgentConfig {
         this.restartCommand = restartCommand;
     }
 
+    /**
+     * Gets the maximum time in milliseconds for the syntax check, start and restart commands (default: 60 seconds).
+     * <p/>
+     * A command that does not complete in time is killed along with its child processes and treated as failed.
+     *
+     * @return command timeout in milliseconds
+     */
+    public long getCommandTimeout() {
+        return commandTimeout;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds for the syntax check, start and restart commands.
+     *
+     * @param commandTimeout command timeout in milliseconds
+     */
+    public void setCommandTimeout(long commandTimeout) {
+        this.commandTimeout = commandTimeout;
+    }
+
+    /**
+     * Indicates whether web server commands are run by the privileged helper process.
+     *
+     * @return true if a privileged helper command is configured
+     */
+    public boolean isPrivilegedHelperEnabled() {
+        return StringUtils.isNotEmpty(privilegedHelperCommand);
+    }
+
+    /**
+     * Gets the command to start the privileged helper process (default: none, which disables the helper).
+     * <p/>
+     * When the helper is enabled, the syntax check, start and restart commands are replaced by the helper's syntax
+     * check, start and reload operations, which are defined in the helper configuration. The syntax check operation
+     * receives the path of the file to check, so staged rule sets can always be checked. Example: {@code sudo
+     * /deployments/etm-agent/etm-agent/etm-agent-helper.sh}
+     *
+     * @return privileged helper command
+     */
+    public String getPrivilegedHelperCommand() {
+        return privilegedHelperCommand;
+    }
+
+    /**
+     * Sets the command to start the privileged helper process.
+     *
+     * @param privilegedHelperCommand privileged helper command
+     */
+    public void setPrivilegedHelperCommand(String privilegedHelperCommand) {
+        this.privilegedHelperCommand = privilegedHelperCommand;
+    }
+
+    /**
+     * Indicates whether the web server is reloaded by signalling its master process instead of running the restart
+     * command.
+     *
+     * @return true if a pid file and a reload signal are configured
+     */
+    public boolean isSignalReloadEnabled() {
+        return isReloadDetectionEnabled() && StringUtils.isNotEmpty(reloadSignal);
+    }
+
+    /**
+     * Indicates whether restarts complete only once the web server is up with a new process generation.
+     *
+     * @return true if a pid file is configured
+     */
+    public boolean isReloadDetectionEnabled() {
+        return StringUtils.isNotEmpty(pidFile);
+    }
+
+    /**
+     * Gets the path of the pid file of the web server master process (default: none, which disables signal reloads and
+     * reload detection).
+     * <p/>
+     * If the privileged helper is enabled, it signals the process named by the pid file in its own configuration, which
+     * must be the same file.
+     *
+     * @return pid file path
+     */
+    public String getPidFile() {
+        return pidFile;
+    }
+
+    /**
+     * Sets the path of the pid file of the web server master process.
+     *
+     * @param pidFile pid file path
+     */
+    public void setPidFile(String pidFile) {
+        this.pidFile = pidFile;
+    }
+
+    /**
+     * Gets the name of the signal that makes the web server master process reload its configuration, one of {@code
+     * HUP}, {@code USR1} or {@code USR2}.
+     * <p/>
+     * If blank, the restart command is run instead and its completion is detected through the pid file.
+     *
+     * @return reload signal name
+     */
+    public String getReloadSignal() {
+        return reloadSignal;
+    }
+
+    /**
+     * Sets the name of the signal that makes the web server master process reload its configuration.
+     *
+     * @param reloadSignal reload signal name
+     */
+    public void setReloadSignal(String reloadSignal) {
+        this.reloadSignal = reloadSignal;
+    }
+
     /**
      * Gets the host name of the external proxy server.
      * <p/>
@@ -215,7 +510,11 @@ public abstract class AgentConfig {
      * Gets the health check interval in milliseconds.
      * <p/>
      * This value controls how often (and therefore, how many) health checks are performed up to the timeout specified
-     * by {@link #getCheckTimeout()}. The default is {@code 1000} (one per second).
+     * by {@link #getCheckTimeout()}. The first check is performed immediately and the delay between checks grows from
+     * {@link #getCheckInitialInterval()} up to this value. The default is {@code 1000} (one per second).
+     * <p/>
+     * Without reload detection (see {@link #getPidFile()}), the first check after a restart is delayed by this value,
+     * since the server may still be serving with the old rule set.
      *
      * @return health check interval in milliseconds
      */
@@ -232,6 +531,27 @@ public abstract class AgentConfig {
         this.checkInterval = checkInterval;
     }
 
+    /**
+     * Gets the delay in milliseconds between the first and second health check (default: 10).
+     * <p/>
+     * The delay is doubled after each further check until it reaches {@link #getCheckInterval()}, so a server that
+     * comes up quickly is detected within milliseconds while a slow one is not probed more often than necessary.
+     *
+     * @return initial health check interval in milliseconds
+     */
+    public long getCheckInitialInterval() {
+        return checkInitialInterval;
+    }
+
+    /**
+     * Sets the delay in milliseconds between the first and second health check.
+     *
+     * @param checkInitialInterval initial health check interval in milliseconds
+     */
+    public void setCheckInitialInterval(long checkInitialInterval) {
+        this.checkInitialInterval = checkInitialInterval;
+    }
+
     /**
      * Gets the health check timeout in milliseconds.
      * <p/>
@@ -253,6 +573,572 @@ public abstract class AgentConfig {
         this.checkTimeout = checkTimeout;
     }
 
+    /**
+     * Indicates whether the health check verifies HTTP responses instead of connecting to the server port.
+     *
+     * @return true if HTTP probes are configured
+     */
+    public boolean isHttpCheckEnabled() {
+        return httpChecks.length > 0;
+    }
+
+    /**
+     * Gets the HTTP probes performed by the health check (default: none, which selects a TCP connect check).
+     * <p/>
+     * Each probe is a URL followed by optional attributes for the Host header, the accepted status codes, a substring
+     * the response body must contain and the maximum response time in milliseconds, e.g. {@code
+     * http://127.0.0.1/status host=www.example.com status=200|204 body=OK latency=500}. Probes are separated by commas
+     * in property files.
+     *
+     * @return HTTP probe specifications
+     */
+    public String[] getHttpChecks() {
+        return httpChecks;
+    }
+
+    /**
+     * Sets the HTTP probes performed by the health check.
+     *
+     * @param httpChecks HTTP probe specifications
+     */
+    public void setHttpChecks(String[] httpChecks) {
+        this.httpChecks = httpChecks;
+    }
+
+    /**
+     * Indicates whether every listener declared in the rule set is health checked (default: false).
+     * <p/>
+     * Listeners are found with {@link #getListenPattern()}. Each of them must accept connections, and all of them are
+     * checked concurrently, in addition to any HTTP probes. Wildcard addresses are checked at {@link #getHostName()}.
+     * If the rule set declares no listeners, the configured port is checked instead.
+     *
+     * @return true if listener checks are enabled
+     */
+    public boolean isListenerCheckEnabled() {
+        return listenerCheckEnabled;
+    }
+
+    /**
+     * Sets whether every listener declared in the rule set is health checked.
+     *
+     * @param listenerCheckEnabled true to enable listener checks
+     */
+    public void setListenerCheckEnabled(boolean listenerCheckEnabled) {
+        this.listenerCheckEnabled = listenerCheckEnabled;
+    }
+
+    /**
+     * Gets the regular expression matching listen directives in the configuration file.
+     * <p/>
+     * The pattern is applied to each line of the configuration. The part of a match following the first capturing
+     * group is the listen address. It is read to find the listeners to health check and replaced with a loopback
+     * address and an ephemeral port in shadow configurations.
+     *
+     * @return listen directive pattern
+     */
+    public String getListenPattern() {
+        return listenPattern;
+    }
+
+    /**
+     * Sets the regular expression matching listen directives in the configuration file.
+     *
+     * @param listenPattern listen directive pattern
+     */
+    public void setListenPattern(String listenPattern) {
+        this.listenPattern = listenPattern;
+    }
+
+    /**
+     * Gets the interval between liveness probes in milliseconds.
+     * <p/>
+     * The liveness monitor checks continuously whether the server is running and publishes the result with the agent
+     * status. A recent result answers the check made before each deployment. The default is {@code 5000} (five
+     * seconds); zero disables the monitor.
+     *
+     * @return liveness interval in milliseconds
+     */
+    public long getLivenessInterval() {
+        return livenessInterval;
+    }
+
+    /**
+     * Sets the interval between liveness probes in milliseconds.
+     *
+     * @param livenessInterval liveness interval in milliseconds
+     */
+    public void setLivenessInterval(long livenessInterval) {
+        this.livenessInterval = livenessInterval;
+    }
+
+    /**
+     * Indicates whether the liveness monitor is enabled.
+     *
+     * @return true if a liveness interval is set
+     */
+    public boolean isLivenessMonitorEnabled() {
+        return livenessInterval > 0;
+    }
+
+    /**
+     * Gets the directory in which the agent keeps its working files.
+     * <p/>
+     * The spool and history directories are created below it at startup, and the agent fails to start if they cannot
+     * be created or written. The default is {@code /deployments/etm-agent/work}, which the install script creates for
+     * the agent user next to the installed agent.
+     *
+     * @return work directory path
+     */
+    public String getWorkDirectory() {
+        return workDirectory;
+    }
+
+    /**
+     * Sets the directory in which the agent keeps its working files.
+     *
+     * @param workDirectory work directory path
+     */
+    public void setWorkDirectory(String workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    /**
+     * Gets the directory in which incoming rule sets are spooled to disk.
+     *
+     * @return spool directory
+     */
+    public File getSpoolDirectory() {
+        return new File(workDirectory, SPOOL_DIRECTORY_NAME);
+    }
+
+    /**
+     * Gets the algorithm used to compute rule set digests.
+     * <p/>
+     * Digests are reported to the controller and compared with the digests it publishes for chunks, deltas and the
+     * digest node, so the algorithm must match the one used by the controller. The default is {@code MD5}.
+     *
+     * @return digest algorithm
+     */
+    public DigestAlgorithm getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Sets the algorithm used to compute rule set digests.
+     *
+     * @param digestAlgorithm digest algorithm
+     */
+    public void setDigestAlgorithm(DigestAlgorithm digestAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    /**
+     * Indicates whether staged writes are enabled.
+     * <p/>
+     * When enabled, new rule sets are written and flushed to a slot file next to the configuration file ahead of the
+     * restart election, given the owner and mode of the configuration file, and activated by renaming the slot over
+     * the configuration file. The previous rule set is prepared the same way in a second slot, so a rollback is also a
+     * single rename. The agent needs write access to the configuration file directory and must be able to copy the
+     * owner and mode of the configuration file, otherwise staging fails. The default is {@code false}, which
+     * overwrites the configuration file in place.
+     *
+     * @return true if staged writes are enabled
+     */
+    public boolean isStagedWriteEnabled() {
+        return stagedWriteEnabled;
+    }
+
+    /**
+     * Sets whether staged writes are enabled.
+     *
+     * @param stagedWriteEnabled true to enable staged writes
+     */
+    public void setStagedWriteEnabled(boolean stagedWriteEnabled) {
+        this.stagedWriteEnabled = stagedWriteEnabled;
+    }
+
+    /**
+     * Indicates whether rule set deltas are enabled.
+     * <p/>
+     * When enabled, the agent looks for a delta published against its active rule set digest and applies it to the
+     * local rule set file. It falls back to fetching the full rule set if no usable delta exists. The default is
+     * {@code false}.
+     *
+     * @return true if rule set deltas are enabled
+     */
+    public boolean isDeltaEnabled() {
+        return deltaEnabled;
+    }
+
+    /**
+     * Sets whether rule set deltas are enabled.
+     *
+     * @param deltaEnabled true to enable rule set deltas
+     */
+    public void setDeltaEnabled(boolean deltaEnabled) {
+        this.deltaEnabled = deltaEnabled;
+    }
+
+    /**
+     * Indicates whether the rule set digest node is enabled.
+     * <p/>
+     * When enabled, the agent watches the small digest node published next to the rule set and fetches the rule set
+     * only when the published digest differs from the active one. If the digest node does not exist, the agent watches
+     * the rule set node directly. The default is {@code false}.
+     *
+     * @return true if the digest node is enabled
+     */
+    public boolean isDigestNodeEnabled() {
+        return digestNodeEnabled;
+    }
+
+    /**
+     * Sets whether the rule set digest node is enabled.
+     *
+     * @param digestNodeEnabled true to enable the digest node
+     */
+    public void setDigestNodeEnabled(boolean digestNodeEnabled) {
+        this.digestNodeEnabled = digestNodeEnabled;
+    }
+
+    /**
+     * Gets the directory in which deployed rule sets are kept for local rollback.
+     *
+     * @return history directory
+     */
+    public File getHistoryDirectory() {
+        return new File(workDirectory, HISTORY_DIRECTORY_NAME);
+    }
+
+    /**
+     * Gets the maximum number of deployed rule sets kept in the history.
+     * <p/>
+     * A value of zero disables the history. The default is 10.
+     *
+     * @return maximum number of history entries
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * Sets the maximum number of deployed rule sets kept in the history.
+     *
+     * @param historySize maximum number of history entries
+     */
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    /**
+     * Gets the maximum total size of the history in bytes (default: 100 MB).
+     *
+     * @return maximum history size in bytes
+     */
+    public long getHistoryMaxBytes() {
+        return historyMaxBytes;
+    }
+
+    /**
+     * Sets the maximum total size of the history in bytes.
+     *
+     * @param historyMaxBytes maximum history size in bytes
+     */
+    public void setHistoryMaxBytes(long historyMaxBytes) {
+        this.historyMaxBytes = historyMaxBytes;
+    }
+
+    /**
+     * Gets the maximum age of a history entry in milliseconds (default: 7 days).
+     * <p/>
+     * The most recently deployed rule set is kept regardless of its age or size.
+     *
+     * @return maximum entry age in milliseconds
+     */
+    public long getHistoryMaxAge() {
+        return historyMaxAge;
+    }
+
+    /**
+     * Sets the maximum age of a history entry in milliseconds.
+     *
+     * @param historyMaxAge maximum entry age in milliseconds
+     */
+    public void setHistoryMaxAge(long historyMaxAge) {
+        this.historyMaxAge = historyMaxAge;
+    }
+
+    /**
+     * Gets the time in milliseconds without further rule set updates before a rule set is deployed.
+     * <p/>
+     * Updates received within the quiet period are coalesced into a single deployment. The default is zero, which
+     * deploys every rule set as soon as the previous deployment completes.
+     *
+     * @return deployment quiet period in milliseconds
+     */
+    public long getDeploymentQuietPeriod() {
+        return deploymentQuietPeriod;
+    }
+
+    /**
+     * Sets the time in milliseconds without further rule set updates before a rule set is deployed.
+     *
+     * @param deploymentQuietPeriod deployment quiet period in milliseconds
+     */
+    public void setDeploymentQuietPeriod(long deploymentQuietPeriod) {
+        this.deploymentQuietPeriod = deploymentQuietPeriod;
+    }
+
+    /**
+     * Gets the maximum time in milliseconds that a deployment is delayed by the quiet period.
+     * <p/>
+     * This bounds the delay under a continuous stream of updates. A value of zero (the default) means that the delay
+     * is bounded by the quiet period only.
+     *
+     * @return maximum deployment delay in milliseconds
+     */
+    public long getDeploymentMaxDelay() {
+        return deploymentMaxDelay;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds that a deployment is delayed by the quiet period.
+     *
+     * @param deploymentMaxDelay maximum deployment delay in milliseconds
+     */
+    public void setDeploymentMaxDelay(long deploymentMaxDelay) {
+        this.deploymentMaxDelay = deploymentMaxDelay;
+    }
+
+    /**
+     * Gets the maximum time in milliseconds that a deployment waits for a restart permit (default: 0, which means no
+     * limit).
+     * <p/>
+     * A deployment that times out is abandoned and reported with an {@code UNKNOWN} result, and the server keeps its
+     * current rule set until the next one is received. Without a limit, the deployment waits in the restart queue
+     * until it is granted a permit or superseded by a newer rule set.
+     *
+     * @return restart permit timeout in milliseconds
+     */
+    public long getDeploymentPermitTimeout() {
+        return deploymentPermitTimeout;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds that a deployment waits for a restart permit.
+     *
+     * @param deploymentPermitTimeout restart permit timeout in milliseconds, or zero for no limit
+     */
+    public void setDeploymentPermitTimeout(long deploymentPermitTimeout) {
+        this.deploymentPermitTimeout = deploymentPermitTimeout;
+    }
+
+    /**
+     * Gets the maximum time in milliseconds for a health check or the release of the restart permit during a deployment
+     * (default: 5 minutes).
+     * <p/>
+     * A health check that does not complete in time is treated as failed.
+     *
+     * @return deployment phase timeout in milliseconds
+     */
+    public long getDeploymentPhaseTimeout() {
+        return deploymentPhaseTimeout;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds for a health check or the release of the restart permit during a
+     * deployment.
+     *
+     * @param deploymentPhaseTimeout deployment phase timeout in milliseconds
+     */
+    public void setDeploymentPhaseTimeout(long deploymentPhaseTimeout) {
+        this.deploymentPhaseTimeout = deploymentPhaseTimeout;
+    }
+
+    /**
+     * Indicates whether restart leases are used instead of the restart election.
+     * <p/>
+     * Leases are used if more than one agent may restart concurrently. All agents of a fleet must agree on this.
+     *
+     * @return true if restart leases are enabled
+     */
+    public boolean isRestartLeaseEnabled() {
+        return restartConcurrency > 1 || restartConcurrencyPercent > 0;
+    }
+
+    /**
+     * Gets the number of agents that may restart concurrently (default: 1).
+     *
+     * @return restart concurrency
+     */
+    public int getRestartConcurrency() {
+        return restartConcurrency;
+    }
+
+    /**
+     * Sets the number of agents that may restart concurrently.
+     *
+     * @param restartConcurrency restart concurrency
+     */
+    public void setRestartConcurrency(int restartConcurrency) {
+        this.restartConcurrency = restartConcurrency;
+    }
+
+    /**
+     * Gets the percentage of connected agents that may restart concurrently (default: 0).
+     * <p/>
+     * If set, the restart concurrency is the greater of this percentage of the connected agents and
+     * {@link #getRestartConcurrency()}.
+     *
+     * @return restart concurrency as a percentage of connected agents
+     */
+    public int getRestartConcurrencyPercent() {
+        return restartConcurrencyPercent;
+    }
+
+    /**
+     * Sets the percentage of connected agents that may restart concurrently.
+     *
+     * @param restartConcurrencyPercent restart concurrency as a percentage of connected agents
+     */
+    public void setRestartConcurrencyPercent(int restartConcurrencyPercent) {
+        this.restartConcurrencyPercent = restartConcurrencyPercent;
+    }
+
+    /**
+     * Indicates whether rule sets are rolled out to a canary group first and then in growing waves.
+     * <p/>
+     * Rollout mode takes precedence over restart leases. All agents of a fleet must agree on this.
+     *
+     * @return true if rollout mode is enabled
+     */
+    public boolean isRolloutEnabled() {
+        return rolloutCanaryCount > 0;
+    }
+
+    /**
+     * Gets the number of agents that must deploy a new rule set successfully before all others (default: 0, which
+     * disables rollout mode).
+     *
+     * @return canary group size
+     */
+    public int getRolloutCanaryCount() {
+        return rolloutCanaryCount;
+    }
+
+    /**
+     * Sets the number of agents that must deploy a new rule set successfully before all others.
+     *
+     * @param rolloutCanaryCount canary group size
+     */
+    public void setRolloutCanaryCount(int rolloutCanaryCount) {
+        this.rolloutCanaryCount = rolloutCanaryCount;
+    }
+
+    /**
+     * Gets the number of concurrent restarts allowed per successful restart once the canary group has succeeded
+     * (default: 2).
+     *
+     * @return rollout wave factor
+     */
+    public int getRolloutWaveFactor() {
+        return rolloutWaveFactor;
+    }
+
+    /**
+     * Sets the number of concurrent restarts allowed per successful restart once the canary group has succeeded.
+     *
+     * @param rolloutWaveFactor rollout wave factor
+     */
+    public void setRolloutWaveFactor(int rolloutWaveFactor) {
+        this.rolloutWaveFactor = rolloutWaveFactor;
+    }
+
+    /**
+     * Gets the maximum number of concurrent restarts in rollout mode (default: 0, which means no limit).
+     *
+     * @return maximum rollout wave size
+     */
+    public int getRolloutMaxWaveSize() {
+        return rolloutMaxWaveSize;
+    }
+
+    /**
+     * Sets the maximum number of concurrent restarts in rollout mode.
+     *
+     * @param rolloutMaxWaveSize maximum rollout wave size
+     */
+    public void setRolloutMaxWaveSize(int rolloutMaxWaveSize) {
+        this.rolloutMaxWaveSize = rolloutMaxWaveSize;
+    }
+
+    /**
+     * Indicates whether staged rule sets are smoke tested on a shadow instance before the restart election.
+     *
+     * @return true if a smoke test command is configured
+     */
+    public boolean isSmokeTestEnabled() {
+        return StringUtils.isNotEmpty(smokeTestCommand);
+    }
+
+    /**
+     * Gets the command to run a shadow instance of the external proxy (default: none, which disables smoke tests).
+     * <p/>
+     * The command must keep the server in the foreground, so that it can be killed when the smoke test ends. PID file
+     * directives of the shadow configuration are redirected to the spool directory and stats sockets are removed, but
+     * a PID file passed on the command line itself must not be shared with the live server. The {@code {FILE_PATH}}
+     * token is replaced with the path of the shadow configuration file and {@code {PORT}} with the first loopback
+     * port it listens on.
+     * <p/>
+     * The rule set must be a complete configuration that declares its own listeners, as a HAProxy configuration does.
+     * An Apache rule set that is included by the main configuration declares none, and every smoke test of it fails.
+     *
+     * @return the shadow instance command
+     */
+    public String getSmokeTestCommand() {
+        return smokeTestCommand;
+    }
+
+    /**
+     * Gets the command to run a shadow instance with the specified configuration file and port.
+     *
+     * @param path path of the shadow configuration file
+     * @param port first port of the shadow instance
+     * @return the shadow instance command
+     */
+    public String getSmokeTestCommand(String path, int port) {
+        return smokeTestCommand
+                .replaceAll(FILE_PATH_TOKEN_REGEX, Matcher.quoteReplacement(path))
+                .replaceAll(PORT_TOKEN_REGEX, String.valueOf(port));
+    }
+
+    /**
+     * Sets the command to run a shadow instance of the external proxy.
+     *
+     * @param smokeTestCommand the shadow instance command
+     */
+    public void setSmokeTestCommand(String smokeTestCommand) {
+        this.smokeTestCommand = smokeTestCommand;
+    }
+
+    /**
+     * Gets the maximum time in milliseconds for a shadow instance to accept connections (default: 10 seconds).
+     *
+     * @return smoke test timeout in milliseconds
+     */
+    public long getSmokeTestTimeout() {
+        return smokeTestTimeout;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds for a shadow instance to accept connections.
+     *
+     * @param smokeTestTimeout smoke test timeout in milliseconds
+     */
+    public void setSmokeTestTimeout(long smokeTestTimeout) {
+        this.smokeTestTimeout = smokeTestTimeout;
+    }
+
     /**
      * Returns the ZooKeeper node path where the configuration for the external process is stored.
      *
@@ -269,10 +1155,41 @@ public abstract class AgentConfig {
         Validate.notEmpty(fileEncoding, "Configuration file encoding not specified");
         Validate.notEmpty(syntaxCheckCommand, "Syntax check command not specified");
         Validate.notEmpty(restartCommand, "Restart command not specified");
+        Validate.isTrue(commandTimeout > 0, "Command timeout must be greater than zero");
         Validate.notNull(hostName, "Host name not specified");
         Validate.isTrue(port > 0, "Port must be greater than zero");
         Validate.isTrue(checkInterval > 0, "Health check interval must be greater than zero");
+        Validate.isTrue(checkInitialInterval > 0 && checkInitialInterval <= checkInterval,
+                "Initial health check interval must be greater than zero and not exceed the interval");
         Validate.isTrue(checkTimeout > 0, "Health check timeout must be greater than zero");
+        Validate.notNull(httpChecks, "HTTP health checks not specified");
+        Validate.isTrue(livenessInterval >= 0, "Liveness interval must not be negative");
+        Validate.notEmpty(workDirectory, "Work directory not specified");
+        Validate.notNull(digestAlgorithm, "Digest algorithm not specified");
+        Validate.isTrue(historySize >= 0, "History size must not be negative");
+        Validate.isTrue(historyMaxBytes > 0, "History maximum size must be greater than zero");
+        Validate.isTrue(historyMaxAge > 0, "History maximum age must be greater than zero");
+        Validate.isTrue(deploymentQuietPeriod >= 0, "Deployment quiet period must not be negative");
+        Validate.isTrue(deploymentMaxDelay == 0 || deploymentMaxDelay >= deploymentQuietPeriod,
+                "Deployment maximum delay must not be less than the quiet period");
+        Validate.isTrue(deploymentPermitTimeout >= 0, "Deployment permit timeout must not be negative");
+        Validate.isTrue(deploymentPhaseTimeout > 0, "Deployment phase timeout must be greater than zero");
+        Validate.isTrue(restartConcurrency > 0, "Restart concurrency must be greater than zero");
+        Validate.isTrue(restartConcurrencyPercent >= 0 && restartConcurrencyPercent <= 100,
+                "Restart concurrency percentage must be between 0 and 100");
+        Validate.isTrue(rolloutCanaryCount >= 0, "Rollout canary count must not be negative");
+        Validate.isTrue(rolloutWaveFactor > 0, "Rollout wave factor must be greater than zero");
+        Validate.isTrue(rolloutMaxWaveSize >= 0, "Rollout maximum wave size must not be negative");
+        if (isSignalReloadEnabled()) {
+            Validate.isTrue(reloadSignal != null && reloadSignal.matches(RELOAD_SIGNAL_REGEX),
+                    "Reload signal must be one of HUP, USR1 or USR2");
+        }
+        if (isSmokeTestEnabled() || listenerCheckEnabled) {
+            Validate.notEmpty(listenPattern, "Listen pattern not specified");
+        }
+        if (isSmokeTestEnabled()) {
+            Validate.isTrue(smokeTestTimeout > 0, "Smoke test timeout must be greater than zero");
+        }
     }
 
     private String replaceFilePathToken(String value) {
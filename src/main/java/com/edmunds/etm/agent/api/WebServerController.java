@@ -15,6 +15,8 @@
  */
 package com.edmunds.etm.agent.api;
 
+import java.io.InputStream;
+
 /**
  * Interface for a web server controller. A WebServerController provides methods to manipulate a server's ETM rule set
  * data (e.g. an included Apache configuration file), to check rule set syntax and to restart the server.
@@ -24,22 +26,44 @@ package com.edmunds.etm.agent.api;
 public interface WebServerController {
 
     /**
-     * Reads the current ETM rule set data from the server.
+     * Opens a stream over the current ETM rule set data on the server.
+     * <p/>
+     * An empty stream is returned if no rule set data exists. Rule sets can be large, so callers should stream the data
+     * rather than read it into memory. The caller must close the stream.
+     *
+     * @return rule set data stream, never {@code null}
+     */
+    public InputStream openRuleSetData();
+
+    /**
+     * Gets the digest of the current ETM rule set data.
      * <p/>
-     * An empty byte array is returned if no rule set data exists.
+     * Implementations may cache the digest as long as the rule set data is unchanged, making this method considerably
+     * cheaper than reading and hashing the data.
      *
-     * @return rule set data or an empty byte array, never {@code null}
+     * @return rule set digest, never {@code null}
      */
-    public byte[] readRuleSetData();
+    public String getRuleSetDigest();
 
     /**
-     * Writes the specified rule set data to the server.
+     * Stages the rule set data read from the specified stream without activating it.
      * <p/>
-     * Note: Implementations must handle null ruleSetData.
+     * The currently active rule set is retained so that {@link #rollBackRuleSetData()} can restore it after the staged
+     * rule set has been activated. The stream is read to the end but is not closed.
      *
-     * @param ruleSetData the rule set data to write
+     * @param ruleSetData the rule set data to stage
      */
-    public void writeRuleSetData(byte[] ruleSetData);
+    public void stageRuleSetData(InputStream ruleSetData);
+
+    /**
+     * Activates the rule set staged by {@link #stageRuleSetData(InputStream)}.
+     */
+    public void activateRuleSetData();
+
+    /**
+     * Restores the rule set that was active when the current rule set was staged.
+     */
+    public void rollBackRuleSetData();
 
     /**
      * Checks the syntax of the current rule set.
@@ -48,6 +72,31 @@ public interface WebServerController {
      */
     public boolean checkSyntax();
 
+    /**
+     * Indicates whether {@link #checkStagedSyntax()} can check a staged rule set before it is activated.
+     *
+     * @return true if staged rule sets can be checked
+     */
+    public boolean isStagedSyntaxCheckSupported();
+
+    /**
+     * Checks the syntax of the rule set staged by {@link #stageRuleSetData(InputStream)} without activating it.
+     * <p/>
+     * This always succeeds if staged syntax checks are not supported.
+     *
+     * @return true if successful, false otherwise
+     */
+    public boolean checkStagedSyntax();
+
+    /**
+     * Smoke tests the rule set staged by {@link #stageRuleSetData(InputStream)} on a shadow server instance.
+     * <p/>
+     * This always succeeds if smoke tests are not enabled.
+     *
+     * @return true if successful, false otherwise
+     */
+    public boolean smokeTestStagedRuleSet();
+
     /**
      * Starts the web server.
      * <p/>
@@ -66,8 +115,29 @@ public interface WebServerController {
 
     /**
      * Creates a new health check for this server.
+     * <p/>
+     * The health check verifies that the server is working properly and is used to decide whether a deployed rule set
+     * must be rolled back.
      *
      * @return health check
      */
     public HealthCheck newHealthCheck();
+
+    /**
+     * Creates a new check that determines whether the server is running, regardless of how it answers requests.
+     * <p/>
+     * This decides whether the server is restarted or started.
+     *
+     * @return health check
+     */
+    public HealthCheck newRunningCheck();
+
+    /**
+     * Creates a lightweight running check for continuous monitoring.
+     * <p/>
+     * Each execution is bounded by the liveness interval and logs quietly, so the check can be repeated indefinitely.
+     *
+     * @return health check
+     */
+    public HealthCheck newLivenessCheck();
 }
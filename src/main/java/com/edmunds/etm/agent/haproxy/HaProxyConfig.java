@@ -39,11 +39,19 @@ public class HaProxyConfig extends AgentConfig {
     // Default command to restart HA Proxy
     private static final String DEFAULT_RESTART_COMMAND = "sudo /sbin/service haproxy reload";
 
+    // Signal for an HA Proxy master-worker reload
+    private static final String DEFAULT_RELOAD_SIGNAL = "USR2";
+
+    // Pattern matching bind directives, used to find and rebind listeners
+    private static final String DEFAULT_LISTEN_PATTERN = "^(\\s*bind\\s+)\\S+";
+
     public HaProxyConfig() {
         this.filePath = DEFAULT_FILE_PATH;
         this.syntaxCheckCommand = DEFAULT_SYNTAX_CHECK_COMMAND;
         this.startCommand = DEFAULT_START_COMMAND;
         this.restartCommand = DEFAULT_RESTART_COMMAND;
+        this.reloadSignal = DEFAULT_RELOAD_SIGNAL;
+        this.listenPattern = DEFAULT_LISTEN_PATTERN;
     }
 
     @Override
@@ -40,16 +40,19 @@ public class Agent implements Runnable, InitializingBean, DisposableBean {
     private final RuleSetMonitor ruleSetMonitor;
     private final AgentReporter agentReporter;
     private final AgentPaths agentPaths;
+    private final LivenessMonitor livenessMonitor;
 
     @Autowired
     public Agent(ZooKeeperConnection connection,
                  RuleSetMonitor ruleSetMonitor,
                  AgentReporter agentReporter,
-                 AgentPaths agentPaths) {
+                 AgentPaths agentPaths,
+                 LivenessMonitor livenessMonitor) {
         this.connection = connection;
         this.ruleSetMonitor = ruleSetMonitor;
         this.agentReporter = agentReporter;
         this.agentPaths = agentPaths;
+        this.livenessMonitor = livenessMonitor;
     }
 
     @Override
@@ -64,6 +67,7 @@ public class Agent implements Runnable, InitializingBean, DisposableBean {
     public void run() {
         logger.info("*** Starting ETM Agent ***");
         connection.connect();
+        livenessMonitor.start();
 
         try {
             synchronized (this) {
@@ -19,10 +19,14 @@ import com.edmunds.etm.common.api.AgentInstance;
 import com.edmunds.etm.common.api.RuleSetDeploymentEvent;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
 import java.util.Date;
+import java.util.List;
 
 /**
  * Agent monitoring MBean.
@@ -34,10 +38,28 @@ import java.util.Date;
 public class AgentMBean {
 
     private final AgentReporter agentReporter;
+    private final RuleSetHistory ruleSetHistory;
+    private final RuleSetMonitor ruleSetMonitor;
+    private final RuleSetDeploymentWorker deploymentWorker;
+    private final CommandRunner commandRunner;
+    private final ReloadDetector reloadDetector;
+    private final LivenessMonitor livenessMonitor;
 
     @Autowired
-    public AgentMBean(AgentReporter agentReporter) {
+    public AgentMBean(AgentReporter agentReporter,
+                      RuleSetHistory ruleSetHistory,
+                      RuleSetMonitor ruleSetMonitor,
+                      RuleSetDeploymentWorker deploymentWorker,
+                      CommandRunner commandRunner,
+                      ReloadDetector reloadDetector,
+                      LivenessMonitor livenessMonitor) {
         this.agentReporter = agentReporter;
+        this.ruleSetHistory = ruleSetHistory;
+        this.ruleSetMonitor = ruleSetMonitor;
+        this.deploymentWorker = deploymentWorker;
+        this.commandRunner = commandRunner;
+        this.reloadDetector = reloadDetector;
+        this.livenessMonitor = livenessMonitor;
     }
 
     @ManagedAttribute(description = "Agent IP address")
@@ -85,10 +107,134 @@ public class AgentMBean {
         return getLastFailedDeployment() != null ? getLastFailedDeployment().getResult().toString() : "";
     }
 
+    @ManagedAttribute(description = "Number of rule set deployments submitted")
+    public long getSubmittedDeploymentCount() {
+        return deploymentWorker.getSubmittedCount();
+    }
+
+    @ManagedAttribute(description = "Number of rule set deployments run")
+    public long getDeployedCount() {
+        return deploymentWorker.getDeployedCount();
+    }
+
+    @ManagedAttribute(description = "Number of rule set deployments superseded before they were run")
+    public long getSupersededDeploymentCount() {
+        return deploymentWorker.getSupersededCount();
+    }
+
+    @ManagedAttribute(description = "Number of rule set deployments cancelled while waiting for a restart permit")
+    public long getCancelledDeploymentCount() {
+        return deploymentWorker.getCancelledCount();
+    }
+
+    @ManagedAttribute(description = "Queue wait time of the last rule set deployment in milliseconds")
+    public long getLastDeploymentQueueWaitTime() {
+        return deploymentWorker.getLastQueueWaitTime();
+    }
+
+    @ManagedAttribute(description = "Maximum queue wait time of a rule set deployment in milliseconds")
+    public long getMaxDeploymentQueueWaitTime() {
+        return deploymentWorker.getMaxQueueWaitTime();
+    }
+
+    @ManagedAttribute(description = "Average queue wait time of a rule set deployment in milliseconds")
+    public long getAverageDeploymentQueueWaitTime() {
+        return deploymentWorker.getAverageQueueWaitTime();
+    }
+
+    @ManagedAttribute(description = "Whether a rule set deployment is waiting to run")
+    public boolean isDeploymentPending() {
+        return deploymentWorker.isDeploymentPending();
+    }
+
+    @ManagedAttribute(description = "Whether a rule set deployment is running")
+    public boolean isDeploymentActive() {
+        return deploymentWorker.isDeploymentActive();
+    }
+
+    @ManagedAttribute(description = "State of the active rule set deployment")
+    public String getDeploymentState() {
+        RuleSetDeploymentTask.State state = deploymentWorker.getDeploymentState();
+        return state != null ? state.toString() : "";
+    }
+
+    @ManagedAttribute(description = "Digests of rule sets in the local history, most recent first")
+    public String[] getRuleSetHistory() {
+        List<String> digests = ruleSetHistory.getDigests();
+        return digests.toArray(new String[digests.size()]);
+    }
+
+    @ManagedAttribute(description = "Exit value, duration and date of the last syntax check command")
+    public String getLastSyntaxCheckResult() {
+        return describeResult(ProcessController.SYNTAX_CHECK_COMMAND);
+    }
+
+    @ManagedAttribute(description = "Output excerpt of the last syntax check command")
+    public String getLastSyntaxCheckOutput() {
+        return getOutputExcerpt(ProcessController.SYNTAX_CHECK_COMMAND);
+    }
+
+    @ManagedAttribute(description = "Exit value, duration and date of the last start command")
+    public String getLastStartResult() {
+        return describeResult(ProcessController.START_COMMAND);
+    }
+
+    @ManagedAttribute(description = "Output excerpt of the last start command")
+    public String getLastStartOutput() {
+        return getOutputExcerpt(ProcessController.START_COMMAND);
+    }
+
+    @ManagedAttribute(description = "Exit value, duration and date of the last restart command")
+    public String getLastRestartResult() {
+        return describeResult(ProcessController.RESTART_COMMAND);
+    }
+
+    @ManagedAttribute(description = "Output excerpt of the last restart command")
+    public String getLastRestartOutput() {
+        return getOutputExcerpt(ProcessController.RESTART_COMMAND);
+    }
+
+    @ManagedAttribute(description = "Date the new server generation of the last reload was up")
+    public Date getLastReloadDate() {
+        return reloadDetector.getLastReloadDate();
+    }
+
+    @ManagedAttribute(description = "Time from requesting the last reload until the new server generation was up in "
+            + "milliseconds")
+    public long getLastReloadLatency() {
+        return reloadDetector.getLastReloadLatency();
+    }
+
+    @ManagedAttribute(description = "Web server liveness and probe latency summary")
+    public String getLiveness() {
+        LivenessStatus status = livenessMonitor.getStatus();
+        return status != null ? status.toString() : "";
+    }
+
+    @ManagedOperation(description = "Roll back to a rule set from the local history")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "digest", description = "Rule set digest")})
+    public String rollBackToRuleSet(String digest) {
+        if (ruleSetMonitor.deployFromHistory(digest)) {
+            return String.format("Rollback to rule set %s queued", digest);
+        }
+        return String.format("Rule set %s not available in history", digest);
+    }
+
     private AgentInstance getAgentInstance() {
         return agentReporter.getAgentInstance();
     }
 
+    private String describeResult(String name) {
+        CommandResult result = commandRunner.getLastResult(name);
+        return result != null ? String.format("%s at %s", result, result.getStartDate()) : "";
+    }
+
+    private String getOutputExcerpt(String name) {
+        CommandResult result = commandRunner.getLastResult(name);
+        return result != null ? result.getOutputExcerpt() : "";
+    }
+
     private RuleSetDeploymentEvent getLastDeployment() {
         return getAgentInstance().getLastDeploymentEvent();
     }
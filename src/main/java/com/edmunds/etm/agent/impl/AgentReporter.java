@@ -15,7 +15,6 @@
  */
 package com.edmunds.etm.agent.impl;
 
-import com.edmunds.etm.agent.AgentUtils;
 import com.edmunds.etm.agent.api.WebServerController;
 import com.edmunds.etm.common.api.AgentInstance;
 import com.edmunds.etm.common.api.AgentPaths;
@@ -28,6 +27,7 @@ import com.edmunds.zookeeper.connection.ZooKeeperConnectionListener;
 import com.edmunds.zookeeper.connection.ZooKeeperConnectionState;
 import com.edmunds.zookeeper.util.ZooKeeperUtils;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.UUID;
@@ -40,6 +40,10 @@ import org.springframework.stereotype.Component;
 
 /**
  * Reports agent status and events to ZooKeeper for central monitoring.
+ * <p/>
+ * The agent instance node carries the agent instance object. The web server liveness status is published separately,
+ * as {@code key=value} lines in an ephemeral companion node of the same name under the {@code connected-health} node,
+ * because the agent instance object has no room for it.
  *
  * @author Ryan Holmes
  */
@@ -48,6 +52,12 @@ public class AgentReporter implements ZooKeeperConnectionListener {
 
     private static final Logger logger = Logger.getLogger(AgentReporter.class);
 
+    // Suffix appended to the connected agents path to form the parent of the liveness nodes
+    private static final String LIVENESS_PATH_SUFFIX = "-health";
+
+    // Encoding of the liveness node data
+    private static final String LIVENESS_NODE_CHARSET = "UTF-8";
+
     private final ZooKeeperConnection connection;
     private final AgentPaths agentPaths;
     private final WebServerController webServerController;
@@ -57,6 +67,12 @@ public class AgentReporter implements ZooKeeperConnectionListener {
     private AgentInstance agentInstance;
     private String agentNodePath;
 
+    private LivenessStatus livenessStatus;
+    private LivenessStatus createdLivenessStatus;
+    private String livenessNodePath;
+    private boolean livenessNodeCreated;
+    private boolean livenessNodePending;
+
     @Autowired
     public AgentReporter(ZooKeeperConnection connection,
                          AgentPaths agentPaths,
@@ -86,6 +102,19 @@ public class AgentReporter implements ZooKeeperConnectionListener {
         updateAgentNode();
     }
 
+    /**
+     * Publishes the current web server liveness status.
+     * <p/>
+     * The status is held until the agent instance node has been created and is published again after the session
+     * expires.
+     *
+     * @param status liveness status
+     */
+    public synchronized void publishLivenessStatus(LivenessStatus status) {
+        livenessStatus = status;
+        updateLivenessNode();
+    }
+
     /**
      * Returns the agent instance object. <p/> The agent instance is created lazily as needed, so this method will never
      * return null.
@@ -105,6 +134,7 @@ public class AgentReporter implements ZooKeeperConnectionListener {
             createAgentNode();
         } else if(state == ZooKeeperConnectionState.EXPIRED) {
             agentNodePath = null;
+            resetLivenessNode();
         }
     }
 
@@ -136,6 +166,7 @@ public class AgentReporter implements ZooKeeperConnectionListener {
         if(rc == Code.OK) {
             agentNodePath = name;
             logger.debug(String.format("Created agent host node: %s", name));
+            initLivenessNode(name);
         } else if(ZooKeeperUtils.isRetryableError(rc)) {
             logger.warn(String.format("Error %s while creating agent instance node %s, retrying", rc, path));
             createAgentNode();
@@ -175,6 +206,144 @@ public class AgentReporter implements ZooKeeperConnectionListener {
         }
     }
 
+    private synchronized void initLivenessNode(String agentNodeName) {
+        String nodeName = agentNodeName.substring(agentNodeName.lastIndexOf('/') + 1);
+        livenessNodePath = getLivenessParentPath() + "/" + nodeName;
+        livenessNodeCreated = false;
+        livenessNodePending = false;
+        updateLivenessNode();
+    }
+
+    private synchronized void resetLivenessNode() {
+        livenessNodePath = null;
+        livenessNodeCreated = false;
+        livenessNodePending = false;
+    }
+
+    /**
+     * Writes the liveness status to the liveness node, creating the node first if necessary.
+     */
+    protected synchronized void updateLivenessNode() {
+        if(livenessNodePath == null || livenessStatus == null || livenessNodePending) {
+            return;
+        }
+
+        if(!livenessNodeCreated) {
+            livenessNodePending = true;
+            createLivenessParentNode();
+            return;
+        }
+
+        AsyncCallback.StatCallback cb = new AsyncCallback.StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                onSetLivenessNodeData(Code.get(rc), path);
+            }
+        };
+        connection.setData(livenessNodePath, livenessStatusToBytes(livenessStatus), -1, cb, null);
+    }
+
+    protected void createLivenessParentNode() {
+        AsyncCallback.StringCallback cb = new AsyncCallback.StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                onLivenessParentNodeCreated(Code.get(rc), path);
+            }
+        };
+        connection.createPersistent(getLivenessParentPath(), new byte[0], cb, null);
+    }
+
+    protected synchronized void onLivenessParentNodeCreated(Code rc, String path) {
+        if(livenessNodePath == null) {
+            // Session expired in the meantime
+            return;
+        }
+
+        if(rc == Code.OK || rc == Code.NODEEXISTS) {
+            createLivenessNode();
+        } else if(ZooKeeperUtils.isRetryableError(rc)) {
+            logger.warn(String.format("Error %s while creating liveness parent node %s, retrying", rc, path));
+            createLivenessParentNode();
+        } else {
+            logger.error(String.format("Error %s while creating liveness parent node: %s", rc, path));
+            livenessNodePending = false;
+        }
+    }
+
+    protected synchronized void createLivenessNode() {
+        AsyncCallback.StringCallback cb = new AsyncCallback.StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                onLivenessNodeCreated(Code.get(rc), path);
+            }
+        };
+        createdLivenessStatus = livenessStatus;
+        connection.createEphemeral(livenessNodePath, livenessStatusToBytes(livenessStatus), cb, null);
+    }
+
+    protected synchronized void onLivenessNodeCreated(Code rc, String path) {
+        if(!path.equals(livenessNodePath)) {
+            // Session expired in the meantime
+            return;
+        }
+
+        if(rc == Code.OK || rc == Code.NODEEXISTS) {
+            logger.debug(String.format("Created liveness node: %s", path));
+            livenessNodeCreated = true;
+            livenessNodePending = false;
+            if(livenessStatus != createdLivenessStatus || rc == Code.NODEEXISTS) {
+                updateLivenessNode();
+            }
+        } else if(ZooKeeperUtils.isRetryableError(rc)) {
+            logger.warn(String.format("Error %s while creating liveness node %s, retrying", rc, path));
+            createLivenessNode();
+        } else {
+            logger.error(String.format("Error %s while creating liveness node: %s", rc, path));
+            livenessNodePending = false;
+        }
+    }
+
+    protected synchronized void onSetLivenessNodeData(Code rc, String path) {
+        if(!path.equals(livenessNodePath)) {
+            return;
+        }
+
+        if(rc == Code.OK) {
+            logger.debug("Liveness node updated");
+        } else if(rc == Code.NONODE) {
+            logger.warn(String.format("Liveness node %s disappeared, recreating", path));
+            livenessNodeCreated = false;
+            updateLivenessNode();
+        } else if(ZooKeeperUtils.isRetryableError(rc)) {
+            logger.warn(String.format("Error %s while updating liveness node %s, retrying", rc, path));
+            updateLivenessNode();
+        } else {
+            logger.error(String.format("Error %s while updating liveness node: %s", rc, path));
+        }
+    }
+
+    private String getLivenessParentPath() {
+        return agentPaths.getConnected() + LIVENESS_PATH_SUFFIX;
+    }
+
+    private static byte[] livenessStatusToBytes(LivenessStatus status) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("up=").append(status.isUp()).append('\n');
+        sb.append("since=").append(status.getSince().getTime()).append('\n');
+        sb.append("lastProbe=").append(status.getLastProbeDate().getTime()).append('\n');
+        sb.append("probes=").append(status.getProbeCount()).append('\n');
+        sb.append("failures=").append(status.getFailureCount()).append('\n');
+        sb.append("latencyLast=").append(status.getLastLatency()).append('\n');
+        sb.append("latencyAverage=").append(status.getAverageLatency()).append('\n');
+        sb.append("latency95=").append(status.getLatency95()).append('\n');
+        sb.append("latencyMax=").append(status.getMaxLatency()).append('\n');
+        try {
+            return sb.toString().getBytes(LIVENESS_NODE_CHARSET);
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private AgentInstance createAgentInstance() {
         UUID agentId = UUID.randomUUID();
         String ipAddress = getIpAddress();
@@ -183,8 +352,7 @@ public class AgentReporter implements ZooKeeperConnectionListener {
         AgentInstance instance = new AgentInstance(agentId, ipAddress, version);
 
         // Set the active rule set digest
-        byte[] ruleSetData = webServerController.readRuleSetData();
-        instance.setActiveRuleSetDigest(AgentUtils.ruleSetDigest(ruleSetData));
+        instance.setActiveRuleSetDigest(webServerController.getRuleSetDigest());
 
         return instance;
     }
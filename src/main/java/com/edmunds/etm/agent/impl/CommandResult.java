@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import java.util.Date;
+
+/**
+ * The outcome of an external command executed by {@link CommandRunner}.
+ */
+public class CommandResult {
+
+    // Exit value indicating success
+    private static final int SUCCESS_EXIT_VALUE = 0;
+
+    // Maximum number of output lines in an excerpt
+    private static final int EXCERPT_LINES = 20;
+
+    private final String command;
+    private final Date startDate;
+    private final Integer exitValue;
+    private final long duration;
+    private final boolean timedOut;
+    private final String output;
+    private final String errorOutput;
+
+    public CommandResult(String command,
+                         Date startDate,
+                         Integer exitValue,
+                         long duration,
+                         boolean timedOut,
+                         String output,
+                         String errorOutput) {
+        this.command = command;
+        this.startDate = startDate;
+        this.exitValue = exitValue;
+        this.duration = duration;
+        this.timedOut = timedOut;
+        this.output = output;
+        this.errorOutput = errorOutput;
+    }
+
+    /**
+     * Indicates whether the command completed in time with a zero exit value.
+     *
+     * @return true if the command succeeded
+     */
+    public boolean isSuccess() {
+        return !timedOut && exitValue != null && exitValue == SUCCESS_EXIT_VALUE;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    /**
+     * Gets the exit value of the command.
+     *
+     * @return exit value, or {@code null} if the command could not be started or timed out
+     */
+    public Integer getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * Gets the time in milliseconds from starting the command until it exited or was killed.
+     *
+     * @return duration in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Gets the tail of the standard output of the command.
+     *
+     * @return standard output
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * Gets the tail of the standard error of the command.
+     *
+     * @return standard error
+     */
+    public String getErrorOutput() {
+        return errorOutput;
+    }
+
+    /**
+     * Gets the last lines of the command output, preferring standard error.
+     * <p/>
+     * This is intended to explain a failure in logs and monitoring.
+     *
+     * @return output excerpt
+     */
+    public String getOutputExcerpt() {
+        String text = errorOutput.trim().length() > 0 ? errorOutput : output;
+        String[] lines = text.trim().split("\n");
+        int first = Math.max(0, lines.length - EXCERPT_LINES);
+
+        StringBuilder excerpt = new StringBuilder();
+        for (int i = first; i < lines.length; i++) {
+            if (excerpt.length() > 0) {
+                excerpt.append('\n');
+            }
+            excerpt.append(lines[i]);
+        }
+        return excerpt.toString();
+    }
+
+    @Override
+    public String toString() {
+        String status = timedOut ? "timed out" : String.format("exit value %s", exitValue);
+        return String.format("Command '%s' (%s, %d ms)", command, status, duration);
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes external commands with a timeout and bounded output capture.
+ * <p/>
+ * Standard output and standard error are drained into ring buffers that keep the tail of each stream, so a command can
+ * neither block on a full pipe nor exhaust memory. The drains and the wait for the exit of each command run on a
+ * shared pool of daemon threads. A command that exceeds its timeout is killed together with its descendant processes.
+ * Output streams still open shortly after the command has exited, because a background process it started inherited
+ * them, are closed so that the drains end. The most recent result for each command name is retained for monitoring.
+ */
+@Component
+public class CommandRunner implements DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(CommandRunner.class);
+
+    // Number of bytes of each output stream kept in memory
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+    // Maximum time to wait for output to be drained after the command has exited
+    private static final long DRAIN_TIMEOUT = 1000;
+
+    // Encoding used to decode command output
+    private static final String OUTPUT_ENCODING = "UTF-8";
+
+    // Prefix of the names of the pooled threads
+    private static final String THREAD_NAME_PREFIX = "etm-command-";
+
+    /**
+     * Listener notified when a command started with {@link CommandRunner#start} exits.
+     */
+    public interface ExitListener {
+
+        /**
+         * Called when the command has exited, unless it was stopped by the caller.
+         *
+         * @param exitValue exit value of the command
+         */
+        void onExit(int exitValue);
+    }
+
+    private final Map<String, CommandResult> lastResults = Maps.newHashMap();
+    private final ExecutorService executor;
+
+    public CommandRunner() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs a command and waits for it to complete.
+     *
+     * @param name    name under which the result is retained, e.g. {@code "restart"}
+     * @param command command line
+     * @param timeout maximum time in milliseconds to wait for the command
+     * @return command result
+     */
+    public CommandResult run(String name, String command, long timeout) {
+        CommandResult result = execute(command, timeout);
+        record(name, result);
+        return result;
+    }
+
+    /**
+     * Retains the result of a command that was executed elsewhere, e.g. by the privileged helper.
+     *
+     * @param name   name under which the result is retained
+     * @param result command result
+     */
+    public void record(String name, CommandResult result) {
+        synchronized (lastResults) {
+            lastResults.put(name, result);
+        }
+
+        if (result.isSuccess()) {
+            logger.debug(result);
+        } else {
+            logger.warn(String.format("%s failed: %s", result, result.getOutputExcerpt()));
+        }
+    }
+
+    /**
+     * Gets the most recent result of the named command.
+     *
+     * @param name command name
+     * @return command result, or {@code null} if the command has not been run
+     */
+    public CommandResult getLastResult(String name) {
+        synchronized (lastResults) {
+            return lastResults.get(name);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts a long-running command, e.g. a shadow server instance, without waiting for it to exit.
+     * <p/>
+     * The output of the command is captured as with {@link #run}. The caller must stop the command when it is no
+     * longer needed.
+     *
+     * @param command  command line
+     * @param listener listener notified when the command exits, may be {@code null}
+     * @return the running command, or {@code null} if it could not be executed
+     */
+    public RunningCommand start(String command, ExitListener listener) {
+        try {
+            return new RunningCommand(command, listener, executor);
+        } catch (IOException e) {
+            logger.error(String.format("Could not execute command '%s'", command), e);
+            return null;
+        }
+    }
+
+    private CommandResult execute(String command, long timeout) {
+        RunningCommand child;
+        try {
+            child = new RunningCommand(command, null, executor);
+        } catch (IOException e) {
+            logger.error(String.format("Could not execute command '%s'", command), e);
+            return new CommandResult(command, new Date(), null, 0, false, "", e.toString());
+        }
+
+        try {
+            if (!child.awaitExit(timeout)) {
+                logger.error(String.format("Command '%s' timed out after %d ms, killing it", command, timeout));
+            }
+        } catch (InterruptedException e) {
+            logger.error(String.format("Thread interrupted while waiting for command '%s'", command), e);
+            Thread.currentThread().interrupt();
+        }
+        return child.stop();
+    }
+
+    private static void drain(Executor executor,
+                              final InputStream in,
+                              final TailBuffer buffer,
+                              final CountDownLatch drained) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] bytes = new byte[4096];
+                try {
+                    int n;
+                    while ((n = in.read(bytes)) >= 0) {
+                        buffer.write(bytes, 0, n);
+                    }
+                } catch (IOException e) {
+                    // Stream closed when the process is killed or the drain is abandoned
+                } finally {
+                    IOUtils.closeQuietly(in);
+                    drained.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Kills a process and all of its descendants.
+     * <p/>
+     * Descendants are found through the {@link ProcessTable}. Processes running as another user, e.g. under
+     * {@code sudo}, can only be killed if the agent has permission to signal them.
+     *
+     * @param process process to kill
+     */
+    private static void killProcessTree(Process process) {
+        Integer pid = getPid(process);
+        if (pid != null) {
+            List<Integer> pids = ProcessTable.getDescendants(pid);
+            pids.add(0, pid);
+
+            List<String> command = Lists.newArrayList("kill", "-KILL");
+            for (Integer p : pids) {
+                command.add(String.valueOf(p));
+            }
+            try {
+                Process kill = Runtime.getRuntime().exec(command.toArray(new String[command.size()]));
+                kill.waitFor();
+            } catch (IOException e) {
+                logger.warn(String.format("Could not kill processes %s", pids), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        process.destroy();
+    }
+
+    /**
+     * Gets the operating system process id of a process.
+     *
+     * @param process process
+     * @return process id, or {@code null} if it cannot be determined
+     */
+    static Integer getPid(Process process) {
+        try {
+            // Java 9 and later
+            Method method = Process.class.getMethod("pid");
+            return ((Long) method.invoke(process)).intValue();
+        } catch (NoSuchMethodException e) {
+            // Fall through
+        } catch (Exception e) {
+            return null;
+        }
+
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * An external command that has been started.
+     */
+    public static class RunningCommand {
+        private final String command;
+        private final Date startDate = new Date();
+        private final long startTime = System.currentTimeMillis();
+        private final Process child;
+        private final TailBuffer output = new TailBuffer(OUTPUT_BUFFER_SIZE);
+        private final TailBuffer errorOutput = new TailBuffer(OUTPUT_BUFFER_SIZE);
+        private final CountDownLatch drained = new CountDownLatch(2);
+        private final CountDownLatch exited = new CountDownLatch(1);
+        private volatile boolean stopped;
+
+        private RunningCommand(String command, final ExitListener listener, Executor executor) throws IOException {
+            this.command = command;
+            this.child = Runtime.getRuntime().exec(command);
+            IOUtils.closeQuietly(child.getOutputStream());
+
+            try {
+                drain(executor, child.getInputStream(), output, drained);
+                drain(executor, child.getErrorStream(), errorOutput, drained);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            child.waitFor();
+                        } catch (InterruptedException e) {
+                            // Abandoned by the caller
+                            return;
+                        } finally {
+                            exited.countDown();
+                        }
+                        if (listener != null && !stopped) {
+                            listener.onExit(child.exitValue());
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                killProcessTree(child);
+                throw new IOException("Command runner has been shut down");
+            }
+        }
+
+        /**
+         * Indicates whether the command is still running.
+         *
+         * @return true if the command has not exited
+         */
+        public boolean isRunning() {
+            return exited.getCount() > 0;
+        }
+
+        /**
+         * Waits for the command to exit.
+         *
+         * @param timeout maximum time in milliseconds to wait
+         * @return true if the command has exited, false if the timeout expired
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        public boolean awaitExit(long timeout) throws InterruptedException {
+            return exited.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Kills the command together with its descendant processes if it is still running.
+         *
+         * @return command result, which is timed out if the command had to be killed
+         */
+        public CommandResult stop() {
+            stopped = true;
+            boolean killed = isRunning();
+            boolean complete = false;
+            try {
+                if (killed) {
+                    killProcessTree(child);
+                    awaitExit(DRAIN_TIMEOUT);
+                }
+                complete = drained.await(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!complete) {
+                // A background process still holds the output open, end the drains rather than leak them
+                logger.debug(String.format("Output of command '%s' still open after exit, closing it", command));
+                IOUtils.closeQuietly(child.getInputStream());
+                IOUtils.closeQuietly(child.getErrorStream());
+            }
+
+            long duration = System.currentTimeMillis() - startTime;
+            Integer exitValue = killed ? null : child.exitValue();
+            return new CommandResult(command, startDate, exitValue, duration, killed,
+                    output.toString(), errorOutput.toString());
+        }
+    }
+
+    /**
+     * A ring buffer that keeps the last bytes written to it.
+     */
+    static class TailBuffer {
+        private final byte[] buffer;
+        private long count;
+
+        TailBuffer(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        synchronized void write(byte[] bytes, int offset, int length) {
+            // Only the last bytes of a large write can survive
+            if (length > buffer.length) {
+                offset += length - buffer.length;
+                count += length - buffer.length;
+                length = buffer.length;
+            }
+
+            int position = (int) (count % buffer.length);
+            int first = Math.min(length, buffer.length - position);
+            System.arraycopy(bytes, offset, buffer, position, first);
+            System.arraycopy(bytes, offset + first, buffer, 0, length - first);
+            count += length;
+        }
+
+        @Override
+        public synchronized String toString() {
+            byte[] tail;
+            if (count <= buffer.length) {
+                tail = new byte[(int) count];
+                System.arraycopy(buffer, 0, tail, 0, tail.length);
+            } else {
+                int position = (int) (count % buffer.length);
+                tail = new byte[buffer.length];
+                System.arraycopy(buffer, position, tail, 0, buffer.length - position);
+                System.arraycopy(buffer, 0, tail, buffer.length - position, position);
+            }
+
+            try {
+                String text = new String(tail, OUTPUT_ENCODING);
+                return count > buffer.length ? "[...]" + text : text;
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.HealthCheck;
+import com.edmunds.etm.agent.api.HealthCheckListener;
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+
+/**
+ * A {@code HealthCheck} that executes several health checks concurrently.
+ * <p/>
+ * The composite check succeeds once all checks have succeeded and fails as soon as any check fails, so its duration is
+ * that of the slowest check rather than the sum of all checks.
+ */
+public class CompositeHealthCheck implements HealthCheck {
+    private static final Logger logger = Logger.getLogger(CompositeHealthCheck.class);
+
+    private final List<HealthCheck> healthChecks;
+
+    private HealthCheckListener healthCheckListener;
+    private int pendingChecks;
+    private boolean complete;
+
+    /**
+     * Constructs a new CompositeHealthCheck.
+     *
+     * @param healthChecks health checks to execute
+     */
+    public CompositeHealthCheck(List<HealthCheck> healthChecks) {
+        this.healthChecks = healthChecks;
+    }
+
+    @Override
+    public void execute(HealthCheckListener listener) {
+        Validate.notNull(listener, "Health check listener is null");
+        Validate.notEmpty(healthChecks, "No health checks");
+
+        synchronized (this) {
+            healthCheckListener = listener;
+            pendingChecks = healthChecks.size();
+            complete = false;
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("Composite health check started with %d checks", healthChecks.size()));
+        }
+
+        for (HealthCheck healthCheck : healthChecks) {
+            healthCheck.execute(new HealthCheckListener() {
+                @Override
+                public void onHealthCheckComplete(boolean alive) {
+                    onCheckComplete(alive);
+                }
+            });
+        }
+    }
+
+    private void onCheckComplete(boolean alive) {
+        HealthCheckListener listener;
+        synchronized (this) {
+            if (complete) {
+                return;
+            }
+            pendingChecks--;
+            if (alive && pendingChecks > 0) {
+                return;
+            }
+            complete = true;
+            listener = healthCheckListener;
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("Composite health check completed with result: %b", alive));
+        }
+        listener.onHealthCheckComplete(alive);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.common.api.RuleSetDeploymentResult;
+import com.edmunds.zookeeper.connection.ZooKeeperConnection;
+import com.edmunds.zookeeper.election.ZooKeeperElection;
+import com.edmunds.zookeeper.election.ZooKeeperElectionListener;
+
+/**
+ * A {@code RestartPermit} granted to the single master of a ZooKeeper election.
+ */
+public class ElectionRestartPermit implements RestartPermit {
+
+    private final ZooKeeperElection election;
+
+    public ElectionRestartPermit(ZooKeeperConnection connection, String electionPath) {
+        this.election = new ZooKeeperElection(connection, electionPath);
+    }
+
+    @Override
+    public void acquire(final RestartPermitListener listener) {
+        election.addListener(new ZooKeeperElectionListener() {
+            @Override
+            public void onElectionStateChange(ZooKeeperElection zooKeeperElection, boolean master) {
+                listener.onRestartPermitChange(master);
+            }
+        });
+        election.enroll();
+    }
+
+    @Override
+    public void release(RuleSetDeploymentResult result) {
+        election.withdraw();
+    }
+}
@@ -0,0 +1,606 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.google.common.collect.Maps;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Shared engine for health checks.
+ * <p/>
+ * A single daemon thread multiplexes non-blocking connects and request/response exchanges on one selector and runs the
+ * scheduled tasks of all health checks, so no thread is created per check and a connection that hangs cannot stall
+ * other checks. Every connect and exchange has an explicit timeout. Connections whose response allows it are kept
+ * alive and reused by later exchanges with the same address.
+ * <p/>
+ * Listeners and scheduled tasks run on the engine thread and must not block.
+ */
+@Component
+public class HealthCheckEngine implements DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(HealthCheckEngine.class);
+
+    // Size of the buffer used to read responses
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    // Maximum time in milliseconds an idle connection is kept for reuse
+    private static final long MAX_IDLE_TIME = 4000;
+
+    // Maximum number of idle connections kept per address
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    /**
+     * Listener notified when a connect attempt completes.
+     */
+    public interface ConnectListener {
+
+        /**
+         * Called on the engine thread when a connect attempt has completed.
+         *
+         * @param connected true if the connection was established, false if it failed or timed out
+         */
+        void onConnectComplete(boolean connected);
+    }
+
+    /**
+     * Incrementally reads the response of an exchange.
+     */
+    public interface ResponseReader {
+
+        /**
+         * Consumes response data received from the server.
+         *
+         * @param data received data
+         * @return true if the response is complete
+         */
+        boolean read(ByteBuffer data);
+
+        /**
+         * Called when the server closes the connection before the response is complete.
+         *
+         * @return true if the end of the stream completes the response
+         */
+        boolean endOfStream();
+
+        /**
+         * Indicates whether the connection may be reused once the response is complete.
+         *
+         * @return true if the connection may be reused
+         */
+        boolean isKeepAlive();
+    }
+
+    /**
+     * Listener notified when an exchange completes.
+     */
+    public interface ExchangeListener {
+
+        /**
+         * Called on the engine thread when an exchange has completed.
+         *
+         * @param complete true if a complete response was read, false if the exchange failed or timed out
+         */
+        void onExchangeComplete(boolean complete);
+    }
+
+    private final Queue<Runnable> pendingActions = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<ScheduledTask>();
+    private final Map<InetSocketAddress, LinkedList<IdleConnection>> idleConnections = Maps.newHashMap();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Runs a task on the engine thread after the specified delay.
+     *
+     * @param task  task to run
+     * @param delay delay in milliseconds
+     */
+    public void schedule(final Runnable task, final long delay) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                scheduledTasks.add(new ScheduledTask(System.currentTimeMillis() + delay, task));
+            }
+        });
+    }
+
+    /**
+     * Attempts to connect to the specified address and closes the connection once established.
+     *
+     * @param address  socket address
+     * @param timeout  connect timeout in milliseconds
+     * @param listener listener notified when the attempt completes
+     */
+    public void connect(final InetSocketAddress address, final long timeout, final ConnectListener listener) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                new ConnectAttempt(address, timeout, listener).start();
+            }
+        });
+    }
+
+    /**
+     * Sends a request to the specified address and reads the response.
+     * <p/>
+     * An idle connection to the address is reused if available. If a reused connection turns out to have been closed
+     * by the server before any response data is received, the exchange is retried once on a new connection.
+     *
+     * @param address  socket address
+     * @param request  request data
+     * @param reader   response reader
+     * @param timeout  maximum time in milliseconds for the exchange, including the connect
+     * @param listener listener notified when the exchange completes
+     */
+    public void exchange(final InetSocketAddress address,
+                         final byte[] request,
+                         final ResponseReader reader,
+                         final long timeout,
+                         final ExchangeListener listener) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                new Exchange(address, request, reader, timeout, listener).start();
+            }
+        });
+    }
+
+    /**
+     * Closes the idle connections to the specified address, so that subsequent exchanges use new connections.
+     * <p/>
+     * Actions run in submission order, so exchanges submitted after this call do not reuse the closed connections.
+     *
+     * @param address socket address
+     */
+    public void closeIdleConnections(final InetSocketAddress address) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                LinkedList<IdleConnection> connections = idleConnections.remove(address);
+                if (connections != null) {
+                    for (IdleConnection connection : connections) {
+                        closeQuietly(connection.channel);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        closed = true;
+        synchronized (this) {
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void submit(Runnable action) {
+        if (closed) {
+            throw new IllegalStateException("Health check engine has been shut down");
+        }
+        pendingActions.add(action);
+        getSelector().wakeup();
+    }
+
+    private synchronized Selector getSelector() {
+        if (selector == null) {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                String message = "Could not open health check selector";
+                logger.error(message, e);
+                throw new RuntimeException(message, e);
+            }
+
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runLoop();
+                }
+            }, "etm-health-check");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return selector;
+    }
+
+    private void runLoop() {
+        while (!closed) {
+            try {
+                runPendingActions();
+                long wait = runScheduledTasks();
+                selector.select(wait);
+                processSelectedKeys();
+            } catch (IOException e) {
+                logger.error("Health check selector failed", e);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error in health check engine", e);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key.channel());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("Could not close health check selector", e);
+        }
+    }
+
+    private void runPendingActions() {
+        Runnable action;
+        while ((action = pendingActions.poll()) != null) {
+            runSafely(action);
+        }
+    }
+
+    /**
+     * Runs the scheduled tasks that are due.
+     *
+     * @return time in milliseconds until the next task is due, or 0 if no task is scheduled
+     */
+    private long runScheduledTasks() {
+        while (!scheduledTasks.isEmpty()) {
+            ScheduledTask next = scheduledTasks.peek();
+            long wait = next.time - System.currentTimeMillis();
+            if (wait > 0) {
+                return wait;
+            }
+            scheduledTasks.poll();
+            runSafely(next.task);
+        }
+        return 0;
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (key.isValid() && key.attachment() instanceof ChannelHandler) {
+                try {
+                    ((ChannelHandler) key.attachment()).onReady(key);
+                } catch (RuntimeException e) {
+                    logger.error("Health check channel handler failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes an idle connection to the specified address, discarding connections that have been idle too long.
+     *
+     * @param address socket address
+     * @return idle connection, or {@code null} if none is available
+     */
+    private SocketChannel takeIdleConnection(InetSocketAddress address) {
+        LinkedList<IdleConnection> connections = idleConnections.get(address);
+        while (connections != null && !connections.isEmpty()) {
+            IdleConnection connection = connections.removeLast();
+            if (System.currentTimeMillis() - connection.since < MAX_IDLE_TIME && connection.channel.isOpen()) {
+                return connection.channel;
+            }
+            closeQuietly(connection.channel);
+        }
+        return null;
+    }
+
+    private void releaseConnection(InetSocketAddress address, SocketChannel channel) {
+        LinkedList<IdleConnection> connections = idleConnections.get(address);
+        if (connections == null) {
+            connections = new LinkedList<IdleConnection>();
+            idleConnections.put(address, connections);
+        }
+        if (connections.size() >= MAX_IDLE_CONNECTIONS) {
+            closeQuietly(connections.removeFirst().channel);
+        }
+        connections.addLast(new IdleConnection(channel));
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.error("Health check task failed", e);
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Handles readiness events of a registered channel.
+     */
+    private interface ChannelHandler {
+        void onReady(SelectionKey key);
+    }
+
+    /**
+     * A task scheduled to run on the engine thread.
+     */
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        private final long time;
+        private final Runnable task;
+
+        ScheduledTask(long time, Runnable task) {
+            this.time = time;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return time < other.time ? -1 : (time == other.time ? 0 : 1);
+        }
+    }
+
+    /**
+     * A connection kept open for reuse.
+     */
+    private static class IdleConnection {
+        private final SocketChannel channel;
+        private final long since;
+
+        IdleConnection(SocketChannel channel) {
+            this.channel = channel;
+            this.since = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A single non-blocking connect attempt.
+     */
+    private class ConnectAttempt implements ChannelHandler, Runnable {
+        private final InetSocketAddress address;
+        private final long timeout;
+        private final ConnectListener listener;
+
+        private SocketChannel channel;
+        private boolean complete;
+
+        ConnectAttempt(InetSocketAddress address, long timeout, ConnectListener listener) {
+            this.address = address;
+            this.timeout = timeout;
+            this.listener = listener;
+        }
+
+        void start() {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    complete(true);
+                    return;
+                }
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+                scheduledTasks.add(new ScheduledTask(System.currentTimeMillis() + timeout, this));
+            } catch (IOException e) {
+                logger.debug(String.format("Could not connect to %s: %s", address, e));
+                complete(false);
+            }
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                complete(channel.finishConnect());
+            } catch (IOException e) {
+                logger.debug(String.format("Could not connect to %s: %s", address, e));
+                complete(false);
+            }
+        }
+
+        /**
+         * Called when the connect timeout expires.
+         */
+        @Override
+        public void run() {
+            if (!complete) {
+                logger.debug(String.format("Connect to %s timed out after %d ms", address, timeout));
+                complete(false);
+            }
+        }
+
+        private void complete(boolean connected) {
+            if (complete) {
+                return;
+            }
+            complete = true;
+            if (channel != null) {
+                closeQuietly(channel);
+            }
+            listener.onConnectComplete(connected);
+        }
+    }
+
+    /**
+     * A single request/response exchange.
+     */
+    private class Exchange implements ChannelHandler, Runnable {
+        private final InetSocketAddress address;
+        private final byte[] request;
+        private final ResponseReader reader;
+        private final long timeout;
+        private final ExchangeListener listener;
+
+        private SocketChannel channel;
+        private ByteBuffer requestBuffer;
+        private boolean reused;
+        private long received;
+        private boolean complete;
+
+        Exchange(InetSocketAddress address,
+                 byte[] request,
+                 ResponseReader reader,
+                 long timeout,
+                 ExchangeListener listener) {
+            this.address = address;
+            this.request = request;
+            this.reader = reader;
+            this.timeout = timeout;
+            this.listener = listener;
+        }
+
+        void start() {
+            scheduledTasks.add(new ScheduledTask(System.currentTimeMillis() + timeout, this));
+
+            channel = takeIdleConnection(address);
+            if (channel != null) {
+                reused = true;
+                startWriting();
+            } else {
+                openConnection();
+            }
+        }
+
+        private void openConnection() {
+            reused = false;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    startWriting();
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void startWriting() {
+            requestBuffer = ByteBuffer.wrap(request);
+            try {
+                channel.register(selector, SelectionKey.OP_WRITE, this);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        startWriting();
+                    }
+                } else if (key.isWritable()) {
+                    channel.write(requestBuffer);
+                    if (!requestBuffer.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    readResponse(key);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void readResponse(SelectionKey key) throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                if (received == 0 && reused) {
+                    retry();
+                } else {
+                    closeQuietly(channel);
+                    complete(reader.endOfStream());
+                }
+                return;
+            }
+
+            received += n;
+            readBuffer.flip();
+            if (reader.read(readBuffer)) {
+                if (reader.isKeepAlive()) {
+                    key.interestOps(0);
+                    releaseConnection(address, channel);
+                } else {
+                    closeQuietly(channel);
+                }
+                complete(true);
+            }
+        }
+
+        /**
+         * Retries the exchange on a new connection after a reused connection was found closed.
+         */
+        private void retry() {
+            closeQuietly(channel);
+            logger.debug(String.format("Idle connection to %s was closed, reconnecting", address));
+            openConnection();
+        }
+
+        private void fail(IOException e) {
+            if (!complete && received == 0 && reused) {
+                retry();
+                return;
+            }
+            logger.debug(String.format("Exchange with %s failed: %s", address, e));
+            if (channel != null) {
+                closeQuietly(channel);
+            }
+            complete(false);
+        }
+
+        /**
+         * Called when the exchange timeout expires.
+         */
+        @Override
+        public void run() {
+            if (!complete) {
+                logger.debug(String.format("Exchange with %s timed out after %d ms", address, timeout));
+                closeQuietly(channel);
+                complete(false);
+            }
+        }
+
+        private void complete(boolean responseComplete) {
+            if (complete) {
+                return;
+            }
+            complete = true;
+            listener.onExchangeComplete(responseComplete);
+        }
+    }
+}
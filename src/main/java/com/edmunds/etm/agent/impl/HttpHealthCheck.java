@@ -0,0 +1,256 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.HealthCheck;
+import com.edmunds.etm.agent.api.HealthCheckListener;
+import com.google.common.collect.Lists;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+/**
+ * A {@code HealthCheck} that sends HTTP requests to the server and verifies the responses.
+ * <p/>
+ * All probes run concurrently on the shared {@link HealthCheckEngine} over keep-alive connections, which are reused
+ * within a check but not across checks, since a check usually follows a restart. Each probe is repeated until its
+ * response has an expected status, contains the expected body text and arrives within the latency budget. The first
+ * attempt is made immediately, or after {@link #initialDelay} milliseconds if one is set, which counts toward the
+ * timeout. The delay between attempts ramps up from {@link #initialInterval} to {@link #interval} milliseconds. The
+ * check succeeds once every probe has succeeded and fails if that does not happen within {@link #timeout} milliseconds.
+ */
+public class HttpHealthCheck implements HealthCheck {
+    private static final Logger logger = Logger.getLogger(HttpHealthCheck.class);
+
+    private final HealthCheckEngine engine;
+    private final List<HttpProbe> probes;
+    private final long initialInterval;
+    private final long interval;
+    private final long timeout;
+
+    private long initialDelay;
+
+    // Accessed on the engine thread only
+    private final List<ProbeRun> runs = Lists.newArrayList();
+    private HealthCheckListener healthCheckListener;
+    private long startTime;
+    private int pendingProbes;
+    private boolean complete;
+
+    /**
+     * Constructs a new HttpHealthCheck with the given parameters.
+     *
+     * @param engine          health check engine
+     * @param probes          HTTP probes
+     * @param initialInterval initial polling interval in milliseconds
+     * @param interval        maximum polling interval in milliseconds
+     * @param timeout         maximum wait time in milliseconds, after which the check is considered failed
+     */
+    public HttpHealthCheck(HealthCheckEngine engine,
+                           List<HttpProbe> probes,
+                           long initialInterval,
+                           long interval,
+                           long timeout) {
+        this.engine = engine;
+        this.probes = probes;
+        this.initialInterval = initialInterval;
+        this.interval = interval;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the delay in milliseconds before the first attempt of each probe. Defaults to zero.
+     * <p/>
+     * After a graceful reload, keep-alive connections and the listening socket stay with the old server generation
+     * for a while, so an immediate attempt could be answered by it.
+     *
+     * @param initialDelay initial delay in milliseconds
+     */
+    public void setInitialDelay(long initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
+    @Override
+    public void execute(HealthCheckListener listener) {
+        Validate.notNull(listener, "Health check listener is null");
+        Validate.notEmpty(probes, "No HTTP probes");
+        healthCheckListener = listener;
+
+        // Resolve the addresses up front, the engine thread must not block
+        final List<ProbeRun> newRuns = Lists.newArrayList();
+        for (HttpProbe probe : probes) {
+            InetSocketAddress address = new InetSocketAddress(getHostAddress(probe), probe.getPort());
+            newRuns.add(new ProbeRun(probe, address));
+
+            // Kept-alive connections may still be served by the previous server generation
+            engine.closeIdleConnections(address);
+        }
+
+        engine.schedule(new Runnable() {
+            @Override
+            public void run() {
+                start(newRuns);
+            }
+        }, 0);
+
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("HTTP health check started with %d probes", probes.size()));
+        }
+    }
+
+    protected HealthCheckListener getListener() {
+        return healthCheckListener;
+    }
+
+    private void start(List<ProbeRun> newRuns) {
+        runs.addAll(newRuns);
+        startTime = System.currentTimeMillis();
+        pendingProbes = runs.size();
+        complete = false;
+
+        engine.schedule(new Runnable() {
+            @Override
+            public void run() {
+                complete(false);
+            }
+        }, timeout);
+
+        for (final ProbeRun run : runs) {
+            if (initialDelay > 0) {
+                engine.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        run.attempt();
+                    }
+                }, Math.min(initialDelay, timeout));
+            } else {
+                run.attempt();
+            }
+        }
+    }
+
+    private void onProbeSucceeded() {
+        pendingProbes--;
+        if (pendingProbes == 0) {
+            complete(true);
+        }
+    }
+
+    private void complete(boolean alive) {
+        if (complete) {
+            return;
+        }
+        complete = true;
+
+        if (!alive) {
+            for (ProbeRun run : runs) {
+                if (!run.succeeded) {
+                    logger.warn(String.format("HTTP probe %s failed: %s", run.probe, run.lastFailure));
+                }
+            }
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("Health check completed with result: %b", alive));
+        }
+        getListener().onHealthCheckComplete(alive);
+    }
+
+    private long getRemainingTime() {
+        return Math.max(0, startTime + timeout - System.currentTimeMillis());
+    }
+
+    private static InetAddress getHostAddress(HttpProbe probe) {
+        try {
+            if (StringUtils.isEmpty(probe.getHostName())) {
+                return InetAddress.getLocalHost();
+            }
+            return InetAddress.getByName(probe.getHostName());
+        } catch (UnknownHostException e) {
+            String message = String.format("Could not get IP address for host %s", probe.getHostName());
+            logger.error(message, e);
+            throw new RuntimeException(message, e);
+        }
+    }
+
+    /**
+     * The repeated attempts of a single probe.
+     */
+    private class ProbeRun {
+        private final HttpProbe probe;
+        private final InetSocketAddress address;
+
+        private long nextDelay;
+        private boolean succeeded;
+        private String lastFailure = "no response";
+
+        ProbeRun(HttpProbe probe, InetSocketAddress address) {
+            this.probe = probe;
+            this.address = address;
+            this.nextDelay = initialInterval;
+        }
+
+        void attempt() {
+            if (complete) {
+                return;
+            }
+
+            long attemptTimeout = Math.max(1, Math.min(getRemainingTime(),
+                    Math.max(interval, probe.getLatencyBudget())));
+            final HttpResponseReader response = new HttpResponseReader();
+            final long sendTime = System.currentTimeMillis();
+            engine.exchange(address, probe.getRequest(), response, attemptTimeout,
+                    new HealthCheckEngine.ExchangeListener() {
+                        @Override
+                        public void onExchangeComplete(boolean responseComplete) {
+                            onResponse(responseComplete ? response : null, System.currentTimeMillis() - sendTime);
+                        }
+                    });
+        }
+
+        private void onResponse(HttpResponseReader response, long latency) {
+            if (complete) {
+                return;
+            }
+
+            String failure = response != null ? probe.verify(response, latency) : "no response";
+            if (failure == null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("HTTP probe %s succeeded in %d ms", probe, latency));
+                }
+                succeeded = true;
+                onProbeSucceeded();
+                return;
+            }
+
+            lastFailure = failure;
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("HTTP probe %s failed: %s", probe, failure));
+            }
+            engine.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt();
+                }
+            }, Math.min(nextDelay, getRemainingTime()));
+            nextDelay = Math.min(nextDelay * 2, interval);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * An HTTP request performed by an {@link HttpHealthCheck} together with the expected response.
+ * <p/>
+ * A probe is specified as a URL followed by optional whitespace separated attributes:
+ * <pre>
+ *   http://127.0.0.1:80/status host=www.example.com status=200|204 body=OK latency=500
+ * </pre>
+ * {@code host} overrides the Host header, {@code status} lists the accepted status codes (default: 200), {@code body}
+ * is a substring the response body must contain and {@code latency} is the maximum response time in milliseconds.
+ * Attribute values cannot contain whitespace. Only plain HTTP is supported.
+ */
+public class HttpProbe {
+
+    // Status code accepted if none is specified
+    private static final int DEFAULT_STATUS = 200;
+
+    // Default port of the HTTP scheme
+    private static final int DEFAULT_PORT = 80;
+
+    private final String spec;
+    private final String hostName;
+    private final int port;
+    private final String path;
+    private final String hostHeader;
+    private final Set<Integer> expectedStatus;
+    private final String expectedBody;
+    private final long latencyBudget;
+
+    private HttpProbe(String spec,
+                      String hostName,
+                      int port,
+                      String path,
+                      String hostHeader,
+                      Set<Integer> expectedStatus,
+                      String expectedBody,
+                      long latencyBudget) {
+        this.spec = spec;
+        this.hostName = hostName;
+        this.port = port;
+        this.path = path;
+        this.hostHeader = hostHeader;
+        this.expectedStatus = expectedStatus;
+        this.expectedBody = expectedBody;
+        this.latencyBudget = latencyBudget;
+    }
+
+    /**
+     * Parses a probe specification.
+     *
+     * @param spec probe specification
+     * @return probe
+     * @throws IllegalArgumentException if the specification is invalid
+     */
+    public static HttpProbe parse(String spec) {
+        String[] tokens = StringUtils.split(spec);
+        if (tokens == null || tokens.length == 0) {
+            throw new IllegalArgumentException("Empty HTTP health check");
+        }
+
+        URL url;
+        try {
+            url = new URL(tokens[0]);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(String.format("Invalid HTTP health check URL: %s", tokens[0]), e);
+        }
+        if (!"http".equals(url.getProtocol())) {
+            throw new IllegalArgumentException(String.format("Unsupported HTTP health check URL: %s", tokens[0]));
+        }
+
+        int port = url.getPort() != -1 ? url.getPort() : DEFAULT_PORT;
+        String path = StringUtils.isEmpty(url.getFile()) ? "/" : url.getFile();
+        String hostHeader = port == DEFAULT_PORT ? url.getHost() : url.getHost() + ":" + port;
+        Set<Integer> expectedStatus = Collections.singleton(DEFAULT_STATUS);
+        String expectedBody = null;
+        long latencyBudget = 0;
+
+        for (int i = 1; i < tokens.length; i++) {
+            String name = StringUtils.substringBefore(tokens[i], "=");
+            String value = StringUtils.substringAfter(tokens[i], "=");
+            if (StringUtils.isEmpty(value)) {
+                throw new IllegalArgumentException(String.format("Invalid HTTP health check attribute: %s", tokens[i]));
+            }
+
+            try {
+                if ("host".equals(name)) {
+                    hostHeader = value;
+                } else if ("status".equals(name)) {
+                    expectedStatus = Sets.newHashSet();
+                    for (String code : StringUtils.split(value, '|')) {
+                        expectedStatus.add(Integer.valueOf(code));
+                    }
+                } else if ("body".equals(name)) {
+                    expectedBody = value;
+                } else if ("latency".equals(name)) {
+                    latencyBudget = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException(
+                            String.format("Unknown HTTP health check attribute: %s", tokens[i]));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid HTTP health check attribute: %s", tokens[i]), e);
+            }
+        }
+
+        return new HttpProbe(spec.trim(), url.getHost(), port, path, hostHeader, expectedStatus, expectedBody,
+                latencyBudget);
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets the request data sent to the server.
+     *
+     * @return HTTP request
+     */
+    public byte[] getRequest() {
+        String request = String.format(
+                "GET %s HTTP/1.1\r\nHost: %s\r\nUser-Agent: etm-agent\r\nAccept: */*\r\n\r\n", path, hostHeader);
+        try {
+            return request.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the maximum response time in milliseconds.
+     *
+     * @return latency budget in milliseconds, or 0 if unlimited
+     */
+    public long getLatencyBudget() {
+        return latencyBudget;
+    }
+
+    /**
+     * Checks a response against the expectations of this probe.
+     *
+     * @param response response
+     * @param latency  response time in milliseconds
+     * @return description of the first unmet expectation, or {@code null} if the response is as expected
+     */
+    public String verify(HttpResponseReader response, long latency) {
+        if (!expectedStatus.contains(response.getStatus())) {
+            return String.format("status %d, expected %s", response.getStatus(), expectedStatus);
+        }
+        if (expectedBody != null && !response.bodyContains(expectedBody)) {
+            return String.format("body does not contain '%s'", expectedBody);
+        }
+        if (latencyBudget > 0 && latency > latencyBudget) {
+            return String.format("latency %d ms exceeds %d ms", latency, latencyBudget);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
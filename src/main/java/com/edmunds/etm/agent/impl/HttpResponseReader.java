@@ -0,0 +1,282 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incrementally parses an HTTP/1.x response read by the {@link HealthCheckEngine}.
+ * <p/>
+ * Bodies delimited by Content-Length, chunked transfer encoding or the end of the connection are supported. Only the
+ * beginning of the body is retained for matching. A new reader must be used for each response.
+ */
+public class HttpResponseReader implements HealthCheckEngine.ResponseReader {
+
+    // Encoding that maps bytes to characters one to one
+    private static final String RAW_ENCODING = "ISO-8859-1";
+
+    // Maximum size of the status line and headers
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    // Maximum number of body bytes retained for matching
+    private static final int MAX_BODY_SIZE = 64 * 1024;
+
+    // Maximum length of a chunk size line
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private enum State {
+        HEADERS, BODY, BODY_UNTIL_CLOSE, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, DONE
+    }
+
+    private final StringBuilder head = new StringBuilder();
+    private final StringBuilder line = new StringBuilder();
+    private final StringBuilder body = new StringBuilder();
+
+    private State state = State.HEADERS;
+    private boolean lineComplete;
+    private int status = -1;
+    private boolean keepAlive;
+    private long remaining;
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Indicates whether the retained part of the body contains the specified text.
+     *
+     * @param text text encoded as UTF-8 in the body
+     * @return true if the body contains the text
+     */
+    public boolean bodyContains(String text) {
+        try {
+            return body.indexOf(new String(text.getBytes("UTF-8"), RAW_ENCODING)) >= 0;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean isKeepAlive() {
+        return keepAlive && state == State.DONE;
+    }
+
+    @Override
+    public boolean endOfStream() {
+        if (state == State.BODY_UNTIL_CLOSE) {
+            state = State.DONE;
+        }
+        keepAlive = false;
+        return state == State.DONE;
+    }
+
+    @Override
+    public boolean read(ByteBuffer data) {
+        while (data.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case HEADERS:
+                    readHeaders(data);
+                    break;
+                case BODY:
+                    remaining -= readBody(data, remaining);
+                    if (remaining == 0) {
+                        state = State.DONE;
+                    }
+                    break;
+                case BODY_UNTIL_CLOSE:
+                    readBody(data, data.remaining());
+                    break;
+                case CHUNK_SIZE:
+                    if (readLine(data)) {
+                        readChunkSize();
+                    }
+                    break;
+                case CHUNK_DATA:
+                    remaining -= readBody(data, remaining);
+                    if (remaining == 0) {
+                        state = State.CHUNK_END;
+                    }
+                    break;
+                case CHUNK_END:
+                    if (readLine(data)) {
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    if (readLine(data) && line.length() == 0) {
+                        state = State.DONE;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException(state.toString());
+            }
+        }
+        return state == State.DONE;
+    }
+
+    private void readHeaders(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            head.append((char) (data.get() & 0xff));
+            if (isEndOfHeaders()) {
+                parseHeaders();
+                return;
+            }
+            if (head.length() > MAX_HEADER_SIZE) {
+                malformed();
+                return;
+            }
+        }
+    }
+
+    private boolean isEndOfHeaders() {
+        int length = head.length();
+        return length >= 4
+                && head.charAt(length - 4) == '\r'
+                && head.charAt(length - 3) == '\n'
+                && head.charAt(length - 2) == '\r'
+                && head.charAt(length - 1) == '\n';
+    }
+
+    private void parseHeaders() {
+        String[] lines = head.toString().split("\r\n");
+        String[] statusLine = StringUtils.split(lines[0], ' ');
+        if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/1.")) {
+            malformed();
+            return;
+        }
+        try {
+            status = Integer.parseInt(statusLine[1]);
+        } catch (NumberFormatException e) {
+            malformed();
+            return;
+        }
+
+        // Skip interim responses
+        if (status >= 100 && status < 200) {
+            head.setLength(0);
+            status = -1;
+            return;
+        }
+
+        keepAlive = "HTTP/1.1".equals(statusLine[0]);
+        long contentLength = -1;
+        boolean chunked = false;
+        for (int i = 1; i < lines.length; i++) {
+            String name = StringUtils.substringBefore(lines[i], ":").trim();
+            String value = StringUtils.substringAfter(lines[i], ":").trim();
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    malformed();
+                    return;
+                }
+                if (contentLength < 0) {
+                    malformed();
+                    return;
+                }
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                if ("close".equalsIgnoreCase(value)) {
+                    keepAlive = false;
+                } else if ("keep-alive".equalsIgnoreCase(value)) {
+                    keepAlive = true;
+                }
+            }
+        }
+
+        if (status == 204 || status == 304 || contentLength == 0) {
+            state = State.DONE;
+        } else if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            remaining = contentLength;
+            state = State.BODY;
+        } else {
+            keepAlive = false;
+            state = State.BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private void readChunkSize() {
+        String size = StringUtils.substringBefore(line.toString(), ";").trim();
+        try {
+            remaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            malformed();
+            return;
+        }
+        if (remaining < 0) {
+            malformed();
+            return;
+        }
+        state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+    }
+
+    /**
+     * Reads a CRLF terminated line into {@link #line}.
+     *
+     * @return true if the line is complete
+     */
+    private boolean readLine(ByteBuffer data) {
+        if (lineComplete) {
+            line.setLength(0);
+            lineComplete = false;
+        }
+        while (data.hasRemaining()) {
+            char c = (char) (data.get() & 0xff);
+            if (c == '\n') {
+                if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                    line.setLength(line.length() - 1);
+                }
+                lineComplete = true;
+                return true;
+            }
+            line.append(c);
+            if (line.length() > MAX_LINE_LENGTH) {
+                malformed();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Consumes body data, retaining the beginning of the body.
+     *
+     * @return number of bytes consumed
+     */
+    private long readBody(ByteBuffer data, long limit) {
+        int n = (int) Math.min(data.remaining(), limit);
+        for (int i = 0; i < n; i++) {
+            char c = (char) (data.get() & 0xff);
+            if (body.length() < MAX_BODY_SIZE) {
+                body.append(c);
+            }
+        }
+        return n;
+    }
+
+    private void malformed() {
+        status = -1;
+        keepAlive = false;
+        state = State.DONE;
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.common.api.RuleSetDeploymentResult;
+import com.edmunds.zookeeper.connection.ZooKeeperConnection;
+import com.edmunds.zookeeper.util.ZooKeeperUtils;
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A {@code RestartPermit} backed by a ZooKeeper semaphore, allowing up to k agents to restart concurrently.
+ * <p/>
+ * Each request creates an ephemeral sequential lease node. The permit is granted when the node is among the first k
+ * lease nodes. Otherwise the request watches the k lease nodes immediately before its own, as in the ZooKeeper lock
+ * recipe with k = 1: its position can only drop below k once one of them is gone, and leases may end in any order. A
+ * deleted lease node therefore wakes at most the k requests behind it instead of every waiting request. Leases are
+ * released by deleting the node, and are released implicitly if the ZooKeeper session expires.
+ * <p/>
+ * The concurrency k is either fixed or a percentage of the connected agents, whichever is greater. Waiting requests
+ * watch the connected agents in percentage mode and re-evaluate their position only if k has grown. Subclasses may
+ * compute k differently and record deployment results alongside the lease nodes.
+ */
+public class LeaseRestartPermit implements RestartPermit, Watcher {
+
+    private static final Logger logger = Logger.getLogger(LeaseRestartPermit.class);
+
+    // Prefix of lease node names
+    private static final String LEASE_NODE_PREFIX = "lease-";
+
+    // Length of the sequence number appended to sequential node names
+    private static final int SEQUENCE_LENGTH = 10;
+
+    private final ZooKeeperConnection connection;
+    private final String leasePath;
+    private final String connectedPath;
+    private final int concurrency;
+    private final int concurrencyPercent;
+    private final String leaseNodePrefix;
+
+    private RestartPermitListener listener;
+    private int connectedLimit;
+    private String leaseNodePath;
+    private boolean granted;
+    private boolean released;
+    private boolean releaseNotified;
+
+    /**
+     * Constructs a new LeaseRestartPermit.
+     *
+     * @param connection         ZooKeeper connection
+     * @param leasePath          path of the parent node of the lease nodes
+     * @param connectedPath      path of the parent node of the connected agent nodes
+     * @param concurrency        minimum number of concurrent leases
+     * @param concurrencyPercent number of concurrent leases as a percentage of the connected agents, or zero
+     */
+    public LeaseRestartPermit(ZooKeeperConnection connection,
+                              String leasePath,
+                              String connectedPath,
+                              int concurrency,
+                              int concurrencyPercent) {
+        this.connection = connection;
+        this.leasePath = leasePath;
+        this.connectedPath = connectedPath;
+        this.concurrency = Math.max(1, concurrency);
+        this.concurrencyPercent = concurrencyPercent;
+
+        // A unique prefix identifies our node if its creation is interrupted by a connection loss
+        this.leaseNodePrefix = LEASE_NODE_PREFIX + UUID.randomUUID() + "-";
+    }
+
+    @Override
+    public synchronized void acquire(RestartPermitListener listener) {
+        this.listener = listener;
+        createLeaseParent();
+    }
+
+    @Override
+    public void release(RuleSetDeploymentResult result) {
+        boolean created;
+        boolean wasGranted;
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            wasGranted = granted;
+            granted = false;
+            created = leaseNodePath != null;
+        }
+
+        if (wasGranted) {
+            recordResult(result, new Runnable() {
+                @Override
+                public void run() {
+                    deleteLeaseNode();
+                }
+            });
+        } else if (created) {
+            deleteLeaseNode();
+        } else {
+            // A lease node still being created is deleted when the creation completes
+            notifyReleased();
+        }
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getState() == Event.KeeperState.Expired) {
+            lost();
+            return;
+        }
+
+        // Watches are not renewed once the lease is granted or released
+        if (event.getType() == Event.EventType.NodeChildrenChanged) {
+            if (!isWaiting()) {
+                return;
+            }
+            if (event.getPath().equals(connectedPath)) {
+                readConnectedAgents();
+            } else {
+                checkLeases();
+            }
+        } else if (event.getType() == Event.EventType.NodeDeleted) {
+            boolean ownNode;
+            synchronized (this) {
+                ownNode = event.getPath().equals(leaseNodePath);
+            }
+            if (ownNode) {
+                lost();
+            } else if (isWaiting()) {
+                // An earlier lease has ended
+                checkLeases();
+            }
+        }
+    }
+
+    private void createLeaseParent() {
+        AsyncCallback.StringCallback cb = new AsyncCallback.StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                onLeaseParentCreated(Code.get(rc), path);
+            }
+        };
+
+        connection.createPersistent(leasePath, new byte[0], cb, null);
+    }
+
+    protected void onLeaseParentCreated(Code rc, String path) {
+        if (rc == Code.OK || rc == Code.NODEEXISTS) {
+            createLeaseNode();
+        } else if (ZooKeeperUtils.isRetryableError(rc)) {
+            logger.warn(String.format("Error %s while creating restart lease node %s, retrying", rc, path));
+            createLeaseParent();
+        } else {
+            logger.error(String.format("Error %s while creating restart lease node: %s", rc, path));
+            lost();
+        }
+    }
+
+    private void createLeaseNode() {
+        AsyncCallback.StringCallback cb = new AsyncCallback.StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                onLeaseNodeCreated(Code.get(rc), path, name);
+            }
+        };
+
+        connection.createEphemeralSequential(leasePath + "/" + leaseNodePrefix, new byte[0], cb, null);
+    }
+
+    protected void onLeaseNodeCreated(Code rc, String path, String name) {
+        if (rc == Code.OK) {
+            synchronized (this) {
+                leaseNodePath = name;
+                if (released) {
+                    deleteLeaseNode();
+                    return;
+                }
+            }
+            logger.debug(String.format("Created restart lease node: %s", name));
+            checkLeases();
+        } else if (rc == Code.NONODE) {
+            // The parent was deleted after we created it, e.g. as a stale rollout by another agent
+            logger.warn(String.format("Restart lease parent %s was deleted, creating it again", leasePath));
+            createLeaseParent();
+        } else if (ZooKeeperUtils.isRetryableError(rc)) {
+            // The node may have been created regardless, so look for it before retrying
+            logger.warn(String.format("Error %s while creating restart lease node %s, retrying", rc, path));
+            checkLeases();
+        } else {
+            logger.error(String.format("Error %s while creating restart lease node: %s", rc, path));
+            lost();
+        }
+    }
+
+    /**
+     * Determines the lease limit and checks whether the lease can be granted.
+     * <p/>
+     * Subclasses may override this to compute the limit differently; they must eventually call
+     * {@link #getLeases(int)} or {@link #onGetLeases(Code, String, List, int)}, or {@link #decline(String)}.
+     */
+    protected void checkLeases() {
+        if (concurrencyPercent <= 0) {
+            getLeases(concurrency);
+            return;
+        }
+
+        int limit;
+        synchronized (this) {
+            limit = connectedLimit;
+        }
+        if (limit > 0) {
+            // Kept up to date by the watch on the connected agents
+            getLeases(limit);
+        } else {
+            readConnectedAgents();
+        }
+    }
+
+    private void readConnectedAgents() {
+        AsyncCallback.ChildrenCallback cb = new AsyncCallback.ChildrenCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                onGetConnectedAgents(Code.get(rc), path, children);
+            }
+        };
+
+        // Watch the connected agents while waiting, as more agents allow more concurrent leases
+        connection.getChildren(connectedPath, isWaiting() ? this : null, cb, null);
+    }
+
+    protected void onGetConnectedAgents(Code rc, String path, List<String> children) {
+        if (rc == Code.OK) {
+            int limit = Math.max(concurrency, children.size() * concurrencyPercent / 100);
+            int previousLimit;
+            synchronized (this) {
+                previousLimit = connectedLimit;
+                connectedLimit = limit;
+            }
+
+            // Predecessors watched for a higher limit also cover a lower one
+            if (limit > previousLimit) {
+                getLeases(limit);
+            }
+        } else if (ZooKeeperUtils.isRetryableError(rc)) {
+            logger.warn(String.format("Error %s while reading connected agents %s, retrying", rc, path));
+            readConnectedAgents();
+        } else {
+            logger.warn(String.format("Error %s while reading connected agents %s", rc, path));
+            getLeases(concurrency);
+        }
+    }
+
+    protected void getLeases(final int limit) {
+        AsyncCallback.ChildrenCallback cb = new AsyncCallback.ChildrenCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                onGetLeases(Code.get(rc), path, children, limit);
+            }
+        };
+
+        connection.getChildren(leasePath, null, cb, null);
+    }
+
+    protected void onGetLeases(Code rc, String path, List<String> children, int limit) {
+        if (rc != Code.OK) {
+            if (ZooKeeperUtils.isRetryableError(rc)) {
+                logger.warn(String.format("Error %s while reading restart leases %s, retrying", rc, path));
+                getLeases(limit);
+            } else {
+                logger.error(String.format("Error %s while reading restart leases: %s", rc, path));
+                lost();
+            }
+            return;
+        }
+
+        children = getLeaseNodes(children);
+        int index = indexOfLeaseNode(children);
+
+        boolean grant = false;
+        synchronized (this) {
+            if (granted) {
+                return;
+            }
+
+            if (index >= 0) {
+                leaseNodePath = leasePath + "/" + children.get(index);
+                if (released) {
+                    deleteLeaseNode();
+                    return;
+                }
+
+                if (index < limit) {
+                    granted = true;
+                    grant = true;
+                }
+            }
+        }
+
+        if (index < 0) {
+            onLeaseNodeMissing();
+        } else if (grant) {
+            logger.info(String.format("Restart lease granted (%d of %d)", index + 1, limit));
+            watchNode(leaseNodePath);
+            listener.onRestartPermitChange(true);
+        } else {
+            logger.debug(String.format("Waiting for restart lease (%d of %d)", index + 1, limit));
+            watchPredecessors(children.subList(Math.max(0, index - limit), index));
+        }
+    }
+
+    /**
+     * Watches the lease nodes immediately before our own, one of which must end before the lease can be granted.
+     * <p/>
+     * Subclasses that watch all lease nodes may override this to do nothing.
+     *
+     * @param predecessors names of the lease nodes to watch
+     */
+    protected void watchPredecessors(List<String> predecessors) {
+        for (String predecessor : predecessors) {
+            watchPredecessor(leasePath + "/" + predecessor);
+        }
+    }
+
+    private void watchPredecessor(String path) {
+        AsyncCallback.StatCallback cb = new AsyncCallback.StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                onPredecessorExists(Code.get(rc), path);
+            }
+        };
+
+        connection.exists(path, this, cb, null);
+    }
+
+    protected void onPredecessorExists(Code rc, String path) {
+        if (rc == Code.OK) {
+            // Wait for the node to be deleted
+            return;
+        }
+
+        if (rc == Code.NONODE) {
+            // Ended before the watch was set
+            if (isWaiting()) {
+                checkLeases();
+            }
+        } else if (ZooKeeperUtils.isRetryableError(rc)) {
+            logger.warn(String.format("Error %s while watching restart lease %s, retrying", rc, path));
+            watchPredecessor(path);
+        } else {
+            logger.error(String.format("Error %s while watching restart lease: %s", rc, path));
+            lost();
+        }
+    }
+
+    private void onLeaseNodeMissing() {
+        boolean created;
+        boolean wasReleased;
+        synchronized (this) {
+            created = leaseNodePath != null;
+            wasReleased = released;
+        }
+
+        if (created) {
+            // Our node is gone, most likely because the session expired
+            lost();
+        } else if (wasReleased) {
+            notifyReleased();
+        } else {
+            createLeaseNode();
+        }
+    }
+
+    private void watchNode(String path) {
+        AsyncCallback.StatCallback cb = new AsyncCallback.StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                onWatchedNodeExists(Code.get(rc), path);
+            }
+        };
+
+        connection.exists(path, this, cb, null);
+    }
+
+    protected void onWatchedNodeExists(Code rc, String path) {
+        if (rc == Code.OK) {
+            // Wait for the node to be deleted
+            return;
+        }
+
+        if (rc == Code.NONODE) {
+            lost();
+        } else if (ZooKeeperUtils.isRetryableError(rc)) {
+            logger.warn(String.format("Error %s while watching restart lease %s, retrying", rc, path));
+            watchNode(path);
+        } else {
+            logger.error(String.format("Error %s while watching restart lease: %s", rc, path));
+            lost();
+        }
+    }
+
+    private synchronized void deleteLeaseNode() {
+        AsyncCallback.VoidCallback cb = new AsyncCallback.VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                onLeaseNodeDeleted(Code.get(rc), path);
+            }
+        };
+
+        connection.delete(leaseNodePath, -1, cb, null);
+    }
+
+    protected void onLeaseNodeDeleted(Code rc, String path) {
+        if (rc == Code.OK || rc == Code.NONODE) {
+            logger.debug(String.format("Deleted restart lease node: %s", path));
+        } else if (ZooKeeperUtils.isRetryableError(rc)) {
+            logger.warn(String.format("Error %s while deleting restart lease node %s, retrying", rc, path));
+            deleteLeaseNode();
+            return;
+        } else {
+            // The ephemeral node is removed when the session ends
+            logger.error(String.format("Error %s while deleting restart lease node: %s", rc, path));
+        }
+        notifyReleased();
+    }
+
+    /**
+     * Records the result of the deployment performed with this lease before it is released.
+     * <p/>
+     * The default implementation records nothing.
+     *
+     * @param result     deployment result
+     * @param onRecorded callback to run once the result is recorded
+     */
+    protected void recordResult(RuleSetDeploymentResult result, Runnable onRecorded) {
+        onRecorded.run();
+    }
+
+    /**
+     * Gives up the lease request without a deployment.
+     *
+     * @param reason reason to log
+     */
+    protected void decline(String reason) {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+        }
+        logger.warn(reason);
+        release(RuleSetDeploymentResult.UNKNOWN);
+    }
+
+    protected ZooKeeperConnection getConnection() {
+        return connection;
+    }
+
+    protected String getLeasePath() {
+        return leasePath;
+    }
+
+    /**
+     * Returns whether the lease has been requested but neither granted nor released.
+     *
+     * @return true if waiting for the lease
+     */
+    protected synchronized boolean isWaiting() {
+        return !granted && !released;
+    }
+
+    private void lost() {
+        decline("Restart lease lost");
+    }
+
+    private void notifyReleased() {
+        synchronized (this) {
+            if (releaseNotified || listener == null) {
+                return;
+            }
+            releaseNotified = true;
+        }
+        listener.onRestartPermitChange(false);
+    }
+
+    private int indexOfLeaseNode(List<String> children) {
+        for (int i = 0; i < children.size(); i++) {
+            if (children.get(i).startsWith(leaseNodePrefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static List<String> getLeaseNodes(List<String> children) {
+        List<String> leaseNodes = Lists.newArrayList();
+        for (String child : children) {
+            if (child.startsWith(LEASE_NODE_PREFIX)) {
+                leaseNodes.add(child);
+            }
+        }
+
+        Collections.sort(leaseNodes, new Comparator<String>() {
+            @Override
+            public int compare(String s1, String s2) {
+                return getSequence(s1).compareTo(getSequence(s2));
+            }
+        });
+        return leaseNodes;
+    }
+
+    private static String getSequence(String name) {
+        return name.length() > SEQUENCE_LENGTH ? name.substring(name.length() - SEQUENCE_LENGTH) : name;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.AgentConfig;
+import com.edmunds.etm.agent.api.HealthCheck;
+import com.edmunds.etm.agent.api.HealthCheckListener;
+import com.edmunds.etm.agent.api.WebServerController;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Continuously checks whether the web server is running.
+ * <p/>
+ * The server liveness check is repeated on the shared {@link HealthCheckEngine} at the configured liveness interval,
+ * so monitoring costs a single connect per interval and no thread of its own. The monitor keeps the current up or down
+ * state and a latency summary of the recent successful probes, and publishes them through the {@link AgentReporter}
+ * whenever the state changes and at least once a minute otherwise. Deployments use a fresh result instead of checking
+ * the server themselves.
+ */
+@Component
+public class LivenessMonitor implements DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(LivenessMonitor.class);
+
+    // Number of recent probes covered by the latency summary
+    private static final int LATENCY_WINDOW = 60;
+
+    // Maximum time in milliseconds between publications of an unchanged state
+    private static final long PUBLISH_INTERVAL = 60000;
+
+    private final WebServerController serverController;
+    private final HealthCheckEngine engine;
+    private final AgentReporter agentReporter;
+    private final boolean enabled;
+    private final long interval;
+
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private HealthCheck livenessCheck;
+    private volatile boolean stopped;
+
+    private boolean up;
+    private Date since;
+    private Date lastProbeDate;
+    private long probeCount;
+    private long failureCount;
+    private long latencyCount;
+    private long lastPublishTime;
+
+    @Autowired
+    public LivenessMonitor(WebServerController serverController,
+                           HealthCheckEngine engine,
+                           AgentReporter agentReporter,
+                           AgentConfig agentConfig) {
+        this.serverController = serverController;
+        this.engine = engine;
+        this.agentReporter = agentReporter;
+        this.enabled = agentConfig.isLivenessMonitorEnabled();
+        this.interval = agentConfig.getLivenessInterval();
+    }
+
+    /**
+     * Starts monitoring the web server, unless the monitor is disabled.
+     * <p/>
+     * The first probe runs on the calling thread so that the server address is resolved outside the engine thread.
+     */
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+
+        logger.info(String.format("Starting liveness monitor with interval %d ms", interval));
+        livenessCheck = serverController.newLivenessCheck();
+        probe();
+    }
+
+    @Override
+    public void destroy() {
+        stopped = true;
+    }
+
+    /**
+     * Gets the current liveness status.
+     *
+     * @return liveness status, or {@code null} if no probe has completed
+     */
+    public synchronized LivenessStatus getStatus() {
+        if (lastProbeDate == null) {
+            return null;
+        }
+
+        int count = (int) Math.min(latencyCount, LATENCY_WINDOW);
+        if (count == 0) {
+            return new LivenessStatus(up, since, lastProbeDate, probeCount, failureCount, 0, 0, 0, 0);
+        }
+
+        long[] window = Arrays.copyOf(latencies, count);
+        Arrays.sort(window);
+        long sum = 0;
+        for (long latency : window) {
+            sum += latency;
+        }
+
+        long lastLatency = latencies[(int) ((latencyCount - 1) % LATENCY_WINDOW)];
+        int index95 = (int) Math.ceil(count * 0.95) - 1;
+        return new LivenessStatus(up, since, lastProbeDate, probeCount, failureCount, lastLatency, sum / count,
+                window[count - 1], window[index95]);
+    }
+
+    /**
+     * Gets the result of the last probe if it is fresh.
+     * <p/>
+     * A result is fresh while the next probe is due, that is within two liveness intervals of its completion. Results
+     * are never fresh while the monitor is stopped.
+     *
+     * @return true if the server is up, false if it is down, or {@code null} if no fresh result is available
+     */
+    public synchronized Boolean getFreshResult() {
+        long age = lastProbeDate == null ? Long.MAX_VALUE : System.currentTimeMillis() - lastProbeDate.getTime();
+        if (stopped || age > 2 * interval) {
+            return null;
+        }
+        return up;
+    }
+
+    private void probe() {
+        if (stopped) {
+            return;
+        }
+
+        final long startTime = System.currentTimeMillis();
+        livenessCheck.execute(new HealthCheckListener() {
+            @Override
+            public void onHealthCheckComplete(boolean alive) {
+                onProbeComplete(alive, System.currentTimeMillis() - startTime);
+            }
+        });
+    }
+
+    private void onProbeComplete(boolean alive, long latency) {
+        LivenessStatus status = null;
+        synchronized (this) {
+            Date now = new Date();
+            boolean changed = lastProbeDate == null || alive != up;
+            if (changed) {
+                since = now;
+                logger.info(String.format("Web server is %s", alive ? "up" : "down"));
+            }
+
+            up = alive;
+            lastProbeDate = now;
+            probeCount++;
+            if (alive) {
+                latencies[(int) (latencyCount % LATENCY_WINDOW)] = latency;
+                latencyCount++;
+            } else {
+                failureCount++;
+            }
+
+            if (changed || now.getTime() - lastPublishTime >= PUBLISH_INTERVAL) {
+                lastPublishTime = now.getTime();
+                status = getStatus();
+            }
+        }
+
+        if (status != null) {
+            agentReporter.publishLivenessStatus(status);
+        }
+
+        if (!stopped) {
+            engine.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    probe();
+                }
+            }, interval);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import java.util.Date;
+
+/**
+ * A snapshot of the state maintained by the {@link LivenessMonitor}.
+ * <p/>
+ * Latency figures cover the most recent successful probes only.
+ */
+public class LivenessStatus {
+
+    private final boolean up;
+    private final Date since;
+    private final Date lastProbeDate;
+    private final long probeCount;
+    private final long failureCount;
+    private final long lastLatency;
+    private final long averageLatency;
+    private final long maxLatency;
+    private final long latency95;
+
+    public LivenessStatus(boolean up,
+                          Date since,
+                          Date lastProbeDate,
+                          long probeCount,
+                          long failureCount,
+                          long lastLatency,
+                          long averageLatency,
+                          long maxLatency,
+                          long latency95) {
+        this.up = up;
+        this.since = since;
+        this.lastProbeDate = lastProbeDate;
+        this.probeCount = probeCount;
+        this.failureCount = failureCount;
+        this.lastLatency = lastLatency;
+        this.averageLatency = averageLatency;
+        this.maxLatency = maxLatency;
+        this.latency95 = latency95;
+    }
+
+    /**
+     * Indicates whether the last probe found the server running.
+     *
+     * @return true if the server is up
+     */
+    public boolean isUp() {
+        return up;
+    }
+
+    /**
+     * Gets the date of the probe that first observed the current up or down state.
+     *
+     * @return state change date
+     */
+    public Date getSince() {
+        return since;
+    }
+
+    public Date getLastProbeDate() {
+        return lastProbeDate;
+    }
+
+    public long getProbeCount() {
+        return probeCount;
+    }
+
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    public long getAverageLatency() {
+        return averageLatency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * Gets the 95th percentile probe latency in milliseconds.
+     *
+     * @return 95th percentile latency
+     */
+    public long getLatency95() {
+        return latency95;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s since %s (latency last %d ms, average %d ms, 95%% %d ms, max %d ms)",
+                up ? "up" : "down", since, lastLatency, averageLatency, latency95, maxLatency);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.AgentConfig;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Client of a long-lived privileged helper process that runs web server commands on behalf of the agent.
+ * <p/>
+ * The helper is started once with the configured helper command, usually through {@code sudo}, and is sent one
+ * request per line on its standard input. It answers each request on its standard output with a header line holding
+ * the exit value and the output length, followed by the output. The helper only accepts a fixed set of operations,
+ * so the agent can run unprivileged without being able to run arbitrary commands as root. Since the helper stays
+ * running, a reload no longer pays for a sudo and init script fork chain.
+ * <p/>
+ * A helper that fails or does not answer in time is discarded and started again on the next request. The answers of
+ * each helper process are read by a thread of its own, which ends with that process, so a discarded helper that hangs,
+ * and that the agent may not be allowed to kill, cannot hold up the answers of its successor.
+ */
+@Component
+public class PrivilegedHelper implements DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(PrivilegedHelper.class);
+
+    // Encoding of requests and responses
+    private static final String ENCODING = "UTF-8";
+
+    // Maximum length of a response header line
+    private static final int MAX_HEADER_LENGTH = 64;
+
+    // Pattern matching a response header: exit value and output length
+    private static final Pattern HEADER_PATTERN = Pattern.compile("-?\\d+ \\d+");
+
+    // Pattern matching an argument that can be sent to the helper
+    private static final Pattern ARGUMENT_PATTERN = Pattern.compile("[A-Za-z0-9._/-]*");
+
+    /**
+     * Operations accepted by the helper.
+     */
+    public enum Operation {
+        SYNTAX_CHECK("syntax-check"),
+        START("start"),
+        RELOAD("reload"),
+        SIGNAL("signal");
+
+        private final String name;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final AgentConfig agentConfig;
+
+    private HelperProcess helper;
+    private int generation;
+
+    @Autowired
+    public PrivilegedHelper(AgentConfig agentConfig) {
+        this.agentConfig = agentConfig;
+    }
+
+    /**
+     * Indicates whether a helper command is configured.
+     *
+     * @return true if the helper is enabled
+     */
+    public boolean isEnabled() {
+        return agentConfig.isPrivilegedHelperEnabled();
+    }
+
+    /**
+     * Asks the helper to perform an operation and waits for its answer.
+     *
+     * @param operation operation to perform
+     * @param argument  operation argument, may be {@code null}
+     * @param timeout   maximum time in milliseconds to wait for the answer
+     * @return result of the operation
+     */
+    public synchronized CommandResult execute(Operation operation, String argument, long timeout) {
+        String request = argument != null ? operation.getName() + " " + argument : operation.getName();
+        Date startDate = new Date();
+        long startTime = System.currentTimeMillis();
+
+        if (argument != null && !ARGUMENT_PATTERN.matcher(argument).matches()) {
+            String message = String.format("Invalid argument for helper request '%s'", request);
+            logger.error(message);
+            return new CommandResult(request, startDate, null, 0, false, "", message);
+        }
+
+        HelperProcess process;
+        try {
+            process = getHelper();
+            OutputStream out = process.process.getOutputStream();
+            out.write((request + "\n").getBytes(ENCODING));
+            out.flush();
+        } catch (IOException e) {
+            logger.error(String.format("Could not send request '%s' to privileged helper", request), e);
+            discardHelper();
+            return new CommandResult(request, startDate, null, System.currentTimeMillis() - startTime, false, "",
+                    e.toString());
+        }
+
+        try {
+            Response response = process.awaitResponse(timeout);
+            long duration = System.currentTimeMillis() - startTime;
+            if (response == null) {
+                logger.error(String.format("Privileged helper did not answer request '%s' within %d ms", request,
+                        timeout));
+                discardHelper();
+                return new CommandResult(request, startDate, null, duration, true, "", "");
+            }
+            return new CommandResult(request, startDate, response.exitValue, duration, false, response.output, "");
+        } catch (IOException e) {
+            logger.error(String.format("Could not read answer to request '%s' from privileged helper", request), e);
+            discardHelper();
+            return new CommandResult(request, startDate, null, System.currentTimeMillis() - startTime, false, "",
+                    e.toString());
+        } catch (InterruptedException e) {
+            logger.error(String.format("Thread interrupted while waiting for request '%s'", request), e);
+            discardHelper();
+            Thread.currentThread().interrupt();
+            return new CommandResult(request, startDate, null, System.currentTimeMillis() - startTime, true, "", "");
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        discardHelper();
+    }
+
+    private HelperProcess getHelper() throws IOException {
+        if (helper == null) {
+            logger.info(String.format("Starting privileged helper: %s", agentConfig.getPrivilegedHelperCommand()));
+            Process process = Runtime.getRuntime().exec(agentConfig.getPrivilegedHelperCommand());
+            helper = new HelperProcess(process, ++generation);
+        }
+        return helper;
+    }
+
+    /**
+     * Stops using the current helper process.
+     * <p/>
+     * Closing its standard input makes the helper exit once any running command completes. A helper running as
+     * another user may not be killable by the agent, so this is the only reliable way to end it.
+     */
+    private void discardHelper() {
+        if (helper != null) {
+            IOUtils.closeQuietly(helper.process.getOutputStream());
+            helper.process.destroy();
+            helper = null;
+        }
+    }
+
+    private static void logErrorOutput(final InputStream in, int generation) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (String line : IOUtils.readLines(in, ENCODING)) {
+                        logger.warn(String.format("Privileged helper: %s", line));
+                    }
+                } catch (IOException e) {
+                    // Helper exited
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        }, "etm-privileged-helper-errors-" + generation);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A helper process and the thread that reads its answers.
+     */
+    private static class HelperProcess {
+        private final Process process;
+        private final BlockingQueue<Object> responses = new LinkedBlockingQueue<Object>();
+
+        HelperProcess(Process process, int generation) {
+            this.process = process;
+
+            Thread reader = new Thread(new ResponseReader(process.getInputStream(), responses),
+                    "etm-privileged-helper-" + generation);
+            reader.setDaemon(true);
+            reader.start();
+            logErrorOutput(process.getErrorStream(), generation);
+        }
+
+        /**
+         * Waits for the answer to the last request.
+         *
+         * @param timeout maximum time in milliseconds to wait
+         * @return the answer, or {@code null} if the timeout expired
+         * @throws IOException          if the answer could not be read
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        Response awaitResponse(long timeout) throws IOException, InterruptedException {
+            Object response = responses.poll(timeout, TimeUnit.MILLISECONDS);
+            if (response instanceof IOException) {
+                throw (IOException) response;
+            }
+            return (Response) response;
+        }
+    }
+
+    /**
+     * The answer to a single request.
+     */
+    private static class Response {
+        private final int exitValue;
+        private final String output;
+
+        Response(int exitValue, String output) {
+            this.exitValue = exitValue;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Reads the answers of a helper process until it exits or sends an invalid answer, which is passed on as an
+     * {@code IOException}.
+     */
+    private static class ResponseReader implements Runnable {
+        private final InputStream in;
+        private final BlockingQueue<Object> responses;
+
+        ResponseReader(InputStream in, BlockingQueue<Object> responses) {
+            this.in = in;
+            this.responses = responses;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    responses.add(readResponse());
+                }
+            } catch (IOException e) {
+                responses.add(e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        private Response readResponse() throws IOException {
+            String header = readHeader();
+            if (!HEADER_PATTERN.matcher(header).matches()) {
+                throw new IOException(String.format("Invalid response header '%s'", header));
+            }
+
+            String[] fields = header.split(" ");
+            int exitValue = Integer.parseInt(fields[0]);
+            byte[] output = new byte[Integer.parseInt(fields[1])];
+            new DataInputStream(in).readFully(output);
+            return new Response(exitValue, new String(output, ENCODING));
+        }
+
+        private String readHeader() throws IOException {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Privileged helper exited");
+                }
+                if (header.size() >= MAX_HEADER_LENGTH) {
+                    throw new IOException("Response header too long");
+                }
+                header.write(b);
+            }
+            return header.toString(ENCODING);
+        }
+    }
+}
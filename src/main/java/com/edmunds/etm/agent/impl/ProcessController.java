@@ -15,16 +15,27 @@
  */
 package com.edmunds.etm.agent.impl;
 
+import com.edmunds.etm.agent.AgentUtils;
+import com.edmunds.etm.agent.StreamingDigest;
 import com.edmunds.etm.agent.api.AgentConfig;
 import com.edmunds.etm.agent.api.HealthCheck;
 import com.edmunds.etm.agent.api.WebServerController;
-import org.apache.commons.io.FileUtils;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 
 /**
  * Controller for an external web server process.
@@ -36,112 +47,511 @@ public class ProcessController implements WebServerController {
 
     private static final Logger logger = Logger.getLogger(ProcessController.class);
 
-    // Process exit value indicating success
-    private static final int PROCESS_SUCCESS_EXIT_VALUE = 0;
+    // Names under which command results are retained by the command runner
+    public static final String SYNTAX_CHECK_COMMAND = "syntax-check";
+    public static final String START_COMMAND = "start";
+    public static final String RESTART_COMMAND = "restart";
+    public static final String STAGE_COMMAND = "stage";
+
+    // Size of the buffers used to stream the configuration file
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Suffix of the slot file holding the staged rule set
+    private static final String STAGED_SLOT_SUFFIX = ".staged";
+
+    // Suffix of the slot file holding the previously active rule set
+    private static final String PREVIOUS_SLOT_SUFFIX = ".previous";
 
     private final AgentConfig agentConfig;
+    private final CommandRunner commandRunner;
+    private final PrivilegedHelper privilegedHelper;
+    private final SignalReloader signalReloader;
+    private final ReloadDetector reloadDetector;
+    private final HealthCheckEngine healthCheckEngine;
+    private final List<HttpProbe> httpProbes;
+    private final RuleSetListeners ruleSetListeners;
+    private final RuleSetHistory ruleSetHistory;
+    private final File configFile;
+    private final File stagedSlot;
+    private final File previousSlot;
+    private final RuleSetDigestIndex digestIndex;
+    private final ShadowSmokeTest smokeTest;
+
+    private String stagedDigest;
+    private String previousDigest;
 
     @Autowired
-    public ProcessController(AgentConfig agentConfig) {
+    public ProcessController(AgentConfig agentConfig,
+                             CommandRunner commandRunner,
+                             PrivilegedHelper privilegedHelper,
+                             SignalReloader signalReloader,
+                             ReloadDetector reloadDetector,
+                             HealthCheckEngine healthCheckEngine,
+                             RuleSetHistory ruleSetHistory) {
         this.agentConfig = agentConfig;
+        this.commandRunner = commandRunner;
+        this.privilegedHelper = privilegedHelper;
+        this.signalReloader = signalReloader;
+        this.reloadDetector = reloadDetector;
+        this.healthCheckEngine = healthCheckEngine;
+        this.ruleSetHistory = ruleSetHistory;
         agentConfig.validate();
-    }
+        createWorkDirectory(agentConfig.getSpoolDirectory());
+        createWorkDirectory(agentConfig.getHistoryDirectory());
+        this.configFile = new File(agentConfig.getFilePath());
+        this.digestIndex = new RuleSetDigestIndex(configFile, agentConfig.getDigestAlgorithm());
 
-    @Override
-    public byte[] readRuleSetData() {
-        File configFile = new File(agentConfig.getFilePath());
+        // Staged slots must be on the same file system as the configuration file so they can be renamed over it
+        File slotDirectory = agentConfig.isStagedWriteEnabled()
+                ? configFile.getAbsoluteFile().getParentFile()
+                : agentConfig.getSpoolDirectory();
+        this.stagedSlot = new File(slotDirectory, configFile.getName() + STAGED_SLOT_SUFFIX);
+        this.previousSlot = new File(slotDirectory, configFile.getName() + PREVIOUS_SLOT_SUFFIX);
+        this.smokeTest = agentConfig.isSmokeTestEnabled()
+                ? new ShadowSmokeTest(agentConfig, commandRunner, healthCheckEngine) : null;
 
-        byte[] configData = new byte[0];
+        this.httpProbes = Lists.newArrayList();
+        for (String spec : agentConfig.getHttpChecks()) {
+            httpProbes.add(HttpProbe.parse(spec));
+        }
+        this.ruleSetListeners = agentConfig.isListenerCheckEnabled()
+                ? new RuleSetListeners(agentConfig.getListenPattern(), agentConfig.getFileEncoding(),
+                agentConfig.getHostName())
+                : null;
+    }
 
+    @Override
+    public InputStream openRuleSetData() {
         if (!configFile.exists()) {
-            return configData;
+            return new ByteArrayInputStream(new byte[0]);
         }
 
         try {
-            configData = FileUtils.readFileToByteArray(configFile);
+            return new BufferedInputStream(new FileInputStream(configFile), BUFFER_SIZE);
         } catch (IOException e) {
             String message = String
                     .format("Could not read configuration file at path %s", agentConfig.getFilePath());
             logger.error(message, e);
+            return new ByteArrayInputStream(new byte[0]);
         }
-        return configData;
     }
 
     @Override
-    public void writeRuleSetData(byte[] ruleSetData) {
-        File configFile = new File(agentConfig.getFilePath());
+    public String getRuleSetDigest() {
         try {
-            FileUtils.writeByteArrayToFile(configFile, ruleSetData);
+            return digestIndex.getDigest();
         } catch (IOException e) {
             String message = String
-                    .format("Could not write configuration file at path %s", agentConfig.getFilePath());
+                    .format("Could not read configuration file at path %s", agentConfig.getFilePath());
             logger.error(message, e);
-            throw new RuntimeException(message, e);
+            return AgentUtils.ruleSetDigest(new byte[0], agentConfig.getDigestAlgorithm());
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The active rule set is copied to the previous slot here, so that a rollback is a single rename.
+     */
     @Override
-    public boolean checkSyntax() {
-        Process child;
+    public synchronized void stageRuleSetData(InputStream ruleSetData) {
+        stagedDigest = null;
+        String digest = writeSlot(stagedSlot, ruleSetData);
+
+        InputStream in = openRuleSetData();
         try {
-            child = Runtime.getRuntime().exec(agentConfig.getSyntaxCheckCommand());
-            child.waitFor();
-        } catch (IOException e) {
-            String message = "Could not execute syntax check";
-            logger.error(message, e);
-            return false;
-        } catch (InterruptedException e) {
-            String message = "Thread interrupted while waiting for syntax check";
-            logger.error(message, e);
-            return false;
+            previousDigest = writeSlot(previousSlot, in);
+        } finally {
+            IOUtils.closeQuietly(in);
         }
+        stagedDigest = digest;
+    }
 
-        return child.exitValue() == PROCESS_SUCCESS_EXIT_VALUE;
+    @Override
+    public synchronized void activateRuleSetData() {
+        Validate.notNull(stagedDigest, "No rule set has been staged");
+        activateSlot(stagedSlot, stagedDigest);
+        stagedDigest = null;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * If the previous slot has gone missing since it was staged, the previous rule set is staged again from the rule
+     * set history instead.
+     */
     @Override
-    public boolean start() {
-        Process child;
+    public synchronized void rollBackRuleSetData() {
+        Validate.notNull(previousDigest, "No previous rule set to roll back to");
+        if (previousSlot.isFile()) {
+            activateSlot(previousSlot, previousDigest);
+        } else {
+            logger.warn(String.format("Rule set slot %s is missing, restoring rule set %s from history",
+                    previousSlot, previousDigest));
+            stageFromHistory(previousDigest);
+            activateSlot(stagedSlot, previousDigest);
+        }
+        previousDigest = null;
+    }
+
+    /**
+     * Writes a rule set from the history to the staged slot.
+     *
+     * @param digest rule set digest
+     */
+    private void stageFromHistory(String digest) {
+        InputStream in;
         try {
-            child = Runtime.getRuntime().exec(agentConfig.getStartCommand());
-            child.waitFor();
+            in = ruleSetHistory.openStream(digest);
         } catch (IOException e) {
-            String message = "Could not execute Apache start command";
+            String message = String.format("Could not read rule set %s from history", digest);
             logger.error(message, e);
-            return false;
-        } catch (InterruptedException e) {
-            String message = "Thread interrupted while waiting for Apache start";
-            logger.error(message, e);
-            return false;
+            throw new RuntimeException(message, e);
+        }
+        if (in == null) {
+            String message = String.format("Rule set %s is no longer in the history", digest);
+            logger.error(message);
+            throw new RuntimeException(message);
         }
 
-        return child.exitValue() == PROCESS_SUCCESS_EXIT_VALUE;
+        String slotDigest;
+        try {
+            slotDigest = writeSlot(stagedSlot, in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (!digest.equals(slotDigest)) {
+            deleteSlot(stagedSlot);
+            String message = String.format("Stored rule set %s is corrupt", digest);
+            logger.error(message);
+            throw new RuntimeException(message);
+        }
     }
 
-    @Override
-    public boolean restart() {
-        Process child;
+    /**
+     * Writes a rule set slot file.
+     * <p/>
+     * In staged write mode the slot is flushed to disk and given the owner and mode of the configuration file before
+     * this method returns, so that activating it is a single rename.
+     *
+     * @param slot        slot file
+     * @param ruleSetData rule set data
+     * @return digest of the rule set data
+     */
+    private String writeSlot(File slot, InputStream ruleSetData) {
+        boolean staged = agentConfig.isStagedWriteEnabled();
+        String digest;
         try {
-            child = Runtime.getRuntime().exec(agentConfig.getRestartCommand());
-            child.waitFor();
+            digest = writeFile(slot, ruleSetData, staged);
         } catch (IOException e) {
-            String message = "Could not execute restart command";
-            logger.error(message, e);
-            return false;
-        } catch (InterruptedException e) {
-            String message = "Thread interrupted while waiting for restart";
+            String message = String.format("Could not write rule set slot at path %s", slot);
             logger.error(message, e);
+            throw new RuntimeException(message, e);
+        }
+
+        if (staged && !copyFileAttributes(configFile, slot)) {
+            deleteSlot(slot);
+            String message = String.format("Could not give rule set slot %s the owner and mode of %s", slot,
+                    configFile);
+            logger.error(message);
+            throw new RuntimeException(message);
+        }
+        return digest;
+    }
+
+    private static void deleteSlot(File slot) {
+        if (slot.exists() && !slot.delete()) {
+            logger.warn(String.format("Could not delete rule set slot %s", slot));
+        }
+    }
+
+    /**
+     * Makes the contents of the specified slot the active configuration.
+     * <p/>
+     * In staged write mode the slot, which already has the owner and mode of the configuration file, is renamed over
+     * it, which atomically replaces it. The directory itself is not synced, since Java cannot do so without forking a
+     * process; if the rename is lost in a crash, the agent finds the previous rule set on disk and deploys the current
+     * one again. If staged writes are disabled, the configuration file is overwritten in place with the slot contents
+     * instead.
+     *
+     * @param slot   slot file
+     * @param digest digest of the slot contents
+     */
+    private void activateSlot(File slot, String digest) {
+        digestIndex.invalidate();
+
+        if (agentConfig.isStagedWriteEnabled()) {
+            if (!slot.renameTo(configFile)) {
+                String message = String.format("Could not rename rule set slot %s to %s", slot, configFile);
+                logger.error(message);
+                throw new RuntimeException(message);
+            }
+        } else {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(slot);
+                writeFile(configFile, in, false);
+            } catch (IOException e) {
+                String message = String
+                        .format("Could not write configuration file at path %s", agentConfig.getFilePath());
+                logger.error(message, e);
+                throw new RuntimeException(message, e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        digestIndex.update(digest);
+    }
+
+    /**
+     * Gives a file the owner, group and mode of a reference file.
+     *
+     * @param reference reference file
+     * @param file      file to change
+     * @return true if the attributes were copied or the reference file does not exist
+     */
+    private boolean copyFileAttributes(File reference, File file) {
+        if (!reference.exists()) {
+            return true;
+        }
+
+        long timeout = agentConfig.getCommandTimeout();
+        for (String command : new String[]{"chown", "chmod"}) {
+            String commandLine = String.format("%s --reference=%s %s", command, reference.getAbsolutePath(),
+                    file.getAbsolutePath());
+            if (!commandRunner.run(STAGE_COMMAND, commandLine, timeout).isSuccess()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a directory below the work directory, failing startup if it cannot be created or written.
+     * <p/>
+     * Incoming rule sets are spooled to disk, so without a writable work directory no rule set could be deployed.
+     *
+     * @param directory directory to create
+     */
+    private void createWorkDirectory(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException(String.format(
+                    "Could not create directory %s, check that the work directory %s exists and is writable",
+                    directory, agentConfig.getWorkDirectory()));
+        }
+        if (!directory.canWrite()) {
+            throw new IllegalStateException(String.format(
+                    "Directory %s is not writable, check the permissions of the work directory %s",
+                    directory, agentConfig.getWorkDirectory()));
+        }
+    }
+
+    /**
+     * Writes the data read from the specified stream to a file.
+     *
+     * @param file file to write
+     * @param in   data stream, may be {@code null}
+     * @param sync whether to flush the file to disk before returning
+     * @return digest of the data
+     * @throws IOException if the data cannot be read or written
+     */
+    private String writeFile(File file, InputStream in, boolean sync) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Could not create directory %s", directory));
+        }
+
+        StreamingDigest digest = agentConfig.getDigestAlgorithm().newDigest();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            if (in != null) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                    digest.update(buffer, 0, n);
+                }
+            }
+            if (sync) {
+                out.getFD().sync();
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        return digest.digest();
+    }
+
+    @Override
+    public boolean checkSyntax() {
+        if (privilegedHelper.isEnabled()) {
+            return checkSyntax(configFile);
+        }
+        return checkSyntax(agentConfig.getSyntaxCheckCommand());
+    }
+
+    @Override
+    public boolean isStagedSyntaxCheckSupported() {
+        return privilegedHelper.isEnabled() || agentConfig.isSyntaxCheckFilePathTokenPresent();
+    }
+
+    @Override
+    public boolean checkStagedSyntax() {
+        if (!isStagedSyntaxCheckSupported()) {
+            return true;
+        }
+        if (privilegedHelper.isEnabled()) {
+            return checkSyntax(stagedSlot);
+        }
+        return checkSyntax(agentConfig.getSyntaxCheckCommand(stagedSlot.getAbsolutePath()));
+    }
+
+    @Override
+    public boolean smokeTestStagedRuleSet() {
+        return smokeTest == null || smokeTest.execute(stagedSlot);
+    }
+
+    private boolean checkSyntax(String command) {
+        return logSyntaxCheck(commandRunner.run(SYNTAX_CHECK_COMMAND, command, agentConfig.getCommandTimeout()));
+    }
+
+    private boolean checkSyntax(File file) {
+        return logSyntaxCheck(runHelper(SYNTAX_CHECK_COMMAND, PrivilegedHelper.Operation.SYNTAX_CHECK,
+                file.getAbsolutePath()));
+    }
+
+    private static boolean logSyntaxCheck(CommandResult result) {
+        if (!result.isSuccess()) {
+            // The command runner has already logged the output
+            logger.error("Syntax check failed");
+        }
+        return result.isSuccess();
+    }
+
+    @Override
+    public boolean start() {
+        if (privilegedHelper.isEnabled()) {
+            return runHelper(START_COMMAND, PrivilegedHelper.Operation.START, null).isSuccess();
+        }
+        return commandRunner.run(START_COMMAND, agentConfig.getStartCommand(), agentConfig.getCommandTimeout())
+                .isSuccess();
+    }
+
+    @Override
+    public boolean restart() {
+        long timeout = agentConfig.getCommandTimeout();
+        if (signalReloader.isEnabled()) {
+            return signalReloader.reload(RESTART_COMMAND, timeout);
+        }
+
+        // Capture the running generation so that the restart completes only once a new one is up
+        ReloadDetector.Generation previous = reloadDetector.isEnabled() ? reloadDetector.getGeneration() : null;
+        long startTime = System.currentTimeMillis();
+
+        CommandResult result;
+        if (privilegedHelper.isEnabled()) {
+            result = runHelper(RESTART_COMMAND, PrivilegedHelper.Operation.RELOAD, null);
+        } else {
+            result = commandRunner.run(RESTART_COMMAND, agentConfig.getRestartCommand(), timeout);
+        }
+
+        if (!result.isSuccess()) {
             return false;
         }
+        return previous == null || reloadDetector.awaitNewGeneration(previous, startTime, timeout, false);
+    }
 
-        return child.exitValue() == PROCESS_SUCCESS_EXIT_VALUE;
+    private CommandResult runHelper(String name, PrivilegedHelper.Operation operation, String argument) {
+        CommandResult result = privilegedHelper.execute(operation, argument, agentConfig.getCommandTimeout());
+        commandRunner.record(name, result);
+        return result;
     }
 
     @Override
     public HealthCheck newHealthCheck() {
-        return new TcpHealthCheck(agentConfig.getHostName(),
+        List<HealthCheck> healthChecks = Lists.newArrayList();
+        long initialDelay = getPostRestartDelay();
+        if (agentConfig.isHttpCheckEnabled()) {
+            HttpHealthCheck httpCheck = new HttpHealthCheck(healthCheckEngine,
+                    httpProbes,
+                    agentConfig.getCheckInitialInterval(),
+                    agentConfig.getCheckInterval(),
+                    agentConfig.getCheckTimeout());
+            httpCheck.setInitialDelay(initialDelay);
+            healthChecks.add(httpCheck);
+        }
+        if (agentConfig.isListenerCheckEnabled()) {
+            List<RuleSetListeners.Listener> listeners = readListeners();
+            for (RuleSetListeners.Listener listener : listeners) {
+                healthChecks.add(newTcpHealthCheck(listener.getHostName(), listener.getPort(), initialDelay));
+            }
+            if (listeners.isEmpty()) {
+                healthChecks.add(newTcpHealthCheck(agentConfig.getHostName(), agentConfig.getPort(), initialDelay));
+            }
+        }
+
+        if (healthChecks.isEmpty()) {
+            return newTcpHealthCheck(agentConfig.getHostName(), agentConfig.getPort(), initialDelay);
+        }
+        return healthChecks.size() == 1 ? healthChecks.get(0) : new CompositeHealthCheck(healthChecks);
+    }
+
+    @Override
+    public HealthCheck newRunningCheck() {
+        return newTcpHealthCheck(agentConfig.getHostName(), agentConfig.getPort(), 0);
+    }
+
+    @Override
+    public HealthCheck newLivenessCheck() {
+        TcpHealthCheck healthCheck = new TcpHealthCheck(healthCheckEngine,
+                agentConfig.getHostName(),
                 agentConfig.getPort(),
+                agentConfig.getCheckInitialInterval(),
+                agentConfig.getCheckInterval(),
+                Math.min(agentConfig.getCheckTimeout(), agentConfig.getLivenessInterval()));
+        healthCheck.setLogLevel(Level.DEBUG);
+        return healthCheck;
+    }
+
+    private HealthCheck newTcpHealthCheck(String hostName, int port, long initialDelay) {
+        TcpHealthCheck healthCheck = new TcpHealthCheck(healthCheckEngine,
+                hostName,
+                port,
+                agentConfig.getCheckInitialInterval(),
                 agentConfig.getCheckInterval(),
                 agentConfig.getCheckTimeout());
+        healthCheck.setInitialDelay(initialDelay);
+        return healthCheck;
+    }
+
+    /**
+     * Gets the delay before the first post-restart health check.
+     * <p/>
+     * With reload detection, the restart completes only once the new server generation is up, so the checks can start
+     * right away. Otherwise the old generation may still be serving after a graceful reload, so the first check waits
+     * one interval.
+     *
+     * @return initial health check delay in milliseconds
+     */
+    private long getPostRestartDelay() {
+        return reloadDetector.isEnabled() ? 0 : agentConfig.getCheckInterval();
+    }
+
+    /**
+     * Reads the listeners declared in the active rule set.
+     *
+     * @return listeners, empty if the rule set cannot be read
+     */
+    private List<RuleSetListeners.Listener> readListeners() {
+        try {
+            List<RuleSetListeners.Listener> listeners = ruleSetListeners.read(configFile);
+            logger.debug(String.format("Rule set declares listeners %s", listeners));
+            return listeners;
+        } catch (IOException e) {
+            String message = String.format("Could not read listeners from configuration file at path %s",
+                    agentConfig.getFilePath());
+            logger.error(message, e);
+            return Lists.newArrayList();
+        }
     }
 }
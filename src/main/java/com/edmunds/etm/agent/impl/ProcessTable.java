@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads process information from the Linux process file system.
+ * <p/>
+ * All methods return empty results on systems without {@code /proc}.
+ */
+public final class ProcessTable {
+
+    // Directory of the Linux process file system
+    private static final File PROC_DIRECTORY = new File("/proc");
+
+    // Rate of the clock in which process start times are given (USER_HZ, which is 100 on all Linux platforms)
+    private static final int CLOCK_TICKS_PER_SECOND = 100;
+
+    /**
+     * Indicates whether a process exists.
+     *
+     * @param pid process id
+     * @return true if the process exists
+     */
+    public static boolean isAlive(int pid) {
+        return new File(PROC_DIRECTORY, String.valueOf(pid)).isDirectory();
+    }
+
+    /**
+     * Gets the direct children of a process.
+     * <p/>
+     * The children are read from {@code /proc/<pid>/task/<tid>/children} where the kernel provides it, which avoids
+     * scanning the whole process table.
+     *
+     * @param pid process id
+     * @return child process ids
+     */
+    public static List<Integer> getChildren(int pid) {
+        List<Integer> children = readChildrenFiles(pid);
+        if (children == null) {
+            children = getChildrenByParent().get(pid);
+        }
+        return children != null ? children : Lists.<Integer>newArrayList();
+    }
+
+    /**
+     * Gets the descendants of a process, parents before children.
+     *
+     * @param pid process id
+     * @return descendant process ids
+     */
+    public static List<Integer> getDescendants(int pid) {
+        Map<Integer, List<Integer>> children = getChildrenByParent();
+
+        List<Integer> descendants = Lists.newArrayList();
+        List<Integer> queue = Lists.newArrayList(pid);
+        while (!queue.isEmpty()) {
+            List<Integer> next = children.get(queue.remove(0));
+            if (next != null) {
+                descendants.addAll(next);
+                queue.addAll(next);
+            }
+        }
+        return descendants;
+    }
+
+    /**
+     * Gets the time a process started.
+     * <p/>
+     * The start time is read from field 22 of {@code /proc/<pid>/stat} in clock ticks since boot. The boot time is
+     * derived from {@code /proc/uptime} rather than from {@code btime} in {@code /proc/stat}, which is truncated to
+     * whole seconds. The result is accurate to a few clock ticks.
+     *
+     * @param pid process id
+     * @return start time in milliseconds since the epoch, or {@code null} if the process does not exist
+     */
+    public static Long getStartTime(int pid) {
+        try {
+            String[] fields = readStatFields(new File(PROC_DIRECTORY, String.valueOf(pid)));
+            long startTicks = Long.parseLong(fields[19]);
+
+            String uptime = FileUtils.readFileToString(new File(PROC_DIRECTORY, "uptime"));
+            long bootTime = System.currentTimeMillis() - Math.round(Double.parseDouble(uptime.split(" ")[0]) * 1000);
+            return bootTime + startTicks * 1000 / CLOCK_TICKS_PER_SECOND;
+        } catch (IOException e) {
+            // Process exited
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a process id from a pid file.
+     *
+     * @param pidFile pid file
+     * @return process id, or {@code null} if the file does not exist or is invalid
+     */
+    public static Integer readPidFile(File pidFile) {
+        try {
+            return parsePid(FileUtils.readFileToString(pidFile).trim());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Map<Integer, List<Integer>> getChildrenByParent() {
+        Map<Integer, List<Integer>> children = Maps.newHashMap();
+        File[] entries = PROC_DIRECTORY.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                Integer childPid = parsePid(entry.getName());
+                Integer parentPid = childPid != null ? getParentPid(entry) : null;
+                if (parentPid != null) {
+                    List<Integer> siblings = children.get(parentPid);
+                    if (siblings == null) {
+                        siblings = Lists.newArrayList();
+                        children.put(parentPid, siblings);
+                    }
+                    siblings.add(childPid);
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Reads the children of all threads of a process.
+     *
+     * @return child process ids, or {@code null} if the kernel does not provide children files
+     */
+    private static List<Integer> readChildrenFiles(int pid) {
+        File[] tasks = new File(new File(PROC_DIRECTORY, String.valueOf(pid)), "task").listFiles();
+        if (tasks == null) {
+            return null;
+        }
+
+        List<Integer> children = Lists.newArrayList();
+        for (File task : tasks) {
+            File childrenFile = new File(task, "children");
+            if (!childrenFile.exists()) {
+                return null;
+            }
+            try {
+                for (String value : FileUtils.readFileToString(childrenFile).trim().split(" ")) {
+                    Integer childPid = parsePid(value);
+                    if (childPid != null) {
+                        children.add(childPid);
+                    }
+                }
+            } catch (IOException e) {
+                // Thread exited
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Reads the parent process id from {@code /proc/<pid>/stat}.
+     */
+    private static Integer getParentPid(File processDirectory) {
+        try {
+            return parsePid(readStatFields(processDirectory)[1]);
+        } catch (IOException e) {
+            // Process exited
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the fields of {@code /proc/<pid>/stat} that follow the command name, starting with the state (field 3).
+     */
+    private static String[] readStatFields(File processDirectory) throws IOException {
+        String stat = FileUtils.readFileToString(new File(processDirectory, "stat"));
+
+        // The command name may contain spaces, so parse from the closing parenthesis
+        return stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+    }
+
+    private static Integer parsePid(String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private ProcessTable() {
+        // This class should never be instantiated.
+    }
+}
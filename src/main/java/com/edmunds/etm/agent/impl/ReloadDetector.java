@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.AgentConfig;
+import com.google.common.collect.Sets;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Detects the moment a reloaded or restarted web server is up with a new process generation.
+ * <p/>
+ * A generation is identified by the master process named in the pid file and its child processes. A new generation is
+ * up as soon as the pid file names a different live master, or the same master has started a child after the reload
+ * was requested. Children that a master spawns on its own, e.g. to handle more load, were started before the request,
+ * so they do not count. Children of the previous generation may still be finishing their requests; draining them is
+ * left to the health check that confirms the reload. Apache graceful and full restarts, HAProxy master-worker reloads
+ * and stop/start restarts are all recognized this way. This gives a precise reload completion time, which the health
+ * check then confirms, and keeps the health check from being answered by the previous generation.
+ * <p/>
+ * The pid file and the process table are polled at a short interval on the calling thread. Deployments wait on their
+ * command thread, never on the deployment executor.
+ */
+@Component
+public class ReloadDetector {
+
+    private static final Logger logger = Logger.getLogger(ReloadDetector.class);
+
+    // Interval at which the pid file and the process table are polled while waiting for a new generation
+    private static final long POLL_INTERVAL = 20;
+
+    // Margin in milliseconds for the resolution of process start times
+    private static final long START_TIME_RESOLUTION = 20;
+
+    private final AgentConfig agentConfig;
+
+    private volatile Date lastReloadDate;
+    private volatile long lastReloadLatency;
+
+    @Autowired
+    public ReloadDetector(AgentConfig agentConfig) {
+        this.agentConfig = agentConfig;
+    }
+
+    /**
+     * Indicates whether reloads are detected.
+     *
+     * @return true if a pid file is configured
+     */
+    public boolean isEnabled() {
+        return agentConfig.isReloadDetectionEnabled();
+    }
+
+    /**
+     * Captures the current process generation of the web server.
+     *
+     * @return current generation
+     */
+    public Generation getGeneration() {
+        Integer masterPid = ProcessTable.readPidFile(getPidFile());
+        if (masterPid == null || !ProcessTable.isAlive(masterPid)) {
+            return new Generation(null, Sets.<Integer>newHashSet());
+        }
+        return new Generation(masterPid, Sets.newHashSet(ProcessTable.getChildren(masterPid)));
+    }
+
+    /**
+     * Waits until a generation different from the specified one is up.
+     * <p/>
+     * If the master process must survive, as for a reload signal, the wait fails as soon as the previous master exits.
+     * Otherwise the previous master may be replaced by a new one, as for a restart command. Children of the same master
+     * only count as a new generation if they started at or after the start time.
+     *
+     * @param previous       generation before the reload
+     * @param startTime      time the reload was requested
+     * @param timeout        maximum time in milliseconds from the start time
+     * @param masterSurvives true if the previous master process must survive the reload
+     * @return true if a new generation came up in time, false otherwise
+     */
+    public boolean awaitNewGeneration(Generation previous, long startTime, long timeout, boolean masterSurvives) {
+        Integer previousMasterPid = previous.getMasterPid();
+        long deadline = startTime + timeout;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                if (masterSurvives && previousMasterPid != null && !ProcessTable.isAlive(previousMasterPid)) {
+                    logger.error(String.format("Web server master process %d exited during reload",
+                            previousMasterPid));
+                    return false;
+                }
+                if (isNewGeneration(previous, startTime)) {
+                    lastReloadDate = new Date();
+                    lastReloadLatency = lastReloadDate.getTime() - startTime;
+                    logger.info(String.format("Web server reload completed in %d ms", lastReloadLatency));
+                    return true;
+                }
+                Thread.sleep(POLL_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            logger.error("Thread interrupted while waiting for web server reload", e);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        logger.error(String.format("Web server reload did not complete within %d ms", timeout));
+        return false;
+    }
+
+    /**
+     * Gets the date the last reload completed.
+     *
+     * @return reload completion date, or {@code null} if no reload has completed
+     */
+    public Date getLastReloadDate() {
+        return lastReloadDate;
+    }
+
+    /**
+     * Gets the time in milliseconds from requesting the last reload until the new generation was up.
+     *
+     * @return reload latency in milliseconds
+     */
+    public long getLastReloadLatency() {
+        return lastReloadLatency;
+    }
+
+    private boolean isNewGeneration(Generation previous, long startTime) {
+        Integer masterPid = ProcessTable.readPidFile(getPidFile());
+        if (masterPid == null || !ProcessTable.isAlive(masterPid)) {
+            return false;
+        }
+        if (!masterPid.equals(previous.getMasterPid())) {
+            logger.debug(String.format("Web server master process %d started", masterPid));
+            return true;
+        }
+
+        for (Integer child : ProcessTable.getChildren(masterPid)) {
+            if (previous.getChildPids().contains(child)) {
+                continue;
+            }
+            Long childStartTime = ProcessTable.getStartTime(child);
+            if (childStartTime != null && childStartTime >= startTime - START_TIME_RESOLUTION) {
+                logger.debug(String.format("Web server master process %d started child %d", masterPid, child));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private File getPidFile() {
+        return new File(agentConfig.getPidFile());
+    }
+
+    /**
+     * A process generation of the web server.
+     */
+    public static class Generation {
+        private final Integer masterPid;
+        private final Set<Integer> childPids;
+
+        public Generation(Integer masterPid, Set<Integer> childPids) {
+            this.masterPid = masterPid;
+            this.childPids = childPids;
+        }
+
+        /**
+         * Gets the master process id.
+         *
+         * @return master process id, or {@code null} if the server is not running
+         */
+        public Integer getMasterPid() {
+            return masterPid;
+        }
+
+        public Set<Integer> getChildPids() {
+            return childPids;
+        }
+    }
+}
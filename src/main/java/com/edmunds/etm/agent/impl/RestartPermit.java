@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.common.api.RuleSetDeploymentResult;
+
+/**
+ * A permit to restart the web server, shared among the agents of a fleet.
+ * <p/>
+ * Permits are acquired asynchronously. The listener is notified when the permit is granted, and again when it is
+ * released or lost (for example because the ZooKeeper session expired).
+ */
+public interface RestartPermit {
+
+    /**
+     * Requests the permit.
+     *
+     * @param listener listener notified of changes to the permit state
+     */
+    public void acquire(RestartPermitListener listener);
+
+    /**
+     * Releases the permit, or withdraws the request if it has not been granted yet.
+     *
+     * @param result result of the deployment performed with the permit, {@code UNKNOWN} if none was performed
+     */
+    public void release(RuleSetDeploymentResult result);
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.AgentConfig;
+import com.edmunds.etm.common.api.AgentPaths;
+import com.edmunds.zookeeper.connection.ZooKeeperConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the restart permits used by rule set deployment tasks.
+ * <p/>
+ * By default a single agent restarts at a time, as decided by the restart election. If restart leases are enabled, up
+ * to the configured number of agents restart concurrently. In rollout mode, each rule set is first deployed by a canary
+ * group and then in growing waves. All agents of a fleet must use the same mode.
+ */
+@Component
+public class RestartPermitFactory {
+
+    // Suffix appended to the restart election path to form the restart lease path
+    private static final String LEASE_PATH_SUFFIX = "-leases";
+
+    // Infix between the restart election path and the rule set digest in rollout paths
+    private static final String ROLLOUT_PATH_INFIX = "-rollout-";
+
+    private final ZooKeeperConnection connection;
+    private final AgentPaths agentPaths;
+    private final AgentConfig agentConfig;
+
+    @Autowired
+    public RestartPermitFactory(ZooKeeperConnection connection, AgentPaths agentPaths, AgentConfig agentConfig) {
+        this.connection = connection;
+        this.agentPaths = agentPaths;
+        this.agentConfig = agentConfig;
+    }
+
+    /**
+     * Creates a new restart permit for the deployment of the specified rule set.
+     *
+     * @param ruleSetDigest digest of the rule set to deploy
+     * @return restart permit
+     */
+    public RestartPermit newRestartPermit(String ruleSetDigest) {
+        if (agentConfig.isRolloutEnabled()) {
+            return new RolloutRestartPermit(connection,
+                    agentPaths.getRestartElection() + ROLLOUT_PATH_INFIX,
+                    ruleSetDigest,
+                    agentConfig.getRolloutCanaryCount(),
+                    agentConfig.getRolloutWaveFactor(),
+                    agentConfig.getRolloutMaxWaveSize());
+        }
+        if (agentConfig.isRestartLeaseEnabled()) {
+            return new LeaseRestartPermit(connection,
+                    agentPaths.getRestartElection() + LEASE_PATH_SUFFIX,
+                    agentPaths.getConnected(),
+                    agentConfig.getRestartConcurrency(),
+                    agentConfig.getRestartConcurrencyPercent());
+        }
+        return new ElectionRestartPermit(connection, agentPaths.getRestartElection());
+    }
+}
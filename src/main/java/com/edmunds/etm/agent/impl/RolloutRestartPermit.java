@@ -0,0 +1,285 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.common.api.RuleSetDeploymentResult;
+import com.edmunds.zookeeper.connection.ZooKeeperConnection;
+import com.edmunds.zookeeper.util.ZooKeeperUtils;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException.Code;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A restart lease for the canary-then-waves rollout of a single rule set.
+ * <p/>
+ * Agents deploying the same rule set share a rollout node, which holds their lease nodes and a result node for each
+ * completed deployment. The first agents (the canary group) deploy alone. Once they have all succeeded, the number of
+ * concurrent leases grows with the number of successful deployments, so the remaining agents deploy in progressively
+ * larger waves. A failed deployment halts the rollout, and agents still waiting for a lease give up.
+ * <p/>
+ * Success nodes are ephemeral, so they only count while the agent that created them is connected. Failure nodes are
+ * persistent: the rollout stays halted until an operator deletes them, or until a newer rule set is rolled out. Each
+ * new rollout deletes the rollout nodes of other rule sets that no agent holds or waits for a lease on.
+ */
+public class RolloutRestartPermit extends LeaseRestartPermit {
+
+    private static final Logger logger = Logger.getLogger(RolloutRestartPermit.class);
+
+    // Prefix of the result nodes of successful deployments
+    private static final String OK_NODE_PREFIX = "ok-";
+
+    // Prefix of the result nodes of failed deployments
+    private static final String FAILED_NODE_PREFIX = "failed-";
+
+    private final String rolloutPrefix;
+    private final int canaryCount;
+    private final int waveFactor;
+    private final int maxWaveSize;
+
+    /**
+     * Constructs a new RolloutRestartPermit.
+     *
+     * @param connection    ZooKeeper connection
+     * @param rolloutPrefix path prefix shared by the rollout nodes of all rule sets
+     * @param ruleSetDigest digest of the rule set, appended to the prefix to form the rollout node path
+     * @param canaryCount   number of agents in the canary group
+     * @param waveFactor    number of concurrent leases per successful deployment after the canary group
+     * @param maxWaveSize   maximum number of concurrent leases, or zero for no limit
+     */
+    public RolloutRestartPermit(ZooKeeperConnection connection,
+                                String rolloutPrefix,
+                                String ruleSetDigest,
+                                int canaryCount,
+                                int waveFactor,
+                                int maxWaveSize) {
+        super(connection, rolloutPrefix + ruleSetDigest, null, 1, 0);
+        this.rolloutPrefix = rolloutPrefix;
+        this.canaryCount = canaryCount;
+        this.waveFactor = waveFactor;
+        this.maxWaveSize = maxWaveSize;
+    }
+
+    @Override
+    public void acquire(RestartPermitListener listener) {
+        super.acquire(listener);
+        deleteStaleRollouts();
+    }
+
+    @Override
+    protected void checkLeases() {
+        AsyncCallback.ChildrenCallback cb = new AsyncCallback.ChildrenCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                onGetRolloutNodes(Code.get(rc), path, children);
+            }
+        };
+
+        // Watch for results, which may raise the lease limit, until the lease is granted or released
+        getConnection().getChildren(getLeasePath(), isWaiting() ? this : null, cb, null);
+    }
+
+    protected void onGetRolloutNodes(Code rc, String path, List<String> children) {
+        if (rc != Code.OK) {
+            if (ZooKeeperUtils.isRetryableError(rc)) {
+                logger.warn(String.format("Error %s while reading rollout %s, retrying", rc, path));
+                checkLeases();
+            } else {
+                decline(String.format("Error %s while reading rollout: %s", rc, path));
+            }
+            return;
+        }
+
+        int succeeded = 0;
+        int failed = 0;
+        for (String child : children) {
+            if (child.startsWith(OK_NODE_PREFIX)) {
+                succeeded++;
+            } else if (child.startsWith(FAILED_NODE_PREFIX)) {
+                failed++;
+            }
+        }
+
+        if (failed > 0) {
+            decline(String.format("Rollout %s halted after %d failed deployment(s)", path, failed));
+            return;
+        }
+
+        onGetLeases(rc, path, children, getLimit(succeeded));
+    }
+
+    @Override
+    protected void watchPredecessors(List<String> predecessors) {
+        // The rollout node is watched as a whole, since results may raise the lease limit
+    }
+
+    private int getLimit(int succeeded) {
+        if (succeeded < canaryCount) {
+            // Canaries that have succeeded no longer hold a lease
+            return canaryCount - succeeded;
+        }
+
+        int limit = succeeded * waveFactor;
+        if (maxWaveSize > 0) {
+            limit = Math.min(limit, maxWaveSize);
+        }
+        return Math.max(1, limit);
+    }
+
+    @Override
+    protected void recordResult(RuleSetDeploymentResult result, Runnable onRecorded) {
+        if (result == RuleSetDeploymentResult.UNKNOWN) {
+            // No deployment was attempted
+            onRecorded.run();
+            return;
+        }
+
+        if (result == RuleSetDeploymentResult.OK) {
+            createResultNode(getLeasePath() + "/" + OK_NODE_PREFIX, false, onRecorded);
+        } else {
+            // Failures outlive the session so that the rollout stays halted
+            createResultNode(getLeasePath() + "/" + FAILED_NODE_PREFIX + UUID.randomUUID(), true, onRecorded);
+        }
+    }
+
+    private void createResultNode(final String path, final boolean persistent, final Runnable onRecorded) {
+        AsyncCallback.StringCallback cb = new AsyncCallback.StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                onResultNodeCreated(Code.get(rc), path, persistent, onRecorded);
+            }
+        };
+
+        if (persistent) {
+            getConnection().createPersistent(path, new byte[0], cb, null);
+        } else {
+            getConnection().createEphemeralSequential(path, new byte[0], cb, null);
+        }
+    }
+
+    protected void onResultNodeCreated(Code rc, String path, boolean persistent, Runnable onRecorded) {
+        if (rc == Code.OK || (persistent && rc == Code.NODEEXISTS)) {
+            logger.debug(String.format("Recorded rollout result %s", path));
+        } else if (ZooKeeperUtils.isRetryableError(rc)) {
+            logger.warn(String.format("Error %s while recording rollout result %s, retrying", rc, path));
+            createResultNode(path, persistent, onRecorded);
+            return;
+        } else {
+            logger.error(String.format("Error %s while recording rollout result: %s", rc, path));
+        }
+        onRecorded.run();
+    }
+
+    private void deleteStaleRollouts() {
+        final String parentPath = rolloutPrefix.substring(0, rolloutPrefix.lastIndexOf('/'));
+
+        AsyncCallback.ChildrenCallback cb = new AsyncCallback.ChildrenCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                onGetRollouts(Code.get(rc), path, children);
+            }
+        };
+
+        getConnection().getChildren(parentPath, null, cb, null);
+    }
+
+    protected void onGetRollouts(Code rc, String path, List<String> children) {
+        if (rc != Code.OK) {
+            // Stale rollouts are deleted by the next rollout
+            logger.warn(String.format("Error %s while reading rollouts: %s", rc, path));
+            return;
+        }
+
+        String rolloutName = rolloutPrefix.substring(rolloutPrefix.lastIndexOf('/') + 1);
+        for (String child : children) {
+            String childPath = path + "/" + child;
+            if (child.startsWith(rolloutName) && !childPath.equals(getLeasePath())) {
+                deleteStaleRollout(childPath);
+            }
+        }
+    }
+
+    private void deleteStaleRollout(String rolloutPath) {
+        AsyncCallback.ChildrenCallback cb = new AsyncCallback.ChildrenCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                onGetStaleRolloutNodes(Code.get(rc), path, children);
+            }
+        };
+
+        getConnection().getChildren(rolloutPath, null, cb, null);
+    }
+
+    protected void onGetStaleRolloutNodes(Code rc, final String path, List<String> children) {
+        if (rc != Code.OK) {
+            if (rc != Code.NONODE) {
+                logger.warn(String.format("Error %s while reading stale rollout: %s", rc, path));
+            }
+            return;
+        }
+
+        for (String child : children) {
+            if (!child.startsWith(OK_NODE_PREFIX) && !child.startsWith(FAILED_NODE_PREFIX)) {
+                // An agent still holds or waits for a lease on this rollout
+                return;
+            }
+        }
+
+        logger.info(String.format("Deleting stale rollout: %s", path));
+        if (children.isEmpty()) {
+            deleteNode(path, null);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(children.size());
+        Runnable onChildDeleted = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() == 0) {
+                    deleteNode(path, null);
+                }
+            }
+        };
+        for (String child : children) {
+            deleteNode(path + "/" + child, onChildDeleted);
+        }
+    }
+
+    private void deleteNode(String path, final Runnable onDeleted) {
+        AsyncCallback.VoidCallback cb = new AsyncCallback.VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                onNodeDeleted(Code.get(rc), path, onDeleted);
+            }
+        };
+
+        getConnection().delete(path, -1, cb, null);
+    }
+
+    protected void onNodeDeleted(Code rc, String path, Runnable onDeleted) {
+        if (rc != Code.OK && rc != Code.NONODE) {
+            // NOTEMPTY if an agent requested a lease on the rollout in the meantime
+            logger.warn(String.format("Error %s while deleting stale rollout node: %s", rc, path));
+            return;
+        }
+        if (onDeleted != null) {
+            onDeleted.run();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.AgentUtils;
+import com.edmunds.etm.agent.DigestAlgorithm;
+import com.edmunds.zookeeper.connection.ZooKeeperConnection;
+import com.edmunds.zookeeper.util.ZooKeeperUtils;
+import com.google.common.collect.Maps;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fetches and reassembles the chunks of a chunked rule set.
+ * <p/>
+ * Chunk reads are issued as asynchronous {@code getData} requests, so they are pipelined over the ZooKeeper connection
+ * rather than performed one after the other. At most {@link #READ_WINDOW} chunks are read ahead of the first chunk not
+ * yet written, and each chunk is appended to a spool file as soon as all chunks before it have been written, so the
+ * heap holds a bounded number of chunks however large the rule set is. Each chunk is verified against the digest in the
+ * manifest before it is written.
+ * <p/>
+ * A chunk read that fails with a retryable error or a digest mismatch is retried with an exponential backoff, up to
+ * {@link #MAX_ATTEMPTS} times. The listener is notified if the fetch fails. A fetch that is superseded by a newer
+ * manifest must be {@link #cancel() cancelled}, which stops all further reads.
+ * <p/>
+ * The fetch must be started and cancelled on the deployment worker thread. Read results are handed to that thread as
+ * well, so verifying and writing chunks never blocks the ZooKeeper event thread.
+ */
+public class RuleSetChunkFetch {
+
+    private static final Logger logger = Logger.getLogger(RuleSetChunkFetch.class);
+
+    // Maximum number of chunks read ahead of the first chunk not yet written
+    private static final int READ_WINDOW = 8;
+
+    // Maximum number of reads of a single chunk
+    private static final int MAX_ATTEMPTS = 5;
+
+    // Delay in milliseconds before the first retry of a chunk read, doubled for each further retry
+    private static final long INITIAL_RETRY_DELAY = 100;
+
+    private final ZooKeeperConnection connection;
+    private final String manifestPath;
+    private final List<RuleSetManifest.Chunk> chunks;
+    private final DigestAlgorithm digestAlgorithm;
+    private final File spoolDirectory;
+    private final RuleSetDeploymentWorker worker;
+    private final Listener listener;
+    private final Map<Integer, byte[]> receivedChunks;
+    private final int[] attempts;
+
+    private SpooledRuleSet.Output output;
+    private int nextRead;
+    private int nextWrite;
+    private boolean finished;
+
+    /**
+     * Constructs a new chunk fetch.
+     *
+     * @param connection      ZooKeeper connection
+     * @param manifestPath    path of the manifest node
+     * @param manifest        the parsed manifest
+     * @param digestAlgorithm algorithm of the chunk digests
+     * @param spoolDirectory  directory of the spool file the chunks are written to
+     * @param worker          deployment worker on which chunks are processed and retries are scheduled
+     * @param listener        listener notified when the rule set has been reassembled or the fetch failed
+     */
+    public RuleSetChunkFetch(ZooKeeperConnection connection,
+                             String manifestPath,
+                             RuleSetManifest manifest,
+                             DigestAlgorithm digestAlgorithm,
+                             File spoolDirectory,
+                             RuleSetDeploymentWorker worker,
+                             Listener listener) {
+        this.connection = connection;
+        this.manifestPath = manifestPath;
+        this.chunks = manifest.getChunks();
+        this.digestAlgorithm = digestAlgorithm;
+        this.spoolDirectory = spoolDirectory;
+        this.worker = worker;
+        this.listener = listener;
+        this.receivedChunks = Maps.newHashMap();
+        this.attempts = new int[chunks.size()];
+    }
+
+    /**
+     * Creates the spool file and issues the first chunk reads.
+     */
+    public void start() {
+        try {
+            output = SpooledRuleSet.create(spoolDirectory, digestAlgorithm);
+        } catch (IOException e) {
+            fail(String.format("Could not create spool file for rule set chunks from %s: %s", manifestPath,
+                    e.getMessage()));
+            return;
+        }
+
+        if (chunks.isEmpty()) {
+            complete();
+        } else {
+            issueReads();
+        }
+    }
+
+    /**
+     * Stops the fetch. Reads still in progress are ignored, no further reads are issued and the spool file is deleted.
+     */
+    public void cancel() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        discard();
+    }
+
+    /**
+     * Gets the path of the manifest node.
+     *
+     * @return manifest path
+     */
+    public String getManifestPath() {
+        return manifestPath;
+    }
+
+    protected void getChunkData(int index) {
+        if (finished) {
+            return;
+        }
+        attempts[index]++;
+
+        AsyncCallback.DataCallback cb = new AsyncCallback.DataCallback() {
+            @Override
+            public void processResult(final int rc, final String path, final Object ctx, final byte[] data,
+                                      Stat stat) {
+                worker.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onGetChunkData(Code.get(rc), path, (Integer) ctx, data);
+                    }
+                }, 0);
+            }
+        };
+        connection.getData(getChunkPath(index), null, cb, index);
+    }
+
+    protected void onGetChunkData(Code rc, String path, int index, byte[] data) {
+        if (finished) {
+            return;
+        }
+
+        if (rc == Code.OK) {
+            byte[] chunk = data == null ? new byte[0] : data;
+            String expectedDigest = chunks.get(index).getDigest();
+            String actualDigest = AgentUtils.ruleSetDigest(chunk, digestAlgorithm);
+            if (!expectedDigest.equals(actualDigest)) {
+                retry(index, String.format("Digest mismatch for rule set chunk %s (expected %s, got %s)",
+                        path, expectedDigest, actualDigest));
+                return;
+            }
+            onChunkVerified(index, chunk);
+        } else if (ZooKeeperUtils.isRetryableError(rc)) {
+            retry(index, String.format("Error %s while getting rule set chunk %s", rc, path));
+        } else {
+            fail(String.format("Error %s while getting rule set chunk %s", rc, path));
+        }
+    }
+
+    /**
+     * Issues reads for the chunks within the read window.
+     */
+    private void issueReads() {
+        while (nextRead < chunks.size() && nextRead - nextWrite < READ_WINDOW) {
+            getChunkData(nextRead++);
+        }
+    }
+
+    /**
+     * Schedules another read of a chunk after a backoff delay, or fails the fetch if the chunk has been read too often.
+     */
+    private void retry(final int index, String message) {
+        int attempt = attempts[index];
+        if (attempt >= MAX_ATTEMPTS) {
+            fail(String.format("%s, giving up after %d attempts", message, attempt));
+            return;
+        }
+
+        long delay = INITIAL_RETRY_DELAY << (attempt - 1);
+        logger.warn(String.format("%s, retrying in %d ms", message, delay));
+        worker.schedule(new Runnable() {
+            @Override
+            public void run() {
+                getChunkData(index);
+            }
+        }, delay);
+    }
+
+    /**
+     * Appends the verified chunk and any chunks that were waiting for it to the spool file.
+     */
+    private void onChunkVerified(int index, byte[] chunk) {
+        if (index < nextWrite || receivedChunks.containsKey(index)) {
+            return;
+        }
+        receivedChunks.put(index, chunk);
+
+        try {
+            while (receivedChunks.containsKey(nextWrite)) {
+                output.write(receivedChunks.remove(nextWrite));
+                nextWrite++;
+            }
+        } catch (IOException e) {
+            fail(String.format("Could not write rule set chunks from %s to spool file: %s", manifestPath,
+                    e.getMessage()));
+            return;
+        }
+
+        if (nextWrite == chunks.size()) {
+            complete();
+        } else {
+            issueReads();
+        }
+    }
+
+    private void complete() {
+        finished = true;
+
+        SpooledRuleSet data;
+        try {
+            data = output.finish();
+        } catch (IOException e) {
+            discard();
+            logger.error(String.format("Could not close spool file for rule set chunks from %s", manifestPath), e);
+            listener.onChunkFetchFailed(this);
+            return;
+        }
+
+        logger.debug(String.format("Reassembled %d rule set chunks from %s", chunks.size(), manifestPath));
+        listener.onChunksAssembled(this, data);
+    }
+
+    private void fail(String message) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        discard();
+        logger.error(message);
+        listener.onChunkFetchFailed(this);
+    }
+
+    private void discard() {
+        receivedChunks.clear();
+        if (output != null) {
+            output.discard();
+        }
+    }
+
+    private String getChunkPath(int index) {
+        return RuleSetManifest.getChunkPath(manifestPath, chunks.get(index).getName());
+    }
+
+    /**
+     * Listener notified when all chunks have been fetched and verified.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the deployment worker thread with the reassembled rule set data.
+         * <p/>
+         * The listener takes ownership of the spool file and must delete it.
+         *
+         * @param fetch the completed fetch
+         * @param data  reassembled (but still possibly encoded) rule set data
+         */
+        void onChunksAssembled(RuleSetChunkFetch fetch, SpooledRuleSet data);
+
+        /**
+         * Called on the deployment worker thread if a chunk could not be read or verified. This is not called for a
+         * cancelled fetch.
+         *
+         * @param fetch the failed fetch
+         */
+        void onChunkFetchFailed(RuleSetChunkFetch fetch);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.DigestAlgorithm;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * A binary patch that transforms one rule set into another.
+ * <p/>
+ * Deltas are published as framed payloads with the {@link #ENCODING_NAME} encoding, one per base rule set, at {@code
+ * <rule set node>/deltas/<base digest>}. The body (big-endian) consists of:
+ * <ul>
+ * <li>the data version of the rule set node the delta was generated for (int),</li>
+ * <li>the base and target rule set digests (modified UTF-8 strings),</li>
+ * <li>a sequence of instructions until the end of the body: {@code 'C'} followed by an offset and a length copies a
+ * range of the base rule set, {@code 'I'} followed by a length and that many bytes inserts literal data.</li>
+ * </ul>
+ */
+public class RuleSetDelta {
+
+    /**
+     * Payload encoding name of a rule set delta.
+     */
+    public static final String ENCODING_NAME = "delta";
+
+    /**
+     * Name of the container node holding the deltas, relative to the rule set node.
+     */
+    public static final String DELTAS_NODE_NAME = "deltas";
+
+    private static final int COPY_INSTRUCTION = 'C';
+    private static final int INSERT_INSTRUCTION = 'I';
+
+    // Size of the buffer used to copy data into the result
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int targetVersion;
+    private final String baseDigest;
+    private final String targetDigest;
+    private final byte[] body;
+
+    private RuleSetDelta(int targetVersion, String baseDigest, String targetDigest, byte[] body) {
+        this.targetVersion = targetVersion;
+        this.baseDigest = baseDigest;
+        this.targetDigest = targetDigest;
+        this.body = body;
+    }
+
+    /**
+     * Returns the path of the delta node for the specified base rule set.
+     *
+     * @param ruleSetNodePath path of the rule set node
+     * @param baseDigest      digest of the base rule set
+     * @return delta node path
+     */
+    public static String getDeltaPath(String ruleSetNodePath, String baseDigest) {
+        return ruleSetNodePath + "/" + DELTAS_NODE_NAME + "/" + baseDigest;
+    }
+
+    /**
+     * Parses the header of the specified delta payload.
+     *
+     * @param payload delta payload
+     * @return the parsed delta
+     * @throws IOException if the payload is not a valid delta
+     */
+    public static RuleSetDelta parse(RuleSetPayload payload) throws IOException {
+        if (!ENCODING_NAME.equals(payload.getEncodingName())) {
+            throw new IOException(String.format("Not a rule set delta: %s", payload.getEncodingName()));
+        }
+
+        InputStream in = payload.openBodyStream();
+        try {
+            DataInputStream dataIn = new DataInputStream(in);
+            int targetVersion = dataIn.readInt();
+            String baseDigest = dataIn.readUTF();
+            String targetDigest = dataIn.readUTF();
+            byte[] instructions = IOUtils.toByteArray(dataIn);
+            return new RuleSetDelta(targetVersion, baseDigest, targetDigest, instructions);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Gets the data version of the rule set node this delta was generated for.
+     *
+     * @return rule set node data version
+     */
+    public int getTargetVersion() {
+        return targetVersion;
+    }
+
+    /**
+     * Gets the digest of the rule set this delta applies to.
+     *
+     * @return base rule set digest
+     */
+    public String getBaseDigest() {
+        return baseDigest;
+    }
+
+    /**
+     * Gets the digest of the rule set this delta produces.
+     *
+     * @return target rule set digest
+     */
+    public String getTargetDigest() {
+        return targetDigest;
+    }
+
+    /**
+     * Applies this delta to the specified base rule set.
+     * <p/>
+     * The base is read with random access from its spool file and the result is spooled to a new file, so neither is
+     * held on the heap. Both are verified against the digests in the delta header.
+     *
+     * @param base           spooled base rule set
+     * @param spoolDirectory directory in which to spool the result
+     * @param algorithm      algorithm of the digests in the delta header
+     * @return spooled target rule set
+     * @throws IOException if the base or the result does not match, or if the instructions are invalid
+     */
+    public SpooledRuleSet apply(SpooledRuleSet base, File spoolDirectory, DigestAlgorithm algorithm)
+            throws IOException {
+        if (!baseDigest.equals(base.getDigest())) {
+            throw new IOException(String.format("Rule set delta does not apply to base %s", base.getDigest()));
+        }
+        return apply(base.getFile(), spoolDirectory, algorithm);
+    }
+
+    /**
+     * Applies this delta to the rule set in the specified file.
+     * <p/>
+     * The base file is read in place with random access, so the active rule set file can be used without copying it.
+     * The caller is responsible for checking that the file matches the base digest. A file that changes while the
+     * delta is applied produces a result that fails verification against the target digest.
+     *
+     * @param base           base rule set file
+     * @param spoolDirectory directory in which to spool the result
+     * @param algorithm      algorithm of the digests in the delta header
+     * @return spooled target rule set
+     * @throws IOException if the base cannot be read, if the result does not match or if the instructions are invalid
+     */
+    public SpooledRuleSet apply(File base, File spoolDirectory, DigestAlgorithm algorithm) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        RandomAccessFile baseFile = new RandomAccessFile(base, "r");
+        SpooledRuleSet.Output out = SpooledRuleSet.create(spoolDirectory, algorithm);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                int instruction = in.read();
+                if (instruction < 0) {
+                    break;
+                }
+
+                try {
+                    if (instruction == COPY_INSTRUCTION) {
+                        long offset = in.readInt();
+                        long length = in.readInt();
+                        if (offset < 0 || length < 0 || offset + length > baseFile.length()) {
+                            throw new IOException("Rule set delta copy range is out of bounds");
+                        }
+                        baseFile.seek(offset);
+                        copy(baseFile, out, length, buffer);
+                    } else if (instruction == INSERT_INSTRUCTION) {
+                        long length = in.readInt();
+                        if (length < 0) {
+                            throw new IOException("Rule set delta insert length is out of bounds");
+                        }
+                        copy(in, out, length, buffer);
+                    } else {
+                        throw new IOException(String.format("Unknown rule set delta instruction %d", instruction));
+                    }
+                } catch (EOFException e) {
+                    throw new IOException("Rule set delta is truncated");
+                }
+            }
+
+            SpooledRuleSet target = out.finish();
+            if (!targetDigest.equals(target.getDigest())) {
+                target.delete();
+                throw new IOException(String.format("Rule set delta produced digest %s, expected %s",
+                        target.getDigest(), targetDigest));
+            }
+            return target;
+        } finally {
+            out.discard();
+            IOUtils.closeQuietly(baseFile);
+        }
+    }
+
+    private static void copy(DataInput in, OutputStream out, long length, byte[] buffer) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int n = (int) Math.min(buffer.length, remaining);
+            in.readFully(buffer, 0, n);
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+}
@@ -15,153 +15,445 @@
  */
 package com.edmunds.etm.agent.impl;
 
-import com.edmunds.etm.agent.AgentUtils;
+import com.edmunds.etm.agent.api.HealthCheck;
 import com.edmunds.etm.agent.api.HealthCheckListener;
 import com.edmunds.etm.agent.api.WebServerController;
-import com.edmunds.etm.common.api.AgentPaths;
 import com.edmunds.etm.common.api.RuleSetDeploymentEvent;
 import com.edmunds.etm.common.api.RuleSetDeploymentResult;
-import com.edmunds.zookeeper.connection.ZooKeeperConnection;
-import com.edmunds.zookeeper.election.ZooKeeperElection;
-import com.edmunds.zookeeper.election.ZooKeeperElectionListener;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Deploys new rule set data to the web server.
+ * <p/>
+ * The new rule set is received in a spool file, which is deleted when the task completes or is discarded. It is staged
+ * with the server before the restart election, so that only activation, restart and health check happen while this
+ * agent holds leadership. Where the server supports it, the staged rule set is also syntax checked before the
+ * election, so that an invalid rule set fails on all agents in parallel without a restart. If enabled, the staged
+ * rule set is then smoke tested on a shadow server instance.
+ * <p/>
+ * The restart is coordinated with the other agents by a {@link RestartPermit}, granted either by the restart election
+ * or by a restart lease. Local tasks, used to roll back to a rule set from the history, need no permit and deploy
+ * immediately.
+ * <p/>
+ * The task is a state machine driven by a single-threaded executor: every transition, including those triggered by
+ * permit and health check callbacks, runs on the executor, and no thread is held while waiting. Steps that block on
+ * external commands, i.e. preparation (staging, syntax check and smoke test), activation with restart, and rollback,
+ * run on a separate command executor and post their outcome back to the executor, so that permit callbacks and
+ * cancellations are processed meanwhile. Each waiting state has a deadline, although the wait for the permit may be
+ * unlimited; blocking steps are bounded by the timeouts of their commands instead. A task can be cancelled while it
+ * is prepared or waits for its permit; once the permit is granted, the deployment runs to completion, even if the
+ * permit is lost meanwhile.
  *
  * @author Ryan Holmes
  */
-public class RuleSetDeploymentTask implements Runnable, ZooKeeperElectionListener {
+public class RuleSetDeploymentTask implements RestartPermitListener {
 
     private static final Logger logger = Logger.getLogger(RuleSetDeploymentTask.class);
 
-    private final byte[] newRuleSetData;
+    /**
+     * Deployment states.
+     */
+    public enum State {
+        NEW,
+        PREPARING,
+        WAITING_FOR_PERMIT,
+        CHECKING_SERVER,
+        DEPLOYING,
+        VERIFYING,
+        ROLLING_BACK,
+        VERIFYING_ROLLBACK,
+        RELEASING_PERMIT,
+        DONE
+    }
+
+    private final SpooledRuleSet newRuleSet;
     private final WebServerController serverController;
-    private final ZooKeeperConnection connection;
     private final AgentReporter agentReporter;
-    private final ZooKeeperElection restartElection;
+    private final RuleSetHistory ruleSetHistory;
+    private final LivenessMonitor livenessMonitor;
+    private final RestartPermit restartPermit;
+
+    private volatile ScheduledExecutorService executor;
+    private Executor commandExecutor;
+    private RuleSetDeploymentListener listener;
+    private long permitTimeout;
+    private long phaseTimeout;
+
+    private volatile State state;
+    private int phase;
+    private ScheduledFuture<?> deadline;
+    private boolean cancelled;
+    private volatile boolean cancelRequested;
+    private boolean permitGranted;
+    private boolean permitLost;
 
-    private final Integer lock = -1;
-
-    private byte[] oldRuleSetData;
     private RuleSetDeploymentResult deploymentResult;
     private boolean ruleSetRolledBack;
-    private String newRuleSetDigest;
     private String oldRuleSetDigest;
 
-    public RuleSetDeploymentTask(byte[] newRuleSetData,
+    public RuleSetDeploymentTask(SpooledRuleSet newRuleSet,
                                  WebServerController serverController,
-                                 ZooKeeperConnection connection,
                                  AgentReporter agentReporter,
-                                 AgentPaths agentPaths) {
-        this.newRuleSetData = newRuleSetData;
+                                 RuleSetHistory ruleSetHistory,
+                                 LivenessMonitor livenessMonitor,
+                                 RestartPermit restartPermit) {
+        this.newRuleSet = newRuleSet;
         this.serverController = serverController;
-        this.connection = connection;
         this.agentReporter = agentReporter;
-        this.restartElection = new ZooKeeperElection(connection, agentPaths.getRestartElection());
+        this.ruleSetHistory = ruleSetHistory;
+        this.livenessMonitor = livenessMonitor;
+        this.restartPermit = restartPermit;
+        this.state = State.NEW;
         this.deploymentResult = RuleSetDeploymentResult.UNKNOWN;
+    }
 
-        this.restartElection.addListener(this);
+    /**
+     * Creates a task that deploys the specified rule set without a restart permit.
+     *
+     * @param newRuleSet       spooled rule set
+     * @param serverController web server controller
+     * @param agentReporter    agent reporter
+     * @param ruleSetHistory   rule set history
+     * @param livenessMonitor  web server liveness monitor
+     * @return local deployment task
+     */
+    public static RuleSetDeploymentTask newLocalTask(SpooledRuleSet newRuleSet,
+                                                     WebServerController serverController,
+                                                     AgentReporter agentReporter,
+                                                     RuleSetHistory ruleSetHistory,
+                                                     LivenessMonitor livenessMonitor) {
+        return new RuleSetDeploymentTask(newRuleSet, serverController, agentReporter, ruleSetHistory, livenessMonitor,
+                null);
     }
 
     /**
-     * This method stores the existing web server configuration to {@link #oldRuleSetData} and compares it to the new
-     * configuration data. If there are any differences, the restart election process is initiated and it controls the
-     * actual configuration update and restart of the Apache server. Otherwise, no changes are made.
+     * Starts the deployment. This must be called on the executor thread.
+     * <p/>
+     * This method compares the digest of the existing web server configuration to that of the new configuration data.
+     * If they differ, the new configuration is staged (the server keeps the existing configuration for rollback) and
+     * syntax checked, and a restart permit is requested; it controls the actual configuration update and restart of the
+     * Apache server. Otherwise, no changes are made.
+     *
+     * @param executor        single-threaded executor that runs the state machine
+     * @param commandExecutor executor that runs the steps blocking on external commands
+     * @param permitTimeout   maximum time in milliseconds to wait for the restart permit, or zero for no limit
+     * @param phaseTimeout    maximum time in milliseconds for a health check or the release of the permit
+     * @param listener        listener notified when the deployment is complete
      */
-    @Override
-    public void run() {
+    public void start(ScheduledExecutorService executor,
+                      Executor commandExecutor,
+                      long permitTimeout,
+                      long phaseTimeout,
+                      RuleSetDeploymentListener listener) {
+        this.executor = executor;
+        this.commandExecutor = commandExecutor;
+        this.permitTimeout = permitTimeout;
+        this.phaseTimeout = phaseTimeout;
+        this.listener = listener;
+
+        // A cancellation requested before the executor was set could not be submitted
+        if (cancelRequested) {
+            onCancel();
+            return;
+        }
 
         logger.info(String.format("Deploying rule set %s", getNewRuleSetDigest()));
+        enterState(State.PREPARING, 0);
+        executeBlocking(new BlockingStep() {
+            private boolean prepared;
+
+            @Override
+            protected void execute() {
+                prepared = prepare();
+            }
 
-        // Get the current configuration
-        oldRuleSetData = serverController.readRuleSetData();
+            @Override
+            protected void complete() {
+                if (prepared && !cancelled) {
+                    requestPermit();
+                } else {
+                    finish();
+                }
+            }
 
-        if (Arrays.equals(oldRuleSetData, newRuleSetData)) {
+            @Override
+            protected void fail(RuntimeException e) {
+                logger.error(String.format("Could not deploy rule set %s", getNewRuleSetDigest()), e);
+                finish();
+            }
+        });
+    }
+
+    /**
+     * Cancels the deployment if it has not been granted a restart permit yet.
+     * <p/>
+     * This may be called on any thread. A cancelled deployment is not reported.
+     */
+    public void cancel() {
+        cancelRequested = true;
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                onCancel();
+            }
+        });
+    }
+
+    /**
+     * Deletes the spool files held by this task.
+     * <p/>
+     * This is called when the task completes, and must be called for tasks that are superseded before they are run.
+     */
+    public void discard() {
+        newRuleSet.delete();
+    }
+
+    /**
+     * Gets the current state of the deployment.
+     *
+     * @return deployment state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Indicates whether the deployment was cancelled before it was granted a restart permit.
+     *
+     * @return true if the deployment was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled && !permitGranted;
+    }
+
+    /**
+     * Gets the digest of the rule set being deployed.
+     *
+     * @return rule set digest
+     */
+    public String getNewRuleSetDigest() {
+        return newRuleSet.getDigest();
+    }
+
+    @Override
+    public void onRestartPermitChange(final boolean granted) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                if (granted) {
+                    onPermitGranted();
+                } else {
+                    onPermitReleased();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stages and validates the new rule set ahead of the restart election. This runs on the command executor.
+     *
+     * @return true if the restart permit is to be requested, false if the deployment is complete
+     */
+    private boolean prepare() {
+        // Get the digest of the current configuration
+        oldRuleSetDigest = serverController.getRuleSetDigest();
+
+        if (oldRuleSetDigest.equals(getNewRuleSetDigest())) {
             // No change to rule set data, report as successful deployment
             logger.info(String.format("Current rule set %s is up to date", getOldRuleSetDigest()));
             deploymentResult = RuleSetDeploymentResult.OK;
-            reportDeploymentEvent();
-            return;
+            return false;
         }
 
-        restartElection.enroll();
+        // Keep the current configuration so that it can be restored locally
+        storeCurrentRuleSet();
 
-        logger.info("Waiting for leadership election");
+        // Stage the new configuration ahead of the election
         try {
-            synchronized (lock) {
-                lock.wait();
-            }
-        } catch (InterruptedException e) {
-            logger.error("Rule set deployment task interrupted", e);
-            connection.reconnect();
+            stageRuleSet(newRuleSet);
+        } catch (RuntimeException e) {
+            logger.error(String.format("Could not stage rule set %s", getNewRuleSetDigest()), e);
+            return false;
+        }
+
+        // Validate the staged configuration before taking part in the election
+        if (!serverController.checkStagedSyntax()) {
+            logger.error(String.format("Syntax check failed with staged rule set %s", getNewRuleSetDigest()));
+            deploymentResult = RuleSetDeploymentResult.SYNTAX_CHECK_FAILED;
+            return false;
         }
+
+        // Optionally try the staged configuration on a shadow server instance
+        if (!serverController.smokeTestStagedRuleSet()) {
+            logger.error(String.format("Smoke test failed with staged rule set %s", getNewRuleSetDigest()));
+            deploymentResult = RuleSetDeploymentResult.HEALTH_CHECK_FAILED;
+            return false;
+        }
+        return true;
     }
 
-    @Override
-    public void onElectionStateChange(ZooKeeperElection zooKeeperElection, boolean master) {
-        if (master) {
-            executeHealthCheck(new HealthCheckListener() {
-                @Override
-                public void onHealthCheckComplete(boolean alive) {
-                    deployNewRuleSet(alive);
-                }
-            });
+    private void requestPermit() {
+        if (restartPermit != null) {
+            logger.info("Waiting for restart permit");
+            enterState(State.WAITING_FOR_PERMIT, permitTimeout);
+            restartPermit.acquire(this);
         } else {
-            reportDeploymentEvent();
-            exit();
+            permitGranted = true;
+            checkServer();
+        }
+    }
+
+    private void onPermitGranted() {
+        if (state == State.RELEASING_PERMIT) {
+            // Granted while the request is being withdrawn
+            return;
+        } else if (state != State.WAITING_FOR_PERMIT) {
+            logger.warn(String.format("Restart permit granted in state %s, releasing", state));
+            restartPermit.release(RuleSetDeploymentResult.UNKNOWN);
+            return;
         }
+
+        permitGranted = true;
+        checkServer();
     }
 
-    private void executeHealthCheck(HealthCheckListener healthCheck) {
-        serverController.newHealthCheck().execute(healthCheck);
+    private void onPermitReleased() {
+        if (state == State.RELEASING_PERMIT || state == State.WAITING_FOR_PERMIT) {
+            finish();
+        } else if (state != State.DONE) {
+            // The deployment cannot be interrupted safely, so it is completed without the permit
+            logger.warn(String.format("Restart permit lost in state %s", state));
+            permitLost = true;
+        }
+    }
+
+    private void onCancel() {
+        if (state == State.DONE || permitGranted) {
+            return;
+        }
+
+        logger.info(String.format("Rule set deployment %s superseded", getNewRuleSetDigest()));
+        cancelled = true;
+        if (state == State.WAITING_FOR_PERMIT) {
+            releasePermit();
+        } else if (state == State.NEW) {
+            finish();
+        }
+        // A task being prepared finishes once the preparation is complete
+    }
+
+    private void onDeadline(State expiredState) {
+        logger.warn(String.format("Rule set deployment %s timed out in state %s", getNewRuleSetDigest(),
+                expiredState));
+
+        switch (expiredState) {
+            case WAITING_FOR_PERMIT:
+                releasePermit();
+                break;
+            case CHECKING_SERVER:
+                // The server state is unknown and it may well be running, so it must not be started a second time
+                deployNewRuleSet(true);
+                break;
+            case VERIFYING:
+            case VERIFYING_ROLLBACK:
+                processHealthCheckResult(false);
+                break;
+            case RELEASING_PERMIT:
+            default:
+                finish();
+        }
     }
 
     /**
-     * Deploys the new rule set data and restarts the web server.
+     * Checks whether the server is running before the new rule set is activated.
      * <p/>
-     * This method checks the syntax of the new rule set data and rolls back to the current rule set if an error is
-     * detected. It will also roll back if the server restart command or the health check fails.
+     * A fresh result of the liveness monitor is used as is, otherwise the server is checked.
      */
-    private void deployNewRuleSet(boolean running) {
+    private void checkServer() {
+        enterState(State.CHECKING_SERVER, phaseTimeout);
 
-        // Write the new rule set file
-        logger.info(String.format("Writing data for rule set %s", getNewRuleSetDigest()));
-        serverController.writeRuleSetData(newRuleSetData);
+        Boolean running = livenessMonitor.getFreshResult();
+        if (running != null) {
+            logger.debug(String.format("Liveness monitor reports server %s", running ? "up" : "down"));
+            deployNewRuleSet(running);
+            return;
+        }
 
-        // Test the syntax
-        boolean syntaxOk = serverController.checkSyntax();
+        executeHealthCheck(serverController.newRunningCheck(), new HealthCheckListener() {
+            @Override
+            public void onHealthCheckComplete(boolean alive) {
+                deployNewRuleSet(alive);
+            }
+        });
+    }
 
-        if (!syntaxOk) {
-            logger.error(String.format("Syntax check failed with rule set %s", getNewRuleSetDigest()));
-            deploymentResult = RuleSetDeploymentResult.SYNTAX_CHECK_FAILED;
+    /**
+     * Deploys the new rule set data and restarts the web server.
+     * <p/>
+     * This method checks the syntax of the new rule set data and rolls back to the current rule set if an error is
+     * detected. It will also roll back if the server restart command or the health check fails.
+     */
+    private void deployNewRuleSet(final boolean running) {
+        enterState(State.DEPLOYING, 0);
+        executeBlocking(new BlockingStep() {
+            private RuleSetDeploymentResult failure;
 
-            // Restore old rule set
-            rollBackRuleSet();
-            return;
-        }
+            @Override
+            protected void execute() {
+                // Activate the staged rule set file
+                logger.info(String.format("Activating rule set %s", getNewRuleSetDigest()));
+                serverController.activateRuleSetData();
+
+                // Test the syntax, unless the staged rule set was already checked
+                boolean syntaxOk = serverController.isStagedSyntaxCheckSupported() || serverController.checkSyntax();
+                if (!syntaxOk) {
+                    logger.error(String.format("Syntax check failed with rule set %s", getNewRuleSetDigest()));
+                    failure = RuleSetDeploymentResult.SYNTAX_CHECK_FAILED;
+                    return;
+                }
 
-        // Restart with new rule set
-        logger.info(String.format("Restarting server with rule set %s", getNewRuleSetDigest()));
-        boolean restartOk = running ? serverController.restart() : serverController.start();
-        if (!restartOk) {
-            logger.warn(String.format("Server restart failed with rule set %s", getNewRuleSetDigest()));
-            deploymentResult = RuleSetDeploymentResult.RESTART_COMMAND_FAILED;
+                // Restart with new rule set
+                logger.info(String.format("Restarting server with rule set %s", getNewRuleSetDigest()));
+                boolean restartOk = running ? serverController.restart() : serverController.start();
+                if (!restartOk) {
+                    logger.warn(String.format("Server restart failed with rule set %s", getNewRuleSetDigest()));
+                    failure = RuleSetDeploymentResult.RESTART_COMMAND_FAILED;
+                }
+            }
 
-            // Restore old rule set
-            rollBackRuleSet();
-            return;
-        }
+            @Override
+            protected void complete() {
+                if (failure != null) {
+                    // Restore old rule set
+                    deploymentResult = failure;
+                    rollBackRuleSet();
+                } else {
+                    // Syntax check and restart ok, execute health check
+                    verifyRuleDeployment();
+                }
+            }
 
-        // Syntax check and restart ok, execute health check
-        verifyRuleDeployment();
+            @Override
+            protected void fail(RuntimeException e) {
+                logger.error(String.format("Could not deploy rule set %s", getNewRuleSetDigest()), e);
+                abortDeployment();
+            }
+        });
     }
 
     private void verifyRuleDeployment() {
-        executeHealthCheck(new HealthCheckListener() {
+        enterState(ruleSetRolledBack ? State.VERIFYING_ROLLBACK : State.VERIFYING, phaseTimeout);
+        executeHealthCheck(serverController.newHealthCheck(), new HealthCheckListener() {
             @Override
             public void onHealthCheckComplete(boolean alive) {
                 processHealthCheckResult(alive);
@@ -169,16 +461,17 @@ public class RuleSetDeploymentTask implements Runnable, ZooKeeperElectionListene
         });
     }
 
-    public void processHealthCheckResult(boolean alive) {
+    private void processHealthCheckResult(boolean alive) {
         if (alive) {
             if (!ruleSetRolledBack) {
                 deploymentResult = RuleSetDeploymentResult.OK;
+                ruleSetHistory.store(newRuleSet);
             }
-            restartElection.withdraw();
+            releasePermit();
         } else if (ruleSetRolledBack) {
             logger.error(String.format("Rollback failed with rule set %s", getNewRuleSetDigest()));
             deploymentResult = RuleSetDeploymentResult.ROLLBACK_FAILED;
-            restartElection.withdraw();
+            releasePermit();
         } else {
             logger.error(String.format("Health check failed with rule set %s", getNewRuleSetDigest()));
             deploymentResult = RuleSetDeploymentResult.HEALTH_CHECK_FAILED;
@@ -191,15 +484,193 @@ public class RuleSetDeploymentTask implements Runnable, ZooKeeperElectionListene
      */
     private void rollBackRuleSet() {
         logger.info(String.format("Rolling back to rule set %s", getOldRuleSetDigest()));
-        serverController.writeRuleSetData(oldRuleSetData);
+        enterState(State.ROLLING_BACK, 0);
         ruleSetRolledBack = true;
+        executeBlocking(new BlockingStep() {
+            private boolean restartOk;
+
+            @Override
+            protected void execute() {
+                serverController.rollBackRuleSetData();
+                restartOk = serverController.restart();
+            }
+
+            @Override
+            protected void complete() {
+                if (!restartOk) {
+                    deploymentResult = RuleSetDeploymentResult.RESTART_COMMAND_FAILED;
+                    logger.error(String.format("Server restart failed with rule set %s", getOldRuleSetDigest()));
+                }
+                verifyRuleDeployment();
+            }
+
+            @Override
+            protected void fail(RuntimeException e) {
+                logger.error(String.format("Could not roll back to rule set %s", getOldRuleSetDigest()), e);
+                deploymentResult = RuleSetDeploymentResult.ROLLBACK_FAILED;
+                releasePermit();
+            }
+        });
+    }
+
+    /**
+     * Makes a best effort to restore the previous rule set after an unexpected error, and always releases the restart
+     * permit so that other agents are not blocked.
+     */
+    private void abortDeployment() {
+        if (!ruleSetRolledBack) {
+            rollBackRuleSet();
+        } else {
+            deploymentResult = RuleSetDeploymentResult.ROLLBACK_FAILED;
+            releasePermit();
+        }
+    }
+
+    private void releasePermit() {
+        if (restartPermit == null || permitLost) {
+            // No release notification will follow
+            finish();
+            return;
+        }
+
+        enterState(State.RELEASING_PERMIT, phaseTimeout);
+        restartPermit.release(deploymentResult);
+    }
+
+    private void finish() {
+        if (state == State.DONE) {
+            return;
+        }
+        enterState(State.DONE, 0);
+
+        if (cancelled && !permitGranted) {
+            logger.info(String.format("Rule set deployment %s cancelled", getNewRuleSetDigest()));
+        } else {
+            reportDeploymentEvent();
+        }
 
-        boolean success = serverController.restart();
-        if (!success) {
-            deploymentResult = RuleSetDeploymentResult.RESTART_COMMAND_FAILED;
-            logger.error(String.format("Server restart failed with rule set %s", getOldRuleSetDigest()));
+        discard();
+        if (listener != null) {
+            listener.onDeploymentComplete(this);
+        }
+    }
+
+    /**
+     * Moves to the specified state, replacing the deadline of the previous state.
+     *
+     * @param newState new state
+     * @param timeout  deadline of the new state in milliseconds, or zero for none
+     */
+    private void enterState(final State newState, long timeout) {
+        state = newState;
+        phase++;
+
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+
+        if (timeout > 0 && executor != null) {
+            final int deadlinePhase = phase;
+            deadline = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (phase == deadlinePhase) {
+                        onDeadline(newState);
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Executes a health check and passes the result to the specified listener on the executor thread, unless the
+     * deadline of the current state expires first.
+     */
+    private void executeHealthCheck(HealthCheck healthCheck, final HealthCheckListener transition) {
+        final int healthCheckPhase = phase;
+        healthCheck.execute(new HealthCheckListener() {
+            @Override
+            public void onHealthCheckComplete(final boolean alive) {
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Ignore results that arrive after the deadline
+                        if (phase == healthCheckPhase) {
+                            transition.onHealthCheckComplete(alive);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs a blocking step on the command executor and passes its outcome to the step on the executor thread, unless
+     * the task has moved to another state meanwhile.
+     */
+    private void executeBlocking(final BlockingStep step) {
+        final int stepPhase = phase;
+        Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                RuntimeException error = null;
+                try {
+                    step.execute();
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+
+                final RuntimeException stepError = error;
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (phase != stepPhase) {
+                            return;
+                        }
+                        if (stepError == null) {
+                            step.complete();
+                        } else {
+                            step.fail(stepError);
+                        }
+                    }
+                });
+            }
+        };
+
+        try {
+            commandExecutor.execute(work);
+        } catch (RejectedExecutionException e) {
+            logger.warn(String.format("Rule set deployment %s stopped in state %s", getNewRuleSetDigest(), state));
+        }
+    }
+
+    private void submit(Runnable runnable) {
+        if (executor == null) {
+            return;
+        }
+
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            logger.warn(String.format("Rule set deployment %s stopped in state %s", getNewRuleSetDigest(), state));
+        }
+    }
+
+    private void storeCurrentRuleSet() {
+        if (ruleSetHistory.contains(oldRuleSetDigest)) {
+            return;
+        }
+
+        InputStream in = null;
+        try {
+            in = serverController.openRuleSetData();
+            ruleSetHistory.store(oldRuleSetDigest, in);
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Could not store current rule set %s in history", oldRuleSetDigest), e);
+        } finally {
+            IOUtils.closeQuietly(in);
         }
-        verifyRuleDeployment();
     }
 
     private void reportDeploymentEvent() {
@@ -216,23 +687,48 @@ public class RuleSetDeploymentTask implements Runnable, ZooKeeperElectionListene
         agentReporter.publishDeploymentEvent(event, activeRuleSetDigest);
     }
 
-    private String getNewRuleSetDigest() {
-        if (newRuleSetDigest == null) {
-            newRuleSetDigest = AgentUtils.ruleSetDigest(newRuleSetData);
+    private void stageRuleSet(SpooledRuleSet ruleSet) {
+        InputStream in;
+        try {
+            in = ruleSet.openStream();
+        } catch (IOException e) {
+            String message = String.format("Could not read spooled rule set %s", ruleSet.getDigest());
+            logger.error(message, e);
+            throw new RuntimeException(message, e);
+        }
+
+        try {
+            serverController.stageRuleSetData(in);
+        } finally {
+            IOUtils.closeQuietly(in);
         }
-        return newRuleSetDigest;
     }
 
     private String getOldRuleSetDigest() {
-        if (oldRuleSetDigest == null) {
-            oldRuleSetDigest = AgentUtils.ruleSetDigest(oldRuleSetData);
-        }
         return oldRuleSetDigest;
     }
 
-    private void exit() {
-        synchronized (lock) {
-            lock.notifyAll();
-        }
+    /**
+     * A step that blocks on external commands. Fields set by {@link #execute()} are visible to the methods that run on
+     * the executor thread afterwards.
+     */
+    private abstract static class BlockingStep {
+
+        /**
+         * Performs the step on the command executor.
+         */
+        protected abstract void execute();
+
+        /**
+         * Continues the deployment on the executor thread once the step has been performed.
+         */
+        protected abstract void complete();
+
+        /**
+         * Continues the deployment on the executor thread if the step failed unexpectedly.
+         *
+         * @param e the exception thrown by the step
+         */
+        protected abstract void fail(RuntimeException e);
     }
 }
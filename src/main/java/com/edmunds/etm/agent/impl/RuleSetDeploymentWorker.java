@@ -0,0 +1,373 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.AgentConfig;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs rule set deployment tasks on a single long-lived executor thread.
+ * <p/>
+ * At most one task is pending at a time: a task submitted while another is pending supersedes it, so a burst of rule
+ * set updates coalesces to the latest version. A task submitted while another is active cancels the active task if it
+ * is still waiting for its restart permit. The worker also keeps counters describing the deployment backlog.
+ * <p/>
+ * If a quiet period is configured, a pending task is only run once no newer task has been submitted for the quiet
+ * period, or once it has been pending for the maximum delay. This collapses a burst of updates into a single restart.
+ * <p/>
+ * Deployment tasks are asynchronous state machines that run on the executor of this worker, so the executor thread is
+ * never blocked waiting for a restart permit or a health check. Their steps that block on external commands, such as
+ * the syntax check, the smoke test and the restart, run on a separate command thread. Short pieces of rule set
+ * preparation work, such as retries of failed reads, can be scheduled on the same thread with
+ * {@link #schedule(Runnable, long)}.
+ */
+@Component
+public class RuleSetDeploymentWorker implements DisposableBean, RuleSetDeploymentListener {
+
+    private static final Logger logger = Logger.getLogger(RuleSetDeploymentWorker.class);
+
+    // Name of the worker thread
+    private static final String THREAD_NAME = "etm-rule-set-deployment";
+
+    // Name of the thread that runs blocking deployment steps
+    private static final String COMMAND_THREAD_NAME = "etm-rule-set-command";
+
+    // Maximum time to wait for the executor when shutting down
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    private final long quietPeriod;
+    private final long maxDelay;
+    private final long permitTimeout;
+    private final long phaseTimeout;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ExecutorService commandExecutor;
+
+    private RuleSetDeploymentTask pending;
+    private boolean pendingImmediate;
+    private long pendingSince;
+    private long lastSubmitted;
+    private ScheduledFuture<?> scheduledStart;
+    private RuleSetDeploymentTask active;
+    private boolean shutdown;
+
+    private long submittedCount;
+    private long deployedCount;
+    private long supersededCount;
+    private long cancelledCount;
+    private long lastQueueWaitTime;
+    private long maxQueueWaitTime;
+    private long totalQueueWaitTime;
+
+    @Autowired
+    public RuleSetDeploymentWorker(AgentConfig agentConfig) {
+        this.quietPeriod = agentConfig.getDeploymentQuietPeriod();
+        this.maxDelay = agentConfig.getDeploymentMaxDelay();
+        this.permitTimeout = agentConfig.getDeploymentPermitTimeout();
+        this.phaseTimeout = agentConfig.getDeploymentPhaseTimeout();
+
+        this.executor = new ScheduledThreadPoolExecutor(1, newThreadFactory(THREAD_NAME));
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        // Only one task is active at a time, and its blocking steps run one after another
+        this.commandExecutor = Executors.newSingleThreadExecutor(newThreadFactory(COMMAND_THREAD_NAME));
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Queues a deployment task, superseding any task that has not started yet.
+     *
+     * @param task deployment task
+     */
+    public void execute(RuleSetDeploymentTask task) {
+        submit(task, false);
+    }
+
+    /**
+     * Queues a deployment task to run without waiting for the quiet period.
+     *
+     * @param task deployment task
+     */
+    public void executeImmediately(RuleSetDeploymentTask task) {
+        submit(task, true);
+    }
+
+    private synchronized void submit(RuleSetDeploymentTask task, boolean immediate) {
+        if (shutdown) {
+            logger.warn("Deployment worker is shut down, discarding rule set deployment task");
+            task.discard();
+            return;
+        }
+
+        logger.debug("Queueing new rule set deployment task");
+        submittedCount++;
+        if (pending != null) {
+            // Superseded before it was run
+            pending.discard();
+            supersededCount++;
+        } else {
+            pendingSince = System.currentTimeMillis();
+        }
+        pending = task;
+        pendingImmediate = immediate;
+        lastSubmitted = System.currentTimeMillis();
+
+        if (active != null) {
+            // Only takes effect if the active task is still waiting for its restart permit
+            active.cancel();
+        }
+        scheduleNext();
+    }
+
+    /**
+     * Runs a piece of rule set preparation work on the worker thread after the specified delay.
+     * <p/>
+     * Work scheduled with the same delay runs in submission order. Work scheduled after shutdown is dropped.
+     *
+     * @param work  the work to run
+     * @param delay delay in milliseconds
+     */
+    public void schedule(final Runnable work, long delay) {
+        synchronized (this) {
+            if (shutdown) {
+                logger.debug("Deployment worker is shut down, dropping rule set preparation");
+                return;
+            }
+        }
+
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Rule set preparation failed", e);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Deployment worker is shut down, dropping rule set preparation");
+        }
+    }
+
+    @Override
+    public void onDeploymentComplete(RuleSetDeploymentTask task) {
+        synchronized (this) {
+            if (task != active) {
+                return;
+            }
+            if (task.isCancelled()) {
+                cancelledCount++;
+            }
+            active = null;
+            scheduleNext();
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        synchronized (this) {
+            shutdown = true;
+            if (pending != null) {
+                pending.discard();
+                pending = null;
+            }
+            if (active != null) {
+                active.cancel();
+            }
+        }
+
+        // An active deployment is allowed to finish, but only for a limited time
+        executor.shutdown();
+        if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            logger.warn("Rule set deployment still in progress at shutdown");
+            executor.shutdownNow();
+        }
+        commandExecutor.shutdownNow();
+    }
+
+    /**
+     * Gets the number of tasks submitted to this worker.
+     *
+     * @return submitted task count
+     */
+    public synchronized long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    /**
+     * Gets the number of tasks run by this worker.
+     *
+     * @return deployed task count
+     */
+    public synchronized long getDeployedCount() {
+        return deployedCount;
+    }
+
+    /**
+     * Gets the number of tasks superseded by a later task before they were run.
+     *
+     * @return superseded task count
+     */
+    public synchronized long getSupersededCount() {
+        return supersededCount;
+    }
+
+    /**
+     * Gets the number of tasks cancelled by a later task while waiting for a restart permit.
+     *
+     * @return cancelled task count
+     */
+    public synchronized long getCancelledCount() {
+        return cancelledCount;
+    }
+
+    /**
+     * Gets the time in milliseconds that the most recently run task waited in the queue.
+     * <p/>
+     * For coalesced tasks, the wait is measured from the submission of the first superseded task.
+     *
+     * @return queue wait time in milliseconds
+     */
+    public synchronized long getLastQueueWaitTime() {
+        return lastQueueWaitTime;
+    }
+
+    /**
+     * Gets the longest time in milliseconds that a task waited in the queue.
+     *
+     * @return maximum queue wait time in milliseconds
+     */
+    public synchronized long getMaxQueueWaitTime() {
+        return maxQueueWaitTime;
+    }
+
+    /**
+     * Gets the average time in milliseconds that a task waited in the queue.
+     *
+     * @return average queue wait time in milliseconds
+     */
+    public synchronized long getAverageQueueWaitTime() {
+        return deployedCount > 0 ? totalQueueWaitTime / deployedCount : 0;
+    }
+
+    /**
+     * Indicates whether a task is waiting to be run.
+     *
+     * @return true if a task is pending
+     */
+    public synchronized boolean isDeploymentPending() {
+        return pending != null;
+    }
+
+    /**
+     * Indicates whether a task is currently running.
+     *
+     * @return true if a task is active
+     */
+    public synchronized boolean isDeploymentActive() {
+        return active != null;
+    }
+
+    /**
+     * Gets the state of the active task.
+     *
+     * @return deployment state, or {@code null} if no task is active
+     */
+    public synchronized RuleSetDeploymentTask.State getDeploymentState() {
+        return active != null ? active.getState() : null;
+    }
+
+    /**
+     * Schedules the pending task to start once the active task is complete and the quiet period has elapsed.
+     */
+    private void scheduleNext() {
+        if (shutdown || active != null || pending == null) {
+            return;
+        }
+
+        if (scheduledStart != null) {
+            scheduledStart.cancel(false);
+        }
+
+        long delay = Math.max(0, getRemainingDelay(System.currentTimeMillis()));
+        scheduledStart = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startNext();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void startNext() {
+        RuleSetDeploymentTask task;
+        synchronized (this) {
+            if (shutdown || active != null || pending == null) {
+                return;
+            }
+            if (getRemainingDelay(System.currentTimeMillis()) > 0) {
+                scheduleNext();
+                return;
+            }
+
+            task = pending;
+            pending = null;
+            active = task;
+            scheduledStart = null;
+
+            long waitTime = System.currentTimeMillis() - pendingSince;
+            deployedCount++;
+            lastQueueWaitTime = waitTime;
+            maxQueueWaitTime = Math.max(maxQueueWaitTime, waitTime);
+            totalQueueWaitTime += waitTime;
+        }
+
+        task.start(executor, commandExecutor, permitTimeout, phaseTimeout, this);
+    }
+
+    private long getRemainingDelay(long now) {
+        if (pendingImmediate || quietPeriod <= 0) {
+            return 0;
+        }
+
+        long deadline = lastSubmitted + quietPeriod;
+        if (maxDelay > 0) {
+            deadline = Math.min(deadline, pendingSince + maxDelay);
+        }
+        return deadline - now;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.AgentUtils;
+import com.edmunds.etm.agent.DigestAlgorithm;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Caches the digest of a rule set file.
+ * <p/>
+ * The cached digest is keyed by the file length and modification time, so it is recomputed only if the file has been
+ * changed by another process. Writes made through the agent update the index directly. When the digest has to be
+ * recomputed, the file is streamed through the digest instead of being read into memory.
+ * <p/>
+ * Modification times have a coarse granularity, so a file replaced with data of the same length shortly after it was
+ * indexed may keep the same modification time. An entry recorded within {@link #MODIFICATION_TIME_GRANULARITY} of the
+ * file's modification time is therefore not trusted, and the file is hashed again until the entry is recorded late
+ * enough that any later change must move the modification time.
+ */
+public class RuleSetDigestIndex {
+
+    // Granularity in milliseconds of file modification times (File.lastModified truncates to whole seconds on some
+    // JDKs, and some file systems store two-second timestamps)
+    private static final long MODIFICATION_TIME_GRANULARITY = 2000;
+
+    private final File file;
+    private final DigestAlgorithm algorithm;
+
+    private long length = -1;
+    private long lastModified = -1;
+    private long indexedAt = -1;
+    private String digest;
+
+    /**
+     * Constructs a new index for the specified file.
+     *
+     * @param file      rule set file
+     * @param algorithm digest algorithm
+     */
+    public RuleSetDigestIndex(File file, DigestAlgorithm algorithm) {
+        this.file = file;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Gets the digest of the current file contents, reading the file only if it changed since it was last indexed.
+     * <p/>
+     * A missing file has the digest of an empty rule set.
+     *
+     * @return rule set digest
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized String getDigest() throws IOException {
+        if (!file.exists()) {
+            invalidate();
+            return AgentUtils.ruleSetDigest(new byte[0], algorithm);
+        }
+
+        if (digest == null || file.length() != length || file.lastModified() != lastModified || isRacy()) {
+            long fileLength = file.length();
+            long fileLastModified = file.lastModified();
+            String fileDigest = AgentUtils.ruleSetDigest(file, algorithm);
+            update(fileLength, fileLastModified, fileDigest);
+        }
+        return digest;
+    }
+
+    /**
+     * Records the digest of data that has just been written to the file.
+     *
+     * @param ruleSetDigest digest of the written data
+     */
+    public synchronized void update(String ruleSetDigest) {
+        update(file.length(), file.lastModified(), ruleSetDigest);
+    }
+
+    /**
+     * Discards the cached digest.
+     */
+    public synchronized void invalidate() {
+        update(-1, -1, null);
+    }
+
+    /**
+     * Indicates whether the file could have changed within the same modification time tick after it was indexed.
+     */
+    private boolean isRacy() {
+        return indexedAt - lastModified < MODIFICATION_TIME_GRANULARITY;
+    }
+
+    private void update(long fileLength, long fileLastModified, String fileDigest) {
+        this.length = fileLength;
+        this.lastModified = fileLastModified;
+        this.indexedAt = System.currentTimeMillis();
+        this.digest = fileDigest;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content encodings supported for rule set node data.
+ * <p/>
+ * The encoding is named in the header of a framed rule set payload (see {@link RuleSetPayload}). Unframed data is
+ * treated as {@link #IDENTITY}.
+ */
+public enum RuleSetEncoding {
+
+    IDENTITY("identity") {
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    },
+
+    GZIP("gzip") {
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new GZIPInputStream(in, DECODE_BUFFER_SIZE);
+        }
+    },
+
+    DEFLATE("deflate") {
+        @Override
+        public InputStream decode(InputStream in) {
+            return new InflaterInputStream(in);
+        }
+    };
+
+    // Buffer size used by the decompressing streams
+    private static final int DECODE_BUFFER_SIZE = 8192;
+
+    private final String name;
+
+    private RuleSetEncoding(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the name of this encoding as it appears in a payload header.
+     *
+     * @return encoding name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Wraps the specified stream so that reads return decoded rule set data.
+     *
+     * @param in stream of encoded data
+     * @return stream of decoded data
+     * @throws IOException if the stream header is invalid
+     */
+    public abstract InputStream decode(InputStream in) throws IOException;
+
+    /**
+     * Returns the encoding with the specified header name.
+     *
+     * @param name encoding name
+     * @return the matching encoding or {@code null} if the name is not recognized
+     */
+    public static RuleSetEncoding forName(String name) {
+        for (RuleSetEncoding encoding : values()) {
+            if (encoding.name.equals(name)) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+}
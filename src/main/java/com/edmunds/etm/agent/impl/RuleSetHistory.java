@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.DigestAlgorithm;
+import com.edmunds.etm.agent.api.AgentConfig;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Local, content-addressed store of recently deployed rule sets.
+ * <p/>
+ * Each rule set is stored in a file named after its digest. Storing a rule set that is already present only refreshes
+ * its timestamp. The store is pruned to the configured number of entries, total size and age, evicting the least
+ * recently stored rule sets first. This allows an agent to roll back to a known-good rule set without going through
+ * the controller.
+ */
+@Component
+public class RuleSetHistory {
+
+    private static final Logger logger = Logger.getLogger(RuleSetHistory.class);
+
+    private final File directory;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long maxAge;
+
+    @Autowired
+    public RuleSetHistory(AgentConfig agentConfig) {
+        this.directory = agentConfig.getHistoryDirectory();
+        this.maxEntries = agentConfig.getHistorySize();
+        this.maxBytes = agentConfig.getHistoryMaxBytes();
+        this.maxAge = agentConfig.getHistoryMaxAge();
+    }
+
+    /**
+     * Stores a copy of the specified rule set.
+     *
+     * @param ruleSet spooled rule set
+     */
+    public void store(SpooledRuleSet ruleSet) {
+        if (maxEntries <= 0) {
+            return;
+        }
+
+        InputStream in = null;
+        try {
+            in = ruleSet.openStream();
+            store(ruleSet.getDigest(), in);
+        } catch (IOException e) {
+            logger.error(String.format("Could not store rule set %s in history", ruleSet.getDigest()), e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores a copy of the rule set read from the specified stream.
+     * <p/>
+     * The caller is responsible for closing the stream and for the correctness of the digest.
+     *
+     * @param digest rule set digest
+     * @param in     rule set data
+     */
+    public void store(String digest, InputStream in) {
+        if (maxEntries <= 0 || !isValidDigest(digest)) {
+            return;
+        }
+
+        File entry = getEntryFile(digest);
+        try {
+            synchronized (this) {
+                if (entry.exists()) {
+                    touch(entry);
+                } else {
+                    File temp = new File(directory, entry.getName() + ".tmp");
+                    FileUtils.copyInputStreamToFile(in, temp);
+                    if (!temp.renameTo(entry)) {
+                        FileUtils.deleteQuietly(temp);
+                        throw new IOException(String.format("Could not rename %s to %s", temp, entry));
+                    }
+                }
+                prune();
+            }
+            logger.debug(String.format("Stored rule set %s in history", digest));
+        } catch (IOException e) {
+            logger.error(String.format("Could not store rule set %s in history", digest), e);
+        }
+    }
+
+    /**
+     * Indicates whether the rule set with the specified digest is stored.
+     *
+     * @param digest rule set digest
+     * @return true if the rule set is stored
+     */
+    public synchronized boolean contains(String digest) {
+        return isValidDigest(digest) && getEntryFile(digest).isFile();
+    }
+
+    /**
+     * Opens a stream over the stored rule set with the specified digest.
+     *
+     * @param digest rule set digest
+     * @return rule set data stream, which the caller must close, or {@code null} if the rule set is not stored
+     * @throws IOException if the rule set cannot be read
+     */
+    public synchronized InputStream openStream(String digest) throws IOException {
+        if (!contains(digest)) {
+            return null;
+        }
+        return FileUtils.openInputStream(getEntryFile(digest));
+    }
+
+    /**
+     * Spools a copy of the stored rule set with the specified digest.
+     *
+     * @param digest         rule set digest
+     * @param spoolDirectory spool directory
+     * @param algorithm      digest algorithm used to verify the copy
+     * @return the spooled rule set or {@code null} if it is not stored
+     * @throws IOException if the rule set cannot be read or does not match its digest
+     */
+    public synchronized SpooledRuleSet spool(String digest, File spoolDirectory, DigestAlgorithm algorithm)
+            throws IOException {
+        if (!contains(digest)) {
+            return null;
+        }
+
+        SpooledRuleSet ruleSet;
+        InputStream in = FileUtils.openInputStream(getEntryFile(digest));
+        try {
+            ruleSet = SpooledRuleSet.spool(in, spoolDirectory, algorithm);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (!digest.equals(ruleSet.getDigest())) {
+            ruleSet.delete();
+            throw new IOException(String.format("Stored rule set %s is corrupt", digest));
+        }
+        return ruleSet;
+    }
+
+    /**
+     * Lists the digests of the stored rule sets, most recently stored first.
+     *
+     * @return rule set digests
+     */
+    public synchronized List<String> getDigests() {
+        List<String> digests = Lists.newArrayList();
+        for (File entry : listEntries()) {
+            digests.add(entry.getName());
+        }
+        return digests;
+    }
+
+    private void prune() {
+        long now = System.currentTimeMillis();
+        long totalBytes = 0;
+        int count = 0;
+
+        for (File entry : listEntries()) {
+            count++;
+            totalBytes += entry.length();
+
+            // Always keep the most recent entry
+            boolean evict = count > 1 && (count > maxEntries
+                    || totalBytes > maxBytes
+                    || now - entry.lastModified() > maxAge);
+            if (evict) {
+                logger.debug(String.format("Evicting rule set %s from history", entry.getName()));
+                if (!entry.delete()) {
+                    logger.warn(String.format("Could not delete history entry %s", entry));
+                }
+            }
+        }
+    }
+
+    private List<File> listEntries() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+
+        List<File> entries = Lists.newArrayList();
+        for (File file : files) {
+            if (file.isFile() && isValidDigest(file.getName())) {
+                entries.add(file);
+            }
+        }
+
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long t1 = f1.lastModified();
+                long t2 = f2.lastModified();
+                return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        return entries;
+    }
+
+    private File getEntryFile(String digest) {
+        return new File(directory, digest);
+    }
+
+    private static void touch(File file) throws IOException {
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            throw new IOException(String.format("Could not update timestamp of %s", file));
+        }
+    }
+
+    private static boolean isValidDigest(String digest) {
+        if (digest == null || digest.length() == 0) {
+            return false;
+        }
+        for (char c : digest.toCharArray()) {
+            if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
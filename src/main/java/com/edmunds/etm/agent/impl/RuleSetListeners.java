@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the listeners declared by the listen directives of a rule set, e.g. Apache {@code Listen} or HAProxy {@code
+ * bind}.
+ * <p/>
+ * Addresses may be a port, {@code host:port}, {@code [ipv6]:port} or a comma separated list of these, and ports may be
+ * ranges. Wildcard hosts are replaced with the configured health check host. Unix socket listeners are ignored.
+ * <p/>
+ * Ranges of more than {@link #MAX_RANGE_PORTS} ports are represented by their first and last port only, so that a wide
+ * range does not turn the health check into a port scan.
+ */
+public class RuleSetListeners {
+
+    private static final Logger logger = Logger.getLogger(RuleSetListeners.class);
+
+    // Host names denoting all local addresses
+    private static final Set<String> WILDCARD_HOSTS = Sets.newHashSet("", "*", "0.0.0.0", "::");
+
+    // Prefixes of HAProxy addresses that are not TCP sockets
+    private static final String[] NON_TCP_PREFIXES = {"/", "unix@", "abns@", "fd@", "sockpair@"};
+
+    // Maximum number of ports of a range that are checked individually
+    private static final int MAX_RANGE_PORTS = 16;
+
+    // Highest TCP port number
+    private static final int MAX_PORT = 65535;
+
+    private final Pattern listenPattern;
+    private final String encoding;
+    private final String wildcardHostName;
+
+    /**
+     * Constructs a new RuleSetListeners.
+     *
+     * @param listenPattern    pattern matching listen directives, the address follows the first capturing group
+     * @param encoding         encoding of rule set files
+     * @param wildcardHostName host name used for wildcard addresses
+     */
+    public RuleSetListeners(String listenPattern, String encoding, String wildcardHostName) {
+        this.listenPattern = Pattern.compile(listenPattern);
+        this.encoding = encoding;
+        this.wildcardHostName = wildcardHostName;
+    }
+
+    /**
+     * Reads the listeners declared in a rule set file.
+     *
+     * @param ruleSetFile rule set file
+     * @return listeners in declaration order, without duplicates
+     * @throws IOException if the file cannot be read
+     */
+    public List<Listener> read(File ruleSetFile) throws IOException {
+        Set<Listener> listeners = Sets.newLinkedHashSet();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(ruleSetFile), encoding));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = listenPattern.matcher(line);
+                if (matcher.find()) {
+                    String address = line.substring(matcher.end(1), matcher.end());
+                    for (String part : StringUtils.split(address, ',')) {
+                        parseAddress(part, listeners);
+                    }
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return Lists.newArrayList(listeners);
+    }
+
+    private void parseAddress(String address, Set<Listener> listeners) {
+        for (String prefix : NON_TCP_PREFIXES) {
+            if (address.startsWith(prefix)) {
+                return;
+            }
+        }
+        address = address.replaceFirst("^ipv[46]@", "");
+
+        String host;
+        String ports;
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            host = "";
+            ports = address;
+        } else {
+            host = address.substring(0, colon);
+            ports = address.substring(colon + 1);
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        if (WILDCARD_HOSTS.contains(host)) {
+            host = wildcardHostName;
+        }
+
+        try {
+            int first = Integer.parseInt(StringUtils.substringBefore(ports, "-"));
+            int last = ports.contains("-") ? Integer.parseInt(StringUtils.substringAfter(ports, "-")) : first;
+            if (first < 1 || last > MAX_PORT || first > last) {
+                logger.debug(String.format("Ignoring listen address %s", address));
+            } else if (last - first >= MAX_RANGE_PORTS) {
+                logger.info(String.format("Listen address %s spans more than %d ports, checking its ends only",
+                        address, MAX_RANGE_PORTS));
+                listeners.add(new Listener(host, first));
+                listeners.add(new Listener(host, last));
+            } else {
+                for (int port = first; port <= last; port++) {
+                    listeners.add(new Listener(host, port));
+                }
+            }
+        } catch (NumberFormatException e) {
+            logger.debug(String.format("Ignoring listen address %s", address));
+        }
+    }
+
+    /**
+     * A host name and port on which the server accepts connections.
+     */
+    public static class Listener {
+        private final String hostName;
+        private final int port;
+
+        public Listener(String hostName, int port) {
+            this.hostName = hostName;
+            this.port = port;
+        }
+
+        public String getHostName() {
+            return hostName;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Listener)) {
+                return false;
+            }
+            Listener other = (Listener) o;
+            return port == other.port && hostName.equals(other.hostName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hostName.hashCode() + port;
+        }
+
+        @Override
+        public String toString() {
+            return hostName + ":" + port;
+        }
+    }
+}
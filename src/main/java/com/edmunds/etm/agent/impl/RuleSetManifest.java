@@ -0,0 +1,136 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Manifest of a chunked rule set.
+ * <p/>
+ * A chunked rule set is published as a framed payload with the {@link #ENCODING_NAME} encoding. The payload body is a
+ * UTF-8 text document with one line per chunk, in assembly order, holding the chunk node name and the digest of the
+ * chunk data separated by whitespace. Chunk nodes are children of the {@link #CHUNKS_NODE_NAME} container node below
+ * the manifest node, so their names cannot collide with other children of the rule set node such as the digest or the
+ * deltas. The assembled data may itself be a framed (e.g. compressed) payload.
+ */
+public class RuleSetManifest {
+
+    /**
+     * Payload encoding name of a chunk manifest.
+     */
+    public static final String ENCODING_NAME = "chunked";
+
+    /**
+     * Name of the container node holding the chunks, relative to the manifest node.
+     */
+    public static final String CHUNKS_NODE_NAME = "chunks";
+
+    private static final String MANIFEST_CHARSET = "UTF-8";
+
+    private final List<Chunk> chunks;
+
+    public RuleSetManifest(List<Chunk> chunks) {
+        this.chunks = Collections.unmodifiableList(Lists.newArrayList(chunks));
+    }
+
+    /**
+     * Returns the path of the node holding the specified chunk.
+     *
+     * @param manifestPath path of the manifest node
+     * @param chunkName    name of the chunk node
+     * @return chunk node path
+     */
+    public static String getChunkPath(String manifestPath, String chunkName) {
+        return manifestPath + "/" + CHUNKS_NODE_NAME + "/" + chunkName;
+    }
+
+    /**
+     * Parses the manifest from the body of the specified payload.
+     *
+     * @param payload chunked rule set payload
+     * @return the parsed manifest
+     * @throws IOException if the manifest is malformed
+     */
+    public static RuleSetManifest parse(RuleSetPayload payload) throws IOException {
+        InputStream in = payload.openBodyStream();
+        List<String> lines;
+        try {
+            lines = IOUtils.readLines(in, MANIFEST_CHARSET);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        List<Chunk> chunks = Lists.newArrayList();
+        for (String line : lines) {
+            if (StringUtils.isBlank(line)) {
+                continue;
+            }
+            String[] fields = StringUtils.split(line);
+            if (fields.length != 2 || fields[0].indexOf('/') >= 0) {
+                throw new IOException(String.format("Malformed rule set manifest entry: %s", line));
+            }
+            chunks.add(new Chunk(fields[0], fields[1]));
+        }
+        return new RuleSetManifest(chunks);
+    }
+
+    /**
+     * Gets the chunks in assembly order.
+     *
+     * @return list of chunks
+     */
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * A single chunk entry in the manifest.
+     */
+    public static class Chunk {
+        private final String name;
+        private final String digest;
+
+        public Chunk(String name, String digest) {
+            this.name = name;
+            this.digest = digest;
+        }
+
+        /**
+         * Gets the name of the chunk node, relative to the manifest node.
+         *
+         * @return chunk node name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the expected digest of the chunk data.
+         *
+         * @return chunk digest
+         */
+        public String getDigest() {
+            return digest;
+        }
+    }
+}
@@ -15,13 +15,14 @@
  */
 package com.edmunds.etm.agent.impl;
 
+import com.edmunds.etm.agent.DigestAlgorithm;
 import com.edmunds.etm.agent.api.AgentConfig;
 import com.edmunds.etm.agent.api.WebServerController;
-import com.edmunds.etm.common.api.AgentPaths;
 import com.edmunds.etm.common.api.ControllerPaths;
 import com.edmunds.zookeeper.connection.ZooKeeperConnection;
 import com.edmunds.zookeeper.connection.ZooKeeperConnectionListener;
 import com.edmunds.zookeeper.connection.ZooKeeperConnectionState;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.KeeperException.Code;
@@ -31,10 +32,16 @@ import org.apache.zookeeper.data.Stat;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.Executor;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 
 /**
  * Monitors the Apache rule set node.
+ * <p/>
+ * Rule set data and deltas are decoded, spooled and applied on the deployment worker thread, never on the ZooKeeper
+ * event thread, so that session and lease events are not held up by large rule sets.
  *
  * @author Ryan Holmes
  */
@@ -43,40 +50,110 @@ public class RuleSetMonitor implements ZooKeeperConnectionListener, Watcher {
 
     private static final Logger logger = Logger.getLogger(RuleSetMonitor.class);
 
+    // Name of the rule set digest node, relative to the rule set node
+    private static final String DIGEST_NODE_NAME = "digest";
+
+    // Encoding of the rule set digest node data
+    private static final String DIGEST_NODE_CHARSET = "UTF-8";
+
+    // Maximum number of times a manifest is re-read after its chunks could not be fetched
+    private static final int MAX_MANIFEST_RETRIES = 3;
+
+    // Delay in milliseconds before the manifest is re-read, multiplied by the number of failed fetches
+    private static final long MANIFEST_RETRY_DELAY = 5000;
+
     private final ZooKeeperConnection connection;
     private final WebServerController serverController;
     private final AgentReporter agentReporter;
-    private final AgentPaths agentPaths;
-    private final RuleSetDeploymentExecutor deploymentExecutor;
+    private final RestartPermitFactory restartPermitFactory;
+    private final RuleSetHistory ruleSetHistory;
+    private final RuleSetDeploymentWorker deploymentWorker;
+    private final LivenessMonitor livenessMonitor;
     private final String ruleSetNodePath;
+    private final File ruleSetFile;
+    private final File spoolDirectory;
+    private final DigestAlgorithm digestAlgorithm;
+    private final boolean deltaEnabled;
+    private final boolean digestNodeEnabled;
+    private final String digestNodePath;
+
+    private RuleSetChunkFetch activeChunkFetch;
+    private int chunkFetchFailures;
+    private String publishedDigest;
+    private String rollbackDigest;
+    private String rollbackPublishedDigest;
+    private volatile boolean watchingDigestNode;
 
     @Autowired
     public RuleSetMonitor(ZooKeeperConnection connection,
                           WebServerController serverController,
                           AgentReporter agentReporter,
                           ControllerPaths controllerPaths,
-                          AgentPaths agentPaths,
+                          RestartPermitFactory restartPermitFactory,
+                          RuleSetHistory ruleSetHistory,
+                          RuleSetDeploymentWorker deploymentWorker,
+                          LivenessMonitor livenessMonitor,
                           AgentConfig agentConfig) {
 
         this.connection = connection;
         this.serverController = serverController;
         this.agentReporter = agentReporter;
-        this.agentPaths = agentPaths;
-        this.deploymentExecutor = new RuleSetDeploymentExecutor();
+        this.restartPermitFactory = restartPermitFactory;
+        this.ruleSetHistory = ruleSetHistory;
+        this.deploymentWorker = deploymentWorker;
+        this.livenessMonitor = livenessMonitor;
         this.ruleSetNodePath = agentConfig.getRuleSetNodePath(controllerPaths);
+        this.ruleSetFile = new File(agentConfig.getFilePath());
+        this.spoolDirectory = agentConfig.getSpoolDirectory();
+        this.digestAlgorithm = agentConfig.getDigestAlgorithm();
+        this.deltaEnabled = agentConfig.isDeltaEnabled();
+        this.digestNodeEnabled = agentConfig.isDigestNodeEnabled();
+        this.digestNodePath = ruleSetNodePath + "/" + DIGEST_NODE_NAME;
+    }
+
+    /**
+     * Deploys a rule set from the local history, bypassing the controller and the restart election.
+     * <p/>
+     * The deployment is queued behind any active deployment. The rolled back rule set stays in place, even across
+     * session events, until the controller publishes a rule set other than the one it published at the time of the
+     * rollback.
+     *
+     * @param digest digest of the rule set to deploy
+     * @return true if the rule set was found and queued for deployment
+     */
+    public boolean deployFromHistory(String digest) {
+        SpooledRuleSet ruleSet;
+        try {
+            ruleSet = ruleSetHistory.spool(digest, spoolDirectory, digestAlgorithm);
+        } catch (IOException e) {
+            logger.error(String.format("Could not read rule set %s from history", digest), e);
+            return false;
+        }
+
+        if (ruleSet == null) {
+            logger.warn(String.format("Rule set %s not found in history", digest));
+            return false;
+        }
+
+        logger.info(String.format("Rolling back to rule set %s from history", digest));
+        pinRollback(digest);
+        deploymentWorker.executeImmediately(RuleSetDeploymentTask.newLocalTask(
+                ruleSet,
+                serverController,
+                agentReporter,
+                ruleSetHistory,
+                livenessMonitor));
+        return true;
     }
 
     @Override
     public void onConnectionStateChanged(ZooKeeperConnectionState state) {
         if (state == ZooKeeperConnectionState.INITIALIZED) {
-
-            AsyncCallback.StatCallback cb = new AsyncCallback.StatCallback() {
-                @Override
-                public void processResult(int rc, String path, Object ctx, Stat stat) {
-                    onRuleSetNodeExists(Code.get(rc), path);
-                }
-            };
-            connection.exists(ruleSetNodePath, this, cb, null);
+            if (digestNodeEnabled) {
+                checkDigestNode();
+            } else {
+                checkRuleSetNode();
+            }
         }
     }
 
@@ -87,39 +164,178 @@ public class RuleSetMonitor implements ZooKeeperConnectionListener, Watcher {
             switch (event.getType()) {
                 case NodeCreated:
                 case NodeDataChanged:
-                    AsyncCallback.DataCallback cb = new AsyncCallback.DataCallback() {
-                        @Override
-                        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
-                            onGetRuleSetData(Code.get(rc), path, data);
-                        }
-                    };
-                    connection.getData(ruleSetNodePath, this, cb, null);
+                    fetchRuleSet();
                 case None:
                 case NodeDeleted:
                 case NodeChildrenChanged:
                 default:
                     // Ignore other event types
             }
+        } else if (path != null && path.equals(digestNodePath)) {
+            switch (event.getType()) {
+                case NodeCreated:
+                case NodeDataChanged:
+                case NodeDeleted:
+                    checkDigestNode();
+                case None:
+                case NodeChildrenChanged:
+                default:
+                    // Ignore other event types
+            }
         }
     }
 
     /**
-     * Handles configuration node existence check.
+     * Fetches the current rule set, using a delta if enabled.
+     */
+    protected void fetchRuleSet() {
+        synchronized (this) {
+            chunkFetchFailures = 0;
+        }
+        if (deltaEnabled) {
+            checkRuleSetNode();
+        } else {
+            getRuleSetData();
+        }
+    }
+
+    /**
+     * Checks for the existence of the rule set digest node and sets a watch on it.
+     */
+    protected void checkDigestNode() {
+        AsyncCallback.StatCallback cb = new AsyncCallback.StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                onDigestNodeExists(Code.get(rc), path);
+            }
+        };
+        connection.exists(digestNodePath, this, cb, null);
+    }
+
+    /**
+     * Handles digest node existence check.
+     * <p/>
+     * If the digest node does not exist, the rule set node is watched directly instead.
+     *
+     * @param rc   result code
+     * @param path node path
+     */
+    protected void onDigestNodeExists(Code rc, String path) {
+        if (rc == Code.OK) {
+            watchingDigestNode = true;
+
+            AsyncCallback.DataCallback cb = new AsyncCallback.DataCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                    onGetDigestNodeData(Code.get(rc), path, data);
+                }
+            };
+            connection.getData(digestNodePath, this, cb, null);
+        } else if (rc == Code.NONODE) {
+            logger.info(String.format("Digest node %s does not exist, watching rule set node", path));
+            watchingDigestNode = false;
+            checkRuleSetNode();
+        } else {
+            logger.error(String.format("Error %s while checking for digest node %s", rc, path));
+        }
+    }
+
+    /**
+     * Handles digest node data.
+     * <p/>
+     * The rule set is fetched only if the published digest differs from the active rule set digest.
      *
      * @param rc   result code
      * @param path node path
+     * @param data digest node data
      */
-    protected void onRuleSetNodeExists(Code rc, String path) {
+    protected void onGetDigestNodeData(Code rc, String path, byte[] data) {
+        if (rc == Code.NONODE) {
+            // Deleted since the existence check, fall back to the rule set node
+            checkDigestNode();
+            return;
+        } else if (rc != Code.OK) {
+            logger.error(String.format("Error %s while getting digest node %s", rc, path));
+            return;
+        }
+
+        String publishedDigest;
+        try {
+            publishedDigest = data == null ? "" : new String(data, DIGEST_NODE_CHARSET).trim();
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (!isDeployable(publishedDigest)) {
+            return;
+        }
 
-        final AsyncCallback.DataCallback cb = new AsyncCallback.DataCallback() {
+        String activeDigest = agentReporter.getAgentInstance().getActiveRuleSetDigest();
+        if (publishedDigest.equals(activeDigest)) {
+            logger.info(String.format("Active rule set %s matches digest node, skipping fetch", activeDigest));
+            return;
+        }
+
+        logger.debug(String.format("Digest node changed to %s, fetching rule set", publishedDigest));
+        fetchRuleSet();
+    }
+
+    /**
+     * Checks for the existence of the rule set node and sets a watch on it unless the digest node is watched.
+     */
+    protected void checkRuleSetNode() {
+        AsyncCallback.StatCallback cb = new AsyncCallback.StatCallback() {
             @Override
-            public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
-                onGetRuleSetData(Code.get(rc), path, data);
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                onRuleSetNodeExists(Code.get(rc), path, stat);
             }
         };
+        connection.exists(ruleSetNodePath, getRuleSetWatcher(), cb, null);
+    }
 
+    /**
+     * Gets the full rule set data and sets a watch on the rule set node unless the digest node is watched.
+     */
+    protected void getRuleSetData() {
+        AsyncCallback.DataCallback cb = new AsyncCallback.DataCallback() {
+            @Override
+            public void processResult(final int rc, final String path, Object ctx, final byte[] data, Stat stat) {
+                deploymentWorker.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onGetRuleSetData(Code.get(rc), path, data);
+                    }
+                }, 0);
+            }
+        };
+        connection.getData(ruleSetNodePath, getRuleSetWatcher(), cb, null);
+    }
+
+    /**
+     * Returns the watcher to set on the rule set node.
+     * <p/>
+     * While the digest node is watched, changes are detected through it and the rule set node itself is not watched.
+     *
+     * @return this monitor or {@code null}
+     */
+    private Watcher getRuleSetWatcher() {
+        return watchingDigestNode ? null : this;
+    }
+
+    /**
+     * Handles configuration node existence check.
+     *
+     * @param rc   result code
+     * @param path node path
+     * @param stat node stat
+     */
+    protected void onRuleSetNodeExists(Code rc, String path, Stat stat) {
         if (rc == Code.OK) {
-            connection.getData(ruleSetNodePath, this, cb, null);
+            if (deltaEnabled) {
+                getRuleSetDelta(stat.getVersion());
+            } else {
+                getRuleSetData();
+            }
         } else if (rc == Code.NONODE) {
             logger.info(String.format("Rule set node %s does not exist", path));
         } else {
@@ -127,9 +343,89 @@ public class RuleSetMonitor implements ZooKeeperConnectionListener, Watcher {
         }
     }
 
+    /**
+     * Gets the delta published against the active rule set.
+     *
+     * @param version current data version of the rule set node
+     */
+    protected void getRuleSetDelta(int version) {
+        String activeDigest = agentReporter.getAgentInstance().getActiveRuleSetDigest();
+
+        AsyncCallback.DataCallback cb = new AsyncCallback.DataCallback() {
+            @Override
+            public void processResult(final int rc, final String path, final Object ctx, final byte[] data,
+                                      Stat stat) {
+                deploymentWorker.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onGetRuleSetDelta(Code.get(rc), path, data, (Integer) ctx);
+                    }
+                }, 0);
+            }
+        };
+        connection.getData(RuleSetDelta.getDeltaPath(ruleSetNodePath, activeDigest), null, cb, version);
+    }
+
+    /**
+     * Handles rule set delta data.
+     * <p/>
+     * The delta is applied to the local rule set file. If no delta exists, if it was generated for a different version
+     * of the rule set node or if it cannot be applied, the full rule set is fetched instead.
+     *
+     * @param rc      result code
+     * @param path    delta node path
+     * @param data    delta data
+     * @param version current data version of the rule set node
+     */
+    protected void onGetRuleSetDelta(Code rc, String path, byte[] data, int version) {
+        if (rc == Code.NONODE) {
+            logger.debug(String.format("No rule set delta at %s, fetching full rule set", path));
+            getRuleSetData();
+            return;
+        } else if (rc != Code.OK) {
+            logger.warn(String.format("Error %s while getting rule set delta %s, fetching full rule set", rc, path));
+            getRuleSetData();
+            return;
+        }
+
+        SpooledRuleSet ruleSet;
+        try {
+            RuleSetDelta delta = RuleSetDelta.parse(RuleSetPayload.parse(data));
+            if (delta.getTargetVersion() != version) {
+                logger.info(String.format("Rule set delta %s is stale, fetching full rule set", path));
+                getRuleSetData();
+                return;
+            }
+            if (!delta.getBaseDigest().equals(serverController.getRuleSetDigest())) {
+                logger.info(String.format("Rule set delta %s does not match local rule set, fetching full rule set",
+                        path));
+                getRuleSetData();
+                return;
+            }
+            ruleSet = applyRuleSetDelta(delta);
+            logger.info(String.format("Applied rule set delta from %s to %s",
+                    delta.getBaseDigest(), delta.getTargetDigest()));
+        } catch (IOException e) {
+            logger.warn(String.format("Could not apply rule set delta %s, fetching full rule set", path), e);
+            getRuleSetData();
+            return;
+        }
+
+        // Any chunk fetch still in progress is now stale
+        setActiveChunkFetch(null);
+        deployRuleSet(ruleSet);
+    }
+
+    private SpooledRuleSet applyRuleSetDelta(RuleSetDelta delta) throws IOException {
+        return delta.apply(ruleSetFile, spoolDirectory, digestAlgorithm);
+    }
+
     /**
      * Handles rule set data.
      * <p/>
+     * The node data may be compressed, in which case it is decompressed before deployment. It may also be a manifest
+     * of a chunked rule set, in which case the chunks are fetched and reassembled first. Digests are always computed
+     * over the decompressed rule set.
      *
      * @param rc   result code
      * @param path node path
@@ -144,51 +440,209 @@ public class RuleSetMonitor implements ZooKeeperConnectionListener, Watcher {
             return;
         }
 
-        // Ensure that configuration data is non-null
-        byte[] ruleSetData = data == null ? new byte[0] : data;
+        RuleSetPayload payload;
+        try {
+            payload = RuleSetPayload.parse(data);
+        } catch (IOException e) {
+            logger.error(String.format("Could not parse rule set data for node %s", path), e);
+            return;
+        }
 
-        RuleSetDeploymentTask task = new RuleSetDeploymentTask(
-                ruleSetData,
-                serverController,
-                connection,
-                agentReporter,
-                agentPaths);
+        if (RuleSetManifest.ENCODING_NAME.equals(payload.getEncodingName())) {
+            fetchRuleSetChunks(path, payload);
+        } else {
+            // Any chunk fetch still in progress is now stale
+            setActiveChunkFetch(null);
+            deployRuleSet(path, payload);
+        }
+    }
+
+    /**
+     * Starts fetching the chunks listed in a rule set manifest.
+     *
+     * @param path    manifest node path
+     * @param payload manifest payload
+     */
+    protected void fetchRuleSetChunks(String path, RuleSetPayload payload) {
+        RuleSetManifest manifest;
+        try {
+            manifest = RuleSetManifest.parse(payload);
+        } catch (IOException e) {
+            logger.error(String.format("Could not parse rule set manifest for node %s", path), e);
+            return;
+        }
 
-        deploymentExecutor.execute(task);
+        logger.debug(String.format("Fetching %d rule set chunks", manifest.getChunks().size()));
+
+        RuleSetChunkFetch.Listener listener = new RuleSetChunkFetch.Listener() {
+            @Override
+            public void onChunksAssembled(RuleSetChunkFetch fetch, SpooledRuleSet data) {
+                onRuleSetChunksAssembled(fetch, data);
+            }
+
+            @Override
+            public void onChunkFetchFailed(RuleSetChunkFetch fetch) {
+                onRuleSetChunkFetchFailed(fetch);
+            }
+        };
+
+        RuleSetChunkFetch fetch = new RuleSetChunkFetch(connection, path, manifest, digestAlgorithm, spoolDirectory,
+                deploymentWorker, listener);
+        setActiveChunkFetch(fetch);
+        fetch.start();
     }
 
     /**
-     * Coordinates the deployment of web server rules.
-     * <p/>
-     * This class ensures that deployment tasks run sequentially
-     */
-    private class RuleSetDeploymentExecutor implements Executor {
-        Runnable pending;
-        Runnable active;
-
-        public synchronized void execute(final Runnable r) {
-            logger.debug("Queueing new rule set deployment task");
-            pending = new Runnable() {
-                public void run() {
-                    try {
-                        r.run();
-                    } finally {
-                        scheduleNext();
-                    }
+     * Handles a reassembled chunked rule set.
+     *
+     * @param fetch the completed fetch
+     * @param data  reassembled rule set data, deleted once it has been decoded
+     */
+    protected void onRuleSetChunksAssembled(RuleSetChunkFetch fetch, SpooledRuleSet data) {
+        try {
+            synchronized (this) {
+                if (fetch != activeChunkFetch) {
+                    logger.info("Discarding rule set chunks superseded by a newer manifest");
+                    return;
                 }
-            };
+                activeChunkFetch = null;
+                chunkFetchFailures = 0;
+            }
 
-            if (active == null) {
-                scheduleNext();
+            InputStream in = data.openStream();
+            try {
+                deployRuleSet(ruleSetNodePath, RuleSetPayload.parse(in));
+            } finally {
+                IOUtils.closeQuietly(in);
             }
+        } catch (IOException e) {
+            logger.error(String.format("Could not parse reassembled rule set data for node %s", ruleSetNodePath), e);
+        } finally {
+            data.delete();
+        }
+    }
+
+    /**
+     * Handles a chunk fetch that failed.
+     * <p/>
+     * The manifest is read again after a delay, since the chunks may have been replaced by a newer rule set whose
+     * manifest has not been seen yet. After {@link #MAX_MANIFEST_RETRIES} failed fetches, the agent waits for the next
+     * rule set change.
+     *
+     * @param fetch the failed fetch
+     */
+    protected void onRuleSetChunkFetchFailed(RuleSetChunkFetch fetch) {
+        int failures;
+        synchronized (this) {
+            if (fetch != activeChunkFetch) {
+                return;
+            }
+            activeChunkFetch = null;
+            failures = ++chunkFetchFailures;
+        }
+
+        if (failures > MAX_MANIFEST_RETRIES) {
+            logger.error(String.format("Could not fetch rule set chunks from %s after %d attempts, waiting for the "
+                    + "next rule set change", fetch.getManifestPath(), failures));
+            return;
+        }
+
+        long delay = MANIFEST_RETRY_DELAY * failures;
+        logger.warn(String.format("Could not fetch rule set chunks from %s, reading manifest again in %d ms",
+                fetch.getManifestPath(), delay));
+        deploymentWorker.schedule(new Runnable() {
+            @Override
+            public void run() {
+                getRuleSetData();
+            }
+        }, delay);
+    }
+
+    /**
+     * Pins a local rollback against the rule set currently published by the controller.
+     *
+     * @param digest digest of the rolled back rule set
+     */
+    private synchronized void pinRollback(String digest) {
+        rollbackDigest = digest;
+        rollbackPublishedDigest = publishedDigest != null
+                ? publishedDigest
+                : agentReporter.getAgentInstance().getActiveRuleSetDigest();
+    }
+
+    /**
+     * Records a rule set digest published by the controller and indicates whether that rule set may be deployed.
+     * <p/>
+     * While a local rollback is pinned, the rule set the controller published at the time of the rollback is not
+     * deployed again. Any other rule set releases the rollback.
+     *
+     * @param digest published rule set digest
+     * @return true if the rule set may be deployed
+     */
+    private synchronized boolean isDeployable(String digest) {
+        publishedDigest = digest;
+        if (rollbackDigest == null) {
+            return true;
         }
 
-        protected synchronized void scheduleNext() {
-            active = pending;
-            if (active != null) {
-                pending = null;
-                new Thread(active).start();
+        if (digest.equals(rollbackPublishedDigest)) {
+            logger.info(String.format("Keeping rolled back rule set %s, controller still publishes %s",
+                    rollbackDigest, digest));
+            return false;
+        }
+
+        logger.info(String.format("Controller published rule set %s, releasing rollback to %s", digest,
+                rollbackDigest));
+        rollbackDigest = null;
+        rollbackPublishedDigest = null;
+        return true;
+    }
+
+    /**
+     * Replaces the active chunk fetch, cancelling the previous one.
+     *
+     * @param fetch the new chunk fetch, or {@code null}
+     */
+    private synchronized void setActiveChunkFetch(RuleSetChunkFetch fetch) {
+        if (activeChunkFetch != null && activeChunkFetch != fetch) {
+            activeChunkFetch.cancel();
+        }
+        activeChunkFetch = fetch;
+    }
+
+    private void deployRuleSet(String path, RuleSetPayload payload) {
+
+        // Decode the rule set data straight into a spool file (unframed data is passed through as is)
+        SpooledRuleSet ruleSet;
+        try {
+            InputStream in = payload.openStream();
+            try {
+                ruleSet = SpooledRuleSet.spool(in, spoolDirectory, digestAlgorithm);
+            } finally {
+                IOUtils.closeQuietly(in);
             }
+        } catch (IOException e) {
+            logger.error(String.format("Could not decode rule set data for node %s", path), e);
+            return;
+        }
+
+        deployRuleSet(ruleSet);
+    }
+
+    private void deployRuleSet(SpooledRuleSet ruleSet) {
+        if (!isDeployable(ruleSet.getDigest())) {
+            ruleSet.delete();
+            return;
         }
+
+        RuleSetDeploymentTask task = new RuleSetDeploymentTask(
+                ruleSet,
+                serverController,
+                agentReporter,
+                ruleSetHistory,
+                livenessMonitor,
+                restartPermitFactory.newRestartPermit(ruleSet.getDigest()));
+
+        deploymentWorker.execute(task);
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses rule set node data.
+ * <p/>
+ * Rule set data may be published either raw or framed. A framed payload starts with the {@link #MAGIC} bytes, followed
+ * by a single byte holding the length of the encoding name, the US-ASCII encoding name itself and finally the encoded
+ * body. Because the magic starts with a NUL byte it cannot collide with a text configuration file, so raw data
+ * published by older controllers is still accepted as is.
+ * <p/>
+ * The payload is parsed from a stream, and only the header is consumed by {@link #parse(InputStream)}. The body can
+ * then be streamed once, either as is or decoded.
+ */
+public final class RuleSetPayload {
+
+    /**
+     * Marker at the start of every framed payload.
+     */
+    public static final byte[] MAGIC = {0, 'E', 'T', 'M'};
+
+    private static final String HEADER_CHARSET = "US-ASCII";
+
+    private final InputStream body;
+    private final String encodingName;
+
+    private RuleSetPayload(InputStream body, String encodingName) {
+        this.body = body;
+        this.encodingName = encodingName;
+    }
+
+    /**
+     * Parses the header of the specified node data.
+     *
+     * @param data node data, may be {@code null}
+     * @return the parsed payload
+     * @throws IOException if the data is framed but the header is truncated
+     */
+    public static RuleSetPayload parse(byte[] data) throws IOException {
+        return parse(new ByteArrayInputStream(data == null ? new byte[0] : data));
+    }
+
+    /**
+     * Parses the header of the payload read from the specified stream.
+     *
+     * @param in payload stream
+     * @return the parsed payload
+     * @throws IOException if the data is framed but the header is truncated
+     */
+    public static RuleSetPayload parse(InputStream in) throws IOException {
+        InputStream payloadIn = in.markSupported() ? in : new BufferedInputStream(in);
+
+        payloadIn.mark(MAGIC.length);
+        if (!readMagic(payloadIn)) {
+            payloadIn.reset();
+            return new RuleSetPayload(payloadIn, RuleSetEncoding.IDENTITY.getName());
+        }
+
+        DataInputStream dataIn = new DataInputStream(payloadIn);
+        byte[] name;
+        try {
+            name = new byte[dataIn.readUnsignedByte()];
+            dataIn.readFully(name);
+        } catch (IOException e) {
+            throw new IOException("Rule set payload header is truncated");
+        }
+
+        return new RuleSetPayload(payloadIn, new String(name, HEADER_CHARSET));
+    }
+
+    /**
+     * Gets the name of the encoding declared in the payload header.
+     *
+     * @return encoding name
+     */
+    public String getEncodingName() {
+        return encodingName;
+    }
+
+    /**
+     * Gets the encoding declared in the payload header.
+     *
+     * @return the encoding or {@code null} if it is not a content encoding
+     */
+    public RuleSetEncoding getEncoding() {
+        return RuleSetEncoding.forName(encodingName);
+    }
+
+    /**
+     * Returns the stream of encoded payload body bytes.
+     *
+     * @return stream of body bytes
+     */
+    public InputStream openBodyStream() {
+        return body;
+    }
+
+    /**
+     * Returns a stream that decodes the payload body on the fly.
+     *
+     * @return stream of decoded rule set data
+     * @throws IOException if the encoding is not supported or the body header is invalid
+     */
+    public InputStream openStream() throws IOException {
+        RuleSetEncoding encoding = getEncoding();
+        if (encoding == null) {
+            throw new IOException(String.format("Unsupported rule set encoding: %s", encodingName));
+        }
+        return encoding.decode(body);
+    }
+
+    private static boolean readMagic(InputStream in) throws IOException {
+        for (byte b : MAGIC) {
+            if (in.read() != (b & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
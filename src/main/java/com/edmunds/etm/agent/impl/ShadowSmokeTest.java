@@ -0,0 +1,290 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.AgentConfig;
+import com.edmunds.etm.agent.api.HealthCheck;
+import com.edmunds.etm.agent.api.HealthCheckListener;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Smoke tests a rule set by running it on a throwaway shadow instance of the web server.
+ * <p/>
+ * The listen directives of the rule set are rebound to ephemeral loopback ports in a shadow copy of the configuration
+ * file. PID file directives are redirected to a shadow PID file and stats socket directives are removed, so the shadow
+ * instance cannot disturb the live server. The shadow instance is started through the {@link CommandRunner} and passes
+ * if it accepts connections on all of its ports within the smoke test timeout, as determined by TCP health checks on
+ * the shared {@link HealthCheckEngine}. It fails as soon as the instance exits. The instance is always killed together
+ * with its descendant processes afterwards.
+ * <p/>
+ * The rule set must be a complete configuration with listen directives of its own. A rule set without any, such as an
+ * Apache rule set that the main configuration includes, cannot be tested this way and fails the smoke test.
+ * <p/>
+ * An ephemeral port is only reserved while it is allocated, so another process may bind it before the shadow instance
+ * does. If the instance exits and one of its ports is then found in use, it is started again on new ports.
+ */
+public class ShadowSmokeTest {
+
+    private static final Logger logger = Logger.getLogger(ShadowSmokeTest.class);
+
+    // Suffix of the shadow configuration file
+    private static final String SHADOW_FILE_SUFFIX = ".shadow";
+
+    // Suffix of the shadow PID file
+    private static final String SHADOW_PID_FILE_SUFFIX = ".shadow.pid";
+
+    // PID file directive of Apache (PidFile) and HAProxy (pidfile), the path follows the first capturing group
+    private static final Pattern PID_FILE_PATTERN = Pattern.compile("^(\\s*pidfile\\s+)\\S+", Pattern.CASE_INSENSITIVE);
+
+    // Stats socket directive of HAProxy
+    private static final Pattern STATS_SOCKET_PATTERN = Pattern.compile("^\\s*stats\\s+socket\\s");
+
+    // Maximum number of times the shadow instance is started, if it loses its ports to other processes
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Outcome of running a shadow instance.
+     */
+    private enum Outcome {
+        PASSED, FAILED, EXITED
+    }
+
+    private final AgentConfig agentConfig;
+    private final CommandRunner commandRunner;
+    private final HealthCheckEngine healthCheckEngine;
+    private final Pattern listenPattern;
+    private final InetAddress loopbackAddress;
+
+    public ShadowSmokeTest(AgentConfig agentConfig, CommandRunner commandRunner, HealthCheckEngine healthCheckEngine) {
+        this.agentConfig = agentConfig;
+        this.commandRunner = commandRunner;
+        this.healthCheckEngine = healthCheckEngine;
+        this.listenPattern = Pattern.compile(agentConfig.getListenPattern());
+        try {
+            this.loopbackAddress = InetAddress.getByName(null);
+        } catch (IOException e) {
+            String message = "Could not resolve loopback address";
+            logger.error(message, e);
+            throw new RuntimeException(message, e);
+        }
+    }
+
+    /**
+     * Runs the smoke test against the specified rule set file.
+     * <p/>
+     * This method blocks until the shadow instance accepts connections, exits or times out.
+     *
+     * @param ruleSetFile rule set file
+     * @return true if the shadow instance accepted connections, false otherwise
+     */
+    public boolean execute(File ruleSetFile) {
+        File shadowFile = new File(agentConfig.getSpoolDirectory(), ruleSetFile.getName() + SHADOW_FILE_SUFFIX);
+        File pidFile = new File(agentConfig.getSpoolDirectory(), ruleSetFile.getName() + SHADOW_PID_FILE_SUFFIX);
+        try {
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                List<Integer> ports;
+                try {
+                    ports = writeShadowFile(ruleSetFile, shadowFile, pidFile);
+                } catch (IOException e) {
+                    logger.error(String.format("Could not write shadow configuration file %s", shadowFile), e);
+                    return false;
+                }
+
+                if (ports.isEmpty()) {
+                    logger.error("No listen directives found in rule set, it cannot be smoke tested");
+                    return false;
+                }
+
+                Outcome outcome = runShadowInstance(shadowFile, ports);
+                if (outcome != Outcome.EXITED || !isAnyPortInUse(ports)) {
+                    return outcome == Outcome.PASSED;
+                }
+                logger.warn(String.format("Ports %s of shadow instance were taken by another process", ports));
+            }
+            return false;
+        } finally {
+            deleteQuietly(shadowFile);
+            deleteQuietly(pidFile);
+        }
+    }
+
+    /**
+     * Copies the rule set file, rebinding each listen directive to its own ephemeral loopback port.
+     *
+     * @param ruleSetFile rule set file
+     * @param shadowFile  shadow configuration file
+     * @param pidFile     shadow PID file
+     * @return the ports of the shadow instance
+     * @throws IOException if the files cannot be read or written
+     */
+    List<Integer> writeShadowFile(File ruleSetFile, File shadowFile, File pidFile) throws IOException {
+        List<Integer> ports = Lists.newArrayList();
+        String encoding = agentConfig.getFileEncoding();
+
+        BufferedReader reader = null;
+        Writer writer = null;
+        File directory = shadowFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Could not create directory %s", directory));
+        }
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(ruleSetFile), encoding));
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(shadowFile), encoding));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = listenPattern.matcher(line);
+                if (matcher.find()) {
+                    int port = allocatePort();
+                    ports.add(port);
+                    String address = loopbackAddress.getHostAddress() + ":" + port;
+                    line = line.substring(0, matcher.end(1)) + address + line.substring(matcher.end());
+                } else if ((matcher = PID_FILE_PATTERN.matcher(line)).find()) {
+                    line = matcher.group(1) + pidFile.getAbsolutePath() + line.substring(matcher.end());
+                } else if (STATS_SOCKET_PATTERN.matcher(line).find()) {
+                    line = "# " + line;
+                }
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+            IOUtils.closeQuietly(writer);
+        }
+        return ports;
+    }
+
+    private Outcome runShadowInstance(File shadowFile, List<Integer> ports) {
+        String command = agentConfig.getSmokeTestCommand(shadowFile.getAbsolutePath(), ports.get(0));
+        logger.info(String.format("Starting shadow instance on ports %s", ports));
+
+        final SmokeTestResult result = new SmokeTestResult();
+        CommandRunner.RunningCommand child = commandRunner.start(command, new CommandRunner.ExitListener() {
+            @Override
+            public void onExit(int exitValue) {
+                logger.error(String.format("Shadow instance exited with value %d", exitValue));
+                result.complete(Outcome.EXITED);
+            }
+        });
+        if (child == null) {
+            return Outcome.FAILED;
+        }
+
+        try {
+            newHealthCheck(ports).execute(new HealthCheckListener() {
+                @Override
+                public void onHealthCheckComplete(boolean alive) {
+                    result.complete(alive ? Outcome.PASSED : Outcome.FAILED);
+                }
+            });
+
+            // The health checks time out on their own, the margin only guards against a stalled engine
+            Outcome outcome = result.await(agentConfig.getSmokeTestTimeout() + agentConfig.getCheckInterval());
+            logger.info(String.format("Smoke test completed with result: %b", outcome == Outcome.PASSED));
+            return outcome;
+        } catch (InterruptedException e) {
+            logger.error("Thread interrupted while waiting for shadow instance", e);
+            Thread.currentThread().interrupt();
+            return Outcome.FAILED;
+        } finally {
+            CommandResult commandResult = child.stop();
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Shadow instance output: %s", commandResult.getOutputExcerpt()));
+            }
+        }
+    }
+
+    private HealthCheck newHealthCheck(List<Integer> ports) {
+        List<HealthCheck> healthChecks = Lists.newArrayList();
+        for (int port : ports) {
+            TcpHealthCheck healthCheck = new TcpHealthCheck(healthCheckEngine,
+                    loopbackAddress.getHostAddress(),
+                    port,
+                    agentConfig.getCheckInitialInterval(),
+                    agentConfig.getCheckInterval(),
+                    agentConfig.getSmokeTestTimeout());
+            healthCheck.setLogLevel(Level.DEBUG);
+            healthChecks.add(healthCheck);
+        }
+        return healthChecks.size() == 1 ? healthChecks.get(0) : new CompositeHealthCheck(healthChecks);
+    }
+
+    private int allocatePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, loopbackAddress);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private boolean isAnyPortInUse(List<Integer> ports) {
+        for (int port : ports) {
+            try {
+                new ServerSocket(port, 1, loopbackAddress).close();
+            } catch (IOException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn(String.format("Could not delete shadow file %s", file));
+        }
+    }
+
+    /**
+     * The first outcome reported by either the health check or the exit of the shadow instance.
+     */
+    private static class SmokeTestResult {
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Outcome outcome;
+
+        synchronized void complete(Outcome outcome) {
+            if (completed.getCount() > 0) {
+                this.outcome = outcome;
+                completed.countDown();
+            }
+        }
+
+        Outcome await(long timeout) throws InterruptedException {
+            return completed.await(timeout, TimeUnit.MILLISECONDS) ? outcome : Outcome.FAILED;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.AgentConfig;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reloads the web server by signalling its master process directly.
+ * <p/>
+ * The master process id is read from the configured pid file and sent the configured reload signal, e.g. {@code USR1}
+ * for an Apache graceful restart or {@code USR2} for an HAProxy master-worker reload. The reload is confirmed by the
+ * {@link ReloadDetector}: it is complete once the new process generation is up, and it has failed if the master
+ * exits. This gives a precise reload completion time instead of the exit time of an init script.
+ * <p/>
+ * Java cannot send signals itself, so the signal is sent by the privileged helper if it is enabled and by {@code kill}
+ * otherwise. The latter requires the agent to run as the same user as the web server master process.
+ */
+@Component
+public class SignalReloader {
+
+    private static final Logger logger = Logger.getLogger(SignalReloader.class);
+
+    private final AgentConfig agentConfig;
+    private final CommandRunner commandRunner;
+    private final PrivilegedHelper privilegedHelper;
+    private final ReloadDetector reloadDetector;
+
+    @Autowired
+    public SignalReloader(AgentConfig agentConfig,
+                          CommandRunner commandRunner,
+                          PrivilegedHelper privilegedHelper,
+                          ReloadDetector reloadDetector) {
+        this.agentConfig = agentConfig;
+        this.commandRunner = commandRunner;
+        this.privilegedHelper = privilegedHelper;
+        this.reloadDetector = reloadDetector;
+    }
+
+    /**
+     * Indicates whether the web server is reloaded by signal instead of the restart command.
+     *
+     * @return true if signal reloads are enabled
+     */
+    public boolean isEnabled() {
+        return agentConfig.isSignalReloadEnabled();
+    }
+
+    /**
+     * Signals the master process to reload and waits for the reload to complete.
+     *
+     * @param name    name under which the signal command result is retained by the command runner
+     * @param timeout maximum time in milliseconds to wait for the reload
+     * @return true if the reload completed in time, false otherwise
+     */
+    public boolean reload(String name, long timeout) {
+        ReloadDetector.Generation previous = reloadDetector.getGeneration();
+        Integer pid = previous.getMasterPid();
+        if (pid == null) {
+            logger.error(String.format("Web server master process not found (pid file %s)", agentConfig.getPidFile()));
+            return false;
+        }
+
+        long signalTime = System.currentTimeMillis();
+        if (!sendSignal(name, pid, timeout)) {
+            return false;
+        }
+
+        return reloadDetector.awaitNewGeneration(previous, signalTime, timeout, true);
+    }
+
+    private boolean sendSignal(String name, int pid, long timeout) {
+        String signal = agentConfig.getReloadSignal();
+        CommandResult result;
+        if (privilegedHelper.isEnabled()) {
+            result = privilegedHelper.execute(PrivilegedHelper.Operation.SIGNAL, signal, timeout);
+            commandRunner.record(name, result);
+        } else {
+            result = commandRunner.run(name, String.format("kill -s %s %d", signal, pid), timeout);
+        }
+        return result.isSuccess();
+    }
+}
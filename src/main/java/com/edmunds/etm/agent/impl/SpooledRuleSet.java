@@ -0,0 +1,201 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.DigestAlgorithm;
+import com.edmunds.etm.agent.StreamingDigest;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Rule set data spooled to a file on local disk.
+ * <p/>
+ * Rule sets can be several megabytes in size, so they are streamed to disk as they are received and handed around as
+ * files rather than held on the heap. The digest is computed while the data is spooled.
+ */
+public final class SpooledRuleSet {
+
+    private static final Logger logger = Logger.getLogger(SpooledRuleSet.class);
+
+    private static final String SPOOL_FILE_PREFIX = "ruleset-";
+    private static final String SPOOL_FILE_SUFFIX = ".spool";
+
+    // Size of the buffers used to stream spooled data
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long length;
+    private final String digest;
+
+    private SpooledRuleSet(File file, long length, String digest) {
+        this.file = file;
+        this.length = length;
+        this.digest = digest;
+    }
+
+    /**
+     * Spools the data read from the specified stream to a new file.
+     * <p/>
+     * The stream is read to the end but is not closed.
+     *
+     * @param in        rule set data
+     * @param directory spool directory
+     * @param algorithm digest algorithm
+     * @return the spooled rule set
+     * @throws IOException if the data cannot be read or spooled
+     */
+    public static SpooledRuleSet spool(InputStream in, File directory, DigestAlgorithm algorithm)
+            throws IOException {
+        Output out = create(directory, algorithm);
+        try {
+            IOUtils.copyLarge(in, out);
+            return out.finish();
+        } finally {
+            out.discard();
+        }
+    }
+
+    /**
+     * Creates a new spool file to be written to.
+     *
+     * @param directory spool directory
+     * @param algorithm digest algorithm
+     * @return spool output stream
+     * @throws IOException if the spool file cannot be created
+     */
+    public static Output create(File directory, DigestAlgorithm algorithm) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Could not create spool directory %s", directory));
+        }
+        File file = File.createTempFile(SPOOL_FILE_PREFIX, SPOOL_FILE_SUFFIX, directory);
+        return new Output(file, algorithm.newDigest());
+    }
+
+    /**
+     * Opens a stream over the spooled data.
+     *
+     * @return rule set data stream, which the caller must close
+     * @throws IOException if the spool file cannot be opened
+     */
+    public InputStream openStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    }
+
+    /**
+     * Gets the spool file.
+     *
+     * @return spool file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the length of the spooled data in bytes.
+     *
+     * @return data length
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the digest of the spooled data.
+     *
+     * @return rule set digest
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Deletes the spool file.
+     */
+    public void delete() {
+        if (file.exists() && !file.delete()) {
+            logger.warn(String.format("Could not delete spool file %s", file));
+        }
+    }
+
+    /**
+     * Output stream that writes to a spool file and digests the data on the way.
+     * <p/>
+     * Call {@link #finish()} once all data has been written, or {@link #discard()} to abandon the spool file.
+     */
+    public static final class Output extends OutputStream {
+        private final File file;
+        private final StreamingDigest digest;
+        private final OutputStream out;
+
+        private long length;
+        private boolean finished;
+
+        private Output(File file, StreamingDigest digest) throws IOException {
+            this.file = file;
+            this.digest = digest;
+            this.out = new FileOutputStream(file);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            digest.update(b, off, len);
+            length += len;
+        }
+
+        /**
+         * Closes the spool file.
+         *
+         * @return the spooled rule set
+         * @throws IOException if the spool file cannot be closed
+         */
+        public SpooledRuleSet finish() throws IOException {
+            out.close();
+            finished = true;
+            return new SpooledRuleSet(file, length, digest.digest());
+        }
+
+        /**
+         * Closes and deletes the spool file unless {@link #finish()} has been called.
+         */
+        public void discard() {
+            if (!finished) {
+                IOUtils.closeQuietly(out);
+                if (!file.delete()) {
+                    logger.warn(String.format("Could not delete spool file %s", file));
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
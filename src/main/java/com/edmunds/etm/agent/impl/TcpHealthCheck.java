@@ -19,52 +19,88 @@ import com.edmunds.etm.agent.api.HealthCheck;
 import com.edmunds.etm.agent.api.HealthCheckListener;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * A {@code HealthCheck} that performs a TCP connect at the given hostname and port number.
  * <p/>
- * It attempts to connect to the server every {@link #interval} milliseconds until it either connects successfully or
- * times out based on the value of {@link #timeout}, whichever occurs first.
+ * It attempts to connect to the server until it either connects successfully or times out based on the value of
+ * {@link #timeout}, whichever occurs first. The first attempt is made immediately, or after {@link #initialDelay}
+ * milliseconds if one is set, which counts toward the timeout. The delay between attempts starts at
+ * {@link #initialInterval} milliseconds and doubles after each failed attempt up to {@link #interval} milliseconds, so
+ * the result closely follows the moment the server becomes available. Connects are performed by the shared
+ * {@link HealthCheckEngine}. Each attempt is abandoned after one interval or when the overall timeout expires, so an
+ * unresponsive server cannot delay the result beyond the timeout.
  *
  * @author Ryan Holmes
  */
 public class TcpHealthCheck implements HealthCheck {
     private static final Logger logger = Logger.getLogger(TcpHealthCheck.class);
 
+    private final HealthCheckEngine engine;
     private final String hostName;
     private final int port;
+    private final long initialInterval;
     private final long interval;
     private final long timeout;
 
+    private Level logLevel = Level.INFO;
+    private long initialDelay;
     private HealthCheckListener healthCheckListener;
-    private long lastCheckTime;
-    private long elapsedTime;
+    private long startTime;
+    private long nextDelay;
     private InetAddress hostAddress;
 
     /**
      * Constructs a new TcpHealthCheck with the given parameters.
      *
-     * @param hostName server host name
-     * @param port     server port number
-     * @param interval polling interval in milliseconds
-     * @param timeout  maximum wait time in milliseconds, after which the check is considered failed
+     * @param engine          health check engine
+     * @param hostName        server host name
+     * @param port            server port number
+     * @param initialInterval initial polling interval in milliseconds
+     * @param interval        maximum polling interval in milliseconds
+     * @param timeout         maximum wait time in milliseconds, after which the check is considered failed
      */
-    public TcpHealthCheck(String hostName, int port, long interval, long timeout) {
+    public TcpHealthCheck(HealthCheckEngine engine,
+                          String hostName,
+                          int port,
+                          long initialInterval,
+                          long interval,
+                          long timeout) {
+        this.engine = engine;
         this.hostName = hostName;
         this.port = port;
+        this.initialInterval = initialInterval;
         this.interval = interval;
         this.timeout = timeout;
     }
 
+    /**
+     * Sets the level at which the start and result of each execution are logged. Defaults to {@code INFO}.
+     *
+     * @param logLevel log level
+     */
+    public void setLogLevel(Level logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * Sets the delay in milliseconds before the first attempt. Defaults to zero.
+     * <p/>
+     * After a graceful reload the listening socket stays open, so an immediate attempt could succeed against the old
+     * server generation.
+     *
+     * @param initialDelay initial delay in milliseconds
+     */
+    public void setInitialDelay(long initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
     @Override
     public void execute(HealthCheckListener listener) {
 
@@ -72,44 +108,70 @@ public class TcpHealthCheck implements HealthCheck {
         Validate.notNull(listener, "Health check listener is null");
         healthCheckListener = listener;
 
-        // Initialize time values
-        elapsedTime = 0;
-        lastCheckTime = new Date().getTime();
+        // Resolve the address up front, the engine thread must not block
+        InetAddress addr = getHostAddress();
 
-        // Schedule the initial health check
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new HealthCheckTask(timer), interval, interval);
+        // Perform the initial health check right away, unless a delay is set
+        startTime = System.currentTimeMillis();
+        nextDelay = initialInterval;
+        scheduleAttempt(initialDelay);
 
-        if (logger.isInfoEnabled()) {
-            InetAddress addr = getHostAddress();
+        if (logger.isEnabledFor(logLevel)) {
             String message = String.format("Health check started for host %s on port %d", addr.getHostAddress(), port);
-            logger.info(message);
+            logger.log(logLevel, message);
         }
     }
 
-    protected boolean connectToServer() {
+    protected HealthCheckListener getListener() {
+        return healthCheckListener;
+    }
 
-        InetAddress addr = getHostAddress();
+    /**
+     * Schedules a connect attempt, but not beyond the timeout.
+     *
+     * @param delay delay in milliseconds
+     */
+    private void scheduleAttempt(long delay) {
+        long remaining = Math.max(0, startTime + timeout - System.currentTimeMillis());
+        engine.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connectToServer();
+            }
+        }, Math.min(delay, remaining));
+    }
 
-        boolean connected;
-        try {
-            Socket socket = new Socket(addr, port);
-            socket.close();
-            connected = true;
-        } catch (IOException e) {
-            connected = false;
-        }
+    private void connectToServer() {
+        long remaining = startTime + timeout - System.currentTimeMillis();
+        long connectTimeout = Math.max(1, Math.min(interval, remaining));
 
+        InetSocketAddress address = new InetSocketAddress(getHostAddress(), port);
+        engine.connect(address, connectTimeout, new HealthCheckEngine.ConnectListener() {
+            @Override
+            public void onConnectComplete(boolean connected) {
+                onConnectResult(connected);
+            }
+        });
+    }
+
+    private void onConnectResult(boolean alive) {
         if (logger.isDebugEnabled()) {
-            String message = String.format("Connected to server with result: %b", connected);
+            String message = String.format("Connected to server with result: %b", alive);
             logger.debug(message);
         }
 
-        return connected;
-    }
-
-    protected HealthCheckListener getListener() {
-        return healthCheckListener;
+        // Notify the listener if the check succeeds or if we've exceeded the timeout
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        if (alive || elapsedTime >= timeout) {
+            if (logger.isEnabledFor(logLevel)) {
+                String message = String.format("Health check completed with result: %b", alive);
+                logger.log(logLevel, message);
+            }
+            getListener().onHealthCheckComplete(alive);
+        } else {
+            scheduleAttempt(nextDelay);
+            nextDelay = Math.min(nextDelay * 2, interval);
+        }
     }
 
     private InetAddress getHostAddress() {
@@ -128,44 +190,4 @@ public class TcpHealthCheck implements HealthCheck {
         }
         return hostAddress;
     }
-
-    /**
-     * Timer task to perform the health check.
-     */
-    private class HealthCheckTask extends TimerTask {
-        private Timer timer;
-
-        public HealthCheckTask(Timer timer) {
-            this.timer = timer;
-        }
-
-        @Override
-        public void run() {
-
-            // Perform health check
-            boolean alive = connectToServer();
-
-            // Update time statistics
-            Date now = new Date();
-            elapsedTime += now.getTime() - lastCheckTime;
-            lastCheckTime = now.getTime();
-
-            if (logger.isDebugEnabled()) {
-                String message = String.format("Time statistics updated with lastCheckTime %d and elapsedTime %d",
-                    lastCheckTime,
-                    elapsedTime);
-                logger.debug(message);
-            }
-
-            // Notify the listener if the check succeeds or if we've exceeded the timeout
-            if (alive || elapsedTime > timeout) {
-                if (logger.isInfoEnabled()) {
-                    String message = String.format("Health check completed with result: %b", alive);
-                    logger.info(message);
-                }
-                timer.cancel();
-                getListener().onHealthCheckComplete(alive);
-            }
-        }
-    }
 }
@@ -23,6 +23,9 @@ fi
 
 ln -sfn  ${parentdir} /deployments/${project.artifactId}/${project.artifactId}
 
+# Create the work directory of the agent, which keeps its spool and rule set history there
+mkdir -p /deployments/${project.artifactId}/work
+
 chmod +x ${parentdir}/*.sh
 chmod +x ${parentdir}/init/*
 
@@ -0,0 +1,98 @@
+#!/bin/sh
+
+#####################################################################
+# Privileged command helper for the ETM Agent                       #
+#                                                                   #
+# Started once by the agent, typically through sudo, and kept       #
+# running for the lifetime of the agent. Reads one request per line #
+# from standard input and answers each with a header line holding   #
+# the exit value and the output length in bytes, followed by the    #
+# output itself. Only the operations below are accepted:            #
+#                                                                   #
+#   syntax-check <file>   check the syntax of a configuration file  #
+#   start                 start the web server                      #
+#   reload                reload the web server configuration       #
+#   signal <name>         send HUP, USR1, USR2 or TERM to the       #
+#                         web server master process                 #
+#                                                                   #
+# The commands behind each operation are defined in a root owned    #
+# configuration file, by default /etc/etm-agent/helper.conf:        #
+#                                                                   #
+#   syntax_check() { /apps/apache-httpd/bin/apachectl -t -f "$1"; } #
+#   start() { /sbin/service httpd start; }                          #
+#   reload() { /apps/apache-httpd/bin/apachectl -k graceful; }      #
+#   PID_FILE=/var/run/httpd.pid                                     #
+#   RULE_SET_DIRECTORY=/var/lib/etm-agent                           #
+#####################################################################
+
+HELPER_CONF="$1"
+if [ "x$HELPER_CONF" = "x" ]; then
+    HELPER_CONF="/etc/etm-agent/helper.conf"
+fi
+
+if [ ! -r "$HELPER_CONF" ]; then
+    echo "Helper configuration $HELPER_CONF not found" >&2
+    exit 1
+fi
+. "$HELPER_CONF"
+
+# Maximum number of output bytes returned per request
+MAX_OUTPUT=16384
+
+OUTPUT=`mktemp -t etm-agent-helper.XXXXXX` || exit 1
+trap 'rm -f "$OUTPUT"' EXIT
+
+# Accepts only absolute paths within the rule set directory
+valid_path() {
+    case "$1" in
+        *..*) return 1 ;;
+    esac
+    case "$1" in
+        "$RULE_SET_DIRECTORY"/*) echo "$1" | grep -q '^/[A-Za-z0-9._/-]*$' ;;
+        *) return 1 ;;
+    esac
+}
+
+send_signal() {
+    case "$1" in
+        HUP|USR1|USR2|TERM) ;;
+        *) echo "Signal $1 not allowed"; return 2 ;;
+    esac
+    if [ ! -r "$PID_FILE" ]; then
+        echo "PID file $PID_FILE not found"
+        return 1
+    fi
+    kill -s "$1" `cat "$PID_FILE"`
+}
+
+while read -r OPERATION ARGUMENT; do
+    case "$OPERATION" in
+        syntax-check)
+            if valid_path "$ARGUMENT"; then
+                syntax_check "$ARGUMENT" > "$OUTPUT" 2>&1 < /dev/null
+            else
+                echo "Path $ARGUMENT not allowed" > "$OUTPUT"
+                false
+            fi
+            ;;
+        start)
+            start > "$OUTPUT" 2>&1 < /dev/null
+            ;;
+        reload)
+            reload > "$OUTPUT" 2>&1 < /dev/null
+            ;;
+        signal)
+            send_signal "$ARGUMENT" > "$OUTPUT" 2>&1 < /dev/null
+            ;;
+        *)
+            echo "Operation $OPERATION not allowed" > "$OUTPUT"
+            false
+            ;;
+    esac
+    EXIT_VALUE=$?
+
+    tail -c $MAX_OUTPUT "$OUTPUT" > "$OUTPUT.tail"
+    mv -f "$OUTPUT.tail" "$OUTPUT"
+    echo "$EXIT_VALUE `wc -c < "$OUTPUT" | tr -d ' '`"
+    cat "$OUTPUT"
+done
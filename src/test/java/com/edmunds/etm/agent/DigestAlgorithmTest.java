@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent;
+
+import org.testng.annotations.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests the digest algorithms against reference values and across update patterns.
+ */
+public class DigestAlgorithmTest {
+
+    private static final String FOX = "The quick brown fox jumps over the lazy dog";
+
+    @Test
+    public void testMd5() throws UnsupportedEncodingException {
+        assertEquals(digest(DigestAlgorithm.MD5, ""), "d41d8cd98f00b204e9800998ecf8427e");
+        assertEquals(digest(DigestAlgorithm.MD5, "abc"), "900150983cd24fb0d6963f7d28e17f72");
+        assertEquals(digest(DigestAlgorithm.MD5, FOX), "9e107d9d372bb6826bd81d3542a419d6");
+    }
+
+    @Test
+    public void testMurmur3() throws UnsupportedEncodingException {
+        assertEquals(digest(DigestAlgorithm.MURMUR3_128, ""), "00000000000000000000000000000000");
+        assertEquals(digest(DigestAlgorithm.MURMUR3_128, "hello"), "029bbd41b3a7d8cb191dae486a901e5b");
+        assertEquals(digest(DigestAlgorithm.MURMUR3_128, "0123456789abcdefg"), "def945aa2d61328eee72c306c2f40008");
+        assertEquals(digest(DigestAlgorithm.MURMUR3_128, FOX), "6c1b07bc7bbc4be347939ac4a93c437a");
+    }
+
+    @Test
+    public void testSplitUpdates() throws UnsupportedEncodingException {
+        byte[] data = FOX.getBytes("UTF-8");
+        for (DigestAlgorithm algorithm : DigestAlgorithm.values()) {
+            String expected = digest(algorithm, FOX);
+
+            // Every split point, including splits within and at the end of a block
+            for (int split = 0; split <= data.length; split++) {
+                StreamingDigest digest = algorithm.newDigest();
+                digest.update(data, 0, split);
+                digest.update(data, split, data.length - split);
+                assertEquals(digest.digest(), expected, algorithm + " split at " + split);
+            }
+
+            // Byte by byte
+            StreamingDigest digest = algorithm.newDigest();
+            for (int i = 0; i < data.length; i++) {
+                digest.update(data, i, 1);
+            }
+            assertEquals(digest.digest(), expected, algorithm + " byte by byte");
+        }
+    }
+
+    @Test
+    public void testByteBuffers() throws UnsupportedEncodingException {
+        byte[] data = FOX.getBytes("UTF-8");
+        for (DigestAlgorithm algorithm : DigestAlgorithm.values()) {
+            String expected = digest(algorithm, FOX);
+
+            // A heap buffer backed by a larger array
+            byte[] padded = new byte[data.length + 10];
+            System.arraycopy(data, 0, padded, 5, data.length);
+            ByteBuffer heapBuffer = ByteBuffer.wrap(padded, 5, data.length).slice();
+            StreamingDigest heapDigest = algorithm.newDigest();
+            heapDigest.update(heapBuffer);
+            assertEquals(heapDigest.digest(), expected, algorithm + " heap buffer");
+            assertEquals(heapBuffer.remaining(), 0);
+
+            ByteBuffer directBuffer = ByteBuffer.allocateDirect(data.length);
+            directBuffer.put(data);
+            directBuffer.flip();
+            StreamingDigest directDigest = algorithm.newDigest();
+            directDigest.update(directBuffer);
+            assertEquals(directDigest.digest(), expected, algorithm + " direct buffer");
+            assertEquals(directBuffer.remaining(), 0);
+        }
+    }
+
+    private static String digest(DigestAlgorithm algorithm, String text) throws UnsupportedEncodingException {
+        byte[] data = text.getBytes("UTF-8");
+        StreamingDigest digest = algorithm.newDigest();
+        digest.update(data, 0, data.length);
+        return digest.digest();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the execution of external commands.
+ */
+public class CommandRunnerTest {
+
+    // Long enough that a test fails, rather than passes, if it has to wait for it
+    private static final long LONG_TIMEOUT = 10000;
+
+    private File workDirectory;
+    private CommandRunner commandRunner;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        workDirectory = File.createTempFile("commands", "");
+        workDirectory.delete();
+        workDirectory.mkdir();
+        commandRunner = new CommandRunner();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        commandRunner.destroy();
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Test
+    public void testRun() {
+        CommandResult result = commandRunner.run("echo", "echo hello", LONG_TIMEOUT);
+
+        assertTrue(result.isSuccess());
+        assertEquals(result.getOutput(), "hello\n");
+        assertEquals(commandRunner.getLastResult("echo"), result);
+    }
+
+    @Test
+    public void testExitValue() throws IOException {
+        CommandResult result = commandRunner.run("fail", script("echo failed >&2; exit 3"), LONG_TIMEOUT);
+
+        assertFalse(result.isSuccess());
+        assertEquals(result.getExitValue(), Integer.valueOf(3));
+        assertEquals(result.getErrorOutput(), "failed\n");
+    }
+
+    @Test
+    public void testTimeoutKillsProcessTree() throws Exception {
+        // The background process would outlive its parent if only the parent were killed
+        String command = script("sleep 30 & echo $!; wait");
+
+        long startTime = System.currentTimeMillis();
+        CommandResult result = commandRunner.run("sleep", command, 500);
+
+        assertTrue(System.currentTimeMillis() - startTime < LONG_TIMEOUT);
+        assertTrue(result.isTimedOut());
+        assertNull(result.getExitValue());
+        assertTrue(awaitDeath(Integer.parseInt(result.getOutput().trim())));
+    }
+
+    @Test
+    public void testBackgroundProcessHoldsOutput() throws IOException {
+        // The background process inherits the output streams and keeps them open after the command exits
+        String command = script("sleep 5 & echo started");
+
+        long startTime = System.currentTimeMillis();
+        CommandResult result = commandRunner.run("daemon", command, LONG_TIMEOUT);
+
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+        assertTrue(result.isSuccess());
+        assertEquals(result.getOutput(), "started\n");
+    }
+
+    @Test
+    public void testOutputIsCapped() throws IOException {
+        CommandResult result = commandRunner.run("output", script("head -c 100000 /dev/zero | tr '\\0' a"),
+                LONG_TIMEOUT);
+
+        // Only the tail of the output is kept
+        assertTrue(result.isSuccess());
+        assertTrue(result.getOutput().startsWith("[...]aaa"));
+        assertEquals(result.getOutput().length(), "[...]".length() + 16 * 1024);
+    }
+
+    @Test
+    public void testStop() throws IOException {
+        CommandRunner.RunningCommand command = commandRunner.start(script("echo started; sleep 30"), null);
+
+        CommandResult result = command.stop();
+
+        assertFalse(command.isRunning());
+        assertTrue(result.isTimedOut());
+    }
+
+    /**
+     * Writes a shell script, since commands are split at whitespace rather than parsed by a shell.
+     */
+    private String script(String content) throws IOException {
+        File file = File.createTempFile("command", ".sh", workDirectory);
+        FileUtils.writeStringToFile(file, content + "\n");
+        return "sh " + file.getAbsolutePath();
+    }
+
+    /**
+     * Waits for a killed process to die. A zombie counts as dead, since a container init process may never reap it.
+     */
+    private static boolean awaitDeath(int pid) throws InterruptedException {
+        File stat = new File("/proc/" + pid + "/stat");
+        long deadline = System.currentTimeMillis() + LONG_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            String content;
+            try {
+                content = FileUtils.readFileToString(stat);
+            } catch (IOException e) {
+                return true;
+            }
+            if (content.substring(content.lastIndexOf(')') + 2).startsWith("Z")) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.zookeeper.connection.ZooKeeperConnection;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * An in-memory ZooKeeper connection for tests.
+ * <p/>
+ * Operations complete synchronously on the calling thread and watches fire as soon as the watched node changes. All
+ * nodes belong to a single session, so ephemeral nodes can be removed together with {@link #expireEphemeralNodes()}.
+ */
+public class FakeZooKeeperConnection extends ZooKeeperConnection {
+
+    private final SortedMap<String, byte[]> nodes = Maps.newTreeMap();
+    private final Set<String> ephemeralNodes = Sets.newHashSet();
+    private final Map<String, Set<Watcher>> childWatches = Maps.newHashMap();
+    private final Map<String, Set<Watcher>> nodeWatches = Maps.newHashMap();
+    private final List<Code> injectedErrors = Lists.newLinkedList();
+    private int sequence;
+    private int childReads;
+
+    public FakeZooKeeperConnection() {
+        super("localhost:2181", 1000);
+    }
+
+    /**
+     * Makes the next operations fail with the specified error codes, in order.
+     *
+     * @param errors error codes
+     */
+    public void injectErrors(Code... errors) {
+        for (Code error : errors) {
+            injectedErrors.add(error);
+        }
+    }
+
+    /**
+     * Creates a persistent node and its missing ancestors, as a controller or another agent would.
+     *
+     * @param path node path
+     */
+    public void addNode(String path) {
+        int slash = path.lastIndexOf('/');
+        if (slash > 0 && !nodes.containsKey(path.substring(0, slash))) {
+            addNode(path.substring(0, slash));
+        }
+        putNode(path, new byte[0], false);
+    }
+
+    /**
+     * Replaces the data of an existing node, as a controller would.
+     *
+     * @param path node path
+     * @param data new node data
+     */
+    public void setNodeData(String path, byte[] data) {
+        nodes.put(path, data);
+        fireWatches(nodeWatches, path, Watcher.Event.EventType.NodeDataChanged);
+    }
+
+    /**
+     * Deletes a node and its descendants, as another agent or an operator would.
+     *
+     * @param path node path
+     */
+    public void removeNode(String path) {
+        for (String child : getChildren(path)) {
+            removeNode(path + "/" + child);
+        }
+        removeNodeAndNotify(path);
+    }
+
+    /**
+     * Deletes all ephemeral nodes, as if the session had expired.
+     */
+    public void expireEphemeralNodes() {
+        for (String path : Lists.newArrayList(ephemeralNodes)) {
+            removeNodeAndNotify(path);
+        }
+    }
+
+    public boolean hasNode(String path) {
+        return nodes.containsKey(path);
+    }
+
+    public boolean isEphemeral(String path) {
+        return ephemeralNodes.contains(path);
+    }
+
+    /**
+     * Gets the names of the children of the specified node, in name order.
+     *
+     * @param path node path
+     * @return child names
+     */
+    public List<String> getChildren(String path) {
+        List<String> children = Lists.newArrayList();
+        String prefix = path + "/";
+        for (String node : nodes.tailMap(prefix).keySet()) {
+            if (!node.startsWith(prefix)) {
+                break;
+            }
+            if (node.indexOf('/', prefix.length()) < 0) {
+                children.add(node.substring(prefix.length()));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Gets the number of child list reads since the connection was created.
+     *
+     * @return number of reads
+     */
+    public int getChildReads() {
+        return childReads;
+    }
+
+    /**
+     * Gets the number of pending child watches on the specified node.
+     *
+     * @param path node path
+     * @return number of watches
+     */
+    public int getChildWatchCount(String path) {
+        Set<Watcher> watchers = childWatches.get(path);
+        return watchers == null ? 0 : watchers.size();
+    }
+
+    @Override
+    public void exists(String path, Watcher watcher, AsyncCallback.StatCallback cb, Object ctx) {
+        Code rc = nextError();
+        if (rc == Code.OK) {
+            if (watcher != null) {
+                addWatch(nodeWatches, path, watcher);
+            }
+            rc = nodes.containsKey(path) ? Code.OK : Code.NONODE;
+        }
+        cb.processResult(rc.intValue(), path, ctx, rc == Code.OK ? new Stat() : null);
+    }
+
+    @Override
+    public void getData(String path, Watcher watcher, AsyncCallback.DataCallback cb, Object ctx) {
+        Code rc = nextError();
+        if (rc == Code.OK && !nodes.containsKey(path)) {
+            rc = Code.NONODE;
+        }
+        if (rc == Code.OK && watcher != null) {
+            addWatch(nodeWatches, path, watcher);
+        }
+        cb.processResult(rc.intValue(), path, ctx, rc == Code.OK ? nodes.get(path) : null,
+                rc == Code.OK ? new Stat() : null);
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, AsyncCallback.ChildrenCallback cb, Object ctx) {
+        childReads++;
+        Code rc = nextError();
+        if (rc == Code.OK && !nodes.containsKey(path)) {
+            rc = Code.NONODE;
+        }
+        if (rc == Code.OK && watcher != null) {
+            addWatch(childWatches, path, watcher);
+        }
+        cb.processResult(rc.intValue(), path, ctx, rc == Code.OK ? getChildren(path) : null);
+    }
+
+    @Override
+    public void delete(String path, int version, AsyncCallback.VoidCallback cb, Object ctx) {
+        Code rc = nextError();
+        if (rc == Code.OK) {
+            if (!nodes.containsKey(path)) {
+                rc = Code.NONODE;
+            } else if (!getChildren(path).isEmpty()) {
+                rc = Code.NOTEMPTY;
+            }
+        }
+        if (rc == Code.OK) {
+            removeNodeAndNotify(path);
+        }
+        cb.processResult(rc.intValue(), path, ctx);
+    }
+
+    @Override
+    public void createPersistent(String path, byte[] data, AsyncCallback.StringCallback cb, Object ctx) {
+        create(path, data, false, cb, ctx);
+    }
+
+    @Override
+    public void createEphemeral(String path, byte[] data, AsyncCallback.StringCallback cb, Object ctx) {
+        create(path, data, true, cb, ctx);
+    }
+
+    @Override
+    public void createEphemeralSequential(String path, byte[] data, AsyncCallback.StringCallback cb, Object ctx) {
+        create(path + String.format("%010d", sequence++), data, true, cb, ctx);
+    }
+
+    private void create(String name, byte[] data, boolean ephemeral, AsyncCallback.StringCallback cb, Object ctx) {
+        Code rc = nextError();
+        if (rc == Code.OK) {
+            if (nodes.containsKey(name)) {
+                rc = Code.NODEEXISTS;
+            } else if (!getParent(name).equals("/") && !nodes.containsKey(getParent(name))) {
+                rc = Code.NONODE;
+            }
+        }
+        if (rc == Code.OK) {
+            putNode(name, data, ephemeral);
+        }
+        cb.processResult(rc.intValue(), name, ctx, rc == Code.OK ? name : null);
+    }
+
+    private Code nextError() {
+        return injectedErrors.isEmpty() ? Code.OK : injectedErrors.remove(0);
+    }
+
+    private void putNode(String path, byte[] data, boolean ephemeral) {
+        nodes.put(path, data);
+        if (ephemeral) {
+            ephemeralNodes.add(path);
+        }
+        fireWatches(nodeWatches, path, Watcher.Event.EventType.NodeCreated);
+        fireWatches(childWatches, getParent(path), Watcher.Event.EventType.NodeChildrenChanged);
+    }
+
+    private void removeNodeAndNotify(String path) {
+        if (nodes.remove(path) == null) {
+            return;
+        }
+        ephemeralNodes.remove(path);
+        fireWatches(nodeWatches, path, Watcher.Event.EventType.NodeDeleted);
+        fireWatches(childWatches, getParent(path), Watcher.Event.EventType.NodeChildrenChanged);
+    }
+
+    private static void addWatch(Map<String, Set<Watcher>> watches, String path, Watcher watcher) {
+        Set<Watcher> watchers = watches.get(path);
+        if (watchers == null) {
+            watchers = Sets.newLinkedHashSet();
+            watches.put(path, watchers);
+        }
+        watchers.add(watcher);
+    }
+
+    private static void fireWatches(Map<String, Set<Watcher>> watches, String path,
+                                    Watcher.Event.EventType type) {
+        Set<Watcher> watchers = watches.remove(path);
+        if (watchers == null) {
+            return;
+        }
+        for (Watcher watcher : watchers) {
+            watcher.process(new WatchedEvent(type, Watcher.Event.KeeperState.SyncConnected, path));
+        }
+    }
+
+    private static String getParent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : "/";
+    }
+}
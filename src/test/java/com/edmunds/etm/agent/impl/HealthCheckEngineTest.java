@@ -0,0 +1,282 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the shared health check engine against a local server.
+ */
+public class HealthCheckEngineTest {
+
+    // Long enough that a test fails, rather than passes, if it has to wait for it
+    private static final long LONG_TIMEOUT = 10000;
+
+    private HealthCheckEngine engine;
+    private TestServer server;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        engine = new HealthCheckEngine();
+        server = new TestServer();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        engine.destroy();
+        server.close();
+    }
+
+    @Test
+    public void testConnect() throws InterruptedException {
+        Outcome outcome = new Outcome();
+        engine.connect(server.getAddress(), LONG_TIMEOUT, outcome);
+
+        assertTrue(outcome.await());
+    }
+
+    @Test
+    public void testConnectRefused() throws InterruptedException {
+        InetSocketAddress address = server.getAddress();
+        server.close();
+
+        long startTime = System.currentTimeMillis();
+        Outcome outcome = new Outcome();
+        engine.connect(address, LONG_TIMEOUT, outcome);
+
+        assertFalse(outcome.await());
+        assertTrue(System.currentTimeMillis() - startTime < LONG_TIMEOUT);
+    }
+
+    @Test
+    public void testSchedule() throws InterruptedException {
+        final List<String> tasks = Collections.synchronizedList(Lists.<String>newArrayList());
+        final CountDownLatch done = new CountDownLatch(2);
+        engine.schedule(new Runnable() {
+            @Override
+            public void run() {
+                tasks.add("later");
+                done.countDown();
+            }
+        }, 100);
+        engine.schedule(new Runnable() {
+            @Override
+            public void run() {
+                tasks.add("now");
+                done.countDown();
+            }
+        }, 0);
+
+        assertTrue(done.await(LONG_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(tasks, Lists.newArrayList("now", "later"));
+    }
+
+    @Test
+    public void testExchangeReusesConnection() throws InterruptedException {
+        for (int i = 0; i < 2; i++) {
+            Outcome outcome = new Outcome();
+            engine.exchange(server.getAddress(), request(), new LineReader(), LONG_TIMEOUT, outcome);
+            assertTrue(outcome.await());
+        }
+
+        assertEquals(server.getConnections(), 1);
+    }
+
+    @Test
+    public void testExchangeRetriesClosedConnection() throws InterruptedException {
+        server.closeAfterResponse = true;
+
+        for (int i = 0; i < 2; i++) {
+            Outcome outcome = new Outcome();
+            engine.exchange(server.getAddress(), request(), new LineReader(), LONG_TIMEOUT, outcome);
+            assertTrue(outcome.await());
+        }
+
+        // The idle connection closed by the server is replaced transparently
+        assertEquals(server.getConnections(), 2);
+    }
+
+    @Test
+    public void testExchangeTimeout() throws InterruptedException {
+        server.respond = false;
+
+        long startTime = System.currentTimeMillis();
+        Outcome outcome = new Outcome();
+        engine.exchange(server.getAddress(), request(), new LineReader(), 200, outcome);
+
+        assertFalse(outcome.await());
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        assertTrue(elapsedTime >= 200 && elapsedTime < LONG_TIMEOUT);
+    }
+
+    private static byte[] request() {
+        return "ping\n".getBytes();
+    }
+
+    /**
+     * Records the result of a connect attempt or an exchange.
+     */
+    private static class Outcome implements HealthCheckEngine.ConnectListener, HealthCheckEngine.ExchangeListener {
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile boolean result;
+
+        @Override
+        public void onConnectComplete(boolean connected) {
+            result = connected;
+            completed.countDown();
+        }
+
+        @Override
+        public void onExchangeComplete(boolean complete) {
+            result = complete;
+            completed.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            assertTrue(completed.await(LONG_TIMEOUT, TimeUnit.MILLISECONDS));
+            return result;
+        }
+    }
+
+    /**
+     * Reads a single line and allows the connection to be reused.
+     */
+    private static class LineReader implements HealthCheckEngine.ResponseReader {
+        @Override
+        public boolean read(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                if (data.get() == '\n') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean endOfStream() {
+            return false;
+        }
+
+        @Override
+        public boolean isKeepAlive() {
+            return true;
+        }
+    }
+
+    /**
+     * A loopback server that answers each line it receives with {@code OK}.
+     */
+    private static class TestServer implements Runnable {
+        private final ServerSocket serverSocket;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final List<Socket> sockets = Collections.synchronizedList(Lists.<Socket>newArrayList());
+
+        private volatile boolean respond = true;
+        private volatile boolean closeAfterResponse;
+
+        TestServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+            Thread thread = new Thread(this, "test-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        }
+
+        int getConnections() {
+            return connections.get();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    sockets.add(socket);
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "test-server-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    // Server closed
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                OutputStream output = socket.getOutputStream();
+                while (reader.readLine() != null) {
+                    if (respond) {
+                        output.write("OK\n".getBytes());
+                        output.flush();
+                    }
+                    if (closeAfterResponse) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Connection closed
+            } finally {
+                IOUtils.closeQuietly(socket);
+            }
+        }
+
+        void close() {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    IOUtils.closeQuietly(socket);
+                }
+            }
+        }
+    }
+}
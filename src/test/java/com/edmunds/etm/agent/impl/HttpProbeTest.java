@@ -0,0 +1,129 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import org.testng.annotations.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the parsing and verification of HTTP health check probes.
+ */
+public class HttpProbeTest {
+
+    @Test
+    public void testDefaults() throws UnsupportedEncodingException {
+        HttpProbe probe = HttpProbe.parse("  http://127.0.0.1  ");
+
+        assertEquals(probe.getHostName(), "127.0.0.1");
+        assertEquals(probe.getPort(), 80);
+        assertEquals(probe.getLatencyBudget(), 0L);
+        assertEquals(probe.toString(), "http://127.0.0.1");
+        assertEquals(new String(probe.getRequest(), "ISO-8859-1"),
+                "GET / HTTP/1.1\r\nHost: 127.0.0.1\r\nUser-Agent: etm-agent\r\nAccept: */*\r\n\r\n");
+        assertNull(probe.verify(response("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"), 10000));
+        assertEquals(probe.verify(response("HTTP/1.1 204 No Content\r\n\r\n"), 0), "status 204, expected [200]");
+    }
+
+    @Test
+    public void testAttributes() throws UnsupportedEncodingException {
+        HttpProbe probe = HttpProbe.parse(
+                "http://localhost:8080/status?full=1\thost=www.example.com status=200|204 body=OK latency=500");
+
+        assertEquals(probe.getHostName(), "localhost");
+        assertEquals(probe.getPort(), 8080);
+        assertEquals(probe.getLatencyBudget(), 500L);
+        assertEquals(new String(probe.getRequest(), "ISO-8859-1"),
+                "GET /status?full=1 HTTP/1.1\r\nHost: www.example.com\r\nUser-Agent: etm-agent\r\nAccept: */*\r\n\r\n");
+    }
+
+    @Test
+    public void testHostHeaderIncludesPort() throws UnsupportedEncodingException {
+        HttpProbe probe = HttpProbe.parse("http://localhost:8080/");
+
+        assertTrue(new String(probe.getRequest(), "ISO-8859-1").contains("\r\nHost: localhost:8080\r\n"));
+    }
+
+    @Test
+    public void testVerify() {
+        HttpProbe probe = HttpProbe.parse("http://localhost/ status=200|204 body=OK latency=500");
+
+        assertNull(probe.verify(response("HTTP/1.1 200 OK\r\nContent-Length: 8\r\n\r\nstatusOK"), 500));
+        assertEquals(probe.verify(response("HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nFAIL"), 10),
+                "body does not contain 'OK'");
+        assertEquals(probe.verify(response("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK"), 501),
+                "latency 501 ms exceeds 500 ms");
+        assertEquals(probe.verify(response("HTTP/1.1 500 Error\r\nContent-Length: 2\r\n\r\nOK"), 10),
+                "status 500, expected [200, 204]");
+    }
+
+    @Test
+    public void testVerifyMalformedResponse() {
+        HttpProbe probe = HttpProbe.parse("http://localhost/");
+
+        assertEquals(probe.verify(response("garbage\r\n\r\n"), 0), "status -1, expected [200]");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testEmptySpec() {
+        HttpProbe.parse(" \t ");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidUrl() {
+        HttpProbe.parse("localhost:80/status");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnsupportedScheme() {
+        HttpProbe.parse("https://localhost/status");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testAttributeWithoutValue() {
+        HttpProbe.parse("http://localhost/ body=");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownAttribute() {
+        HttpProbe.parse("http://localhost/ method=POST");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonNumericStatus() {
+        HttpProbe.parse("http://localhost/ status=200|OK");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonNumericLatency() {
+        HttpProbe.parse("http://localhost/ latency=1s");
+    }
+
+    private static HttpResponseReader response(String data) {
+        HttpResponseReader reader = new HttpResponseReader();
+        try {
+            reader.read(ByteBuffer.wrap(data.getBytes("ISO-8859-1")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return reader;
+    }
+}
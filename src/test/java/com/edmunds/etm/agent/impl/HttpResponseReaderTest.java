@@ -0,0 +1,179 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import org.apache.commons.lang.StringUtils;
+import org.testng.annotations.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the incremental parsing of HTTP responses.
+ */
+public class HttpResponseReaderTest {
+
+    @Test
+    public void testContentLength() {
+        HttpResponseReader reader = new HttpResponseReader();
+
+        assertTrue(read(reader, "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello"));
+        assertEquals(reader.getStatus(), 200);
+        assertTrue(reader.bodyContains("hell"));
+        assertTrue(reader.isKeepAlive());
+    }
+
+    @Test
+    public void testPartialBody() {
+        HttpResponseReader reader = new HttpResponseReader();
+
+        assertFalse(read(reader, "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello"));
+        assertFalse(reader.endOfStream());
+        assertFalse(reader.isKeepAlive());
+    }
+
+    @Test
+    public void testChunkedBody() {
+        HttpResponseReader reader = new HttpResponseReader();
+
+        assertTrue(read(reader, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n",
+                "5;name=value\r\nhello\r\n", "6\r\n world\r\n", "0\r\nX-Trailer: 1\r\n\r\n"));
+        assertEquals(reader.getStatus(), 200);
+        assertTrue(reader.bodyContains("hello world"));
+        assertTrue(reader.isKeepAlive());
+    }
+
+    @Test
+    public void testBodyUntilClose() {
+        HttpResponseReader reader = new HttpResponseReader();
+
+        assertFalse(read(reader, "HTTP/1.1 503 Unavailable\r\n\r\ndown for maintenance"));
+        assertTrue(reader.endOfStream());
+        assertEquals(reader.getStatus(), 503);
+        assertTrue(reader.bodyContains("maintenance"));
+        assertFalse(reader.isKeepAlive());
+    }
+
+    @Test
+    public void testSingleBytes() throws UnsupportedEncodingException {
+        HttpResponseReader reader = new HttpResponseReader();
+        byte[] data = ("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n")
+                .getBytes("ISO-8859-1");
+
+        for (int i = 0; i < data.length - 1; i++) {
+            assertFalse(reader.read(ByteBuffer.wrap(data, i, 1)));
+        }
+        assertTrue(reader.read(ByteBuffer.wrap(data, data.length - 1, 1)));
+        assertTrue(reader.bodyContains("abc"));
+        assertTrue(reader.isKeepAlive());
+    }
+
+    @Test
+    public void testInterimResponseSkipped() {
+        HttpResponseReader reader = new HttpResponseReader();
+
+        assertTrue(read(reader, "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n"));
+        assertEquals(reader.getStatus(), 201);
+    }
+
+    @Test
+    public void testNoBodyStatus() {
+        HttpResponseReader notModified = new HttpResponseReader();
+        HttpResponseReader noContent = new HttpResponseReader();
+
+        assertTrue(read(notModified, "HTTP/1.1 304 Not Modified\r\nContent-Length: 100\r\n\r\n"));
+        assertEquals(notModified.getStatus(), 304);
+        assertTrue(read(noContent, "HTTP/1.1 204 No Content\r\n\r\n"));
+        assertEquals(noContent.getStatus(), 204);
+        assertTrue(noContent.isKeepAlive());
+    }
+
+    @Test
+    public void testConnectionHeader() {
+        HttpResponseReader close = new HttpResponseReader();
+        HttpResponseReader http10 = new HttpResponseReader();
+        HttpResponseReader http10KeepAlive = new HttpResponseReader();
+
+        assertTrue(read(close, "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(close.isKeepAlive());
+        assertTrue(read(http10, "HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(http10.isKeepAlive());
+        assertTrue(read(http10KeepAlive, "HTTP/1.0 200 OK\r\nconnection: Keep-Alive\r\ncontent-length: 0\r\n\r\n"));
+        assertTrue(http10KeepAlive.isKeepAlive());
+    }
+
+    @Test
+    public void testBodyRetainedAsUtf8() {
+        HttpResponseReader reader = new HttpResponseReader();
+
+        assertTrue(read(reader, "HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\n", "caf\u00c3\u00a9!"));
+        assertTrue(reader.bodyContains("caf\u00e9"));
+    }
+
+    @Test
+    public void testMalformedStatusLine() {
+        assertMalformed("HTTP/1.1\r\n\r\n");
+        assertMalformed("ICY 200 OK\r\n\r\n");
+        assertMalformed("HTTP/2 200\r\n\r\n");
+        assertMalformed("HTTP/1.1 OK 200\r\n\r\n");
+    }
+
+    @Test
+    public void testMalformedContentLength() {
+        assertMalformed("HTTP/1.1 200 OK\r\nContent-Length: ten\r\n\r\n");
+        assertMalformed("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\nbody");
+    }
+
+    @Test
+    public void testMalformedChunkSize() {
+        assertMalformed("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n");
+        assertMalformed("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n-5\r\nhello\r\n0\r\n\r\n");
+    }
+
+    @Test
+    public void testHeadersTooLarge() {
+        assertMalformed("HTTP/1.1 200 OK\r\nX-Padding: " + StringUtils.repeat("x", 16 * 1024) + "\r\n\r\n");
+    }
+
+    @Test
+    public void testChunkSizeLineTooLong() {
+        assertMalformed("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n1;" + StringUtils.repeat("x", 1024));
+    }
+
+    private static void assertMalformed(String response) {
+        HttpResponseReader reader = new HttpResponseReader();
+
+        assertTrue(read(reader, response), response);
+        assertEquals(reader.getStatus(), -1);
+        assertFalse(reader.isKeepAlive());
+    }
+
+    private static boolean read(HttpResponseReader reader, String... parts) {
+        boolean done = false;
+        for (String part : parts) {
+            try {
+                done = reader.read(ByteBuffer.wrap(part.getBytes("ISO-8859-1")));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return done;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.common.api.RuleSetDeploymentResult;
+import com.google.common.collect.Lists;
+import org.apache.zookeeper.KeeperException.Code;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the restart lease semaphore.
+ */
+public class LeaseRestartPermitTest {
+
+    private static final String LEASE_PATH = "/etm/restart-leases";
+    private static final String CONNECTED_PATH = "/etm/connected";
+
+    private FakeZooKeeperConnection connection;
+
+    @BeforeMethod
+    public void setUp() {
+        connection = new FakeZooKeeperConnection();
+        connection.addNode("/etm");
+        connection.addNode(CONNECTED_PATH);
+    }
+
+    @Test
+    public void testGrantsUpToConcurrency() {
+        List<Request> requests = acquire(4, 2, 0);
+
+        assertGranted(requests, true, true, false, false);
+        assertEquals(connection.getChildren(LEASE_PATH).size(), 4);
+    }
+
+    @Test
+    public void testGrantsWhenAnyEarlierLeaseEnds() {
+        List<Request> requests = acquire(4, 2, 0);
+
+        // The second lease ends first
+        requests.get(1).permit.release(RuleSetDeploymentResult.OK);
+        assertGranted(requests, true, false, true, false);
+        assertTrue(requests.get(1).released);
+
+        requests.get(0).permit.release(RuleSetDeploymentResult.OK);
+        assertGranted(requests, false, false, true, true);
+    }
+
+    @Test
+    public void testWaitingRequestCanBeWithdrawn() {
+        List<Request> requests = acquire(3, 1, 0);
+
+        requests.get(2).permit.release(RuleSetDeploymentResult.UNKNOWN);
+        assertTrue(requests.get(2).released);
+
+        requests.get(0).permit.release(RuleSetDeploymentResult.OK);
+        assertGranted(requests, false, true, false);
+        assertEquals(connection.getChildren(LEASE_PATH).size(), 1);
+    }
+
+    @Test
+    public void testConcurrencyPercent() {
+        for (int i = 0; i < 10; i++) {
+            connection.addNode(CONNECTED_PATH + "/agent-" + i);
+        }
+
+        // 30% of 10 agents is more than the minimum of 1
+        List<Request> requests = acquire(5, 1, 30);
+
+        assertGranted(requests, true, true, true, false, false);
+    }
+
+    @Test
+    public void testConcurrencyPercentGrows() {
+        for (int i = 0; i < 2; i++) {
+            connection.addNode(CONNECTED_PATH + "/agent-" + i);
+        }
+        List<Request> requests = acquire(4, 1, 50);
+        assertGranted(requests, true, false, false, false);
+
+        // 50% of 6 agents
+        for (int i = 2; i < 6; i++) {
+            connection.addNode(CONNECTED_PATH + "/agent-" + i);
+        }
+        assertGranted(requests, true, true, true, false);
+    }
+
+    @Test
+    public void testEndedLeaseWakesOnlyNextRequests() {
+        List<Request> requests = acquire(6, 2, 0);
+
+        // Of the requests watching the ended lease, only the first is still waiting
+        int reads = connection.getChildReads();
+        requests.get(0).permit.release(RuleSetDeploymentResult.OK);
+        assertGranted(requests, false, true, true, false, false, false);
+        assertEquals(connection.getChildReads() - reads, 1);
+    }
+
+    @Test
+    public void testLeaseLostWhenNodeIsDeleted() {
+        List<Request> requests = acquire(2, 1, 0);
+
+        connection.expireEphemeralNodes();
+
+        // The granted lease reports the loss, the waiting request gives up
+        assertTrue(requests.get(0).released);
+        assertTrue(requests.get(1).released);
+        assertFalse(requests.get(1).granted);
+
+        // Releasing a lost lease is harmless and notifies only once
+        requests.get(0).permit.release(RuleSetDeploymentResult.OK);
+        assertEquals(requests.get(0).releaseCount, 1);
+    }
+
+    @Test
+    public void testCreateRetriedAfterConnectionLoss() {
+        connection.addNode(LEASE_PATH);
+
+        // The lease node is created although the create reports a connection loss
+        connection.injectErrors(Code.CONNECTIONLOSS);
+        Request request = new Request(1, 0);
+        request.permit.acquire(request);
+
+        assertTrue(request.granted);
+        assertEquals(connection.getChildren(LEASE_PATH).size(), 1);
+
+        request.permit.release(RuleSetDeploymentResult.OK);
+        assertTrue(request.released);
+        assertTrue(connection.getChildren(LEASE_PATH).isEmpty());
+    }
+
+    @Test
+    public void testLeaseParentCreateFails() {
+        connection.injectErrors(Code.NOAUTH);
+        Request request = new Request(1, 0);
+        request.permit.acquire(request);
+
+        assertFalse(request.granted);
+        assertTrue(request.released);
+    }
+
+    @Test
+    public void testNoWatchAfterGrant() {
+        List<Request> requests = acquire(1, 1, 0);
+        assertTrue(requests.get(0).granted);
+
+        // A watch set while waiting may fire once, but is not renewed
+        int reads = connection.getChildReads();
+        for (int i = 0; i < 3; i++) {
+            connection.addNode(LEASE_PATH + "/lease-other-" + i);
+        }
+        assertEquals(connection.getChildReads(), reads);
+        assertEquals(connection.getChildWatchCount(LEASE_PATH), 0);
+    }
+
+    private List<Request> acquire(int count, int concurrency, int concurrencyPercent) {
+        List<Request> requests = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            Request request = new Request(concurrency, concurrencyPercent);
+            request.permit.acquire(request);
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    private static void assertGranted(List<Request> requests, boolean... granted) {
+        for (int i = 0; i < granted.length; i++) {
+            assertEquals(requests.get(i).granted, granted[i], "Request " + i);
+        }
+    }
+
+    /**
+     * A lease request and the permit changes it has been notified of.
+     */
+    private class Request implements RestartPermitListener {
+        private final LeaseRestartPermit permit;
+        private boolean granted;
+        private boolean released;
+        private int releaseCount;
+
+        Request(int concurrency, int concurrencyPercent) {
+            this.permit = new LeaseRestartPermit(connection, LEASE_PATH, CONNECTED_PATH, concurrency,
+                    concurrencyPercent);
+        }
+
+        @Override
+        public void onRestartPermitChange(boolean granted) {
+            this.granted = granted;
+            if (!granted) {
+                released = true;
+                releaseCount++;
+            }
+        }
+    }
+}
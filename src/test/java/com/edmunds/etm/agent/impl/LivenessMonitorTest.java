@@ -0,0 +1,244 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.HealthCheck;
+import com.edmunds.etm.agent.api.HealthCheckListener;
+import com.edmunds.etm.agent.api.WebServerController;
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the continuous liveness monitor and the publication of its status.
+ */
+public class LivenessMonitorTest {
+
+    // Long enough that a test fails, rather than passes, if it has to wait for it
+    private static final long LONG_TIMEOUT = 10000;
+
+    private ApacheConfig config;
+    private FakeServerController serverController;
+    private FakeAgentReporter agentReporter;
+    private HealthCheckEngine engine;
+    private LivenessMonitor monitor;
+
+    @BeforeMethod
+    public void setUp() {
+        config = new ApacheConfig();
+        config.setLivenessInterval(20);
+        serverController = new FakeServerController();
+        agentReporter = new FakeAgentReporter(serverController);
+        engine = new HealthCheckEngine();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (monitor != null) {
+            monitor.destroy();
+        }
+        engine.destroy();
+    }
+
+    @Test
+    public void testPublishesStateChanges() throws InterruptedException {
+        newMonitor().start();
+
+        LivenessStatus status = agentReporter.awaitStatus();
+        assertTrue(status.isUp());
+        assertEquals(status.getProbeCount(), 1L);
+        assertEquals(monitor.getFreshResult(), Boolean.TRUE);
+
+        // An unchanged state is not published again within a minute
+        serverController.awaitProbes(5);
+        assertTrue(agentReporter.statuses.isEmpty());
+
+        serverController.alive = false;
+        status = agentReporter.awaitStatus();
+        assertFalse(status.isUp());
+        assertEquals(status.getFailureCount(), 1L);
+        assertTrue(status.getProbeCount() > 5);
+        assertFalse(status.getSince().before(status.getLastProbeDate()));
+    }
+
+    @Test
+    public void testStatusSummarizesLatencies() throws InterruptedException {
+        newMonitor().start();
+        serverController.awaitProbes(3);
+
+        LivenessStatus status = monitor.getStatus();
+        assertNotNull(status);
+        assertTrue(status.isUp());
+        assertEquals(status.getFailureCount(), 0L);
+        assertTrue(status.getMaxLatency() >= status.getLatency95());
+        assertTrue(status.getLatency95() >= 0);
+    }
+
+    @Test
+    public void testDestroyStopsProbes() throws InterruptedException {
+        newMonitor().start();
+        agentReporter.awaitStatus();
+
+        monitor.destroy();
+        assertNull(monitor.getFreshResult());
+
+        // At most a probe that was already scheduled still runs
+        int probes = serverController.probes.get();
+        Thread.sleep(200);
+        assertTrue(serverController.probes.get() <= probes + 1);
+    }
+
+    @Test
+    public void testDisabled() throws InterruptedException {
+        config.setLivenessInterval(0);
+        newMonitor().start();
+
+        Thread.sleep(100);
+        assertEquals(serverController.probes.get(), 0);
+        assertNull(monitor.getStatus());
+        assertNull(monitor.getFreshResult());
+        assertTrue(agentReporter.statuses.isEmpty());
+    }
+
+    private LivenessMonitor newMonitor() {
+        monitor = new LivenessMonitor(serverController, engine, agentReporter, config);
+        return monitor;
+    }
+
+    /**
+     * A web server controller whose liveness checks complete at once with the configured result.
+     */
+    private static class FakeServerController implements WebServerController {
+        private final AtomicInteger probes = new AtomicInteger();
+        private volatile boolean alive = true;
+
+        @Override
+        public InputStream openRuleSetData() {
+            return null;
+        }
+
+        @Override
+        public String getRuleSetDigest() {
+            return null;
+        }
+
+        @Override
+        public void stageRuleSetData(InputStream ruleSetData) {
+        }
+
+        @Override
+        public void activateRuleSetData() {
+        }
+
+        @Override
+        public void rollBackRuleSetData() {
+        }
+
+        @Override
+        public boolean checkSyntax() {
+            return true;
+        }
+
+        @Override
+        public boolean isStagedSyntaxCheckSupported() {
+            return false;
+        }
+
+        @Override
+        public boolean checkStagedSyntax() {
+            return true;
+        }
+
+        @Override
+        public boolean smokeTestStagedRuleSet() {
+            return true;
+        }
+
+        @Override
+        public boolean start() {
+            return true;
+        }
+
+        @Override
+        public boolean restart() {
+            return true;
+        }
+
+        @Override
+        public HealthCheck newHealthCheck() {
+            return newLivenessCheck();
+        }
+
+        @Override
+        public HealthCheck newRunningCheck() {
+            return newLivenessCheck();
+        }
+
+        @Override
+        public HealthCheck newLivenessCheck() {
+            return new HealthCheck() {
+                @Override
+                public void execute(HealthCheckListener listener) {
+                    probes.incrementAndGet();
+                    listener.onHealthCheckComplete(alive);
+                }
+            };
+        }
+
+        void awaitProbes(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + LONG_TIMEOUT;
+            while (probes.get() < count) {
+                assertTrue(System.currentTimeMillis() < deadline, "Probes did not run");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * An agent reporter that queues the published liveness statuses instead of writing them to ZooKeeper.
+     */
+    private static class FakeAgentReporter extends AgentReporter {
+        private final BlockingQueue<LivenessStatus> statuses = new LinkedBlockingQueue<LivenessStatus>();
+
+        FakeAgentReporter(WebServerController serverController) {
+            super(null, null, serverController, null, null);
+        }
+
+        @Override
+        public synchronized void publishLivenessStatus(LivenessStatus status) {
+            statuses.add(status);
+        }
+
+        LivenessStatus awaitStatus() throws InterruptedException {
+            LivenessStatus status = statuses.poll(LONG_TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull(status, "No liveness status published");
+            return status;
+        }
+    }
+}
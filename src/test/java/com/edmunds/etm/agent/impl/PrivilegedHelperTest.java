@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the client of the privileged helper.
+ */
+public class PrivilegedHelperTest {
+
+    // Long enough that a test fails, rather than passes, if it has to wait for it
+    private static final long LONG_TIMEOUT = 10000;
+
+    // A helper that answers each request with its operation, hangs on reload and cannot be stopped with SIGTERM
+    private static final String HELPER_SCRIPT = "trap '' TERM\n"
+            + "while read op arg; do\n"
+            + "  case \"$op\" in\n"
+            + "    reload) sleep 5 ;;\n"
+            + "    start) exit 0 ;;\n"
+            + "    *) printf '0 %d\\n%s' ${#op} \"$op\" ;;\n"
+            + "  esac\n"
+            + "done\n";
+
+    private File workDirectory;
+    private PrivilegedHelper helper;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        workDirectory = File.createTempFile("helper", "");
+        workDirectory.delete();
+        workDirectory.mkdir();
+
+        File script = new File(workDirectory, "helper.sh");
+        FileUtils.writeStringToFile(script, HELPER_SCRIPT);
+
+        ApacheConfig config = new ApacheConfig();
+        config.setPrivilegedHelperCommand("sh " + script.getAbsolutePath());
+        helper = new PrivilegedHelper(config);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        helper.destroy();
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Test
+    public void testExecute() {
+        for (int i = 0; i < 2; i++) {
+            CommandResult result = helper.execute(PrivilegedHelper.Operation.SYNTAX_CHECK, null, LONG_TIMEOUT);
+
+            assertTrue(result.isSuccess());
+            assertEquals(result.getOutput(), "syntax-check");
+        }
+    }
+
+    @Test
+    public void testInvalidArgument() {
+        CommandResult result = helper.execute(PrivilegedHelper.Operation.SIGNAL, "HUP; reboot", LONG_TIMEOUT);
+
+        assertFalse(result.isSuccess());
+        assertNull(result.getExitValue());
+    }
+
+    @Test
+    public void testHungHelperIsReplaced() {
+        CommandResult result = helper.execute(PrivilegedHelper.Operation.RELOAD, null, 200);
+        assertTrue(result.isTimedOut());
+
+        // The discarded helper still hangs, but does not delay the answer of the next one
+        long startTime = System.currentTimeMillis();
+        result = helper.execute(PrivilegedHelper.Operation.SYNTAX_CHECK, null, 2000);
+        assertTrue(result.isSuccess());
+        assertTrue(System.currentTimeMillis() - startTime < 2000);
+    }
+
+    @Test
+    public void testExitedHelperIsReplaced() {
+        CommandResult result = helper.execute(PrivilegedHelper.Operation.START, null, LONG_TIMEOUT);
+        assertFalse(result.isSuccess());
+        assertFalse(result.isTimedOut());
+
+        result = helper.execute(PrivilegedHelper.Operation.SYNTAX_CHECK, null, LONG_TIMEOUT);
+        assertTrue(result.isSuccess());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.AgentUtils;
+import com.edmunds.etm.agent.DigestAlgorithm;
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests the rule set file handling of the process controller.
+ */
+public class ProcessControllerTest {
+
+    private File workDirectory;
+    private File configFile;
+    private ApacheConfig config;
+    private CommandRunner commandRunner;
+    private RuleSetHistory ruleSetHistory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        workDirectory = File.createTempFile("controller", "");
+        workDirectory.delete();
+        workDirectory.mkdir();
+
+        configFile = new File(workDirectory, "etm-apache.conf");
+        FileUtils.writeStringToFile(configFile, "old rule set");
+
+        config = new ApacheConfig();
+        config.setWorkDirectory(new File(workDirectory, "work").getAbsolutePath());
+        config.setFilePath(configFile.getAbsolutePath());
+        config.setStagedWriteEnabled(true);
+        commandRunner = new CommandRunner();
+        ruleSetHistory = new RuleSetHistory(config);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Test
+    public void testCreatesWorkDirectory() {
+        newController();
+
+        assertTrue(config.getSpoolDirectory().isDirectory());
+        assertTrue(config.getHistoryDirectory().isDirectory());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testWorkDirectoryCannotBeCreated() throws IOException {
+        File file = new File(workDirectory, "file");
+        FileUtils.writeStringToFile(file, "not a directory");
+        config.setWorkDirectory(file.getAbsolutePath());
+
+        newController();
+    }
+
+    @Test
+    public void testStageAndActivate() throws IOException {
+        ProcessController controller = newController();
+
+        stage(controller, "new rule set");
+        assertEquals(FileUtils.readFileToString(configFile), "old rule set");
+        assertTrue(new File(workDirectory, "etm-apache.conf.staged").isFile());
+
+        controller.activateRuleSetData();
+        assertEquals(FileUtils.readFileToString(configFile), "new rule set");
+        assertEquals(controller.getRuleSetDigest(), digest("new rule set"));
+        assertFalse(new File(workDirectory, "etm-apache.conf.staged").exists());
+    }
+
+    @Test
+    public void testRollBackIsRename() throws IOException {
+        final AtomicInteger commands = new AtomicInteger();
+        commandRunner = new CommandRunner() {
+            @Override
+            public CommandResult run(String name, String command, long timeout) {
+                commands.incrementAndGet();
+                return super.run(name, command, timeout);
+            }
+        };
+        ruleSetHistory.store(digest("old rule set"), new ByteArrayInputStream("old rule set".getBytes()));
+        ProcessController controller = newController();
+
+        stage(controller, "new rule set");
+        assertTrue(new File(workDirectory, "etm-apache.conf.previous").isFile());
+        controller.activateRuleSetData();
+
+        // The previous slot was fully prepared at staging time, so the rollback runs no command
+        int stageCommands = commands.get();
+        controller.rollBackRuleSetData();
+        assertEquals(commands.get(), stageCommands);
+        assertEquals(FileUtils.readFileToString(configFile), "old rule set");
+        assertEquals(controller.getRuleSetDigest(), digest("old rule set"));
+        assertFalse(new File(workDirectory, "etm-apache.conf.previous").exists());
+    }
+
+    @Test
+    public void testRollBackFromHistory() throws IOException {
+        ruleSetHistory.store(digest("old rule set"), new ByteArrayInputStream("old rule set".getBytes()));
+        ProcessController controller = newController();
+
+        stage(controller, "new rule set");
+        controller.activateRuleSetData();
+
+        // The history is only used if the previous slot has gone missing
+        assertTrue(new File(workDirectory, "etm-apache.conf.previous").delete());
+        controller.rollBackRuleSetData();
+        assertEquals(FileUtils.readFileToString(configFile), "old rule set");
+        assertEquals(controller.getRuleSetDigest(), digest("old rule set"));
+    }
+
+    @Test
+    public void testRollBackWithoutHistory() throws IOException {
+        config.setHistorySize(0);
+        ruleSetHistory = new RuleSetHistory(config);
+        ProcessController controller = newController();
+
+        stage(controller, "new rule set");
+        assertTrue(new File(workDirectory, "etm-apache.conf.previous").isFile());
+        controller.activateRuleSetData();
+
+        controller.rollBackRuleSetData();
+        assertEquals(FileUtils.readFileToString(configFile), "old rule set");
+    }
+
+    @Test
+    public void testWriteInPlace() throws IOException {
+        config.setStagedWriteEnabled(false);
+        ProcessController controller = newController();
+
+        stage(controller, "new rule set");
+        assertEquals(workDirectory.list().length, 2);
+
+        controller.activateRuleSetData();
+        assertEquals(FileUtils.readFileToString(configFile), "new rule set");
+        controller.rollBackRuleSetData();
+        assertEquals(FileUtils.readFileToString(configFile), "old rule set");
+    }
+
+    @Test
+    public void testStageFailsIfAttributesCannotBeCopied() throws IOException {
+        commandRunner = new CommandRunner() {
+            @Override
+            public CommandResult run(String name, String command, long timeout) {
+                return new CommandResult(command, new Date(), 1, 0, false, "", "Operation not permitted");
+            }
+        };
+        ProcessController controller = newController();
+
+        try {
+            stage(controller, "new rule set");
+            fail("Rule set was staged without the attributes of the configuration file");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+
+        assertFalse(new File(workDirectory, "etm-apache.conf.staged").exists());
+        try {
+            controller.activateRuleSetData();
+            fail("Failed stage was activated");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(FileUtils.readFileToString(configFile), "old rule set");
+    }
+
+    private static void stage(ProcessController controller, String ruleSet) {
+        controller.stageRuleSetData(new ByteArrayInputStream(ruleSet.getBytes()));
+    }
+
+    private static String digest(String ruleSet) {
+        return AgentUtils.ruleSetDigest(ruleSet.getBytes(), DigestAlgorithm.MD5);
+    }
+
+    private ProcessController newController() {
+        return new ProcessController(config, commandRunner, null, null, null, null, ruleSetHistory);
+    }
+}
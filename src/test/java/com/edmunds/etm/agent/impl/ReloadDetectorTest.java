@@ -0,0 +1,191 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the detection of new web server process generations against real processes.
+ */
+public class ReloadDetectorTest {
+
+    // Long enough that a test fails, rather than passes, if it has to wait for it
+    private static final long LONG_TIMEOUT = 10000;
+
+    // A master process that replaces its child on SIGHUP and starts an additional child on SIGUSR1, as Apache does
+    // under load
+    private static final String MASTER_SCRIPT = "trap 'kill $child; sleep 30 & child=$!' HUP\n"
+            + "trap 'sleep 30 &' USR1\n"
+            + "sleep 30 & child=$!\n"
+            + "echo $$ > %s\n"
+            + "while true; do wait; done\n";
+
+    private File workDirectory;
+    private File pidFile;
+    private CommandRunner commandRunner;
+    private ReloadDetector reloadDetector;
+    private List<CommandRunner.RunningCommand> masters;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        workDirectory = File.createTempFile("detector", "");
+        workDirectory.delete();
+        workDirectory.mkdir();
+        pidFile = new File(workDirectory, "httpd.pid");
+
+        ApacheConfig config = new ApacheConfig();
+        config.setPidFile(pidFile.getAbsolutePath());
+        commandRunner = new CommandRunner();
+        reloadDetector = new ReloadDetector(config);
+        masters = Lists.newArrayList();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        for (CommandRunner.RunningCommand master : masters) {
+            master.stop();
+        }
+        commandRunner.destroy();
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Test
+    public void testChildrenReplaced() throws Exception {
+        int pid = startMaster();
+        ReloadDetector.Generation previous = reloadDetector.getGeneration();
+        assertEquals(previous.getMasterPid(), Integer.valueOf(pid));
+        assertEquals(previous.getChildPids().size(), 1);
+
+        long signalTime = System.currentTimeMillis();
+        signal("HUP", pid);
+
+        assertTrue(reloadDetector.awaitNewGeneration(previous, signalTime, LONG_TIMEOUT, true));
+        assertNotNull(reloadDetector.getLastReloadDate());
+    }
+
+    @Test
+    public void testPreviousChildrenStillRunning() throws Exception {
+        int pid = startMaster();
+        ReloadDetector.Generation previous = reloadDetector.getGeneration();
+
+        // The previous child may still be finishing its requests once the new generation is up
+        long signalTime = System.currentTimeMillis();
+        signal("USR1", pid);
+
+        assertTrue(reloadDetector.awaitNewGeneration(previous, signalTime, LONG_TIMEOUT, true));
+        assertTrue(ProcessTable.getChildren(pid).containsAll(previous.getChildPids()));
+    }
+
+    @Test
+    public void testAdditionalChildIsNotNewGeneration() throws Exception {
+        int pid = startMaster();
+        ReloadDetector.Generation previous = reloadDetector.getGeneration();
+
+        // The master starts a child on its own, as for more load, before the reload is requested
+        signal("USR1", pid);
+        awaitChildren(pid, 2);
+        Thread.sleep(200);
+        long signalTime = System.currentTimeMillis();
+
+        assertFalse(reloadDetector.awaitNewGeneration(previous, signalTime, 500, true));
+    }
+
+    @Test
+    public void testChildStartedBeforeRequestIsNotNewGeneration() throws Exception {
+        int pid = startMaster();
+        ReloadDetector.Generation previous = reloadDetector.getGeneration();
+
+        // The child was replaced before the reload was requested
+        signal("HUP", pid);
+        while (previous.getChildPids().containsAll(ProcessTable.getChildren(pid))) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        long signalTime = System.currentTimeMillis();
+
+        assertFalse(reloadDetector.awaitNewGeneration(previous, signalTime, 500, true));
+    }
+
+    @Test
+    public void testMasterExits() throws Exception {
+        int pid = startMaster();
+        ReloadDetector.Generation previous = reloadDetector.getGeneration();
+
+        long signalTime = System.currentTimeMillis();
+        signal("TERM", pid);
+
+        assertFalse(reloadDetector.awaitNewGeneration(previous, signalTime, LONG_TIMEOUT, true));
+        assertTrue(System.currentTimeMillis() - signalTime < LONG_TIMEOUT);
+    }
+
+    @Test
+    public void testNewMaster() throws Exception {
+        int pid = startMaster();
+        ReloadDetector.Generation previous = reloadDetector.getGeneration();
+
+        long startTime = System.currentTimeMillis();
+        pidFile.delete();
+        int newPid = startMaster();
+
+        assertTrue(newPid != pid);
+        assertTrue(reloadDetector.awaitNewGeneration(previous, startTime, LONG_TIMEOUT, false));
+    }
+
+    private void signal(String signal, int pid) {
+        assertTrue(commandRunner.run("signal", String.format("kill -s %s %d", signal, pid), LONG_TIMEOUT).isSuccess());
+    }
+
+    /**
+     * Starts a master process and waits until it has written its pid file and started its child.
+     */
+    private int startMaster() throws Exception {
+        File script = File.createTempFile("master", ".sh", workDirectory);
+        FileUtils.writeStringToFile(script, String.format(MASTER_SCRIPT, pidFile.getAbsolutePath()));
+        masters.add(commandRunner.start("sh " + script.getAbsolutePath(), null));
+
+        long deadline = System.currentTimeMillis() + LONG_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            Integer pid = ProcessTable.readPidFile(pidFile);
+            if (pid != null && !ProcessTable.getChildren(pid).isEmpty()) {
+                return pid;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Master process did not start");
+    }
+
+    private static void awaitChildren(int pid, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + LONG_TIMEOUT;
+        while (ProcessTable.getChildren(pid).size() < count) {
+            assertTrue(System.currentTimeMillis() < deadline, "Children did not start");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.common.api.RuleSetDeploymentResult;
+import com.google.common.collect.Lists;
+import org.apache.zookeeper.KeeperException.Code;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the canary-then-waves rollout permit.
+ */
+public class RolloutRestartPermitTest {
+
+    private static final String ROLLOUT_PREFIX = "/etm/restart-rollout-";
+
+    private FakeZooKeeperConnection connection;
+
+    @BeforeMethod
+    public void setUp() {
+        connection = new FakeZooKeeperConnection();
+        connection.addNode("/etm");
+    }
+
+    @Test
+    public void testCanaryThenWaves() {
+        List<Request> requests = acquire("d1", 8);
+
+        // A single canary, then one more lease per success
+        assertGrantedCount(requests, 1);
+        requests.get(0).permit.release(RuleSetDeploymentResult.OK);
+        assertGrantedCount(requests, 1);
+        assertTrue(requests.get(1).granted);
+
+        requests.get(1).permit.release(RuleSetDeploymentResult.OK);
+        assertGrantedCount(requests, 2);
+        assertTrue(requests.get(2).granted);
+        assertTrue(requests.get(3).granted);
+    }
+
+    @Test
+    public void testMaxWaveSize() {
+        List<Request> requests = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            Request request = new Request("d1", 1, 4, 2);
+            request.permit.acquire(request);
+            requests.add(request);
+        }
+
+        requests.get(0).permit.release(RuleSetDeploymentResult.OK);
+        assertGrantedCount(requests, 2);
+    }
+
+    @Test
+    public void testFailureHaltsRollout() {
+        List<Request> requests = acquire("d1", 3);
+
+        requests.get(0).permit.release(RuleSetDeploymentResult.HEALTH_CHECK_FAILED);
+
+        assertFalse(requests.get(1).granted);
+        assertTrue(requests.get(1).released);
+        assertTrue(requests.get(2).released);
+    }
+
+    @Test
+    public void testFailureOutlivesSession() {
+        List<Request> requests = acquire("d1", 1);
+        requests.get(0).permit.release(RuleSetDeploymentResult.HEALTH_CHECK_FAILED);
+
+        connection.expireEphemeralNodes();
+
+        // Agents that start later still find the rollout halted
+        Request late = acquire("d1", 1).get(0);
+        assertFalse(late.granted);
+        assertTrue(late.released);
+    }
+
+    @Test
+    public void testSuccessesAreEphemeral() {
+        acquire("d1", 1).get(0).permit.release(RuleSetDeploymentResult.OK);
+
+        for (String child : connection.getChildren(ROLLOUT_PREFIX + "d1")) {
+            assertTrue(connection.isEphemeral(ROLLOUT_PREFIX + "d1/" + child), child);
+        }
+    }
+
+    @Test
+    public void testNewRolloutDeletesStaleRollouts() {
+        acquire("d1", 1).get(0).permit.release(RuleSetDeploymentResult.HEALTH_CHECK_FAILED);
+        connection.addNode("/etm/restart-election");
+
+        acquire("d2", 1);
+
+        assertFalse(connection.hasNode(ROLLOUT_PREFIX + "d1"));
+        assertTrue(connection.hasNode(ROLLOUT_PREFIX + "d2"));
+        assertTrue(connection.hasNode("/etm/restart-election"));
+    }
+
+    @Test
+    public void testRolloutDeletedBeforeLeaseIsCreated() {
+        acquire("d1", 1).get(0).permit.release(RuleSetDeploymentResult.HEALTH_CHECK_FAILED);
+
+        // Another agent deletes the halted rollout between the creation of the rollout node and the lease node
+        Request request = new Request(new RolloutRestartPermit(connection, ROLLOUT_PREFIX, "d1", 1, 1, 0) {
+            private boolean interleaved;
+
+            @Override
+            protected void onLeaseParentCreated(Code rc, String path) {
+                if (!interleaved) {
+                    interleaved = true;
+                    RolloutRestartPermitTest.this.acquire("d2", 1);
+                    assertFalse(connection.hasNode(ROLLOUT_PREFIX + "d1"));
+                }
+                super.onLeaseParentCreated(rc, path);
+            }
+        });
+        request.permit.acquire(request);
+
+        // The rollout node is created again, without the failure of the deleted rollout
+        assertTrue(request.granted);
+        assertFalse(request.released);
+        assertEquals(connection.getChildren(ROLLOUT_PREFIX + "d1").size(), 1);
+    }
+
+    @Test
+    public void testActiveRolloutIsKept() {
+        List<Request> d1 = acquire("d1", 2);
+
+        acquire("d2", 1);
+
+        // An agent still waits for a lease on the older rollout
+        assertTrue(connection.hasNode(ROLLOUT_PREFIX + "d1"));
+        assertFalse(d1.get(1).released);
+    }
+
+    @Test
+    public void testNoWatchAfterRelease() {
+        List<Request> requests = acquire("d1", 1);
+        requests.get(0).permit.release(RuleSetDeploymentResult.OK);
+
+        // Results recorded by other agents do not make the released request re-read the rollout
+        int reads = connection.getChildReads();
+        for (int i = 0; i < 3; i++) {
+            connection.addNode(ROLLOUT_PREFIX + "d1/ok-other-" + i);
+        }
+        assertEquals(connection.getChildReads(), reads);
+        assertEquals(connection.getChildWatchCount(ROLLOUT_PREFIX + "d1"), 0);
+    }
+
+    private List<Request> acquire(String digest, int count) {
+        List<Request> requests = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            Request request = new Request(digest, 1, 1, 0);
+            request.permit.acquire(request);
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    private static void assertGrantedCount(List<Request> requests, int count) {
+        int granted = 0;
+        for (Request request : requests) {
+            if (request.granted) {
+                granted++;
+            }
+        }
+        assertEquals(granted, count);
+    }
+
+    /**
+     * A rollout lease request and the permit changes it has been notified of.
+     */
+    private class Request implements RestartPermitListener {
+        private final RolloutRestartPermit permit;
+        private boolean granted;
+        private boolean released;
+
+        Request(String digest, int canaryCount, int waveFactor, int maxWaveSize) {
+            this(new RolloutRestartPermit(connection, ROLLOUT_PREFIX, digest, canaryCount, waveFactor, maxWaveSize));
+        }
+
+        Request(RolloutRestartPermit permit) {
+            this.permit = permit;
+        }
+
+        @Override
+        public void onRestartPermitChange(boolean granted) {
+            this.granted = granted;
+            if (!granted) {
+                released = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.DigestAlgorithm;
+import com.edmunds.etm.agent.StreamingDigest;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests the parsing and application of rule set deltas.
+ */
+public class RuleSetDeltaTest {
+
+    private static final DigestAlgorithm ALGORITHM = DigestAlgorithm.MD5;
+
+    private static final byte[] BASE = "Listen 80\nRewriteRule ^/a /b\n".getBytes();
+    private static final byte[] TARGET = "Listen 80\nRewriteRule ^/a /c\n".getBytes();
+
+    private File spoolDirectory;
+    private SpooledRuleSet base;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        spoolDirectory = File.createTempFile("delta", "");
+        spoolDirectory.delete();
+        spoolDirectory.mkdir();
+        base = spool(BASE);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(spoolDirectory);
+    }
+
+    @Test
+    public void testParseHeader() throws IOException {
+        RuleSetDelta delta = RuleSetDelta.parse(payload(7, base.getDigest(), digest(TARGET), new byte[0]));
+
+        assertEquals(delta.getTargetVersion(), 7);
+        assertEquals(delta.getBaseDigest(), base.getDigest());
+        assertEquals(delta.getTargetDigest(), digest(TARGET));
+    }
+
+    @Test
+    public void testGetDeltaPath() {
+        assertEquals(RuleSetDelta.getDeltaPath("/etm/rules", "abc"), "/etm/rules/deltas/abc");
+    }
+
+    @Test
+    public void testApply() throws IOException {
+        RuleSetDelta delta = RuleSetDelta.parse(payload(1, base.getDigest(), digest(TARGET), patch()));
+
+        SpooledRuleSet target = delta.apply(base, spoolDirectory, ALGORITHM);
+
+        assertEquals(target.getDigest(), digest(TARGET));
+        InputStream in = target.openStream();
+        try {
+            assertEquals(IOUtils.toByteArray(in), TARGET);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        target.delete();
+        assertSpoolFiles(1);
+    }
+
+    @Test
+    public void testApplyToFile() throws IOException {
+        File baseFile = new File(spoolDirectory.getParentFile(), spoolDirectory.getName() + ".conf");
+        FileUtils.writeByteArrayToFile(baseFile, BASE);
+        RuleSetDelta delta = RuleSetDelta.parse(payload(1, digest(BASE), digest(TARGET), patch()));
+
+        SpooledRuleSet target;
+        try {
+            target = delta.apply(baseFile, spoolDirectory, ALGORITHM);
+        } finally {
+            baseFile.delete();
+        }
+
+        assertEquals(target.getDigest(), digest(TARGET));
+        target.delete();
+        assertSpoolFiles(1);
+    }
+
+    @Test
+    public void testApplyToChangedFile() throws IOException {
+        File baseFile = new File(spoolDirectory, "base.conf");
+        FileUtils.writeByteArrayToFile(baseFile, "Listen 81\nRewriteRule ^/a /b\n".getBytes());
+        RuleSetDelta delta = RuleSetDelta.parse(payload(1, digest(BASE), digest(TARGET), patch()));
+
+        try {
+            delta.apply(baseFile, spoolDirectory, ALGORITHM);
+            fail("Delta was applied to the wrong base");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // Only the spooled base and the base file remain
+        assertSpoolFiles(2);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testWrongEncoding() throws IOException {
+        RuleSetDelta.parse(RuleSetPayload.parse(BASE));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncatedHeader() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(RuleSetPayload.MAGIC);
+        out.write(RuleSetDelta.ENCODING_NAME.length());
+        out.write(RuleSetDelta.ENCODING_NAME.getBytes("US-ASCII"));
+        out.write(new byte[]{0, 0, 0, 1, 0, 3, 'a'});
+
+        RuleSetDelta.parse(RuleSetPayload.parse(out.toByteArray()));
+    }
+
+    @Test
+    public void testWrongBase() throws IOException {
+        RuleSetDelta delta = RuleSetDelta.parse(payload(1, digest(TARGET), digest(TARGET), patch()));
+
+        assertApplyFails(delta);
+    }
+
+    @Test
+    public void testCopyOutOfBounds() throws IOException {
+        ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(instructions);
+        out.writeByte('C');
+        out.writeInt(10);
+        out.writeInt(BASE.length);
+
+        assertApplyFails(RuleSetDelta.parse(payload(1, base.getDigest(), digest(TARGET), instructions.toByteArray())));
+    }
+
+    @Test
+    public void testNegativeInsertLength() throws IOException {
+        ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(instructions);
+        out.writeByte('I');
+        out.writeInt(-1);
+
+        assertApplyFails(RuleSetDelta.parse(payload(1, base.getDigest(), digest(TARGET), instructions.toByteArray())));
+    }
+
+    @Test
+    public void testTruncatedInsert() throws IOException {
+        ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(instructions);
+        out.writeByte('I');
+        out.writeInt(100);
+        out.write(TARGET);
+
+        assertApplyFails(RuleSetDelta.parse(payload(1, base.getDigest(), digest(TARGET), instructions.toByteArray())));
+    }
+
+    @Test
+    public void testTruncatedCopy() throws IOException {
+        assertApplyFails(RuleSetDelta.parse(payload(1, base.getDigest(), digest(TARGET), new byte[]{'C', 0, 0})));
+    }
+
+    @Test
+    public void testUnknownInstruction() throws IOException {
+        assertApplyFails(RuleSetDelta.parse(payload(1, base.getDigest(), digest(TARGET), new byte[]{'X'})));
+    }
+
+    @Test
+    public void testTargetMismatch() throws IOException {
+        RuleSetDelta delta = RuleSetDelta.parse(payload(1, base.getDigest(), digest(BASE), patch()));
+
+        assertApplyFails(delta);
+    }
+
+    /**
+     * Builds instructions that turn {@link #BASE} into {@link #TARGET}.
+     */
+    private static byte[] patch() throws IOException {
+        ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(instructions);
+        out.writeByte('C');
+        out.writeInt(0);
+        out.writeInt(BASE.length - 2);
+        out.writeByte('I');
+        out.writeInt(2);
+        out.write(TARGET, TARGET.length - 2, 2);
+        return instructions.toByteArray();
+    }
+
+    private void assertApplyFails(RuleSetDelta delta) throws IOException {
+        try {
+            delta.apply(base, spoolDirectory, ALGORITHM);
+            fail("Invalid delta was applied");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // Only the base remains
+        assertSpoolFiles(1);
+    }
+
+    private void assertSpoolFiles(int count) {
+        assertEquals(spoolDirectory.list().length, count);
+    }
+
+    private SpooledRuleSet spool(byte[] data) throws IOException {
+        return SpooledRuleSet.spool(new ByteArrayInputStream(data), spoolDirectory, ALGORITHM);
+    }
+
+    private static String digest(byte[] data) {
+        StreamingDigest digest = ALGORITHM.newDigest();
+        digest.update(data, 0, data.length);
+        return digest.digest();
+    }
+
+    private static RuleSetPayload payload(int version, String baseDigest, String targetDigest, byte[] instructions)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(RuleSetPayload.MAGIC);
+        out.writeByte(RuleSetDelta.ENCODING_NAME.length());
+        out.writeBytes(RuleSetDelta.ENCODING_NAME);
+        out.writeInt(version);
+        out.writeUTF(baseDigest);
+        out.writeUTF(targetDigest);
+        out.write(instructions);
+        return RuleSetPayload.parse(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.DigestAlgorithm;
+import com.edmunds.etm.agent.StreamingDigest;
+import com.edmunds.etm.agent.api.HealthCheck;
+import com.edmunds.etm.agent.api.HealthCheckListener;
+import com.edmunds.etm.agent.api.WebServerController;
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import com.edmunds.etm.common.api.RuleSetDeploymentEvent;
+import com.edmunds.etm.common.api.RuleSetDeploymentResult;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the rule set deployment state machine, including its deadlines and the loss of the restart permit.
+ */
+public class RuleSetDeploymentTaskTest {
+
+    private static final String OLD_DIGEST = "0123456789abcdef";
+
+    // Long enough that a test fails, rather than passes, if it has to wait for it
+    private static final long LONG_TIMEOUT = 10000;
+
+    private File workDirectory;
+    private ApacheConfig config;
+    private ScheduledExecutorService executor;
+    private ExecutorService commandExecutor;
+    private FakeServerController serverController;
+    private FakeAgentReporter agentReporter;
+    private RuleSetHistory ruleSetHistory;
+    private LivenessMonitor livenessMonitor;
+    private FakeRestartPermit restartPermit;
+    private CountDownLatch complete;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        workDirectory = File.createTempFile("deployment", "");
+        workDirectory.delete();
+        workDirectory.mkdir();
+
+        config = new ApacheConfig();
+        config.setWorkDirectory(workDirectory.getAbsolutePath());
+
+        executor = Executors.newSingleThreadScheduledExecutor();
+        commandExecutor = Executors.newSingleThreadExecutor();
+        serverController = new FakeServerController();
+        agentReporter = new FakeAgentReporter(serverController);
+        ruleSetHistory = new RuleSetHistory(config);
+        livenessMonitor = new LivenessMonitor(serverController, null, agentReporter, config);
+        restartPermit = new FakeRestartPermit();
+        complete = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        commandExecutor.shutdownNow();
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Test
+    public void testDeploy() throws Exception {
+        restartPermit.grantOnAcquire = true;
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, LONG_TIMEOUT);
+
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.OK);
+        assertEquals(agentReporter.activeRuleSetDigest, task.getNewRuleSetDigest());
+        assertEquals(restartPermit.releasedResults, Collections.singletonList(RuleSetDeploymentResult.OK));
+        assertEquals(serverController.actions, Lists.newArrayList("stage", "activate", "restart"));
+        assertTrue(ruleSetHistory.contains(task.getNewRuleSetDigest()));
+        assertTrue(ruleSetHistory.contains(OLD_DIGEST));
+        assertSpoolIsEmpty();
+    }
+
+    @Test
+    public void testUpToDate() throws Exception {
+        serverController.digest = digest("rule set");
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, LONG_TIMEOUT);
+
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.OK);
+        assertFalse(restartPermit.acquired);
+        assertTrue(serverController.actions.isEmpty());
+    }
+
+    @Test
+    public void testStagedSyntaxCheckFails() throws Exception {
+        serverController.syntaxOk = false;
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, LONG_TIMEOUT);
+
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.SYNTAX_CHECK_FAILED);
+        assertFalse(restartPermit.acquired);
+        assertEquals(agentReporter.activeRuleSetDigest, OLD_DIGEST);
+    }
+
+    @Test
+    public void testSmokeTestFails() throws Exception {
+        serverController.smokeTestOk = false;
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, LONG_TIMEOUT);
+
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.HEALTH_CHECK_FAILED);
+        assertFalse(restartPermit.acquired);
+        assertEquals(serverController.actions, Collections.singletonList("stage"));
+        assertEquals(agentReporter.activeRuleSetDigest, OLD_DIGEST);
+    }
+
+    @Test
+    public void testSyntaxCheckAfterActivation() throws Exception {
+        serverController.stagedSyntaxCheckSupported = false;
+        serverController.syntaxOk = false;
+        restartPermit.grantOnAcquire = true;
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, LONG_TIMEOUT);
+
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.SYNTAX_CHECK_FAILED);
+        assertTrue(restartPermit.acquired);
+        assertEquals(serverController.actions.subList(0, 3), Arrays.asList("stage", "activate", "rollback"));
+    }
+
+    @Test
+    public void testRestartDoesNotBlockExecutor() throws Exception {
+        restartPermit.grantOnAcquire = true;
+        serverController.restartBlocked = new CountDownLatch(1);
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, LONG_TIMEOUT);
+        serverController.awaitRestart();
+
+        // The executor processes other work while the restart command runs
+        Future<?> work = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        work.get(LONG_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        assertEquals(task.getState(), RuleSetDeploymentTask.State.DEPLOYING);
+
+        serverController.restartBlocked.countDown();
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.OK);
+    }
+
+    @Test
+    public void testPermitDeadline() throws Exception {
+        RuleSetDeploymentTask task = start(100, LONG_TIMEOUT);
+
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.UNKNOWN);
+        assertEquals(restartPermit.releasedResults, Collections.singletonList(RuleSetDeploymentResult.UNKNOWN));
+        assertFalse(serverController.actions.contains("activate"));
+    }
+
+    @Test
+    public void testNoPermitDeadline() throws Exception {
+        RuleSetDeploymentTask task = start(0, 100);
+
+        // Without a permit timeout the task keeps waiting, even past the phase timeout
+        restartPermit.awaitAcquire();
+        Thread.sleep(300);
+        assertEquals(task.getState(), RuleSetDeploymentTask.State.WAITING_FOR_PERMIT);
+
+        // It is granted the permit eventually
+        restartPermit.grant();
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.OK);
+    }
+
+    @Test
+    public void testCancelWhileWaiting() throws Exception {
+        RuleSetDeploymentTask task = start(0, LONG_TIMEOUT);
+        restartPermit.awaitAcquire();
+
+        task.cancel();
+
+        awaitCompletion(task);
+        assertTrue(task.isCancelled());
+        assertNull(agentReporter.event);
+        assertEquals(restartPermit.releasedResults, Collections.singletonList(RuleSetDeploymentResult.UNKNOWN));
+    }
+
+    @Test
+    public void testCancelBeforeStart() throws Exception {
+        RuleSetDeploymentTask task = new RuleSetDeploymentTask(spool("rule set"), serverController, agentReporter,
+                ruleSetHistory, livenessMonitor, restartPermit);
+
+        task.cancel();
+        startOnExecutor(task, 0, LONG_TIMEOUT);
+
+        awaitCompletion(task);
+        assertTrue(task.isCancelled());
+        assertFalse(restartPermit.acquired);
+        assertNull(agentReporter.event);
+        assertTrue(serverController.actions.isEmpty());
+        assertSpoolIsEmpty();
+    }
+
+    @Test
+    public void testCancelWhilePreparing() throws Exception {
+        serverController.smokeTestBlocked = new CountDownLatch(1);
+        RuleSetDeploymentTask task = start(0, LONG_TIMEOUT);
+        serverController.awaitSmokeTest();
+
+        // The cancellation takes effect once the preparation is complete
+        task.cancel();
+        serverController.smokeTestBlocked.countDown();
+
+        awaitCompletion(task);
+        assertTrue(task.isCancelled());
+        assertFalse(restartPermit.acquired);
+        assertNull(agentReporter.event);
+    }
+
+    @Test
+    public void testHealthCheckDeadline() throws Exception {
+        restartPermit.grantOnAcquire = true;
+        serverController.healthCheckResult = null;
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, 100);
+
+        // Neither the health check nor the rollback check completes
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.ROLLBACK_FAILED);
+        assertEquals(serverController.actions,
+                Lists.newArrayList("stage", "activate", "restart", "rollback", "restart"));
+        assertEquals(restartPermit.releasedResults,
+                Collections.singletonList(RuleSetDeploymentResult.ROLLBACK_FAILED));
+        assertFalse(ruleSetHistory.contains(task.getNewRuleSetDigest()));
+    }
+
+    @Test
+    public void testRunningCheckDeadline() throws Exception {
+        restartPermit.grantOnAcquire = true;
+        serverController.runningCheckResult = null;
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, 100);
+
+        // The server state is unknown, so it is restarted rather than started
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.OK);
+        assertEquals(serverController.actions, Lists.newArrayList("stage", "activate", "restart"));
+    }
+
+    @Test
+    public void testHealthCheckFailsAndRollsBack() throws Exception {
+        restartPermit.grantOnAcquire = true;
+        serverController.healthCheckResults.add(false);
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, LONG_TIMEOUT);
+
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.HEALTH_CHECK_FAILED);
+        assertEquals(agentReporter.activeRuleSetDigest, OLD_DIGEST);
+        assertEquals(serverController.actions,
+                Lists.newArrayList("stage", "activate", "restart", "rollback", "restart"));
+    }
+
+    @Test
+    public void testPermitLostDuringDeployment() throws Exception {
+        restartPermit.grantOnAcquire = true;
+        serverController.healthCheckResult = null;
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, LONG_TIMEOUT);
+        serverController.awaitHealthCheck();
+
+        // The session expires while the health check runs
+        restartPermit.lose();
+        serverController.completeHealthCheck(true);
+
+        // The deployment completes without waiting for a release notification
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.OK);
+    }
+
+    @Test
+    public void testReleaseDeadline() throws Exception {
+        restartPermit.grantOnAcquire = true;
+        restartPermit.notifyOnRelease = false;
+        RuleSetDeploymentTask task = start(LONG_TIMEOUT, 100);
+
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.OK);
+        assertEquals(restartPermit.releasedResults, Collections.singletonList(RuleSetDeploymentResult.OK));
+    }
+
+    @Test
+    public void testLocalTask() throws Exception {
+        final RuleSetDeploymentTask task = RuleSetDeploymentTask.newLocalTask(spool("rule set"), serverController,
+                agentReporter, ruleSetHistory, livenessMonitor);
+        startOnExecutor(task, LONG_TIMEOUT, LONG_TIMEOUT);
+
+        awaitCompletion(task);
+        assertEquals(agentReporter.getResult(), RuleSetDeploymentResult.OK);
+        assertFalse(restartPermit.acquired);
+    }
+
+    private RuleSetDeploymentTask start(long permitTimeout, long phaseTimeout) throws IOException {
+        RuleSetDeploymentTask task = new RuleSetDeploymentTask(spool("rule set"), serverController, agentReporter,
+                ruleSetHistory, livenessMonitor, restartPermit);
+        startOnExecutor(task, permitTimeout, phaseTimeout);
+        return task;
+    }
+
+    private void startOnExecutor(final RuleSetDeploymentTask task, final long permitTimeout,
+                                 final long phaseTimeout) {
+        restartPermit.task = task;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                task.start(executor, commandExecutor, permitTimeout, phaseTimeout, new RuleSetDeploymentListener() {
+                    @Override
+                    public void onDeploymentComplete(RuleSetDeploymentTask task) {
+                        complete.countDown();
+                    }
+                });
+            }
+        });
+    }
+
+    private void awaitCompletion(RuleSetDeploymentTask task) throws InterruptedException {
+        assertTrue(complete.await(LONG_TIMEOUT / 2, TimeUnit.MILLISECONDS), "Stuck in state " + task.getState());
+        assertEquals(task.getState(), RuleSetDeploymentTask.State.DONE);
+    }
+
+    private void assertSpoolIsEmpty() {
+        String[] files = config.getSpoolDirectory().list();
+        assertEquals(files == null ? 0 : files.length, 0);
+    }
+
+    private SpooledRuleSet spool(String data) throws IOException {
+        return SpooledRuleSet.spool(new ByteArrayInputStream(data.getBytes()), config.getSpoolDirectory(),
+                DigestAlgorithm.MD5);
+    }
+
+    private static String digest(String data) {
+        byte[] bytes = data.getBytes();
+        StreamingDigest digest = DigestAlgorithm.MD5.newDigest();
+        digest.update(bytes, 0, bytes.length);
+        return digest.digest();
+    }
+
+    /**
+     * A restart permit that is granted on demand.
+     */
+    private static class FakeRestartPermit implements RestartPermit {
+        private volatile RuleSetDeploymentTask task;
+        private volatile boolean grantOnAcquire;
+        private volatile boolean notifyOnRelease = true;
+        private volatile boolean acquired;
+        private volatile boolean lost;
+        private final CountDownLatch acquireCalled = new CountDownLatch(1);
+        private final List<RuleSetDeploymentResult> releasedResults =
+                Collections.synchronizedList(Lists.<RuleSetDeploymentResult>newArrayList());
+
+        @Override
+        public void acquire(RestartPermitListener listener) {
+            acquired = true;
+            acquireCalled.countDown();
+            if (grantOnAcquire) {
+                grant();
+            }
+        }
+
+        @Override
+        public void release(RuleSetDeploymentResult result) {
+            releasedResults.add(result);
+            if (notifyOnRelease && !lost) {
+                task.onRestartPermitChange(false);
+            }
+        }
+
+        void awaitAcquire() throws InterruptedException {
+            assertTrue(acquireCalled.await(LONG_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void grant() {
+            task.onRestartPermitChange(true);
+        }
+
+        void lose() {
+            lost = true;
+            task.onRestartPermitChange(false);
+        }
+    }
+
+    /**
+     * A web server controller whose health checks complete as configured.
+     */
+    private static class FakeServerController implements WebServerController {
+        private volatile String digest = OLD_DIGEST;
+        private volatile boolean syntaxOk = true;
+        private volatile boolean stagedSyntaxCheckSupported = true;
+        private volatile boolean smokeTestOk = true;
+        private volatile Boolean healthCheckResult = true;
+        private volatile Boolean runningCheckResult = true;
+        private final List<Boolean> healthCheckResults = Collections.synchronizedList(Lists.<Boolean>newArrayList());
+        private final List<String> actions = Collections.synchronizedList(Lists.<String>newArrayList());
+        private final CountDownLatch healthCheckStarted = new CountDownLatch(1);
+        private final CountDownLatch restartStarted = new CountDownLatch(1);
+        private volatile CountDownLatch restartBlocked;
+        private final CountDownLatch smokeTestStarted = new CountDownLatch(1);
+        private volatile CountDownLatch smokeTestBlocked;
+        private volatile HealthCheckListener pendingHealthCheck;
+
+        @Override
+        public InputStream openRuleSetData() {
+            return new ByteArrayInputStream("old rule set".getBytes());
+        }
+
+        @Override
+        public String getRuleSetDigest() {
+            return digest;
+        }
+
+        @Override
+        public void stageRuleSetData(InputStream ruleSetData) {
+            actions.add("stage");
+        }
+
+        @Override
+        public void activateRuleSetData() {
+            actions.add("activate");
+        }
+
+        @Override
+        public void rollBackRuleSetData() {
+            actions.add("rollback");
+        }
+
+        @Override
+        public boolean checkSyntax() {
+            return syntaxOk;
+        }
+
+        @Override
+        public boolean isStagedSyntaxCheckSupported() {
+            return stagedSyntaxCheckSupported;
+        }
+
+        @Override
+        public boolean checkStagedSyntax() {
+            return !stagedSyntaxCheckSupported || syntaxOk;
+        }
+
+        @Override
+        public boolean smokeTestStagedRuleSet() {
+            smokeTestStarted.countDown();
+            await(smokeTestBlocked);
+            return smokeTestOk;
+        }
+
+        @Override
+        public boolean start() {
+            actions.add("start");
+            return true;
+        }
+
+        @Override
+        public boolean restart() {
+            actions.add("restart");
+            restartStarted.countDown();
+            await(restartBlocked);
+            return true;
+        }
+
+        void awaitRestart() throws InterruptedException {
+            assertTrue(restartStarted.await(LONG_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void awaitSmokeTest() throws InterruptedException {
+            assertTrue(smokeTestStarted.await(LONG_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        /**
+         * Blocks the command executor like a long-running command, until the test opens the latch.
+         */
+        private void await(CountDownLatch latch) {
+            if (latch == null) {
+                return;
+            }
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public HealthCheck newHealthCheck() {
+            final Boolean result = healthCheckResults.isEmpty() ? healthCheckResult : healthCheckResults.remove(0);
+            return new HealthCheck() {
+                @Override
+                public void execute(HealthCheckListener listener) {
+                    pendingHealthCheck = listener;
+                    healthCheckStarted.countDown();
+                    if (result != null) {
+                        listener.onHealthCheckComplete(result);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public HealthCheck newRunningCheck() {
+            final Boolean result = runningCheckResult;
+            return new HealthCheck() {
+                @Override
+                public void execute(HealthCheckListener listener) {
+                    if (result != null) {
+                        listener.onHealthCheckComplete(result);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public HealthCheck newLivenessCheck() {
+            return newRunningCheck();
+        }
+
+        void awaitHealthCheck() throws InterruptedException {
+            assertTrue(healthCheckStarted.await(LONG_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void completeHealthCheck(boolean alive) {
+            pendingHealthCheck.onHealthCheckComplete(alive);
+        }
+    }
+
+    /**
+     * An agent reporter that records the last deployment event instead of publishing it.
+     */
+    private static class FakeAgentReporter extends AgentReporter {
+        private volatile RuleSetDeploymentEvent event;
+        private volatile String activeRuleSetDigest;
+
+        FakeAgentReporter(WebServerController serverController) {
+            super(null, null, serverController, null, null);
+        }
+
+        @Override
+        public void publishDeploymentEvent(RuleSetDeploymentEvent event, String activeRuleSetDigest) {
+            this.event = event;
+            this.activeRuleSetDigest = activeRuleSetDigest;
+        }
+
+        RuleSetDeploymentResult getResult() {
+            return event == null ? null : event.getResult();
+        }
+    }
+}
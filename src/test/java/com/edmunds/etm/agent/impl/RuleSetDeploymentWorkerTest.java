@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the coalescing and debouncing of deployment tasks by the deployment worker.
+ */
+public class RuleSetDeploymentWorkerTest {
+
+    // Long enough that a test fails, rather than passes, if it has to wait for it
+    private static final long LONG_TIMEOUT = 10000;
+
+    private ApacheConfig config;
+    private RuleSetDeploymentWorker worker;
+
+    @BeforeMethod
+    public void setUp() {
+        config = new ApacheConfig();
+        config.setDeploymentQuietPeriod(0);
+        config.setDeploymentMaxDelay(0);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        if (worker != null) {
+            worker.destroy();
+        }
+    }
+
+    @Test
+    public void testCoalescesTasksBehindActiveTask() throws Exception {
+        worker = new RuleSetDeploymentWorker(config);
+        FakeTask first = new FakeTask();
+        worker.execute(first);
+        first.awaitStart();
+
+        FakeTask second = new FakeTask();
+        FakeTask third = new FakeTask();
+        worker.execute(second);
+        worker.execute(third);
+
+        assertTrue(second.discarded);
+        assertEquals(first.cancelRequests, 2);
+        assertTrue(worker.isDeploymentPending());
+
+        first.complete();
+        third.awaitStart();
+        assertEquals(second.started.getCount(), 1);
+        assertEquals(worker.getSubmittedCount(), 3);
+        assertEquals(worker.getSupersededCount(), 1);
+        assertEquals(worker.getDeployedCount(), 2);
+    }
+
+    @Test
+    public void testQuietPeriod() throws Exception {
+        config.setDeploymentQuietPeriod(300);
+        worker = new RuleSetDeploymentWorker(config);
+
+        FakeTask first = new FakeTask();
+        FakeTask second = new FakeTask();
+        worker.execute(first);
+        Thread.sleep(100);
+        long submitted = System.currentTimeMillis();
+        worker.execute(second);
+
+        second.awaitStart();
+        assertTrue(second.startTime - submitted >= 300);
+        assertTrue(first.discarded);
+        assertEquals(first.started.getCount(), 1);
+        assertEquals(worker.getDeployedCount(), 1);
+    }
+
+    @Test
+    public void testMaxDelay() throws Exception {
+        config.setDeploymentQuietPeriod(300);
+        config.setDeploymentMaxDelay(400);
+        worker = new RuleSetDeploymentWorker(config);
+
+        // Updates arrive faster than the quiet period for longer than the maximum delay
+        for (int i = 0; i < 10; i++) {
+            worker.execute(new FakeTask());
+            Thread.sleep(100);
+        }
+
+        assertEquals(worker.getDeployedCount(), 1);
+        assertTrue(worker.isDeploymentPending());
+    }
+
+    @Test
+    public void testExecuteImmediatelySkipsQuietPeriod() throws Exception {
+        config.setDeploymentQuietPeriod(LONG_TIMEOUT);
+        worker = new RuleSetDeploymentWorker(config);
+
+        FakeTask task = new FakeTask();
+        worker.executeImmediately(task);
+
+        task.awaitStart();
+    }
+
+    @Test
+    public void testDestroyDiscardsPendingTask() throws Exception {
+        config.setDeploymentQuietPeriod(LONG_TIMEOUT);
+        worker = new RuleSetDeploymentWorker(config);
+        FakeTask task = new FakeTask();
+        worker.execute(task);
+
+        worker.destroy();
+        worker = null;
+
+        assertTrue(task.discarded);
+        assertEquals(task.started.getCount(), 1);
+    }
+
+    /**
+     * A deployment task that records how the worker drives it.
+     */
+    private static class FakeTask extends RuleSetDeploymentTask {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile long startTime;
+        private volatile RuleSetDeploymentListener listener;
+        private volatile int cancelRequests;
+        private volatile boolean discarded;
+
+        FakeTask() {
+            super(null, null, null, null, null, null);
+        }
+
+        @Override
+        public void start(ScheduledExecutorService executor, Executor commandExecutor, long permitTimeout,
+                          long phaseTimeout, RuleSetDeploymentListener listener) {
+            this.listener = listener;
+            startTime = System.currentTimeMillis();
+            started.countDown();
+        }
+
+        @Override
+        public void cancel() {
+            cancelRequests++;
+        }
+
+        @Override
+        public void discard() {
+            discarded = true;
+        }
+
+        void awaitStart() throws InterruptedException {
+            assertTrue(started.await(LONG_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void complete() {
+            listener.onDeploymentComplete(this);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.AgentUtils;
+import com.edmunds.etm.agent.DigestAlgorithm;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests when the rule set digest index trusts its cached digest.
+ */
+public class RuleSetDigestIndexTest {
+
+    private static final DigestAlgorithm ALGORITHM = DigestAlgorithm.MD5;
+
+    private static final long HOUR = 60L * 60 * 1000;
+
+    private File directory;
+    private File file;
+    private RuleSetDigestIndex index;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = File.createTempFile("digest", "");
+        directory.delete();
+        directory.mkdir();
+        file = new File(directory, "etm-apache.conf");
+        index = new RuleSetDigestIndex(file, ALGORITHM);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testMissingFile() throws IOException {
+        assertEquals(index.getDigest(), digest(""));
+    }
+
+    @Test
+    public void testLengthChange() throws IOException {
+        long lastModified = System.currentTimeMillis() - HOUR;
+        write(file, "rule set a", lastModified);
+        assertEquals(index.getDigest(), digest("rule set a"));
+
+        write(file, "rule set ab", lastModified);
+        assertEquals(index.getDigest(), digest("rule set ab"));
+    }
+
+    @Test
+    public void testSettledFileIsCached() throws IOException {
+        long lastModified = System.currentTimeMillis() - HOUR;
+        write(file, "rule set a", lastModified);
+        assertEquals(index.getDigest(), digest("rule set a"));
+
+        // Same length and modification time, so the change is invisible to the index
+        write(file, "rule set b", lastModified);
+        assertEquals(index.getDigest(), digest("rule set a"));
+    }
+
+    @Test
+    public void testRecentlyModifiedFileIsHashedAgain() throws IOException {
+        long lastModified = System.currentTimeMillis() / 1000 * 1000;
+        write(file, "rule set a", lastModified);
+        assertEquals(index.getDigest(), digest("rule set a"));
+
+        // Replaced by a rename within the same modification time tick
+        File replacement = new File(directory, "replacement");
+        write(replacement, "rule set b", lastModified);
+        file.delete();
+        replacement.renameTo(file);
+        assertEquals(index.getDigest(), digest("rule set b"));
+    }
+
+    @Test
+    public void testUpdate() throws IOException {
+        long lastModified = System.currentTimeMillis() - HOUR;
+        write(file, "rule set a", lastModified);
+
+        index.update("written");
+        assertEquals(index.getDigest(), "written");
+    }
+
+    private static void write(File target, String data, long lastModified) throws IOException {
+        FileUtils.writeStringToFile(target, data);
+        target.setLastModified(lastModified);
+    }
+
+    private static String digest(String data) {
+        return AgentUtils.ruleSetDigest(data.getBytes(), ALGORITHM);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.DigestAlgorithm;
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests storing, pruning and spooling rule sets in the local history.
+ */
+public class RuleSetHistoryTest {
+
+    private static final long HOUR = 60L * 60 * 1000;
+
+    private File workDirectory;
+    private ApacheConfig config;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        workDirectory = File.createTempFile("history", "");
+        workDirectory.delete();
+        workDirectory.mkdir();
+
+        config = new ApacheConfig();
+        config.setWorkDirectory(workDirectory.getAbsolutePath());
+        config.setHistorySize(3);
+        config.setHistoryMaxBytes(1000);
+        config.setHistoryMaxAge(24 * HOUR);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Test
+    public void testStoreAndSpool() throws IOException {
+        RuleSetHistory history = new RuleSetHistory(config);
+        history.store("aa", stream("rule set a"));
+
+        assertTrue(history.contains("aa"));
+        assertFalse(history.contains("bb"));
+        assertNull(history.spool("bb", config.getSpoolDirectory(), DigestAlgorithm.MD5));
+    }
+
+    @Test
+    public void testSpoolVerifiesDigest() throws IOException {
+        RuleSetHistory history = new RuleSetHistory(config);
+        SpooledRuleSet ruleSet = SpooledRuleSet.spool(stream("rule set a"), config.getSpoolDirectory(),
+                DigestAlgorithm.MD5);
+        history.store(ruleSet);
+        ruleSet.delete();
+
+        SpooledRuleSet copy = history.spool(ruleSet.getDigest(), config.getSpoolDirectory(), DigestAlgorithm.MD5);
+        InputStream in = copy.openStream();
+        try {
+            assertEquals(IOUtils.toString(in), "rule set a");
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        copy.delete();
+
+        // Corrupt the stored copy
+        FileUtils.writeStringToFile(new File(config.getHistoryDirectory(), ruleSet.getDigest()), "rule set b");
+        try {
+            history.spool(ruleSet.getDigest(), config.getSpoolDirectory(), DigestAlgorithm.MD5);
+            fail("Corrupt rule set was spooled");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(config.getSpoolDirectory().list().length, 0);
+    }
+
+    @Test
+    public void testInvalidDigestsAreIgnored() {
+        RuleSetHistory history = new RuleSetHistory(config);
+        history.store("../escape", stream("rule set"));
+        history.store("", stream("rule set"));
+        history.store(null, stream("rule set"));
+
+        assertFalse(history.contains("../escape"));
+        assertFalse(history.contains(null));
+        assertFalse(new File(workDirectory, "escape").exists());
+        assertTrue(history.getDigests().isEmpty());
+    }
+
+    @Test
+    public void testDisabled() {
+        config.setHistorySize(0);
+        RuleSetHistory history = new RuleSetHistory(config);
+        history.store("aa", stream("rule set a"));
+
+        assertFalse(history.contains("aa"));
+    }
+
+    @Test
+    public void testPruneByCount() {
+        RuleSetHistory history = new RuleSetHistory(config);
+        storeAged(history, "aa", "a", 4);
+        storeAged(history, "bb", "b", 3);
+        storeAged(history, "cc", "c", 2);
+        history.store("dd", stream("d"));
+
+        assertEquals(history.getDigests(), Lists.newArrayList("dd", "cc", "bb"));
+    }
+
+    @Test
+    public void testRestoreRefreshesEntry() {
+        RuleSetHistory history = new RuleSetHistory(config);
+        storeAged(history, "aa", "a", 4);
+        storeAged(history, "bb", "b", 3);
+        storeAged(history, "cc", "c", 2);
+
+        // Storing a rule set again makes it the most recent one
+        history.store("aa", stream("a"));
+        assertEquals(history.getDigests(), Lists.newArrayList("aa", "cc", "bb"));
+
+        storeAged(history, "aa", "a", 1);
+        history.store("dd", stream("d"));
+        assertEquals(history.getDigests(), Lists.newArrayList("dd", "aa", "cc"));
+    }
+
+    @Test
+    public void testPruneBySize() {
+        config.setHistoryMaxBytes(25);
+        RuleSetHistory history = new RuleSetHistory(config);
+        storeAged(history, "aa", "0123456789", 3);
+        storeAged(history, "bb", "0123456789", 2);
+        history.store("cc", stream("0123456789"));
+
+        assertEquals(history.getDigests(), Lists.newArrayList("cc", "bb"));
+    }
+
+    @Test
+    public void testPruneByAge() {
+        RuleSetHistory history = new RuleSetHistory(config);
+        storeAged(history, "aa", "a", 48);
+        storeAged(history, "bb", "b", 2);
+        history.store("cc", stream("c"));
+
+        assertEquals(history.getDigests(), Lists.newArrayList("cc", "bb"));
+    }
+
+    @Test
+    public void testMostRecentEntryIsKept() {
+        config.setHistoryMaxBytes(5);
+        RuleSetHistory history = new RuleSetHistory(config);
+        storeAged(history, "aa", "a", 2);
+        history.store("bb", stream("larger than the maximum size"));
+
+        assertEquals(history.getDigests(), Lists.newArrayList("bb"));
+    }
+
+    @Test
+    public void testUnrelatedFilesAreKept() throws IOException {
+        RuleSetHistory history = new RuleSetHistory(config);
+        File unrelated = new File(config.getHistoryDirectory(), "notes.txt");
+        FileUtils.writeStringToFile(unrelated, "keep");
+        unrelated.setLastModified(System.currentTimeMillis() - 48 * HOUR);
+
+        history.store("aa", stream("a"));
+
+        assertTrue(unrelated.exists());
+        assertEquals(history.getDigests(), Lists.newArrayList("aa"));
+    }
+
+    /**
+     * Stores a rule set and backdates it by the specified number of hours.
+     */
+    private void storeAged(RuleSetHistory history, String digest, String data, int hours) {
+        history.store(digest, stream(data));
+        File entry = new File(config.getHistoryDirectory(), digest);
+        assertTrue(entry.setLastModified(System.currentTimeMillis() - hours * HOUR));
+    }
+
+    private static InputStream stream(String data) {
+        return new ByteArrayInputStream(data.getBytes());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.AgentConfig;
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import com.edmunds.etm.agent.haproxy.HaProxyConfig;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the parsing of listen directives in rule sets.
+ */
+public class RuleSetListenersTest {
+
+    private File ruleSetFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        ruleSetFile = File.createTempFile("listeners", ".conf");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        ruleSetFile.delete();
+    }
+
+    @Test
+    public void testApacheListen() throws IOException {
+        List<String> listeners = read(new ApacheConfig(),
+                "Listen 80\n"
+                        + "  listen 10.0.0.1:8080 http\n"
+                        + "Listen [::1]:8443\n"
+                        + "Listen [::]:81\n"
+                        + "# Listen 9999\n"
+                        + "ListenBacklog 511\n");
+
+        assertEquals(listeners, Lists.newArrayList("health:80", "10.0.0.1:8080", "::1:8443", "health:81"));
+    }
+
+    @Test
+    public void testHaProxyBind() throws IOException {
+        List<String> listeners = read(new HaProxyConfig(),
+                "frontend www\n"
+                        + "    bind :80,*:81,0.0.0.0:82 name http\n"
+                        + "    bind ipv4@10.0.0.1:443 ssl crt /etc/site.pem\n"
+                        + "    bind ipv6@[fe80::1]:8080\n");
+
+        assertEquals(listeners,
+                Lists.newArrayList("health:80", "health:81", "health:82", "10.0.0.1:443", "fe80::1:8080"));
+    }
+
+    @Test
+    public void testNonTcpAddressesIgnored() throws IOException {
+        List<String> listeners = read(new HaProxyConfig(),
+                "    bind /var/run/haproxy.sock\n"
+                        + "    bind unix@/var/run/admin.sock\n"
+                        + "    bind abns@local\n"
+                        + "    bind fd@3\n"
+                        + "    bind sockpair@4\n"
+                        + "    bind :8080\n");
+
+        assertEquals(listeners, Lists.newArrayList("health:8080"));
+    }
+
+    @Test
+    public void testSmallRangeExpanded() throws IOException {
+        List<String> listeners = read(new HaProxyConfig(), "    bind 127.0.0.1:8000-8003\n    bind :9000-9015\n");
+
+        assertEquals(listeners.size(), 20);
+        assertEquals(listeners.subList(0, 4),
+                Lists.newArrayList("127.0.0.1:8000", "127.0.0.1:8001", "127.0.0.1:8002", "127.0.0.1:8003"));
+        assertEquals(listeners.get(4), "health:9000");
+        assertEquals(listeners.get(19), "health:9015");
+    }
+
+    @Test
+    public void testWideRangeCollapsed() throws IOException {
+        List<String> listeners = read(new HaProxyConfig(), "    bind :9000-9016\n    bind :1-65535\n");
+
+        assertEquals(listeners, Lists.newArrayList("health:9000", "health:9016", "health:1", "health:65535"));
+    }
+
+    @Test
+    public void testInvalidPortsIgnored() throws IOException {
+        List<String> listeners = read(new HaProxyConfig(),
+                "    bind :0\n"
+                        + "    bind :65536\n"
+                        + "    bind :9000-8000\n"
+                        + "    bind :0-80\n"
+                        + "    bind :http\n"
+                        + "    bind :80-\n"
+                        + "    bind 10.0.0.1\n"
+                        + "    bind :443\n");
+
+        assertEquals(listeners, Lists.newArrayList("health:443"));
+    }
+
+    @Test
+    public void testDuplicatesRemoved() throws IOException {
+        List<String> listeners = read(new ApacheConfig(), "Listen 80\nListen *:80\nListen 0.0.0.0:80\nListen 8080\n");
+
+        assertEquals(listeners, Lists.newArrayList("health:80", "health:8080"));
+    }
+
+    @Test
+    public void testNoListeners() throws IOException {
+        assertTrue(read(new ApacheConfig(), "ServerName www.example.com\n").isEmpty());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMissingFile() throws IOException {
+        ruleSetFile.delete();
+        new RuleSetListeners(new ApacheConfig().getListenPattern(), "UTF-8", "health").read(ruleSetFile);
+    }
+
+    private List<String> read(AgentConfig config, String content) throws IOException {
+        FileUtils.writeStringToFile(ruleSetFile, content, "UTF-8");
+        RuleSetListeners ruleSetListeners = new RuleSetListeners(config.getListenPattern(), "UTF-8", "health");
+
+        List<String> listeners = Lists.newArrayList();
+        for (RuleSetListeners.Listener listener : ruleSetListeners.read(ruleSetFile)) {
+            listeners.add(listener.toString());
+        }
+        return listeners;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the parsing of chunked rule set manifests.
+ */
+public class RuleSetManifestTest {
+
+    @Test
+    public void testParse() throws IOException {
+        RuleSetManifest manifest = parse("chunk-0 d41d8cd98f00b204e9800998ecf8427e\n"
+                + "\n"
+                + "chunk-1\t0cc175b9c0f1b6a831c399e269772661  \r\n");
+
+        List<RuleSetManifest.Chunk> chunks = manifest.getChunks();
+        assertEquals(chunks.size(), 2);
+        assertEquals(chunks.get(0).getName(), "chunk-0");
+        assertEquals(chunks.get(0).getDigest(), "d41d8cd98f00b204e9800998ecf8427e");
+        assertEquals(chunks.get(1).getName(), "chunk-1");
+        assertEquals(chunks.get(1).getDigest(), "0cc175b9c0f1b6a831c399e269772661");
+    }
+
+    @Test
+    public void testEmptyManifest() throws IOException {
+        assertTrue(parse("").getChunks().isEmpty());
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testChunksAreUnmodifiable() throws IOException {
+        parse("chunk-0 abc\n").getChunks().clear();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMissingDigest() throws IOException {
+        parse("chunk-0 abc\nchunk-1\n");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testExtraField() throws IOException {
+        parse("chunk-0 abc def\n");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testChunkOutsideManifestNode() throws IOException {
+        parse("../rule-set abc\n");
+    }
+
+    @Test
+    public void testChunkPath() {
+        assertEquals(RuleSetManifest.getChunkPath("/etm/apache", "digest"), "/etm/apache/chunks/digest");
+    }
+
+    private static RuleSetManifest parse(String body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(RuleSetPayload.MAGIC);
+        out.write(RuleSetManifest.ENCODING_NAME.length());
+        out.write(RuleSetManifest.ENCODING_NAME.getBytes("US-ASCII"));
+        out.write(body.getBytes("UTF-8"));
+        return RuleSetManifest.parse(RuleSetPayload.parse(out.toByteArray()));
+    }
+}
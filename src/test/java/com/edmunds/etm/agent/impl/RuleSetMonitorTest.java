@@ -0,0 +1,183 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.AgentUtils;
+import com.edmunds.etm.agent.DigestAlgorithm;
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import com.edmunds.etm.common.api.AgentInstance;
+import com.edmunds.etm.common.api.ControllerPaths;
+import com.edmunds.zookeeper.connection.ZooKeeperConnectionState;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests how the rule set monitor uses the digest node and local rollbacks to decide whether to fetch a rule set.
+ */
+public class RuleSetMonitorTest {
+
+    private static final String ACTIVE_DIGEST = "0123456789abcdef";
+    private static final String NEW_DIGEST = "fedcba9876543210";
+
+    private File workDirectory;
+    private ApacheConfig config;
+    private FakeZooKeeperConnection connection;
+    private FakeAgentReporter agentReporter;
+    private RuleSetHistory ruleSetHistory;
+    private FakeDeploymentWorker deploymentWorker;
+    private String digestNodePath;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        workDirectory = File.createTempFile("monitor", "");
+        workDirectory.delete();
+        workDirectory.mkdir();
+
+        config = new ApacheConfig();
+        config.setWorkDirectory(workDirectory.getAbsolutePath());
+        config.setFilePath(new File(workDirectory, "etm-apache.conf").getAbsolutePath());
+        config.setDigestNodeEnabled(true);
+
+        ControllerPaths controllerPaths = new ControllerPaths();
+        digestNodePath = config.getRuleSetNodePath(controllerPaths) + "/digest";
+        connection = new FakeZooKeeperConnection();
+        connection.addNode(digestNodePath);
+        agentReporter = new FakeAgentReporter();
+        ruleSetHistory = new RuleSetHistory(config);
+        deploymentWorker = new FakeDeploymentWorker(config);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        deploymentWorker.destroy();
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Test
+    public void testSkipsFetchWhenDigestMatches() throws IOException {
+        connection.setNodeData(digestNodePath, ACTIVE_DIGEST.getBytes("UTF-8"));
+        TestRuleSetMonitor monitor = new TestRuleSetMonitor();
+
+        monitor.onConnectionStateChanged(ZooKeeperConnectionState.INITIALIZED);
+
+        assertEquals(monitor.fetches, 0);
+    }
+
+    @Test
+    public void testFetchesWhenDigestDiffers() throws IOException {
+        connection.setNodeData(digestNodePath, (NEW_DIGEST + "\n").getBytes("UTF-8"));
+        TestRuleSetMonitor monitor = new TestRuleSetMonitor();
+
+        monitor.onConnectionStateChanged(ZooKeeperConnectionState.INITIALIZED);
+
+        assertEquals(monitor.fetches, 1);
+    }
+
+    @Test
+    public void testFetchesWhenDigestNodeChanges() throws IOException {
+        connection.setNodeData(digestNodePath, ACTIVE_DIGEST.getBytes("UTF-8"));
+        TestRuleSetMonitor monitor = new TestRuleSetMonitor();
+        monitor.onConnectionStateChanged(ZooKeeperConnectionState.INITIALIZED);
+
+        connection.setNodeData(digestNodePath, NEW_DIGEST.getBytes("UTF-8"));
+
+        assertEquals(monitor.fetches, 1);
+    }
+
+    @Test
+    public void testRollbackIsPinnedUntilControllerPublishesNewRuleSet() throws IOException {
+        String rollbackDigest = AgentUtils.ruleSetDigest("old rule set".getBytes(), DigestAlgorithm.MD5);
+        ruleSetHistory.store(rollbackDigest, new ByteArrayInputStream("old rule set".getBytes()));
+        connection.setNodeData(digestNodePath, ACTIVE_DIGEST.getBytes("UTF-8"));
+        TestRuleSetMonitor monitor = new TestRuleSetMonitor();
+        monitor.onConnectionStateChanged(ZooKeeperConnectionState.INITIALIZED);
+
+        assertTrue(monitor.deployFromHistory(rollbackDigest));
+        assertEquals(deploymentWorker.tasks.size(), 1);
+        agentReporter.getAgentInstance().setActiveRuleSetDigest(rollbackDigest);
+
+        // A new session sees the rule set the rollback replaced
+        monitor.onConnectionStateChanged(ZooKeeperConnectionState.INITIALIZED);
+        assertEquals(monitor.fetches, 0);
+
+        connection.setNodeData(digestNodePath, NEW_DIGEST.getBytes("UTF-8"));
+        assertEquals(monitor.fetches, 1);
+    }
+
+    /**
+     * A rule set monitor that counts rule set fetches instead of performing them.
+     */
+    private class TestRuleSetMonitor extends RuleSetMonitor {
+        private int fetches;
+
+        TestRuleSetMonitor() {
+            super(connection, null, agentReporter, new ControllerPaths(), null, ruleSetHistory, deploymentWorker,
+                    null, config);
+        }
+
+        @Override
+        protected void fetchRuleSet() {
+            fetches++;
+        }
+    }
+
+    /**
+     * A deployment worker that collects tasks instead of running them.
+     */
+    private static class FakeDeploymentWorker extends RuleSetDeploymentWorker {
+        private final List<RuleSetDeploymentTask> tasks = Lists.newArrayList();
+
+        FakeDeploymentWorker(ApacheConfig config) {
+            super(config);
+        }
+
+        @Override
+        public void executeImmediately(RuleSetDeploymentTask task) {
+            tasks.add(task);
+            task.discard();
+        }
+    }
+
+    /**
+     * An agent reporter with a fixed active rule set digest that does not publish anything.
+     */
+    private static class FakeAgentReporter extends AgentReporter {
+        private final AgentInstance agentInstance;
+
+        FakeAgentReporter() {
+            super(null, null, null, null, null);
+            agentInstance = new AgentInstance(UUID.randomUUID(), "127.0.0.1", "1.0");
+            agentInstance.setActiveRuleSetDigest(ACTIVE_DIGEST);
+        }
+
+        @Override
+        public AgentInstance getAgentInstance() {
+            return agentInstance;
+        }
+    }
+}
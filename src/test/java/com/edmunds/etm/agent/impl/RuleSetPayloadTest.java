@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests the parsing of framed and raw rule set payloads.
+ */
+public class RuleSetPayloadTest {
+
+    private static final byte[] RULE_SET = "Listen 80\nRewriteEngine On\n".getBytes();
+
+    @Test
+    public void testRawData() throws IOException {
+        RuleSetPayload payload = RuleSetPayload.parse(RULE_SET);
+
+        assertEquals(payload.getEncoding(), RuleSetEncoding.IDENTITY);
+        assertEquals(IOUtils.toByteArray(payload.openStream()), RULE_SET);
+    }
+
+    @Test
+    public void testNullData() throws IOException {
+        RuleSetPayload payload = RuleSetPayload.parse((byte[]) null);
+
+        assertEquals(payload.getEncoding(), RuleSetEncoding.IDENTITY);
+        assertEquals(IOUtils.toByteArray(payload.openStream()).length, 0);
+    }
+
+    @Test
+    public void testPartialMagicIsRawData() throws IOException {
+        byte[] data = {0, 'E', 'T', 'X', 'a'};
+        RuleSetPayload payload = RuleSetPayload.parse(data);
+
+        assertEquals(payload.getEncoding(), RuleSetEncoding.IDENTITY);
+        assertEquals(IOUtils.toByteArray(payload.openStream()), data);
+    }
+
+    @Test
+    public void testFramedIdentity() throws IOException {
+        RuleSetPayload payload = RuleSetPayload.parse(frame("identity", RULE_SET));
+
+        assertEquals(payload.getEncodingName(), "identity");
+        assertEquals(IOUtils.toByteArray(payload.openStream()), RULE_SET);
+    }
+
+    @Test
+    public void testFramedGzip() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(RULE_SET);
+        out.close();
+
+        RuleSetPayload payload = RuleSetPayload.parse(frame("gzip", compressed.toByteArray()));
+
+        assertEquals(payload.getEncoding(), RuleSetEncoding.GZIP);
+        assertEquals(IOUtils.toByteArray(payload.openBodyStream()), compressed.toByteArray());
+    }
+
+    @Test
+    public void testFramedGzipDecoded() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(RULE_SET);
+        out.close();
+
+        RuleSetPayload payload = RuleSetPayload.parse(frame("gzip", compressed.toByteArray()));
+
+        assertEquals(IOUtils.toByteArray(payload.openStream()), RULE_SET);
+    }
+
+    @Test
+    public void testUnsupportedEncoding() throws IOException {
+        RuleSetPayload payload = RuleSetPayload.parse(frame("br", RULE_SET));
+
+        assertEquals(payload.getEncodingName(), "br");
+        assertNull(payload.getEncoding());
+        try {
+            payload.openStream();
+            fail("Unsupported encoding was accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testCorruptGzipBody() throws IOException {
+        RuleSetPayload.parse(frame("gzip", RULE_SET)).openStream();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMissingEncodingLength() throws IOException {
+        RuleSetPayload.parse(RuleSetPayload.MAGIC);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncatedEncodingName() throws IOException {
+        byte[] framed = frame("gzip", new byte[0]);
+        byte[] truncated = new byte[framed.length - 2];
+        System.arraycopy(framed, 0, truncated, 0, truncated.length);
+
+        RuleSetPayload.parse(truncated);
+    }
+
+    private static byte[] frame(String encodingName, byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(RuleSetPayload.MAGIC);
+        out.write(encodingName.length());
+        out.write(encodingName.getBytes("US-ASCII"));
+        out.write(body);
+        return out.toByteArray();
+    }
+}
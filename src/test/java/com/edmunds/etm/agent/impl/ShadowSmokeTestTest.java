@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the shadow instance smoke test.
+ */
+public class ShadowSmokeTestTest {
+
+    // Long enough that a test fails, rather than passes, if it has to wait for it
+    private static final long LONG_TIMEOUT = 10000;
+
+    private File workDirectory;
+    private File ruleSetFile;
+    private ApacheConfig config;
+    private HealthCheckEngine healthCheckEngine;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        workDirectory = File.createTempFile("shadow", "");
+        workDirectory.delete();
+        workDirectory.mkdir();
+
+        ruleSetFile = new File(workDirectory, "etm-apache.conf");
+        FileUtils.writeStringToFile(ruleSetFile, "Listen 80\nPidFile /var/run/httpd.pid\nRewriteRule ^/a /b\n");
+
+        config = new ApacheConfig();
+        config.setWorkDirectory(new File(workDirectory, "work").getAbsolutePath());
+        config.setCheckInitialInterval(50);
+        config.setCheckInterval(100);
+        config.setSmokeTestTimeout(LONG_TIMEOUT);
+        healthCheckEngine = new HealthCheckEngine();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        healthCheckEngine.destroy();
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Test
+    public void testWriteShadowFile() throws IOException {
+        FileUtils.writeStringToFile(ruleSetFile, "Listen 80\n  Listen 10.0.0.1:443 https\nPidFile /var/run/httpd.pid\n"
+                + "  stats socket /var/run/haproxy.sock level admin\nRewriteRule ^/a /b\n");
+        File shadowFile = new File(workDirectory, "shadow.conf");
+        File pidFile = new File(workDirectory, "shadow.pid");
+
+        List<Integer> ports = newSmokeTest().writeShadowFile(ruleSetFile, shadowFile, pidFile);
+
+        assertEquals(ports.size(), 2);
+        String loopback = InetAddress.getByName(null).getHostAddress();
+        assertEquals(FileUtils.readFileToString(shadowFile), "Listen " + loopback + ":" + ports.get(0) + "\n"
+                + "  Listen " + loopback + ":" + ports.get(1) + " https\n"
+                + "PidFile " + pidFile.getAbsolutePath() + "\n"
+                + "#   stats socket /var/run/haproxy.sock level admin\n"
+                + "RewriteRule ^/a /b\n");
+    }
+
+    @Test
+    public void testPasses() {
+        config.setSmokeTestCommand(javaCommand(ShadowServer.class) + " {PORT}");
+
+        assertTrue(newSmokeTest().execute(ruleSetFile));
+        assertEquals(config.getSpoolDirectory().list().length, 0);
+    }
+
+    @Test
+    public void testFailsWithoutListenDirectives() throws IOException {
+        FileUtils.writeStringToFile(ruleSetFile, "RewriteRule ^/a /b\n");
+        config.setSmokeTestCommand(javaCommand(ShadowServer.class) + " {PORT}");
+
+        assertFalse(newSmokeTest().execute(ruleSetFile));
+    }
+
+    @Test
+    public void testRetriesWhenPortIsTaken() throws IOException {
+        // The first instance finds its port taken by another process and exits, the second one listens
+        File script = new File(workDirectory, "shadow.sh");
+        File marker = new File(workDirectory, "taken");
+        String server = javaCommand(ShadowServer.class).replace("$", "\\$");
+        FileUtils.writeStringToFile(script, "if [ -e " + marker + " ]; then exec " + server + " $1; fi\n"
+                + "touch " + marker + "\n"
+                + server + " $1 3000 &\n"
+                + "sleep 2\n"
+                + "exit 1\n");
+        config.setSmokeTestCommand("sh " + script.getAbsolutePath() + " {PORT}");
+
+        assertTrue(newSmokeTest().execute(ruleSetFile));
+    }
+
+    @Test
+    public void testFailsWhenInstanceExits() {
+        config.setSmokeTestCommand("false {FILE_PATH}");
+
+        long startTime = System.currentTimeMillis();
+        assertFalse(newSmokeTest().execute(ruleSetFile));
+        assertTrue(System.currentTimeMillis() - startTime < LONG_TIMEOUT);
+    }
+
+    @Test
+    public void testFailsWhenInstanceDoesNotListen() {
+        config.setSmokeTestCommand("sleep 60");
+        config.setSmokeTestTimeout(500);
+
+        long startTime = System.currentTimeMillis();
+        assertFalse(newSmokeTest().execute(ruleSetFile));
+        assertTrue(System.currentTimeMillis() - startTime < LONG_TIMEOUT);
+    }
+
+    private ShadowSmokeTest newSmokeTest() {
+        return new ShadowSmokeTest(config, new CommandRunner(), healthCheckEngine);
+    }
+
+    private static String javaCommand(Class<?> mainClass) {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+        return java + " -cp " + System.getProperty("java.class.path") + " " + mainClass.getName();
+    }
+
+    /**
+     * A stand-in for a shadow server instance that listens on the loopback port passed as its first argument, for the
+     * number of milliseconds passed as its optional second argument.
+     */
+    public static class ShadowServer {
+        public static void main(String[] args) throws Exception {
+            ServerSocket socket = new ServerSocket(Integer.parseInt(args[0]), 1, InetAddress.getByName(null));
+            try {
+                Thread.sleep(args.length > 1 ? Long.parseLong(args[1]) : 60000);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
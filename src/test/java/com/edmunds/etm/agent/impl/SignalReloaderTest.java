@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.apache.ApacheConfig;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests reloading the web server by signalling its master process.
+ */
+public class SignalReloaderTest {
+
+    // Long enough that a test fails, rather than passes, if it has to wait for it
+    private static final long LONG_TIMEOUT = 10000;
+
+    // A master process that replaces its child on SIGHUP and exits on any other signal
+    private static final String MASTER_SCRIPT = "trap 'kill $child; sleep 30 & child=$!' HUP\n"
+            + "sleep 30 & child=$!\n"
+            + "echo $$ > %s\n"
+            + "while true; do wait; done\n";
+
+    private File workDirectory;
+    private File pidFile;
+    private ApacheConfig config;
+    private CommandRunner commandRunner;
+    private PrivilegedHelper privilegedHelper;
+    private ReloadDetector reloadDetector;
+    private CommandRunner.RunningCommand master;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        workDirectory = File.createTempFile("reload", "");
+        workDirectory.delete();
+        workDirectory.mkdir();
+        pidFile = new File(workDirectory, "httpd.pid");
+
+        config = new ApacheConfig();
+        config.setPidFile(pidFile.getAbsolutePath());
+        config.setReloadSignal("HUP");
+        commandRunner = new CommandRunner();
+        privilegedHelper = new PrivilegedHelper(config);
+        reloadDetector = new ReloadDetector(config);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        if (master != null) {
+            master.stop();
+            master = null;
+        }
+        privilegedHelper.destroy();
+        commandRunner.destroy();
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        int pid = startMaster();
+
+        assertTrue(newSignalReloader().reload("reload", LONG_TIMEOUT));
+        assertTrue(commandRunner.getLastResult("reload").isSuccess());
+        assertNotNull(reloadDetector.getLastReloadDate());
+
+        // The master survives the reload
+        assertEquals(ProcessTable.readPidFile(pidFile), Integer.valueOf(pid));
+        assertTrue(ProcessTable.isAlive(pid));
+    }
+
+    @Test
+    public void testMasterExits() throws Exception {
+        startMaster();
+        config.setReloadSignal("USR1");
+
+        long startTime = System.currentTimeMillis();
+        assertFalse(newSignalReloader().reload("reload", LONG_TIMEOUT));
+        assertTrue(System.currentTimeMillis() - startTime < LONG_TIMEOUT);
+    }
+
+    @Test
+    public void testMasterNotRunning() {
+        assertFalse(newSignalReloader().reload("reload", LONG_TIMEOUT));
+        assertNull(commandRunner.getLastResult("reload"));
+    }
+
+    private SignalReloader newSignalReloader() {
+        return new SignalReloader(config, commandRunner, privilegedHelper, reloadDetector);
+    }
+
+    /**
+     * Starts the master process and waits until it has written its pid file.
+     */
+    private int startMaster() throws Exception {
+        File script = new File(workDirectory, "master.sh");
+        FileUtils.writeStringToFile(script, String.format(MASTER_SCRIPT, pidFile.getAbsolutePath()));
+        master = commandRunner.start("sh " + script.getAbsolutePath(), null);
+
+        long deadline = System.currentTimeMillis() + LONG_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            Integer pid = ProcessTable.readPidFile(pidFile);
+            if (pid != null && !ProcessTable.getChildren(pid).isEmpty()) {
+                return pid;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Master process did not start");
+    }
+}
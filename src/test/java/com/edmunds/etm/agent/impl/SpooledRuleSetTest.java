@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.AgentUtils;
+import com.edmunds.etm.agent.DigestAlgorithm;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests spooling rule sets to disk.
+ */
+public class SpooledRuleSetTest {
+
+    private static final DigestAlgorithm ALGORITHM = DigestAlgorithm.MD5;
+
+    private File spoolDirectory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        spoolDirectory = File.createTempFile("spool", "");
+        spoolDirectory.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(spoolDirectory);
+    }
+
+    @Test
+    public void testSpool() throws IOException {
+        byte[] data = "Listen 80\nRewriteRule ^/a /b\n".getBytes();
+
+        SpooledRuleSet ruleSet = SpooledRuleSet.spool(new ByteArrayInputStream(data), spoolDirectory, ALGORITHM);
+
+        assertEquals(ruleSet.getLength(), data.length);
+        assertEquals(ruleSet.getDigest(), AgentUtils.ruleSetDigest(data, ALGORITHM));
+        InputStream in = ruleSet.openStream();
+        try {
+            assertEquals(IOUtils.toByteArray(in), data);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        ruleSet.delete();
+        assertEquals(spoolDirectory.list().length, 0);
+    }
+
+    @Test
+    public void testDiscard() throws IOException {
+        SpooledRuleSet.Output out = SpooledRuleSet.create(spoolDirectory, ALGORITHM);
+        out.write("partial".getBytes());
+
+        out.discard();
+
+        assertEquals(spoolDirectory.list().length, 0);
+    }
+
+    @Test
+    public void testDiscardAfterFinish() throws IOException {
+        SpooledRuleSet.Output out = SpooledRuleSet.create(spoolDirectory, ALGORITHM);
+        out.write("complete".getBytes());
+        SpooledRuleSet ruleSet = out.finish();
+
+        out.discard();
+
+        assertEquals(ruleSet.getLength(), 8);
+        assertTrue(ruleSet.getFile().exists());
+    }
+}
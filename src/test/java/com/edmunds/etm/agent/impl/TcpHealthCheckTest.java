@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.agent.impl;
+
+import com.edmunds.etm.agent.api.HealthCheckListener;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the TCP health check against a local server socket.
+ */
+public class TcpHealthCheckTest {
+
+    // Long enough that a test fails, rather than passes, if it has to wait for it
+    private static final long LONG_TIMEOUT = 10000;
+
+    private HealthCheckEngine engine;
+    private InetAddress loopbackAddress;
+    private ServerSocket serverSocket;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        engine = new HealthCheckEngine();
+        loopbackAddress = InetAddress.getByName(null);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        engine.destroy();
+        if (serverSocket != null) {
+            serverSocket.close();
+            serverSocket = null;
+        }
+    }
+
+    @Test
+    public void testFirstAttemptIsImmediate() throws Exception {
+        serverSocket = new ServerSocket(0, 1, loopbackAddress);
+
+        // The result would take at least the initial interval if the first attempt were delayed
+        long startTime = System.currentTimeMillis();
+        Result result = execute(newHealthCheck(serverSocket.getLocalPort(), LONG_TIMEOUT, LONG_TIMEOUT));
+
+        assertTrue(result.await());
+        assertTrue(System.currentTimeMillis() - startTime < LONG_TIMEOUT);
+    }
+
+    @Test
+    public void testInitialDelay() throws Exception {
+        serverSocket = new ServerSocket(0, 1, loopbackAddress);
+        TcpHealthCheck healthCheck = newHealthCheck(serverSocket.getLocalPort(), LONG_TIMEOUT, LONG_TIMEOUT);
+        healthCheck.setInitialDelay(200);
+
+        long startTime = System.currentTimeMillis();
+        Result result = execute(healthCheck);
+
+        assertTrue(result.await());
+        assertTrue(System.currentTimeMillis() - startTime >= 200);
+    }
+
+    @Test
+    public void testServerStartsLate() throws Exception {
+        int port = allocatePort();
+        Result result = execute(newHealthCheck(port, 20, LONG_TIMEOUT));
+
+        // The check keeps retrying, at an interval ramping up from 20 to 100 ms, until the server listens
+        Thread.sleep(300);
+        assertFalse(result.isComplete());
+        serverSocket = new ServerSocket(port, 1, loopbackAddress);
+
+        assertTrue(result.await());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        int port = allocatePort();
+
+        long startTime = System.currentTimeMillis();
+        Result result = execute(newHealthCheck(port, 20, 500));
+
+        assertFalse(result.await());
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        assertTrue(elapsedTime >= 500 && elapsedTime < LONG_TIMEOUT);
+    }
+
+    private TcpHealthCheck newHealthCheck(int port, long initialInterval, long timeout) {
+        long interval = Math.max(initialInterval, 100);
+        return new TcpHealthCheck(engine, loopbackAddress.getHostAddress(), port, initialInterval, interval, timeout);
+    }
+
+    private Result execute(TcpHealthCheck healthCheck) {
+        Result result = new Result();
+        healthCheck.execute(result);
+        return result;
+    }
+
+    /**
+     * Allocates a loopback port on which nothing listens.
+     */
+    private int allocatePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, loopbackAddress);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Records the result of a health check.
+     */
+    private static class Result implements HealthCheckListener {
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile boolean alive;
+
+        @Override
+        public void onHealthCheckComplete(boolean alive) {
+            this.alive = alive;
+            completed.countDown();
+        }
+
+        boolean isComplete() {
+            return completed.getCount() == 0;
+        }
+
+        boolean await() throws InterruptedException {
+            assertTrue(completed.await(LONG_TIMEOUT, TimeUnit.MILLISECONDS));
+            return alive;
+        }
+    }
+}